@@ -14,34 +14,33 @@
 
 package com.google.enterprise.connector.sharepoint.cache;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
-import java.lang.ref.WeakReference;
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 
 /**
  * Provides an abstract generic cache implementation which can be used to
- * minimize disk IO operation. This, however, does not make any assumption about
- * locality of reference, neither uses any specific algorithm for optimizing
- * data storage and access.
+ * minimize disk IO operation.
  * <p/>
- * The cache does not impose any limits on the elements as such. Rather, leaves
- * the concern of freeing up the memory to the JVM. Java references are used for
- * this purpose which ensures that the cache size will never lead to any memory
- * issues. Hence, elements in cache are stored as soft references.
+ * The cache holds a bounded number of elements. When it is full, the least
+ * recently used element is evicted to make room for a new one. All the
+ * operations are synchronized on the cache, so it can be shared between
+ * threads.
  * <p/>
  * Views are used to optimize the access, updates and deletion of elements in
  * cache. These are analogous to the SQL views in the sense that they gives a
- * partial view of the original object. Along with every view, a list of
- * elements are stored that are there in the cache. Such data structure allows
- * view based deletion which is a common case in User Data Store DAO
- * implementation. Views are stored as weak references because their lifetime
- * depends on the actual elements that are their in the cache.
+ * partial view of the original object. Along with every view, the set of
+ * elements in the cache having that view is stored. Such data structure
+ * allows view based deletion which is a common case in User Data Store DAO
+ * implementation; it costs time proportional to the number of elements
+ * having the view. The view index is updated whenever an element is added,
+ * removed or evicted, so it never refers to elements which are not cached.
  * <p/>
  *
  * @author nitendra_thakur
@@ -50,132 +49,65 @@ import java.util.WeakHashMap;
 public abstract class CacheProvider<T> implements ICache<T> {
 
   /**
-   * A marker interface for the views which can be used along with the cache The
-   * implementors are not supposed to keep any strong references of the objects
-   * being cached. Since, the cache relies on soft and weak references, if the
-   * caller will maintain any strong reference of the objects, the cache will
-   * keep on growing.
+   * A marker interface for the views which can be used along with the cache.
+   * Views are used as hash keys, so the implementors must define equals() and
+   * hashCode() in terms of the partial state they represent.
    *
    * @author nitendra_thakur
    */
   protected interface View {
   }
 
-  /**
-   * A subclass of Java's SoftReference whose equality and ordering is decided
-   * by its referent and not by the reference itself. Hence, a new definition
-   * for equals() and hashCode() is given
-   *
-   * @author nitendra_thakur
-   */
-  private static final class SPSoftReference<T> extends SoftReference<T> {
-    int hashcode;
-
-    SPSoftReference(T t) {
-      super(t);
-      this.hashcode = t.hashCode();
-    }
+  private final int maxSize;
 
-    SPSoftReference(T t, ReferenceQueue<? super T> refQueue) {
-      super(t, refQueue);
-      this.hashcode = t.hashCode();
-    }
+  /*
+   * The cached elements along with their views, in the order of their access.
+   * The eldest element is evicted when the size goes beyond maxSize.
+   */
+  private final LinkedHashMap<T, Set<View>> cacheMap;
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public boolean equals(Object obj) {
-      if (null == obj || !(obj instanceof Reference)) {
-        return false;
-      }
-      Reference<T> inRef = (Reference) obj;
-      if (null == get()) {
-        if (null == inRef.get()) {
-          return true;
-        } else {
-          return false;
-        }
-      } else {
-        return get().equals(inRef.get());
-      }
-    }
+  /*
+   * Allows access to all elements corresponding to a view. Only those views
+   * that have at least one corresponding element stored in cache are present
+   * here.
+   */
+  private final Map<View, Set<T>> viewRefsMap = new HashMap<View, Set<T>>();
 
-    @Override
-    public int hashCode() {
-      return hashcode;
-    }
+  protected CacheProvider() {
+    this(SPConstants.UDS_CACHE_MAX_SIZE);
   }
 
   /**
-   * A subclass of Java's WeakReference whose equality and ordering is decided
-   * by its referent and not by the reference itself. Hence, a new definition
-   * for equals() and hashCode() is given
-   *
-   * @author nitendra_thakur
+   * @param maxSize maximum number of elements kept in the cache
    */
-  private static final class SPWeakReference<T> extends WeakReference<T> {
-    int hashcode;
-
-    SPWeakReference(T t) {
-      super(t);
-      this.hashcode = t.hashCode();
-    }
-
-    SPWeakReference(T t, ReferenceQueue<? super T> refQueue) {
-      super(t, refQueue);
-      this.hashcode = t.hashCode();
+  protected CacheProvider(final int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
     }
-
-    @Override
-    @SuppressWarnings("unchecked")
-    public boolean equals(Object obj) {
-      if (null == obj || !(obj instanceof Reference)) {
-        return false;
-      }
-      Reference<T> inRef = (Reference) obj;
-      if (null == get()) {
-        if (null == inRef.get()) {
+    this.maxSize = maxSize;
+    this.cacheMap = new LinkedHashMap<T, Set<View>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<T, Set<View>> eldest) {
+        if (size() > CacheProvider.this.maxSize) {
+          unindex(eldest.getKey(), eldest.getValue());
           return true;
-        } else {
-          return false;
         }
-      } else {
-        return get().equals(inRef.get());
+        return false;
       }
-    }
-
-    @Override
-    public int hashCode() {
-      return hashcode;
-    }
+    };
   }
 
-  /*
-   * The KeySet of this map is used as the cache. Elements are stored as soft
-   * reference to let GC handle their life span.
-   */
-  private Map<SPSoftReference<T>, Set<View>> cacheMap = new HashMap<SPSoftReference<T>, Set<View>>();
-  /* Keep track of those element references which should be removed from cache */
-  private ReferenceQueue<T> cacheRefQueue = new ReferenceQueue<T>();
-
-  /*
-   * Allows access to all elements corresponding to a view. Only those views
-   * that have at least one corresponding element stored in cache will be
-   * present here. A strong reference of view in the cacheMap assures this
-   * invariant.
-   */
-  private Map<View, Set<SPWeakReference<T>>> viewRefsMap = new WeakHashMap<View, Set<SPWeakReference<T>>>();
-
   /**
    * Checks if the element is in cache
    *
    * @param t
    * @return
    */
-  public boolean contains(T t) {
+  public synchronized boolean contains(T t) {
     if (null == t) {
       return false;
     }
-    return cacheMap.containsKey(new SPSoftReference<T>(t));
+    return null != cacheMap.get(t);
   }
 
   /**
@@ -189,43 +121,40 @@ public abstract class CacheProvider<T> implements ICache<T> {
    *
    * @param t
    */
-  public void add(T t) {
+  public synchronized void add(T t) {
     if (null == t) {
       return;
     }
+    if (cacheMap.containsKey(t)) {
+      // Only refreshes the position of the element
+      cacheMap.get(t);
+      return;
+    }
     Set<View> views = getViews(t);
-    cacheMap.put(new SPSoftReference<T>(t, cacheRefQueue), views);
-
     for (View view : views) {
-      Set<SPWeakReference<T>> referents;
-      if (viewRefsMap.containsKey(view)) {
-        referents = viewRefsMap.get(view);
-        if (null == referents) {
-          referents = new HashSet<SPWeakReference<T>>();
-          viewRefsMap.put(view, referents);
-        }
-      } else {
-        referents = new HashSet<SPWeakReference<T>>();
+      Set<T> referents = viewRefsMap.get(view);
+      if (null == referents) {
+        referents = new HashSet<T>();
         viewRefsMap.put(view, referents);
       }
-      referents.add(new SPWeakReference<T>(t));
+      referents.add(t);
     }
+    cacheMap.put(t, views);
   }
 
   /**
-   * Removes the element from cache. Views are not updated at this point of
-   * time. Since, views only have weak references of the element, garbage
-   * collector will nullify their references. It is also not unsafe to keep
-   * these references in views till the time gc does its job. That is because,
-   * the existence of an element in cache in not determined by the views.
+   * Removes the element from cache along with its entries in the views.
    *
    * @param t
    */
-  public void remove(T t) {
+  public synchronized void remove(T t) {
     if (null == t) {
       return;
     }
-    cacheMap.remove(new SPSoftReference<T>(t));
+    Set<View> views = cacheMap.remove(t);
+    if (null != views) {
+      unindex(t, views);
+    }
   }
 
   /**
@@ -237,13 +166,14 @@ public abstract class CacheProvider<T> implements ICache<T> {
    *
    * @param view
    */
-  protected void removeUsingView(View view) {
-    Set<SPWeakReference<T>> refs = viewRefsMap.get(view);
+  protected synchronized void removeUsingView(View view) {
+    Set<T> refs = viewRefsMap.get(view);
     if (null == refs) {
       return;
     }
-    for (SPWeakReference<T> ref : refs) {
-      remove(ref.get());
+    List<T> elements = new ArrayList<T>(refs);
+    for (T t : elements) {
+      remove(t);
     }
   }
 
@@ -258,19 +188,29 @@ public abstract class CacheProvider<T> implements ICache<T> {
    */
   protected abstract Set<View> getViews(T t);
 
+  public synchronized int size() {
+    return cacheMap.size();
+  }
+
   /**
-   * Calling this will delete all the references whose referent has been garbage
-   * collected. There is no point in keeping these references in cache.
+   * @return the maximum number of elements kept in the cache
    */
-  public void clearCache() {
-    Reference<? extends T> ref = cacheRefQueue.poll();
-    while (null != ref) {
-      cacheMap.remove(ref);
-      ref = cacheRefQueue.poll();
-    }
+  public int getMaxSize() {
+    return maxSize;
   }
 
-  public int size() {
-    return cacheMap.size();
+  /**
+   * Removes an element from the views it is registered with
+   */
+  private void unindex(T t, Set<View> views) {
+    for (View view : views) {
+      Set<T> referents = viewRefsMap.get(view);
+      if (null != referents) {
+        referents.remove(t);
+        if (referents.isEmpty()) {
+          viewRefsMap.remove(view);
+        }
+      }
+    }
   }
 }
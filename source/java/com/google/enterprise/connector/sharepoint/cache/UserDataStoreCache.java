@@ -27,6 +27,17 @@ import java.util.Set;
 public class UserDataStoreCache<T extends UserGroupMembership> extends
     CacheProvider<T> {
 
+  public UserDataStoreCache() {
+    super();
+  }
+
+  /**
+   * @param maxSize maximum number of memberships kept in the cache
+   */
+  public UserDataStoreCache(int maxSize) {
+    super(maxSize);
+  }
+
   /**
    * Provides the user-namespace view of the {@link UserGroupMembership}
    *
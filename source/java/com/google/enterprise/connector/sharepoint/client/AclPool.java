@@ -0,0 +1,138 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.generated.gssacl.ObjectType;
+import com.google.enterprise.connector.spi.SpiConstants.RoleType;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical, immutable ACLs shared by all the documents having the same
+ * permissions. Most documents inherit the permissions of their list or site,
+ * so the memory used for the ACLs of the documents in the crawl queues is
+ * proportional to the number of unique permission scopes rather than to the
+ * number of documents.
+ * <p>
+ * ACL maps are interned weakly: a canonical map is forgotten once no document
+ * refers to it anymore. Role type sets are few and interned for good.
+ * </p>
+ */
+public final class AclPool {
+  private static final int MAX_ROLE_TYPES_MAPPINGS = 1024;
+
+  private static final Map<Set<RoleType>, Set<RoleType>> roleTypeSets = new ConcurrentHashMap<Set<RoleType>, Set<RoleType>>();
+
+  /*
+   * SharePoint permissions along with the object type, mapped to the role
+   * types they amount to
+   */
+  private static final Map<String, Set<RoleType>> roleTypesMappings = new ConcurrentHashMap<String, Set<RoleType>>();
+
+  private static final Map<Map<String, Set<RoleType>>, WeakReference<Map<String, Set<RoleType>>>> acls = new WeakHashMap<Map<String, Set<RoleType>>, WeakReference<Map<String, Set<RoleType>>>>();
+
+  private AclPool() {
+  }
+
+  /**
+   * Same as {@link Util#getRoleTypesFor(String[], ObjectType)} except that the
+   * returned set is shared and immutable, and that the mapping is computed only
+   * once for the same permissions and object type.
+   *
+   * @param permissions SharePoint Permissions
+   * @param objectType Kind of entity (List/List-Item/Web)
+   * @return the canonical set of {@link RoleType}
+   */
+  public static Set<RoleType> getRoleTypesFor(final String[] permissions,
+      final ObjectType objectType) {
+    if (null == permissions || null == objectType) {
+      return internRoleTypes(Util.getRoleTypesFor(permissions, objectType));
+    }
+    final String key = objectType + Arrays.asList(permissions).toString();
+    Set<RoleType> roleTypes = roleTypesMappings.get(key);
+    if (null == roleTypes) {
+      roleTypes = internRoleTypes(Util.getRoleTypesFor(permissions, objectType));
+      if (roleTypesMappings.size() >= MAX_ROLE_TYPES_MAPPINGS) {
+        roleTypesMappings.clear();
+      }
+      roleTypesMappings.put(key, roleTypes);
+    }
+    return roleTypes;
+  }
+
+  /**
+   * @param roleTypes a set of role types
+   * @return the canonical immutable set having the same role types
+   */
+  public static Set<RoleType> internRoleTypes(final Set<RoleType> roleTypes) {
+    Set<RoleType> canonical = roleTypeSets.get(roleTypes);
+    if (null == canonical) {
+      canonical = Collections.unmodifiableSet(roleTypes.isEmpty()
+          ? EnumSet.noneOf(RoleType.class) : EnumSet.copyOf(roleTypes));
+      roleTypeSets.put(canonical, canonical);
+    }
+    return canonical;
+  }
+
+  /**
+   * Returns the canonical immutable ACL having the same principals and role
+   * types as the passed-in ACL. The role type sets of the returned ACL are
+   * canonical as well.
+   *
+   * @param acl principal names mapped to their role types
+   * @return the canonical ACL, or null if the passed-in ACL is null
+   */
+  public static Map<String, Set<RoleType>> intern(
+      final Map<String, Set<RoleType>> acl) {
+    if (null == acl) {
+      return null;
+    }
+    synchronized (acls) {
+      final WeakReference<Map<String, Set<RoleType>>> ref = acls.get(acl);
+      if (null != ref) {
+        final Map<String, Set<RoleType>> canonical = ref.get();
+        if (null != canonical) {
+          return canonical;
+        }
+      }
+      final Map<String, Set<RoleType>> copy = new HashMap<String, Set<RoleType>>(
+          (int) (acl.size() / 0.75f) + 1);
+      for (Map.Entry<String, Set<RoleType>> ace : acl.entrySet()) {
+        copy.put(ace.getKey(), internRoleTypes(ace.getValue()));
+      }
+      final Map<String, Set<RoleType>> canonical = Collections.unmodifiableMap(copy);
+      acls.put(canonical, new WeakReference<Map<String, Set<RoleType>>>(
+          canonical));
+      return canonical;
+    }
+  }
+
+  /**
+   * @return the number of distinct ACLs currently shared
+   */
+  public static int size() {
+    synchronized (acls) {
+      return acls.size();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-writes URLs using the alias mapping rules. The rules are parsed once and
+ * grouped by the protocol and host they apply to, so mapping a URL only tries
+ * the rules for its own host, in the order in which they were configured.
+ * The first rule matching the URL is applied, as before.
+ * <p>
+ * The host names converted to FQDN are cached for {@link #FQDN_CACHE_TTL}
+ * milliseconds, so that the name service is not asked for every document.
+ * </p>
+ */
+public class AliasMapper {
+  private static final Logger LOGGER = Logger.getLogger(AliasMapper.class.getName());
+
+  // Time for which the FQDN of a host is cached
+  static final long FQDN_CACHE_TTL = 10 * 60 * 1000;
+
+  private static final Map<String, CachedHostName> fqdnCache = new ConcurrentHashMap<String, CachedHostName>();
+
+  // Rules grouped by protocol and host
+  private final Map<String, List<Rule>> rules = new HashMap<String, List<Rule>>();
+  private final boolean fqdn;
+
+  /**
+   * A FQDN and the time until which it can be used
+   */
+  private static class CachedHostName {
+    final String hostName;
+    final long expiry;
+
+    CachedHostName(final String hostName, final long expiry) {
+      this.hostName = hostName;
+      this.expiry = expiry;
+    }
+  }
+
+  /**
+   * An alias mapping rule with its source URL parsed
+   */
+  private static class Rule {
+    // The source URL as configured
+    final String aliasPattern;
+    final String aliasValue;
+    final boolean global;
+    // Protocol and host of the source URL as they are written in it
+    final String protocolAndHost;
+    final String file;
+    final int port;
+    final int defaultPort;
+
+    Rule(final String aliasPattern, final String aliasValue,
+        final boolean global, final URL patternURL) {
+      this.aliasPattern = aliasPattern;
+      this.aliasValue = aliasValue;
+      this.global = global;
+      this.protocolAndHost = patternURL.getProtocol() + SPConstants.URL_SEP
+          + patternURL.getHost();
+      this.file = patternURL.getFile();
+      this.port = patternURL.getPort();
+      this.defaultPort = patternURL.getDefaultPort();
+    }
+
+    /**
+     * @param urlPort The port of the URL being mapped, -1 if not specified
+     * @return the prefix that a URL with the given port must have for the
+     *         rule to apply, or null if the rule does not apply to the port
+     */
+    String getPrefix(final int urlPort) {
+      if (global) {
+        if (port != SPConstants.MINUS_ONE) {
+          return aliasPattern;
+        } else if (urlPort != SPConstants.MINUS_ONE) {
+          return protocolAndHost + SPConstants.COLON + urlPort + file;
+        } else {
+          return protocolAndHost + file;
+        }
+      } else if ((urlPort == SPConstants.MINUS_ONE) && (port == defaultPort)) {
+        return protocolAndHost + file;
+      } else if ((urlPort == defaultPort) && (port == SPConstants.MINUS_ONE)) {
+        return protocolAndHost + SPConstants.COLON + defaultPort + file;
+      } else if (urlPort != port) {
+        return null;
+      }
+      return aliasPattern;
+    }
+  }
+
+  /**
+   * @param aliasMap the alias mapping rules; source URL mapped to the alias.
+   *          Can be null.
+   * @param fqdn If true, the URLs which do not match any rule are converted
+   *          into FQDN format
+   */
+  public AliasMapper(final Map<String, String> aliasMap, final boolean fqdn) {
+    this.fqdn = fqdn;
+    if (null == aliasMap) {
+      return;
+    }
+    for (final Map.Entry<String, String> alias : aliasMap.entrySet()) {
+      String aliasPattern = alias.getKey();
+      String aliasValue = alias.getValue();
+      if ((aliasPattern == null) || (aliasValue == null)) {
+        continue;
+      }
+      aliasPattern = aliasPattern.trim();
+      aliasValue = aliasValue.trim();
+      if (aliasPattern.equalsIgnoreCase("") || aliasValue.equalsIgnoreCase("")) {
+        continue;
+      }
+
+      boolean global = false;
+      String aliasPatternURL = aliasPattern;
+      if (aliasPattern.startsWith(SPConstants.GLOBAL_ALIAS_IDENTIFIER)) {
+        global = true;
+        aliasPatternURL = aliasPattern.substring(1);
+      }
+      final URL patternURL;
+      try {
+        patternURL = new URL(aliasPatternURL);
+      } catch (final MalformedURLException e) {
+        LOGGER.log(Level.WARNING, "Malformed alias pattern: " + aliasPatternURL, e);
+        continue;
+      }
+
+      final String key = getKey(patternURL);
+      List<Rule> hostRules = rules.get(key);
+      if (null == hostRules) {
+        hostRules = new ArrayList<Rule>();
+        rules.put(key, hostRules);
+      }
+      hostRules.add(new Rule(aliasPatternURL, aliasValue, global, patternURL));
+    }
+  }
+
+  private static String getKey(final URL url) {
+    return url.getProtocol().toLowerCase(Locale.ENGLISH)
+        + SPConstants.URL_SEP + url.getHost().toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Re-writes a given URL using the alias mapping rules.
+   *
+   * @param url URL to be re-written/mapped
+   * @return the mapped URL. If no rule matches, the URL with its port made
+   *         explicit and, if required, its host converted into FQDN format.
+   */
+  public String map(final String url) throws MalformedURLException {
+    final URL objURL = new URL(url);
+    final List<Rule> hostRules = rules.get(getKey(objURL));
+    if (null != hostRules) {
+      for (final Rule rule : hostRules) {
+        final String aliasPattern = rule.getPrefix(objURL.getPort());
+        if (null != aliasPattern && url.startsWith(aliasPattern)) {
+          LOGGER.config("document url[" + url
+              + "] has matched against alias source URL [ " + aliasPattern
+              + " ]");
+          String strUrl = rule.aliasValue;
+          final String restURL = url.substring(aliasPattern.length());
+          if (!strUrl.endsWith(SPConstants.SLASH)
+              && !restURL.startsWith(SPConstants.SLASH)) {
+            strUrl += SPConstants.SLASH;
+          }
+          strUrl += restURL;
+          LOGGER.config("document url[" + url + "] has been re-written to [ "
+              + strUrl + " ] in respect to the aliasing.");
+          return strUrl;
+        }
+      }
+    }
+
+    String strUrl = objURL.getProtocol() + SPConstants.URL_SEP;
+    strUrl += getFQDNHostName(objURL.getHost(), fqdn) + SPConstants.COLON;
+    final int portNo = objURL.getPort();
+    if (portNo != SPConstants.MINUS_ONE) {
+      strUrl += portNo;
+    } else {
+      strUrl += objURL.getDefaultPort();
+    }
+    strUrl += objURL.getFile();
+    return strUrl;
+  }
+
+  /**
+   * Converts a host name to FQDN using Java's
+   * {@link InetAddress#getCanonicalHostName()}. The results, including the
+   * host names which could not be resolved, are cached.
+   *
+   * @param hostName
+   * @return the host name in FQDN format
+   */
+  static String getFQDNHostName(final String hostName, boolean fqdn) {
+    if (!fqdn) {
+      return hostName;
+    }
+    final long now = System.currentTimeMillis();
+    final CachedHostName cached = fqdnCache.get(hostName);
+    if (null != cached && cached.expiry > now) {
+      return cached.hostName;
+    }
+    String fqdnHostName = hostName;
+    try {
+      fqdnHostName = InetAddress.getByName(hostName).getCanonicalHostName();
+    } catch (final UnknownHostException e) {
+      LOGGER.log(Level.WARNING, "Exception occurred while converting to FQDN, hostname [ "
+          + hostName + " ].", e);
+    }
+    fqdnCache.put(hostName, new CachedHostName(fqdnHostName, now
+        + FQDN_CACHE_TTL));
+    return fqdnHostName;
+  }
+}
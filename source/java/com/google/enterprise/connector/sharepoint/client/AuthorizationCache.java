@@ -0,0 +1,191 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the authorization decisions made by the GSBulkAuthorization web
+ * service for a short time, so that a user repeating a search over the same
+ * results is authorized from memory. Every decision remembers the site
+ * collection, or the web application if the site collection is unknown, of
+ * the document. All the decisions under a site collection are discarded when
+ * an ACL change is detected for it.
+ * <p>
+ * The cache holds at most {@link SPConstants#AUTHZ_CACHE_MAX_SIZE} decisions.
+ * When it is full, the expired decisions are discarded and, if that is not
+ * enough, all of them.
+ * </p>
+ */
+public class AuthorizationCache {
+  private static final Logger LOGGER = Logger.getLogger(AuthorizationCache.class.getName());
+
+  private final Map<Key, Decision> decisions = new ConcurrentHashMap<Key, Decision>();
+  private final long ttl;
+  private final int maxSize;
+
+  /**
+   * A user and a document
+   */
+  private static final class Key {
+    private final String userName;
+    private final String docId;
+
+    Key(final String userName, final String docId) {
+      this.userName = userName;
+      this.docId = docId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof Key) {
+        Key key = (Key) obj;
+        return key.userName.equals(userName) && key.docId.equals(docId);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * userName.hashCode() + docId.hashCode();
+    }
+  }
+
+  /**
+   * An authorization status along with the container it applies to and the
+   * time until which it can be used
+   */
+  private static final class Decision {
+    final boolean allowed;
+    final String scope;
+    final long expiry;
+
+    Decision(final boolean allowed, final String scope, final long expiry) {
+      this.allowed = allowed;
+      this.scope = scope;
+      this.expiry = expiry;
+    }
+  }
+
+  public AuthorizationCache() {
+    this(SPConstants.AUTHZ_CACHE_TTL, SPConstants.AUTHZ_CACHE_MAX_SIZE);
+  }
+
+  /**
+   * @param ttl time in milliseconds for which a decision is cached
+   * @param maxSize maximum number of decisions cached
+   */
+  public AuthorizationCache(final long ttl, final int maxSize) {
+    this.ttl = ttl;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param userName The user being authorized
+   * @param docId The document ID as sent to GSA
+   * @return the cached authorization status, or null if there is none
+   */
+  public Boolean get(final String userName, final String docId) {
+    if (null == userName || null == docId) {
+      return null;
+    }
+    final Key key = new Key(userName, docId);
+    final Decision decision = decisions.get(key);
+    if (null == decision) {
+      return null;
+    }
+    if (System.currentTimeMillis() > decision.expiry) {
+      decisions.remove(key);
+      return null;
+    }
+    return Boolean.valueOf(decision.allowed);
+  }
+
+  /**
+   * Caches an authorization status.
+   *
+   * @param userName The user being authorized
+   * @param docId The document ID as sent to GSA
+   * @param scope URL of the site collection or web application of the
+   *          document
+   * @param allowed the authorization status
+   */
+  public void put(final String userName, final String docId,
+      final String scope, final boolean allowed) {
+    if (null == userName || null == docId || null == scope) {
+      return;
+    }
+    if (decisions.size() >= maxSize) {
+      makeRoom();
+    }
+    decisions.put(new Key(userName, docId), new Decision(allowed, scope,
+        System.currentTimeMillis() + ttl));
+  }
+
+  /**
+   * Discards all the decisions for the documents under a site collection or a
+   * web application, or for the documents under a site collection which
+   * contains the URL.
+   *
+   * @param url URL of a site collection or a web application
+   */
+  public void invalidate(final String url) {
+    if (null == url || decisions.isEmpty()) {
+      return;
+    }
+    int count = 0;
+    for (Iterator<Decision> it = decisions.values().iterator(); it.hasNext();) {
+      final String scope = it.next().scope;
+      if (scope.startsWith(url) || url.startsWith(scope)) {
+        it.remove();
+        count++;
+      }
+    }
+    LOGGER.log(Level.CONFIG, "Discarded " + count
+        + " cached authorization decisions for [ " + url + " ]");
+  }
+
+  /**
+   * Discards all the decisions
+   */
+  public void clear() {
+    decisions.clear();
+  }
+
+  /**
+   * @return the number of decisions cached
+   */
+  public int size() {
+    return decisions.size();
+  }
+
+  private void makeRoom() {
+    final long now = System.currentTimeMillis();
+    for (Iterator<Decision> it = decisions.values().iterator(); it.hasNext();) {
+      if (now > it.next().expiry) {
+        it.remove();
+      }
+    }
+    if (decisions.size() >= maxSize) {
+      LOGGER.log(Level.INFO, "Authorization cache is full. Discarding all the "
+          + decisions.size() + " cached decisions.");
+      decisions.clear();
+    }
+  }
+}
@@ -0,0 +1,283 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the excluded URL logs of a connector instance. The messages are
+ * queued by the crawling threads and written by a background thread in
+ * batches, keeping the current log file open in between. When the queue is
+ * full the messages are dropped and their number is written to the log once
+ * there is room again, so that logging never holds up the traversal.
+ * <p>
+ * The logs are rotated as before: excluded_url0.txt is the current log and is
+ * renamed to excluded_url1.txt once it exceeds
+ * {@link SPConstants#EXCLUDED_URL_MAX_SIZE}, and so on, up to
+ * {@link SPConstants#EXCLUDED_URL_MAX_COUNT} old logs.
+ * </p>
+ */
+final class ExcludedURLLog {
+  private static final Logger LOGGER = Logger.getLogger(ExcludedURLLog.class.getName());
+
+  // Number of messages which can be waiting to be written
+  static final int QUEUE_SIZE = 10000;
+
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  // One log for every directory, shared by all the clones of a context
+  private static final Map<String, ExcludedURLLog> logs = new HashMap<String, ExcludedURLLog>();
+
+  private final String parentDir;
+  private final long maxSize;
+  private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(
+      QUEUE_SIZE);
+  private final AtomicLong dropped = new AtomicLong();
+  // Messages queued and not written yet
+  private final AtomicInteger pending = new AtomicInteger();
+
+  // Guards the file and everything below
+  private final Object fileLock = new Object();
+  private final SimpleDateFormat formatter = new SimpleDateFormat(
+      "yyyy-MM-dd HH:mm:ss");
+  private Writer writer = null;
+  private long size = 0;
+
+  /**
+   * A message and the time at which it was logged
+   */
+  private static class Entry {
+    final long time;
+    final String info;
+
+    Entry(final long time, final String info) {
+      this.time = time;
+      this.info = info;
+    }
+  }
+
+  /**
+   * @param parentDir The directory of the logs
+   * @return the log for the directory
+   */
+  static ExcludedURLLog getInstance(final String parentDir) {
+    synchronized (logs) {
+      ExcludedURLLog log = logs.get(parentDir);
+      if (null == log) {
+        log = new ExcludedURLLog(parentDir, SPConstants.EXCLUDED_URL_MAX_SIZE);
+        logs.put(parentDir, log);
+      }
+      return log;
+    }
+  }
+
+  ExcludedURLLog(final String parentDir, final long maxSize) {
+    this.parentDir = parentDir;
+    this.maxSize = maxSize;
+    // Started here so that log() never has to take the file lock, which is
+    // held while writing
+    final Thread writerThread = new Thread(new Runnable() {
+      public void run() {
+        writeQueue();
+      }
+    }, "ExcludedURLLog-" + parentDir);
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Queues a message to be written to the log. Does not block.
+   *
+   * @param info The message
+   */
+  void log(final String info) {
+    pending.incrementAndGet();
+    if (!queue.offer(new Entry(System.currentTimeMillis(), info))) {
+      pending.decrementAndGet();
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of messages dropped because the queue was full
+   */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes all the queued messages to the log, including the ones being
+   * written by the writer thread
+   */
+  void flush() throws InterruptedException {
+    synchronized (fileLock) {
+      final List<Entry> batch = new ArrayList<Entry>();
+      queue.drainTo(batch);
+      write(batch);
+      while (pending.get() > 0) {
+        fileLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Discards the queued messages and deletes all the logs
+   */
+  void clear() {
+    synchronized (fileLock) {
+      pending.addAndGet(-queue.drainTo(new ArrayList<Entry>()));
+      close();
+      final File dir = new File(parentDir);
+      if (!dir.exists() || !dir.isDirectory()) {
+        LOGGER.log(Level.WARNING, "Excluded URL parent directory not found! ");
+        return;
+      }
+      final File[] files = dir.listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File element : files) {
+        if ((element == null) || !element.exists()) {
+          continue;
+        }
+        LOGGER.log(Level.INFO, "Deleting " + element.getAbsolutePath()
+            + " ... status:" + element.delete());
+      }
+      LOGGER.log(Level.INFO, "Deleting " + parentDir + " ... status:"
+          + dir.delete());
+    }
+  }
+
+  /**
+   * Run by the writer thread. Waits for messages and writes them along with
+   * the ones queued meanwhile.
+   */
+  private void writeQueue() {
+    final List<Entry> batch = new ArrayList<Entry>();
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (final InterruptedException e) {
+        LOGGER.log(Level.WARNING, "Excluded URL log writer interrupted. ", e);
+        return;
+      }
+      synchronized (fileLock) {
+        queue.drainTo(batch);
+        write(batch);
+        // Nothing is left to be written for now. Do not keep the file open
+        // while the connector is not excluding anything.
+        if (queue.isEmpty()) {
+          close();
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private void write(final List<Entry> batch) {
+    pending.addAndGet(-batch.size());
+    fileLock.notifyAll();
+    final long droppedCount = dropped.getAndSet(0);
+    if (droppedCount > 0) {
+      LOGGER.log(Level.WARNING, droppedCount
+          + " excluded URLs could not be logged as the log queue was full. ");
+      batch.add(new Entry(System.currentTimeMillis(), droppedCount
+          + " excluded URLs could not be logged as the log queue was full."));
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      for (final Entry entry : batch) {
+        if (null == writer) {
+          open();
+        }
+        if (size > maxSize) {
+          rotate();
+          open();
+        }
+        final String line = formatter.format(new Date(entry.time)) + " : "
+            + entry.info + LINE_SEPARATOR;
+        writer.write(line);
+        size += line.length();
+      }
+      writer.flush();
+    } catch (final Throwable e) {
+      LOGGER.log(Level.WARNING, "Problem while logging excluded URLs", e);
+      close();
+    }
+  }
+
+  private File getFile(final int index) {
+    return new File(parentDir + SPConstants.SLASH
+        + SPConstants.EXCLUDED_URL_LOG + index + ".txt");
+  }
+
+  private void open() throws IOException {
+    // If the parent directory does not exist, create one
+    final File dir = new File(parentDir);
+    if (!dir.exists() || !dir.isDirectory()) {
+      LOGGER.log(Level.WARNING, "Excluded URL parent directory not found! Creating one... status: "
+          + dir.mkdir());
+    }
+    final File file = getFile(0);
+    if (!file.exists()) {
+      LOGGER.log(Level.INFO, "creating " + file.getPath() + " ... status: "
+          + file.createNewFile());
+    }
+    size = file.length();
+    writer = new BufferedWriter(new FileWriter(file, true));
+  }
+
+  private void close() {
+    if (null == writer) {
+      return;
+    }
+    try {
+      writer.close();
+    } catch (final IOException e) {
+      LOGGER.log(Level.WARNING, "Problem while closing the excluded URL log", e);
+    }
+    writer = null;
+  }
+
+  private void rotate() {
+    close();
+    // Delete the oldest log file
+    final File oldest = getFile(SPConstants.EXCLUDED_URL_MAX_COUNT);
+    LOGGER.log(Level.INFO, "Deleting " + oldest.getPath()
+        + " to rotate... status:" + oldest.delete());
+    for (int i = SPConstants.EXCLUDED_URL_MAX_COUNT - 1; i >= 0; --i) {
+      getFile(i).renameTo(getFile(i + 1));
+    }
+    size = 0;
+  }
+}
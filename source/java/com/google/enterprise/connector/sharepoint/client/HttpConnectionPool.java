@@ -0,0 +1,192 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of HTTP connections used for downloading the document contents and for
+ * checking the connectivity and the SharePoint version of the sites. One pool
+ * is created per connector instance and is shared by all the copies of its
+ * {@link SharepointClientContext}.
+ * <p>
+ * Connections are kept alive and re-used by the subsequent requests to the
+ * same host. Since NTLM authenticates a connection rather than a request, this
+ * also avoids a new NTLM handshake for every document.
+ * </p>
+ */
+public class HttpConnectionPool {
+  private static final Logger LOGGER = Logger.getLogger(HttpConnectionPool.class.getName());
+
+  // Connections that have not been used for this long are closed
+  private static final long IDLE_CONNECTION_TIMEOUT = 60 * 1000;
+  private static final long IDLE_CONNECTION_CHECK_INTERVAL = 30 * 1000;
+
+  // Waits shorter than this are not counted as waits for a free connection
+  private static final long MIN_WAIT_TIME = 10;
+
+  // Lower limit on the total number of connections across all the hosts
+  private static final int MIN_TOTAL_CONNECTIONS = 20;
+
+  // Longest wait for a free connection, so that a request does not wait
+  // indefinitely if some connection is never released. Independent of the
+  // socket time-out, which may be 0 for no time-out.
+  private static final long MAX_CONNECTION_WAIT = 5 * 60 * 1000;
+
+  private final StatisticsConnectionManager connectionManager;
+  private final IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+  private final ConcurrentMap<String, HostStatistics> statistics = new ConcurrentHashMap<String, HostStatistics>();
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of connections opened to a
+   *          single host
+   * @param connectTimeout Time-out in milliseconds for establishing a
+   *          connection. 0 implies no time-out
+   * @param socketTimeout Time-out in milliseconds for waiting for data. 0
+   *          implies no time-out
+   */
+  public HttpConnectionPool(final int maxConnectionsPerHost,
+      final int connectTimeout, final int socketTimeout) {
+    connectionManager = new StatisticsConnectionManager();
+    final HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+    params.setMaxTotalConnections(Math.max(MIN_TOTAL_CONNECTIONS, maxConnectionsPerHost));
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(socketTimeout);
+    params.setStaleCheckingEnabled(true);
+
+    idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+    idleConnectionTimeoutThread.setName("SharePoint HTTP idle connection timeout");
+    idleConnectionTimeoutThread.setConnectionTimeout(IDLE_CONNECTION_TIMEOUT);
+    idleConnectionTimeoutThread.setTimeoutInterval(IDLE_CONNECTION_CHECK_INTERVAL);
+    idleConnectionTimeoutThread.addConnectionManager(connectionManager);
+    idleConnectionTimeoutThread.start();
+  }
+
+  /**
+   * Creates a client that uses the pooled connections. The client itself is
+   * cheap and must not be shared between threads since the credentials are
+   * kept in its state.
+   *
+   * @return a new {@link HttpClient}
+   */
+  public HttpClient newHttpClient() {
+    final HttpClient httpClient = new HttpClient(connectionManager);
+    httpClient.getParams().setConnectionManagerTimeout(MAX_CONNECTION_WAIT);
+    return httpClient;
+  }
+
+  /**
+   * Logs the utilization of the pool for every host it has been used for.
+   * Frequent waits for a free connection suggest raising the number of
+   * connections per host.
+   */
+  public void logStatistics() {
+    if (!LOGGER.isLoggable(Level.INFO)) {
+      return;
+    }
+    final int maxConnectionsPerHost = connectionManager.getParams().getDefaultMaxConnectionsPerHost();
+    for (final Map.Entry<String, HostStatistics> entry : new TreeMap<String, HostStatistics>(
+        statistics).entrySet()) {
+      final HostStatistics host = entry.getValue();
+      LOGGER.info("HTTP connections to [ " + entry.getKey() + " ]: open [ "
+          + connectionManager.getConnectionsInPool(host.hostConfiguration)
+          + " ], peak open [ " + host.peakOpen + " of "
+          + maxConnectionsPerHost + " ], requests [ " + host.requests.get()
+          + " ], waited for a free connection [ " + host.waits.get()
+          + " ] times. ");
+    }
+  }
+
+  /**
+   * Closes all the connections and stops the idle connection monitor. The pool
+   * must not be used afterwards.
+   */
+  public void shutdown() {
+    idleConnectionTimeoutThread.shutdown();
+    connectionManager.shutdown();
+  }
+
+  /**
+   * Usage counters of the connections to a single host
+   */
+  private static class HostStatistics {
+    final HostConfiguration hostConfiguration;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong waits = new AtomicLong();
+    int peakOpen = 0;
+
+    HostStatistics(final HostConfiguration hostConfiguration) {
+      this.hostConfiguration = new HostConfiguration(hostConfiguration);
+    }
+
+    void connectionAcquired(final long waitTime, final int open) {
+      requests.incrementAndGet();
+      if (waitTime >= MIN_WAIT_TIME) {
+        waits.incrementAndGet();
+      }
+      synchronized (this) {
+        if (open > peakOpen) {
+          peakOpen = open;
+        }
+      }
+    }
+  }
+
+  /**
+   * Connection manager which records the usage of the connections per host
+   */
+  private class StatisticsConnectionManager extends
+      MultiThreadedHttpConnectionManager {
+    @Override
+    public HttpConnection getConnectionWithTimeout(
+        final HostConfiguration hostConfiguration, final long timeout)
+        throws ConnectionPoolTimeoutException {
+      final long start = System.currentTimeMillis();
+      final HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+      getHostStatistics(hostConfiguration).connectionAcquired(System.currentTimeMillis()
+          - start, getConnectionsInPool(hostConfiguration));
+      return connection;
+    }
+
+    private HostStatistics getHostStatistics(
+        final HostConfiguration hostConfiguration) {
+      final String key = hostConfiguration.getHostURL();
+      HostStatistics host = statistics.get(key);
+      if (null == host) {
+        host = new HostStatistics(hostConfiguration);
+        final HostStatistics existing = statistics.putIfAbsent(key, host);
+        if (null != existing) {
+          host = existing;
+        }
+      }
+      return host;
+    }
+  }
+}
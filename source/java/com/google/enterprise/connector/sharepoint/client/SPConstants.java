@@ -106,6 +106,7 @@ public class SPConstants {
   public static final Pattern ATTRIBUTE_VALUE_PATTERN = Pattern.compile("^\\d+;\\#");
 
   public static final String UNAUTHORIZED = "(401)Unauthorized";
+  public static final String UNRECOGNIZED_SOAPACTION = "did not recognize the value of HTTP Header SOAPAction";
   public static final String SAXPARSEEXCEPTION = "org.xml.sax.SAXParseException";
 
   public static final String EXCLUDED_URL_DIR = "excluded-URLs";
@@ -113,6 +114,37 @@ public class SPConstants {
   public static final int EXCLUDED_URL_MAX_SIZE = 52428800;
   public static final int EXCLUDED_URL_MAX_COUNT = 5;
 
+  // Directory under the connector work directory where the crawl queues
+  // which do not fit in memory are written
+  public static final String CRAWL_QUEUE_DIR = "crawl-queues";
+  // Maximum number of documents of a crawl queue kept in memory
+  public static final int CRAWL_QUEUE_WINDOW = 1000;
+
+  // Time in milliseconds for which an authorization decision is cached
+  public static final long AUTHZ_CACHE_TTL = 2 * 60 * 1000;
+  // Maximum number of authorization decisions cached
+  public static final int AUTHZ_CACHE_MAX_SIZE = 100000;
+  // Number of GSBulkAuthorization calls made at the same time
+  public static final int AUTHZ_THREAD_POOL_SIZE = 10;
+  // Time in milliseconds within which an authorization request must complete
+  public static final long AUTHZ_DEADLINE = 30000;
+  // Maximum number of documents sent in one GSBulkAuthorization call
+  public static final int AUTHZ_MAX_DOCS_PER_CALL = 500;
+
+  // Maximum number of idle user data store connections kept open
+  public static final int UDS_MAX_IDLE_CONNECTIONS = 4;
+  // Time in milliseconds after which an idle user data store connection is
+  // closed
+  public static final long UDS_CONNECTION_MAX_IDLE_TIME = 5 * 60 * 1000;
+  // Time in milliseconds for which the user data store rows of a principal
+  // are cached for authentication
+  public static final long UDS_MEMBERSHIP_CACHE_TTL = 30 * 60 * 1000;
+  // Maximum number of principals whose user data store rows are cached
+  public static final int UDS_MEMBERSHIP_CACHE_MAX_SIZE = 50000;
+  // Maximum number of memberships remembered as written to the user data
+  // store
+  public static final int UDS_CACHE_MAX_SIZE = 100000;
+
   public static final String CONNECTIVITY_SUCCESS = "success";
   public static final String CONNECTIVITY_FAIL = "fail";
 
@@ -302,6 +334,7 @@ public class SPConstants {
   public static final String LIST_STATE = "ListState";
   public static final String WEB_STATE = "WebState";
   public static final String STATE = "State";
+  public static final String STATE_GENERATION = "Generation";
   public static final String LAST_FULL_CRAWL_DATETIME = "LastFullCrawlDateTime";
   public static final String LAST_CRAWLED_DATETIME = "LastCrawledDateTime";
   public static final String STATE_ATTR_CDATA = "CDATA";
@@ -317,6 +350,12 @@ public class SPConstants {
 
   public static final String CONNECTOR_NAME = "Sharepoint";
   public static final String CONNECTOR_PREFIX = "_state.xml";
+  // Suffixes to the state file name for the journal of changes and the
+  // snapshot being written
+  public static final String STATE_JOURNAL_SUFFIX = ".journal";
+  public static final String STATE_TEMP_SUFFIX = ".tmp";
+  // Suffix to the state file name for the ListStates paged out of memory
+  public static final String STATE_PAGES_SUFFIX = ".pages";
   public static final String LAST_CRAWLED_WEB_ID = "LastCrawledWebStateID";
   public static final String LAST_CRAWLED_LIST_ID = "LastCrawledListStateID";
   public static final String FULL_RECRAWL_FLAG = "FullRecrawlFlag";
@@ -31,15 +31,29 @@ import com.google.enterprise.connector.sharepoint.wsclient.UserProfileWS;
 import com.google.enterprise.connector.sharepoint.wsclient.WebsWS;
 import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,24 +70,47 @@ import java.util.logging.Logger;
 public class SharepointClient {
   private final Logger LOGGER = Logger.getLogger(SharepointClient.class.getName());
   private SharepointClientContext sharepointClientContext;
-  private int nDocuments = 0;
+
+  // Number of documents discovered in the current batch traversal. This is
+  // the batch-hint budget shared by all the sites being crawled concurrently.
+  private final AtomicInteger nDocuments = new AtomicInteger();
 
   // true -> when threshold is not reached and all webs
   // all lists all documents are done.
   // false -> when a partial cycle is completed i.e, threshold is
   // reached before processing all the documents.
-  private boolean doCrawl;
+  private volatile boolean doCrawl;
 
   // This is mainly for test cases. It gives the count of liststates that are
   // checked for any docs pending from previous crawl cycle
   private int noOfVisitedListStates = 0;
 
+  // Fetches the ACLs of the documents while the lists are being crawled.
+  // Created on first use and stopped by shutdown().
+  private ExecutorService aclExecutor = null;
+
+  // The background ACL retrievals of the webs crawled in the current batch
+  // traversal, by the primary key of the web
+  private final Map<String, AclFetchPipeline> aclPipelines = new ConcurrentHashMap<String, AclFetchPipeline>();
+
   public SharepointClient(
       final SharepointClientContext inSharepointClientContext)
       throws SharepointException {
     sharepointClientContext = inSharepointClientContext;
   }
 
+  /**
+   * @return the directory where the crawl queues which do not fit in memory
+   *         are written, or null if the work directory is not known
+   */
+  private File getCrawlQueueDir() {
+    final String workDir = sharepointClientContext.getGoogleConnectorWorkDir();
+    if (null == workDir) {
+      return null;
+    }
+    return new File(workDir, SPConstants.CRAWL_QUEUE_DIR);
+  }
+
   /**
    * For a single ListState, handle its crawl queue (if any). This means add it
    * to the ResultSet which we give back to the Connector Manager.
@@ -126,6 +163,7 @@ public class SharepointClient {
       docList.setFQDNConversion(sharepointClientContext.isFQDNConversion());
       docList.setReWriteDisplayUrlUsingAliasMappingRules(sharepointClientContext.isReWriteDisplayUrlUsingAliasMappingRules());
       docList.setReWriteRecordUrlUsingAliasMappingRules(sharepointClientContext.isReWriteRecordUrlUsingAliasMappingRules());
+      docList.setContentPrefetchCount(sharepointClientContext.getContentPrefetchCount());
     } else {
       LOGGER.log(Level.SEVERE, "sharepointClientContext not found!");
     }
@@ -144,6 +182,12 @@ public class SharepointClient {
    * documents from previous batch traversal are being returned.
    * </p>
    * <p>
+   * If 'aclFetchQueueSize' is greater than zero, the ACLs of the documents
+   * have been fetched in the background while the lists of the web were
+   * being crawled. Only the ACLs of the documents which were not discovered
+   * that way are fetched here. See {@link AclFetchPipeline}.
+   * </p>
+   * <p>
    * <b>No documents are returned in case there are failures/errors while
    * retrieving ACLs</b>
    * </p>
@@ -184,6 +228,38 @@ public class SharepointClient {
     }
 
     noOfVisitedListStates = 0;
+    final SPDocumentList resultSet = traverseLists(globalState, webState, sizeSoFar);
+
+    final AclFetchPipeline aclPipeline = aclPipelines.remove(webState.getPrimaryKey());
+    if (null != aclPipeline && !sendPendingDocs && null != resultSet
+        && resultSet.size() > 0) {
+      // Wait for the ACLs fetched while the lists were crawled and fetch the
+      // remaining ones, e.g. those of the alerts and the landing page
+      final List<SPDocument> remaining = aclPipeline.getNotSubmitted(resultSet.getDocuments());
+      if (!aclPipeline.awaitCompletion()
+          || (remaining.size() > 0 && !fetchACL(new SPDocumentList(remaining, globalState), webState, globalState))) {
+        LOGGER.log(Level.WARNING, "No documents will be sent for site [ "
+            + webState.getWebUrl()
+            + " ] as ACL retrieval has failed. Please check the errors/logs associated with ACL retrieval before this");
+        return null;
+      }
+    } else if (!handleACLForDocuments(resultSet, webState, globalState, sendPendingDocs)) {
+      // Fetch ACL for all the documents crawled from the current WebState
+      return null;
+    }
+
+    LOGGER.config(noOfVisitedListStates + " lists scanned from site "
+        + webState.getWebUrl() + ". found " + resultSet + " docs");
+
+    return resultSet;
+  }
+
+  /**
+   * Scans the crawl queues of the lists of a web until the batch hint is
+   * reached.
+   */
+  private SPDocumentList traverseLists(final GlobalState globalState,
+      final WebState webState, int sizeSoFar) {
     SPDocumentList resultSet = null;
     for (final Iterator<ListState> iter = webState.getCurrentListstateIterator(); iter.hasNext();) {
       final ListState list = iter.next();
@@ -233,15 +309,6 @@ public class SharepointClient {
         break;
       }
     }
-
-    // Fetch ACL for all the documents crawled from the current WebState
-    if (!handleACLForDocuments(resultSet, webState, globalState, sendPendingDocs)) {
-      return null;
-    }
-
-    LOGGER.config(noOfVisitedListStates + " lists scanned from site "
-        + webState.getWebUrl() + ". found " + resultSet + " docs");
-
     return resultSet;
   }
 
@@ -281,12 +348,7 @@ public class SharepointClient {
     // Do not try to re-fetch the ACL when documents are pending from
     // previous batch traversals
     if (null != resultSet && resultSet.size() > 0) {
-
-      if (sharepointClientContext.isFetchACLInBatches()) {
-        aclRetrievalResult = fetchACLInBatches(resultSet, webState, globalState, sharepointClientContext.getAclBatchSizeFactor());
-      } else {
-        aclRetrievalResult = fetchACLForDocuments(resultSet, webState, globalState);
-      }
+      aclRetrievalResult = fetchACL(resultSet, webState, globalState);
 
       if (!aclRetrievalResult) {
         LOGGER.log(Level.WARNING, "No documents will be sent for site [ "
@@ -298,6 +360,197 @@ public class SharepointClient {
     return aclRetrievalResult;
   }
 
+  /**
+   * Fetches the ACL for documents either in one go or in batches depending on
+   * 'fetchACLInBatches'
+   *
+   * @return True if ACL was retrieved successfully OR false in case of any
+   *         exceptions/errors
+   */
+  private boolean fetchACL(SPDocumentList resultSet, WebState webState,
+      GlobalState globalState) {
+    if (sharepointClientContext.isFetchACLInBatches()) {
+      return fetchACLInBatches(resultSet, webState, globalState, sharepointClientContext.getAclBatchSizeFactor());
+    } else {
+      return fetchACLForDocuments(resultSet, webState, globalState);
+    }
+  }
+
+  /**
+   * Fetches the ACLs of the documents of a web on a background thread while
+   * the remaining lists of the web are still being crawled. The documents are
+   * collected across the lists of the web and sent in batches of
+   * {@link #getAclBatchSize()} documents. At most 'queueSize' batches wait
+   * for their ACLs; {@link #add} blocks when the limit is reached.
+   * <p>
+   * The failure semantics are the same as those of
+   * {@link SharepointClient#handleACLForDocuments}: if the ACL retrieval fails
+   * for any of the batches, none of the documents of the web should be sent.
+   * The remaining batches are skipped once a failure has been encountered.
+   * </p>
+   */
+  private class AclFetchPipeline {
+    private final WebState webState;
+    private final int batchSize;
+    private final Semaphore permits;
+    private final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+    // Documents waiting for the current batch to be full
+    private List<SPDocument> batch = new ArrayList<SPDocument>();
+    // The documents handed over so far. SPDocument.equals() compares the
+    // document IDs only, hence these are looked up by identity.
+    private final Map<SPDocument, Boolean> submitted = new IdentityHashMap<SPDocument, Boolean>();
+    private volatile boolean failed = false;
+
+    AclFetchPipeline(final WebState webState, final int batchSize,
+        final int queueSize) {
+      this.webState = webState;
+      this.batchSize = batchSize;
+      // One for the batch being processed plus the waiting ones
+      this.permits = new Semaphore(queueSize + 1);
+    }
+
+    /**
+     * Adds the documents discovered in a list. Every batch that becomes full
+     * is queued for ACL retrieval.
+     */
+    void add(final List<SPDocument> docs) {
+      if (null == docs) {
+        return;
+      }
+      for (SPDocument doc : docs) {
+        batch.add(doc);
+        if (batch.size() >= batchSize) {
+          flush();
+        }
+      }
+    }
+
+    /**
+     * Queues the documents of the current batch for ACL retrieval, even if
+     * the batch is not full. Blocks if too many batches are already waiting.
+     */
+    void flush() {
+      if (failed || batch.isEmpty()) {
+        return;
+      }
+      final SPDocumentList docList = new SPDocumentList(batch, null);
+      batch = new ArrayList<SPDocument>();
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.log(Level.WARNING, "Interrupted while queuing documents for ACL retrieval from site [ "
+            + webState.getWebUrl() + " ]. ", e);
+        failed = true;
+        return;
+      }
+      try {
+        results.add(getAclExecutor().submit(new Callable<Boolean>() {
+          public Boolean call() {
+            try {
+              if (failed) {
+                return Boolean.FALSE;
+              }
+              if (!fetchACLForDocuments(docList, webState, null)) {
+                failed = true;
+              }
+              return !failed;
+            } finally {
+              permits.release();
+            }
+          }
+        }));
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+      for (SPDocument doc : docList.getDocuments()) {
+        submitted.put(doc, Boolean.TRUE);
+      }
+    }
+
+    /**
+     * @return the documents which have not been queued for ACL retrieval
+     */
+    List<SPDocument> getNotSubmitted(final List<SPDocument> docs) {
+      final List<SPDocument> notSubmitted = new ArrayList<SPDocument>();
+      for (SPDocument doc : docs) {
+        if (!submitted.containsKey(doc)) {
+          notSubmitted.add(doc);
+        }
+      }
+      return notSubmitted;
+    }
+
+    /**
+     * Waits for all the queued ACL retrievals to complete.
+     *
+     * @return True if no ACL retrieval has failed
+     */
+    boolean awaitCompletion() {
+      for (Future<Boolean> result : results) {
+        try {
+          if (!result.get()) {
+            failed = true;
+          }
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Problem while fetching ACLs for documents crawled under WebState [ "
+              + webState.getWebUrl() + " ] . ", e.getCause());
+          failed = true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failed = true;
+          break;
+        }
+      }
+      return !failed;
+    }
+  }
+
+  /**
+   * @return the executor on which the ACLs are fetched while the lists are
+   *         being crawled
+   */
+  private synchronized ExecutorService getAclExecutor() {
+    if (null == aclExecutor) {
+      aclExecutor = Executors.newSingleThreadExecutor();
+    }
+    return aclExecutor;
+  }
+
+  /**
+   * @return the number of documents whose ACLs are fetched in one web service
+   *         call while the lists are being crawled. The documents of a batch
+   *         traversal are split by 'aclBatchSizeFactor' if
+   *         'fetchACLInBatches' is enabled.
+   */
+  private int getAclBatchSize() {
+    int batchSize = sharepointClientContext.getBatchHint();
+    if (sharepointClientContext.isFetchACLInBatches()
+        && sharepointClientContext.getAclBatchSizeFactor() > 1) {
+      batchSize /= sharepointClientContext.getAclBatchSizeFactor();
+    }
+    return Math.max(1, batchSize);
+  }
+
+  /**
+   * Waits for the ACL retrievals of the webs that have not been traversed and
+   * stops the background ACL fetcher. Must be called once the batch
+   * traversal is over.
+   */
+  public void shutdown() {
+    for (AclFetchPipeline aclPipeline : aclPipelines.values()) {
+      aclPipeline.awaitCompletion();
+    }
+    aclPipelines.clear();
+    synchronized (this) {
+      if (null != aclExecutor) {
+        aclExecutor.shutdown();
+        aclExecutor = null;
+      }
+    }
+  }
+
   /**
    * Fetches the ACL for documents.
    * <p>
@@ -619,7 +872,7 @@ public class SharepointClient {
       webCrawlInfoFetcher.updateWebCrawlInfoInBatch(globalState.getAllWebStateSet());
     }
 
-    nDocuments = 0;
+    nDocuments.set(0);
     doCrawl = true;
 
     ListState nextList = globalState.getLastCrawledList();
@@ -743,10 +996,6 @@ public class SharepointClient {
     globalState.setBFullReCrawl(doCrawl);
     globalState.endRecrawl(sharepointClientContext);
 
-    if (null != sharepointClientContext.getUserDataStoreDAO()
-        && sharepointClientContext.getUserDataStoreDAO().getUdsCacheSize() > 0) {
-      sharepointClientContext.getUserDataStoreDAO().cleanupCache();
-    }
     LOGGER.log(Level.INFO, "Returning after crawl cycle.. ");
   }
 
@@ -829,11 +1078,13 @@ public class SharepointClient {
    *          the traversal will start from here.
    * @param allWebs Contains all the webs that has been discovered from link
    *          sites/Site directory.
+   * @return the number of documents discovered under the web
    */
-  private void updateWebStateFromSite(final SharepointClientContext tempCtx,
+  private int updateWebStateFromSite(final SharepointClientContext tempCtx,
       final WebState webState, ListState nextList, final Set<String> allWebs)
       throws SharepointException {
     List<SPDocument> listItems = new ArrayList<SPDocument>();
+    int nWebDocuments = 0;
 
     // get all the lists for the given web // e.g. picture,wiki,document
     // libraries etc.
@@ -890,6 +1141,14 @@ public class SharepointClient {
           + webState.getWebUrl() + " ]. ", e);
     }
 
+    AclFetchPipeline aclPipeline = null;
+    if (sharepointClientContext.isPushAcls()
+        && sharepointClientContext.getAclFetchQueueSize() > 0) {
+      aclPipeline = new AclFetchPipeline(webState, getAclBatchSize(),
+          sharepointClientContext.getAclFetchQueueSize());
+      aclPipelines.put(webState.getPrimaryKey(), aclPipeline);
+    }
+
     List<SPDocument> aclChangedItems = null;
     final ListsWS listsWS = new ListsWS(tempCtx);
     for (int i = 0; i < listCollection.size(); i++) {
@@ -1106,7 +1365,7 @@ public class SharepointClient {
         }
       }
 
-      listState.setCrawlQueue(listItems);
+      listState.setCrawlQueue(listItems, getCrawlQueueDir(), SPConstants.CRAWL_QUEUE_WINDOW);
       // Set the last crawled date time. This is informative value for the
       // user viewing the state file
       listState.setLastCrawledDateTime(Util.formatDate(Calendar.getInstance(), Util.TIMEFORMAT_WITH_ZONE));
@@ -1117,18 +1376,27 @@ public class SharepointClient {
         Collections.sort(listItems);
         LOGGER.log(Level.INFO, "found " + listItems.size()
             + " items from list " + listState);
-        nDocuments += listItems.size();
+        if (null != aclPipeline) {
+          // Only the documents kept in memory are handed over. The others
+          // are read back from disk as new objects.
+          aclPipeline.add(listState.getCrawlQueue());
+        }
+        nWebDocuments += listItems.size();
         final int batchHint = sharepointClientContext.getBatchHint();
 
         // As per Issue 116 we need to stop at batchHint or a little
         // more
-        if (nDocuments >= batchHint) {
+        if (nDocuments.addAndGet(listItems.size()) >= batchHint) {
           doCrawl = false;
           break;
         }
       }
     }// end:; for Lists
 
+    if (null != aclPipeline) {
+      aclPipeline.flush();
+    }
+
     // Set the last crawled date time. This is informative value for the
     // user viewing the state file
     webState.setLastCrawledDateTime(Util.formatDate(Calendar.getInstance(), Util.TIMEFORMAT_WITH_ZONE));
@@ -1137,6 +1405,7 @@ public class SharepointClient {
     // scanned, all the ListStates are traversed and no documents that have
     // just been discovered gets skipped.
     webState.setCurrentList(null);
+    return nWebDocuments;
   }
 
   /**
@@ -1164,6 +1433,10 @@ public class SharepointClient {
       SharepointClientContext sharePointClientContext, WebState nextWeb,
       ListState nextList, ArrayList<String> lstLookupForWebs)
       throws SharepointException {
+    if (sharepointClientContext.getWebCrawlThreadPoolSize() > 1) {
+      return traverseSitesInParallel(globalState, allSites,
+          sharePointClientContext, nextWeb, nextList, lstLookupForWebs);
+    }
     globalState.setCurrentWeb(nextWeb);
     final Iterator<WebState> itWebs = globalState.getCircularIterator();
     while (itWebs.hasNext()) {
@@ -1192,50 +1465,18 @@ public class SharepointClient {
         continue;
       }
 
-      if (sharepointClientContext.isUseSPSearchVisibility()) {
-        // Even if a web is not crawled due to the SP search visibility,
-        // it's reference is kept in the connector's state. This is to
-        // avoid unnecessary discovery (and WebState construction) of
-        // these webs again and again.
-        if (ws.isNoCrawl()) {
-          LOGGER.log(Level.WARNING, "Skipping Web URL [ "
-              + webURL
-              + " ] while crawling because it has been marked for No Crawling on SharePoint. ");
-          continue;
-        }
+      if (isNoCrawl(ws)) {
+        continue;
       }
 
       nextWeb = ws;
-      LOGGER.config("Crawling site [ " + webURL + " ] ");
-      final int currDocCount = nDocuments;
-      try {
-        // Process the web site, and add the link site info to allSites.
-        updateWebStateFromSite(sharePointClientContext, ws, nextList, allSites);
-
-        if (currDocCount == nDocuments) {
-          // get Alerts for the web and update webState. The above
-          // check is added to reduce the frequency with which
-          // getAlerts WS call is made.
-          LOGGER.fine("Getting alerts under site [ " + webURL + " ]");
-          processAlerts(ws, sharePointClientContext);
-          // get site data for the web and update webState.
-          LOGGER.fine("Geting landing page data for the site [ " + webURL
-              + " ]");
-          processSiteData(ws, sharepointClientContext);
-        }
-      } catch (final Exception e) {
-        LOGGER.log(Level.WARNING, "Following exception occured while traversing/updating web state URL [ "
-            + webURL + " ]. ", e);
-      } catch (final Throwable t) {
-        LOGGER.log(Level.WARNING, "Following error occured while traversing/updating web state URL [ "
-            + webURL + " ]. ", t);
-      }
+      crawlWeb(sharePointClientContext, ws, nextList, allSites);
 
       // Check if the threshold (i.e. batchHint is reached)
       final int batchHint = sharepointClientContext.getBatchHint();
 
       // As per Issue 116 we need to stop at batchHint or a little more
-      if (nDocuments >= batchHint) {
+      if (nDocuments.get() >= batchHint) {
         LOGGER.info("Stopping crawl cycle as connector has discovered (>= batchHint) # of docs. In total : "
             + nDocuments + " docs. batch-hint is " + batchHint);
         doCrawl = false;
@@ -1243,27 +1484,263 @@ public class SharepointClient {
       }
 
       // Get the next web and discover its direct children
-      sharepointClientContext.setSiteURL(webURL);
-      WebsWS websWS = new WebsWS(sharepointClientContext);
-      try {
-        final Set<String> allWebStateSet = websWS.getDirectChildsites();
-        final int size = allWebStateSet.size();
-        if (size > 0) {
-          LOGGER.log(Level.INFO, "Discovered " + size + " child sites under [ "
-              + webURL + "]. ");
+      discoverChildSites(sharepointClientContext, webURL, allSites);
+    }
+    return nextWeb;
+  }
+
+  /**
+   * Checks if a web should be skipped because it has been marked for No
+   * Crawling on SharePoint. Even if a web is not crawled due to the SP search
+   * visibility, it's reference is kept in the connector's state. This is to
+   * avoid unnecessary discovery (and WebState construction) of these webs
+   * again and again.
+   *
+   * @param ws The web to be checked
+   * @return true if the web must not be crawled
+   */
+  private boolean isNoCrawl(final WebState ws) {
+    if (sharepointClientContext.isUseSPSearchVisibility() && ws.isNoCrawl()) {
+      LOGGER.log(Level.WARNING, "Skipping Web URL [ "
+          + ws.getPrimaryKey()
+          + " ] while crawling because it has been marked for No Crawling on SharePoint. ");
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Crawls a single web for documents. Alerts and the landing page of the site
+   * are processed only when no documents are discovered under the web.
+   *
+   * @param tempCtx The connector context pointing to the web being crawled
+   * @param ws The web to be crawled
+   * @param nextList Last List traversed
+   * @param allSites Collects the link sites discovered while crawling the web
+   * @return the number of documents discovered under the web
+   */
+  private int crawlWeb(final SharepointClientContext tempCtx,
+      final WebState ws, final ListState nextList, final Set<String> allSites) {
+    final String webURL = ws.getPrimaryKey();
+    LOGGER.config("Crawling site [ " + webURL + " ] ");
+    int nWebDocuments = 0;
+    try {
+      // Process the web site, and add the link site info to allSites.
+      nWebDocuments = updateWebStateFromSite(tempCtx, ws, nextList, allSites);
+
+      if (nWebDocuments == 0) {
+        // get Alerts for the web and update webState. The above
+        // check is added to reduce the frequency with which
+        // getAlerts WS call is made.
+        LOGGER.fine("Getting alerts under site [ " + webURL + " ]");
+        processAlerts(ws, tempCtx);
+        // get site data for the web and update webState.
+        LOGGER.fine("Geting landing page data for the site [ " + webURL
+            + " ]");
+        processSiteData(ws, tempCtx);
+      }
+    } catch (final Exception e) {
+      LOGGER.log(Level.WARNING, "Following exception occured while traversing/updating web state URL [ "
+          + webURL + " ]. ", e);
+    } catch (final Throwable t) {
+      LOGGER.log(Level.WARNING, "Following error occured while traversing/updating web state URL [ "
+          + webURL + " ]. ", t);
+    }
+    return nWebDocuments;
+  }
+
+  /**
+   * Discovers the direct child sites of a web.
+   *
+   * @param tempCtx The connector context to be used for the WS call
+   * @param webURL The web whose children are to be discovered
+   * @param allSites Collects the discovered child sites
+   */
+  private void discoverChildSites(final SharepointClientContext tempCtx,
+      final String webURL, final Set<String> allSites)
+      throws SharepointException {
+    tempCtx.setSiteURL(webURL);
+    WebsWS websWS = new WebsWS(tempCtx);
+    try {
+      final Set<String> allWebStateSet = websWS.getDirectChildsites();
+      final int size = allWebStateSet.size();
+      if (size > 0) {
+        LOGGER.log(Level.INFO, "Discovered " + size + " child sites under [ "
+            + webURL + "]. ");
+      } else {
+        LOGGER.log(Level.CONFIG, "Discovered " + size + " child sites under [ "
+            + webURL + "]. ");
+      }
+      allSites.addAll(allWebStateSet);
+    } catch (final Exception e) {
+      LOGGER.log(Level.WARNING, "Unable to get the Child sites for site "
+          + webURL, e);
+    }
+  }
+
+  /**
+   * Result of crawling a single web by one of the worker threads
+   */
+  private static class WebCrawlResult {
+    private final WebState web;
+    // Link sites and child sites discovered by this worker. These are merged
+    // into the shared set by the dispatching thread.
+    private final Set<String> discoveredSites = new TreeSet<String>();
+    private boolean crawled = false;
+
+    WebCrawlResult(final WebState web) {
+      this.web = web;
+    }
+  }
+
+  /**
+   * Same as
+   * {@link #traverseSites(GlobalState, Set, SharepointClientContext, WebState, ListState, ArrayList)}
+   * but crawls up to {@link SharepointClientContext#getWebCrawlThreadPoolSize()}
+   * webs concurrently. Webs are dispatched in the order of
+   * {@link GlobalState#getCircularIterator()} and no new web is dispatched once
+   * the batch hint is reached. Every worker uses its own clone of the context so
+   * that changing the site URL does not affect the other workers. The results
+   * are merged in the dispatch order once all the workers are done which keeps
+   * the discovered sites and the returned web independent of the order in which
+   * the workers finish.
+   */
+  private WebState traverseSitesInParallel(GlobalState globalState,
+      Set<String> allSites, SharepointClientContext sharePointClientContext,
+      WebState nextWeb, final ListState nextList,
+      ArrayList<String> lstLookupForWebs) throws SharepointException {
+    final int poolSize = sharepointClientContext.getWebCrawlThreadPoolSize();
+    final int batchHint = sharepointClientContext.getBatchHint();
+    final Map<String, Semaphore> webAppPermits = new HashMap<String, Semaphore>();
+    final List<Future<WebCrawlResult>> dispatched = new ArrayList<Future<WebCrawlResult>>();
+
+    LOGGER.info("Crawling sites using " + poolSize + " worker threads.");
+    final ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+    final CompletionService<WebCrawlResult> completionService = new ExecutorCompletionService<WebCrawlResult>(
+        executor);
+    int inProgress = 0;
+    try {
+      globalState.setCurrentWeb(nextWeb);
+      final Iterator<WebState> itWebs = globalState.getCircularIterator();
+      while (itWebs.hasNext() && nDocuments.get() < batchHint) {
+        final WebState ws = itWebs.next();
+        if (ws == null) {
+          continue;
+        }
+        final String webURL = ws.getPrimaryKey();
+        if (lstLookupForWebs.contains(webURL)) {
+          continue;
         } else {
-          LOGGER.log(Level.CONFIG, "Discovered " + size
-              + " child sites under [ " + webURL + "]. ");
+          lstLookupForWebs.add(webURL);
         }
-        allSites.addAll(allWebStateSet);
-      } catch (final Exception e) {
-        LOGGER.log(Level.WARNING, "Unable to get the Child sites for site "
-            + webURL, e);
+        if (isNoCrawl(ws)) {
+          continue;
+        }
+
+        final SharepointClientContext workerCtx = (SharepointClientContext) sharePointClientContext.clone();
+        try {
+          workerCtx.setSiteURL(webURL);
+        } catch (Exception e) {
+          LOGGER.log(Level.WARNING, "Exception occurred when trying to set the webUrl [ "
+              + webURL + " ] context", e);
+          continue;
+        }
+
+        final Semaphore permit = getWebAppPermit(webAppPermits, webURL);
+        dispatched.add(completionService.submit(new Callable<WebCrawlResult>() {
+          public WebCrawlResult call() throws Exception {
+            return crawlWebInWorker(workerCtx, ws, nextList, permit);
+          }
+        }));
+
+        // Do not dispatch more webs than the number of workers. This makes
+        // sure that no web is picked up once the batch hint is reached.
+        if (++inProgress >= poolSize) {
+          completionService.take();
+          --inProgress;
+        }
+      }
+      for (; inProgress > 0; --inProgress) {
+        completionService.take();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SharepointException(
+          "Interrupted while waiting for the sites to be crawled", e);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (Future<WebCrawlResult> future : dispatched) {
+      WebCrawlResult result;
+      try {
+        result = future.get();
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, "Problem while crawling a site. ", e.getCause());
+        continue;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SharepointException(
+            "Interrupted while waiting for the sites to be crawled", e);
+      }
+      if (result.crawled) {
+        nextWeb = result.web;
       }
+      allSites.addAll(result.discoveredSites);
+    }
+
+    if (nDocuments.get() >= batchHint) {
+      LOGGER.info("Stopping crawl cycle as connector has discovered (>= batchHint) # of docs. In total : "
+          + nDocuments + " docs. batch-hint is " + batchHint);
+      doCrawl = false;
     }
     return nextWeb;
   }
 
+  /**
+   * Crawls one web on a worker thread. The web is skipped if the batch hint
+   * has already been reached by other workers.
+   */
+  private WebCrawlResult crawlWebInWorker(
+      final SharepointClientContext workerCtx, final WebState ws,
+      final ListState nextList, final Semaphore permit)
+      throws SharepointException, InterruptedException {
+    final WebCrawlResult result = new WebCrawlResult(ws);
+    final int batchHint = sharepointClientContext.getBatchHint();
+    permit.acquire();
+    try {
+      if (nDocuments.get() >= batchHint) {
+        LOGGER.log(Level.CONFIG, "Skipping site [ " + ws.getPrimaryKey()
+            + " ] because the batch hint has been reached. ");
+        return result;
+      }
+      result.crawled = true;
+      crawlWeb(workerCtx, ws, nextList, result.discoveredSites);
+      if (nDocuments.get() < batchHint) {
+        discoverChildSites(workerCtx, ws.getPrimaryKey(), result.discoveredSites);
+      }
+    } finally {
+      permit.release();
+    }
+    return result;
+  }
+
+  /**
+   * Returns the semaphore limiting the number of webs of a web application
+   * that are crawled concurrently.
+   */
+  private Semaphore getWebAppPermit(final Map<String, Semaphore> webAppPermits,
+      final String webURL) {
+    final String webApp = Util.getWebApp(webURL);
+    Semaphore permit = webAppPermits.get(webApp);
+    if (null == permit) {
+      permit = new Semaphore(
+          sharepointClientContext.getWebCrawlThreadsPerWebApp(), true);
+      webAppPermits.put(webApp, permit);
+    }
+    return permit;
+  }
+
   /**
    * Returns the no of visited list states to check for pending docs from
    * previous batch traversal for a given web state (site)
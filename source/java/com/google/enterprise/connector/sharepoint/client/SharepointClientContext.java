@@ -19,6 +19,7 @@ import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
 import com.google.enterprise.connector.sharepoint.dao.UserDataStoreDAO;
 import com.google.enterprise.connector.sharepoint.ldap.UserGroupsService.LdapConnectionSettings;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
+import com.google.enterprise.connector.sharepoint.wsclient.util.AxisEngineConfiguration;
 import com.google.enterprise.connector.spi.TraversalContext;
 
 import org.apache.commons.httpclient.Credentials;
@@ -34,14 +35,13 @@ import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 
-import java.io.File;
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -67,6 +67,9 @@ public class SharepointClientContext implements Cloneable {
   private String googleConnectorWorkDir = null;
   private String[] excludedURlList = null;
   private String[] includedURlList = null;
+  // The URL lists compiled once for all the URLs to be checked
+  private UrlPatternMatcher excludedURLMatcher = null;
+  private UrlPatternMatcher includedURLMatcher = null;
   private String mySiteBaseURL = null;
 
   private Map<String, String> aliasMap = null;
@@ -87,6 +90,9 @@ public class SharepointClientContext implements Cloneable {
   private String groupnameFormatInAce;
 
   private UserDataStoreDAO userDataStoreDAO;
+  // Shared by all the clones, so that the decisions of the sessions are
+  // invalidated by the ACL changes detected during traversal
+  private AuthorizationCache authorizationCache = new AuthorizationCache();
 
   private boolean useSPSearchVisibility = true;
   private List<String> infoPathBaseTemplate = null;
@@ -96,6 +102,7 @@ public class SharepointClientContext implements Cloneable {
 
   private boolean fetchACLInBatches = false;
   private int aclBatchSizeFactor = 2;
+  private int aclFetchQueueSize = 2;
   private int webServiceTimeOut = 300000;
   private int initialCacheSize;
   private boolean useCacheToStoreLdapUserGroupsMembership;
@@ -103,6 +110,15 @@ public class SharepointClientContext implements Cloneable {
   private LdapConnectionSettings ldapConnectionSettings;
   private boolean feedUnPublishedDocuments;
   private boolean initialTraversal;
+  private int webCrawlThreadPoolSize = 1;
+  private int webCrawlThreadsPerWebApp = 2;
+  private boolean pagedState;
+  private HttpConnectionPool httpConnectionPool;
+  private AxisEngineConfiguration axisEngineConfiguration;
+  // Makes the GSBulkAuthorization calls of the connector
+  private ExecutorService authZExecutor;
+  private int contentPrefetchCount = 0;
+  private boolean streamListItemChanges;
 
   public boolean isFeedUnPublishedDocuments() {
     return feedUnPublishedDocuments;
@@ -164,6 +180,7 @@ public class SharepointClientContext implements Cloneable {
           newExcList[i] = new String(excludedURlList[i].toString());
         }
         spCl.setExcludedURlList(newExcList);
+        spCl.excludedURLMatcher = excludedURLMatcher;
       }
 
       if (null != includedURlList) {
@@ -172,6 +189,7 @@ public class SharepointClientContext implements Cloneable {
           newIncList[i] = new String(includedURlList[i].toString());
         }
         spCl.setIncludedURlList(newIncList);
+        spCl.includedURLMatcher = includedURLMatcher;
       }
 
       if (null != username) {
@@ -197,6 +215,7 @@ public class SharepointClientContext implements Cloneable {
         // It's ok if we do a shallow copy here
         spCl.userDataStoreDAO = this.userDataStoreDAO;
       }
+      spCl.authorizationCache = this.authorizationCache;
 
       spCl.useSPSearchVisibility = useSPSearchVisibility;
       spCl.infoPathBaseTemplate = infoPathBaseTemplate;
@@ -207,6 +226,7 @@ public class SharepointClientContext implements Cloneable {
       spCl.setUsernameFormatInAce(this.getUsernameFormatInAce());
       spCl.setGroupnameFormatInAce(this.getGroupnameFormatInAce());
       spCl.setAclBatchSizeFactor(this.aclBatchSizeFactor);
+      spCl.setAclFetchQueueSize(this.aclFetchQueueSize);
       spCl.setFetchACLInBatches(this.fetchACLInBatches);
       spCl.setWebServiceTimeOut(this.webServiceTimeOut);
       spCl.setLdapConnectionSettings(this.ldapConnectionSettings);
@@ -214,6 +234,14 @@ public class SharepointClientContext implements Cloneable {
       spCl.setInitialCacheSize(this.initialCacheSize);
       spCl.setCacheRefreshInterval(this.cacheRefreshInterval);
       spCl.setFeedUnPublishedDocuments(this.feedUnPublishedDocuments);
+      spCl.setWebCrawlThreadPoolSize(this.webCrawlThreadPoolSize);
+      spCl.setWebCrawlThreadsPerWebApp(this.webCrawlThreadsPerWebApp);
+      spCl.setPagedState(this.pagedState);
+      spCl.setHttpConnectionPool(this.httpConnectionPool);
+      spCl.setAxisEngineConfiguration(this.axisEngineConfiguration);
+      spCl.setAuthZExecutor(this.authZExecutor);
+      spCl.setContentPrefetchCount(this.contentPrefetchCount);
+      spCl.setStreamListItemChanges(this.streamListItemChanges);
 
       return spCl;
     } catch (final Throwable e) {
@@ -443,6 +471,7 @@ public class SharepointClientContext implements Cloneable {
       final String separator) {
     if (excludedURls != null) {
       excludedURlList = excludedURls.split(separator);
+      excludedURLMatcher = new UrlPatternMatcher(excludedURlList);
     }
   }
 
@@ -452,6 +481,7 @@ public class SharepointClientContext implements Cloneable {
   public void setExcludedURlList(final String excludedURls) {
     if (excludedURls != null) {
       excludedURlList = excludedURls.split(SPConstants.SEPARATOR);
+      excludedURLMatcher = new UrlPatternMatcher(excludedURlList);
     }
   }
 
@@ -463,6 +493,7 @@ public class SharepointClientContext implements Cloneable {
       final String separator) {
     if (includedURls != null) {
       includedURlList = includedURls.split(separator);
+      includedURLMatcher = new UrlPatternMatcher(includedURlList);
     }
   }
 
@@ -472,6 +503,7 @@ public class SharepointClientContext implements Cloneable {
   public void setIncludedURlList(final String includedURls) {
     if (includedURls != null) {
       includedURlList = includedURls.split(SPConstants.SEPARATOR);
+      includedURLMatcher = new UrlPatternMatcher(includedURlList);
     }
   }
 
@@ -665,7 +697,12 @@ public class SharepointClientContext implements Cloneable {
       credentials = new UsernamePasswordCredentials(username, password);
       ntlm = false;
     }
-    final HttpClient httpClient = new HttpClient();
+    final HttpClient httpClient;
+    if (null == httpConnectionPool) {
+      httpClient = new HttpClient();
+    } else {
+      httpClient = httpConnectionPool.newHttpClient();
+    }
     HttpClientParams params = httpClient.getParams();
     // Fix for the Issue[5408782] SharePoint connector fails to traverse a site,
     // circular redirect exception is observed.
@@ -676,16 +713,26 @@ public class SharepointClientContext implements Cloneable {
     // to follow.
     params.setIntParameter(HttpClientParams.MAX_REDIRECTS, 10);
     httpClient.getState().setCredentials(AuthScope.ANY, credentials);
+    // The connection of a method passed by the caller is released by the
+    // caller once the response has been read
+    final boolean releaseConnection = (null == method);
     if (null == method) {
       method = new HeadMethod(strURL);
     }
-    responseCode = httpClient.executeMethod(method);
-    if (responseCode == 401 && ntlm && !kerberos) {
-      LOGGER.log(Level.FINE, "Trying with HTTP Basic.");
-      username = Util.getUserNameWithDomain(this.username, domain);
-      credentials = new UsernamePasswordCredentials(username, password);
-      httpClient.getState().setCredentials(AuthScope.ANY, credentials);
+    try {
       responseCode = httpClient.executeMethod(method);
+      if (responseCode == 401 && ntlm && !kerberos) {
+        LOGGER.log(Level.FINE, "Trying with HTTP Basic.");
+        method.releaseConnection();
+        username = Util.getUserNameWithDomain(this.username, domain);
+        credentials = new UsernamePasswordCredentials(username, password);
+        httpClient.getState().setCredentials(AuthScope.ANY, credentials);
+        responseCode = httpClient.executeMethod(method);
+      }
+    } finally {
+      if (releaseConnection) {
+        method.releaseConnection();
+      }
     }
     if (responseCode != 200) {
       LOGGER.log(Level.WARNING, "responseCode: " + responseCode);
@@ -714,6 +761,10 @@ public class SharepointClientContext implements Cloneable {
     } catch (final Exception e) {
       LOGGER.log(Level.WARNING, "Unable to connect " + strURL, e);
       return null;
+    } finally {
+      if (null != method) {
+        method.releaseConnection();
+      }
     }
     if (null == method) {
       return null;
@@ -761,22 +812,21 @@ public class SharepointClientContext implements Cloneable {
    * @param strValue The URL to be checked
    */
   public boolean isIncludedUrl(final String strValue) {
-    if (includedURlList == null) {
+    if (includedURLMatcher == null) {
       LOGGER.log(Level.WARNING, "Can not find include URLs");
       return false;
     }
     try {
       if ((strValue != null) && (strValue.length() != 0)) {
-        if (Util.match(includedURlList, strValue, null)) {
-          final StringBuffer matchedPattern = new StringBuffer();
-          if (excludedURlList == null) {
+        if (includedURLMatcher.matches(strValue)) {
+          if (excludedURLMatcher == null) {
             return true;
-          } else if (Util.match(excludedURlList, strValue, matchedPattern)) {
-            if (matchedPattern != null) {
-              logExcludedURL("[ " + strValue
-                  + " ] matched aginst the Excluded URL Pattern: "
-                  + matchedPattern.toString());
-            }
+          }
+          final String matchedPattern = excludedURLMatcher.getMatchingPattern(strValue);
+          if (matchedPattern != null) {
+            logExcludedURL("[ " + strValue
+                + " ] matched aginst the Excluded URL Pattern: "
+                + matchedPattern);
             return false;
           }
           return true;
@@ -847,52 +897,12 @@ public class SharepointClientContext implements Cloneable {
   }
 
   /**
-   * Logs the excluded URL
+   * Logs the excluded URL. The message is written asynchronously.
    *
    * @param info
    */
   public void logExcludedURL(final String info) {
-    // If the parent directory does not exist, create one
-    File file = new File(excludedURL_ParentDir);
-    if ((file == null) || !file.exists() || !file.isDirectory()) {
-      LOGGER.log(Level.WARNING, "Excluded URL parent directory not found! Creating one... status: "
-          + file.mkdir());
-    }
-
-    final String fileName = excludedURL_ParentDir + SPConstants.SLASH
-        + SPConstants.EXCLUDED_URL_LOG + 0 + ".txt";
-    file = new File(fileName);
-
-    try {
-      if (!file.exists()) {
-        LOGGER.log(Level.INFO, "creating " + fileName + " ... status: "
-            + file.createNewFile());
-      } else if (file.length() > SPConstants.EXCLUDED_URL_MAX_SIZE) { // rotate
-        // the
-        // logs
-        // Delete the oldest log file
-        final String tmpFileName = excludedURL_ParentDir + SPConstants.SLASH
-            + SPConstants.EXCLUDED_URL_LOG + SPConstants.EXCLUDED_URL_MAX_COUNT
-            + ".txt";
-        File tmpFile = new File(tmpFileName);
-        LOGGER.log(Level.INFO, "Deleting " + tmpFileName
-            + " to rotate... status:" + tmpFile.delete());
-
-        for (int i = SPConstants.EXCLUDED_URL_MAX_COUNT - 1; i >= 0; --i) {
-          tmpFile = new File(excludedURL_ParentDir + SPConstants.SLASH
-              + SPConstants.EXCLUDED_URL_LOG + i + ".txt");
-          tmpFile.renameTo(new File(excludedURL_ParentDir + SPConstants.SLASH
-              + SPConstants.EXCLUDED_URL_LOG + (i + 1) + ".txt"));
-        }
-        LOGGER.log(Level.INFO, "creating " + fileName + " ... status: "
-            + file.createNewFile());
-      }
-      Util.logInfo(fileName, info);
-    } catch (final IOException e) {
-      LOGGER.log(Level.WARNING, "Problem while logging excluded URLs", e);
-    } catch (final Throwable e) {
-      LOGGER.log(Level.WARNING, "Problem while logging excluded URLs", e);
-    }
+    ExcludedURLLog.getInstance(excludedURL_ParentDir).log(info);
   }
 
   /**
@@ -900,24 +910,7 @@ public class SharepointClientContext implements Cloneable {
    */
   public void clearExcludedURLLogs() {
     LOGGER.log(Level.INFO, "Cleaning all the excluded URL logs...");
-    final File file = new File(excludedURL_ParentDir);
-    if ((file == null) || !file.exists() || !file.isDirectory()) {
-      LOGGER.log(Level.WARNING, "Excluded URL parent directory not found! ");
-      return;
-    }
-    final File[] logs = file.listFiles();
-    if (logs == null) {
-      return;
-    }
-    for (File element : logs) {
-      if ((element == null) || !element.exists()) {
-        continue;
-      }
-      LOGGER.log(Level.INFO, "Deleting " + element.getAbsolutePath()
-          + " ... status:" + element.delete());
-    }
-    LOGGER.log(Level.INFO, "Deleting " + excludedURL_ParentDir + " ... status:"
-        + file.delete());
+    ExcludedURLLog.getInstance(excludedURL_ParentDir).clear();
   }
 
   /**
@@ -957,6 +950,13 @@ public class SharepointClientContext implements Cloneable {
     this.pushAcls = pushAcls;
   }
 
+  /**
+   * @return the authorization decisions cached for this connector
+   */
+  public AuthorizationCache getAuthorizationCache() {
+    return authorizationCache;
+  }
+
   public UserDataStoreDAO getUserDataStoreDAO() {
     return userDataStoreDAO;
   }
@@ -1047,6 +1047,22 @@ public class SharepointClientContext implements Cloneable {
     this.aclBatchSizeFactor = aclBatchSizeFactor;
   }
 
+  /**
+   * @return the maximum number of document chunks waiting for their ACL to be
+   *         fetched. 0 implies that ACLs are fetched once all the lists of a
+   *         site have been processed
+   */
+  public int getAclFetchQueueSize() {
+    return aclFetchQueueSize;
+  }
+
+  /**
+   * @param aclFetchQueueSize the aclFetchQueueSize to set
+   */
+  public void setAclFetchQueueSize(int aclFetchQueueSize) {
+    this.aclFetchQueueSize = aclFetchQueueSize;
+  }
+
   /**
    * @return the webServiceTimeOut
    */
@@ -1113,4 +1129,131 @@ public class SharepointClientContext implements Cloneable {
   public void setInitialTraversal(boolean initialTraversal) {
     this.initialTraversal = initialTraversal;
   }
+
+  /**
+   * @return the maximum number of sites that are crawled concurrently
+   */
+  public int getWebCrawlThreadPoolSize() {
+    return webCrawlThreadPoolSize;
+  }
+
+  /**
+   * @param webCrawlThreadPoolSize the webCrawlThreadPoolSize to set
+   */
+  public void setWebCrawlThreadPoolSize(int webCrawlThreadPoolSize) {
+    this.webCrawlThreadPoolSize = webCrawlThreadPoolSize;
+  }
+
+  /**
+   * @return the maximum number of sites of a single web application that are
+   *         crawled concurrently
+   */
+  public int getWebCrawlThreadsPerWebApp() {
+    return webCrawlThreadsPerWebApp;
+  }
+
+  /**
+   * @param webCrawlThreadsPerWebApp the webCrawlThreadsPerWebApp to set
+   */
+  public void setWebCrawlThreadsPerWebApp(int webCrawlThreadsPerWebApp) {
+    this.webCrawlThreadsPerWebApp = webCrawlThreadsPerWebApp;
+  }
+
+  /**
+   * @return true if the state information of the lists is kept on disk until
+   *         it is needed
+   */
+  public boolean isPagedState() {
+    return pagedState;
+  }
+
+  /**
+   * @param pagedState the pagedState to set
+   */
+  public void setPagedState(boolean pagedState) {
+    this.pagedState = pagedState;
+  }
+
+  /**
+   * @return the pool of HTTP connections used for downloading contents. null
+   *         if a new connection is to be opened for every request.
+   */
+  public HttpConnectionPool getHttpConnectionPool() {
+    return httpConnectionPool;
+  }
+
+  /**
+   * @param httpConnectionPool the httpConnectionPool to set
+   */
+  public void setHttpConnectionPool(HttpConnectionPool httpConnectionPool) {
+    this.httpConnectionPool = httpConnectionPool;
+  }
+
+  /**
+   * @return the Axis client configuration, and with it the pool of HTTP
+   *         connections, used by the web service clients of the connector. A
+   *         configuration with the default limits is created if none has been
+   *         set.
+   */
+  public synchronized AxisEngineConfiguration getAxisEngineConfiguration() {
+    if (null == axisEngineConfiguration) {
+      axisEngineConfiguration = new AxisEngineConfiguration(
+          AxisEngineConfiguration.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+    return axisEngineConfiguration;
+  }
+
+  /**
+   * @param axisEngineConfiguration the axisEngineConfiguration to set
+   */
+  public synchronized void setAxisEngineConfiguration(
+      AxisEngineConfiguration axisEngineConfiguration) {
+    this.axisEngineConfiguration = axisEngineConfiguration;
+  }
+
+  /**
+   * @return the executor making the authorization web service calls of the
+   *         connector. null if the calls are to be made one after the other
+   *         by the thread authorizing the documents.
+   */
+  public ExecutorService getAuthZExecutor() {
+    return authZExecutor;
+  }
+
+  /**
+   * @param authZExecutor the authZExecutor to set
+   */
+  public void setAuthZExecutor(ExecutorService authZExecutor) {
+    this.authZExecutor = authZExecutor;
+  }
+
+  /**
+   * @return the number of documents whose contents are downloaded ahead of
+   *         the document being fed
+   */
+  public int getContentPrefetchCount() {
+    return contentPrefetchCount;
+  }
+
+  /**
+   * @param contentPrefetchCount the contentPrefetchCount to set
+   */
+  public void setContentPrefetchCount(int contentPrefetchCount) {
+    this.contentPrefetchCount = contentPrefetchCount;
+  }
+
+  /**
+   * @return true if the responses of GetListItemChangesSinceToken are to be
+   *         parsed as they are received instead of through Axis
+   */
+  public boolean isStreamListItemChanges() {
+    return streamListItemChanges;
+  }
+
+  /**
+   * @param streamListItemChanges the streamListItemChanges to set
+   */
+  public void setStreamListItemChanges(boolean streamListItemChanges) {
+    this.streamListItemChanges = streamListItemChanges;
+  }
 }
@@ -0,0 +1,411 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import gnu.regexp.RE;
+import gnu.regexp.REException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Matches URLs against a list of GSA style URL patterns. This gives the same
+ * results as {@link Util#match(String[], String, StringBuffer)}, but the
+ * patterns are decoded and compiled only once, when the matcher is created,
+ * and a URL is split into its parts only once for all the patterns. The
+ * results for the most recently checked URLs are cached since the same web
+ * and list URLs are checked again and again during a traversal.
+ */
+final class UrlPatternMatcher {
+  private static final Logger LOGGER = Logger.getLogger(UrlPatternMatcher.class.getName());
+
+  // Number of URLs whose results are cached
+  static final int CACHE_SIZE = 1000;
+
+  // Index returned if no pattern matches
+  private static final int NO_MATCH = -1;
+
+  private final String[] patterns;
+  private final Rule[] rules;
+
+  private final Map<String, Integer> results = new LinkedHashMap<String, Integer>(
+      16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  /**
+   * @param patterns The URL patterns, in the order in which they are to be
+   *          tried
+   */
+  UrlPatternMatcher(final String[] patterns) {
+    this.patterns = patterns;
+    rules = new Rule[patterns.length];
+    for (int i = 0; i < patterns.length; i++) {
+      rules[i] = compile(patterns[i]);
+    }
+  }
+
+  /**
+   * @param strValue The URL to be matched
+   * @return the first pattern matching the URL, or null if there is none
+   */
+  String getMatchingPattern(final String strValue) {
+    if (strValue == null) {
+      return null;
+    }
+    Integer index;
+    synchronized (results) {
+      index = results.get(strValue);
+    }
+    if (index == null) {
+      index = Integer.valueOf(findMatch(strValue));
+      synchronized (results) {
+        results.put(strValue, index);
+      }
+    }
+    return (index.intValue() == NO_MATCH) ? null : patterns[index.intValue()];
+  }
+
+  /**
+   * @param strValue The URL to be matched
+   * @return true if any of the patterns matches the URL
+   */
+  boolean matches(final String strValue) {
+    return getMatchingPattern(strValue) != null;
+  }
+
+  private int findMatch(final String strValue) {
+    final String decodedValue;
+    try {
+      decodedValue = URLDecoder.decode(strValue, "UTF-8");
+    } catch (final Exception e) {
+      // Util.match uses the patterns as they are in this case
+      LOGGER.log(Level.FINE, e.getMessage());
+      for (int i = 0; i < patterns.length; i++) {
+        if ((patterns[i] != null) && (patterns[i].length() > 0)
+            && Util.matcher(patterns[i], strValue)) {
+          return i;
+        }
+      }
+      return NO_MATCH;
+    }
+
+    final Value decoded = new Value(decodedValue);
+    Value raw = null;
+    for (int i = 0; i < rules.length; i++) {
+      final Rule rule = rules[i];
+      if (rule == null) {
+        continue;
+      }
+      final Value value;
+      if (rule.decodeValue) {
+        value = decoded;
+      } else {
+        if (raw == null) {
+          raw = new Value(strValue);
+        }
+        value = raw;
+      }
+      if (rule.matches(value)) {
+        return i;
+      }
+    }
+    return NO_MATCH;
+  }
+
+  /**
+   * Compiles a pattern the way it is interpreted by
+   * {@link Util#matcher(String, String)}, after being decoded by
+   * {@link Util#match(String[], String, StringBuffer)}.
+   *
+   * @return the compiled pattern or null if the pattern can never match
+   */
+  static Rule compile(final String strURLPat) {
+    if ((strURLPat == null) || (strURLPat.length() == 0)) {
+      return null;
+    }
+    String pattern = strURLPat;
+    boolean decodeValue = true;
+    try {
+      pattern = URLDecoder.decode(strURLPat, "UTF-8");
+    } catch (final Exception e) {
+      LOGGER.log(Level.FINE, e.getMessage());
+      decodeValue = false;
+    }
+
+    try {
+      if (pattern.startsWith(SPConstants.HASH)
+          || pattern.startsWith(SPConstants.MINUS)) {
+        return null;
+      }
+      if (pattern.startsWith(SPConstants.CONTAINS)) {
+        return new Rule(decodeValue, Rule.WHOLE, new RE(
+            pattern.substring(SPConstants.CONTAINS.length())), null, null);
+      }
+      if (pattern.startsWith(SPConstants.REGEXP)) {
+        return new Rule(decodeValue, Rule.WHOLE, new RE(
+            pattern.substring(SPConstants.REGEXP.length())), null, null);
+      }
+      if (pattern.startsWith(SPConstants.REGEXP_CASE)) {
+        return new Rule(decodeValue, Rule.WHOLE, new RE(
+            pattern.substring(SPConstants.REGEXP_CASE.length())), null, null);
+      }
+      if (pattern.startsWith(SPConstants.REGEXP_IGNORE_CASE)) {
+        return new Rule(decodeValue, Rule.WHOLE, new RE(
+            pattern.substring(SPConstants.REGEXP_IGNORE_CASE.length()),
+            RE.REG_ICASE), null, null);
+      }
+      if (pattern.startsWith(SPConstants.CARET)
+          || pattern.endsWith(SPConstants.DOLLAR)) {
+        return compileAnchored(decodeValue, pattern);
+      }
+      return compileUrl(decodeValue, pattern);
+    } catch (final REException e) {
+      LOGGER.log(Level.FINE, e.getMessage());
+      return null;
+    }
+  }
+
+  private static Rule compileAnchored(final boolean decodeValue,
+      final String pattern) throws REException {
+    if (!pattern.startsWith(SPConstants.CARET)) {
+      return new Rule(decodeValue, Rule.WHOLE, new RE(pattern), null, null);
+    }
+    StringBuffer tempBuffer = new StringBuffer(pattern);
+    final int indexOfStar = tempBuffer.indexOf("*");
+    if (indexOfStar != -1) {
+      tempBuffer.replace(indexOfStar, indexOfStar + "*".length(), "[0-9].*");
+    } else {
+      boolean bDollar = false;
+      tempBuffer.delete(0, "^".length());
+      if (pattern.endsWith(SPConstants.DOLLAR)) {
+        bDollar = true;
+        tempBuffer.delete(tempBuffer.length() - SPConstants.DOLLAR.length(), tempBuffer.length());
+      }
+      try {
+        final URL urlPatt = new URL(tempBuffer.toString());
+        final int port = urlPatt.getPort();
+        final String strHost = urlPatt.getHost().toString();
+        if ((port == -1) && (strHost != null) && (strHost.length() != 0)) {
+          tempBuffer = new StringBuffer("^" + urlPatt.getProtocol()
+              + SPConstants.URL_SEP + urlPatt.getHost() + ":[0-9].*"
+              + urlPatt.getPath());
+        }
+        if (bDollar) {
+          tempBuffer.append(SPConstants.DOLLAR);
+        }
+      } catch (final MalformedURLException e) {
+        LOGGER.log(Level.FINE, e.getMessage());
+        tempBuffer = new StringBuffer(pattern);
+      }
+    }
+    return new Rule(decodeValue, Rule.WITH_PORT, new RE(tempBuffer), null,
+        null);
+  }
+
+  private static Rule compileUrl(final boolean decodeValue, String pattern)
+      throws REException {
+    try {
+      pattern = URLDecoder.decode(pattern, "UTF-8");
+    } catch (final Exception e) {
+      LOGGER.log(Level.FINE, e.getMessage());
+    }
+
+    if (pattern.indexOf(SPConstants.URL_SEP) != -1) {
+      String urlPatt1stPart = null;
+      String urlPatt2ndPart = null;
+      try {
+        final URL urlPatt = new URL(pattern);
+        final int port = urlPatt.getPort();
+        final String strPort = (port == -1) ? "[0-9].*" : (port + "");
+        urlPatt1stPart = "^" + urlPatt.getProtocol() + SPConstants.URL_SEP
+            + urlPatt.getHost() + SPConstants.COLON + strPort;
+        if (!(urlPatt.getFile()).startsWith(SPConstants.SLASH)) {
+          return null;
+        }
+        urlPatt2ndPart = urlPatt.getFile();
+      } catch (final MalformedURLException e) {
+        LOGGER.log(Level.FINE, e.getMessage());
+        final int indexOfStar = pattern.indexOf("*");
+        if (indexOfStar == -1) {
+          return null;
+        }
+        urlPatt1stPart = "^" + pattern.substring(0, indexOfStar) + "[0-9].*";
+        if (!(pattern.substring(indexOfStar + 1)).startsWith(SPConstants.SLASH)) {
+          return null;
+        }
+        urlPatt2ndPart = pattern.substring(indexOfStar + 1);
+      }
+      return newSplitRule(decodeValue, urlPatt1stPart, urlPatt2ndPart);
+    }
+
+    // The pattern must have "/" at after the port
+    final int indexOfSlash = pattern.indexOf(SPConstants.SLASH);
+    if (indexOfSlash == -1) {
+      return null;
+    }
+    String pat1 = pattern.substring(0, indexOfSlash);
+    if (pattern.indexOf(SPConstants.COLON) == -1) {
+      pat1 += ":[0-9].*";
+    }
+    return newSplitRule(decodeValue, "^.*://.*" + pat1,
+        pattern.substring(indexOfSlash));
+  }
+
+  /**
+   * @param hostPart The regular expression for the protocol, host and port
+   * @param path The path the URL must start with, as a regular expression
+   */
+  private static Rule newSplitRule(final boolean decodeValue,
+      final String hostPart, final String path) throws REException {
+    final RE hostRE = new RE(hostPart, RE.REG_ICASE);
+    if (isLiteral(path)) {
+      return new Rule(decodeValue, Rule.SPLIT, hostRE, null, path);
+    }
+    return new Rule(decodeValue, Rule.SPLIT, hostRE, new RE("^" + path), null);
+  }
+
+  /**
+   * @return true if the regular expression does not contain any special
+   *         characters and so only matches itself
+   */
+  private static boolean isLiteral(final String regex) {
+    for (int i = 0; i < regex.length(); i++) {
+      if ("\\^$.|?*+()[]{}".indexOf(regex.charAt(i)) != -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A URL split into the parts that are matched by the rules. The parts are
+   * computed once for all the rules, when they are first needed.
+   */
+  private static class Value {
+    final String url;
+    private boolean parsed = false;
+    // null if the URL is malformed
+    private String withPort;
+    private String hostPart;
+    private String path;
+
+    Value(final String url) {
+      this.url = url;
+    }
+
+    private void parse() {
+      if (parsed) {
+        return;
+      }
+      parsed = true;
+      try {
+        final URL urlValue = new URL(url);
+        int port = urlValue.getPort();
+        if (port == -1) {
+          port = urlValue.getDefaultPort();
+          withPort = urlValue.getProtocol() + SPConstants.URL_SEP
+              + urlValue.getHost() + SPConstants.COLON + port
+              + urlValue.getFile();
+        } else {
+          withPort = url;
+        }
+        hostPart = urlValue.getProtocol() + SPConstants.URL_SEP
+            + urlValue.getHost() + SPConstants.COLON + port;
+        path = urlValue.getFile();
+        if (path != null && !path.startsWith(SPConstants.SLASH)) {
+          path = SPConstants.SLASH + path;
+        }
+      } catch (final MalformedURLException e) {
+        LOGGER.log(Level.FINE, e.getMessage());
+      }
+    }
+
+    String getWithPort() {
+      parse();
+      return withPort;
+    }
+
+    String getHostPart() {
+      parse();
+      return hostPart;
+    }
+
+    String getPath() {
+      parse();
+      return path;
+    }
+  }
+
+  /**
+   * A compiled pattern
+   */
+  static class Rule {
+    // The expression is matched against the whole URL
+    static final int WHOLE = 0;
+    // The expression is matched against the URL with its port made explicit
+    static final int WITH_PORT = 1;
+    // The expression is matched against the protocol, host and port of the
+    // URL and the path is matched separately
+    static final int SPLIT = 2;
+
+    final boolean decodeValue;
+    final int type;
+    final RE re;
+    final RE pathRE;
+    // Used in place of pathRE when the path is a plain prefix
+    final String pathPrefix;
+
+    Rule(final boolean decodeValue, final int type, final RE re,
+        final RE pathRE, final String pathPrefix) {
+      this.decodeValue = decodeValue;
+      this.type = type;
+      this.re = re;
+      this.pathRE = pathRE;
+      this.pathPrefix = pathPrefix;
+    }
+
+    boolean matches(final Value value) {
+      switch (type) {
+      case WHOLE:
+        return re.getMatch(value.url) != null;
+      case WITH_PORT:
+        final String withPort = value.getWithPort();
+        return withPort != null && re.getMatch(withPort) != null;
+      default:
+        final String hostPart = value.getHostPart();
+        if (hostPart == null || re.getMatch(hostPart) == null) {
+          return false;
+        }
+        final String path = value.getPath();
+        if (path == null) {
+          return false;
+        }
+        if (pathPrefix != null) {
+          return path.startsWith(pathPrefix);
+        }
+        return pathRE.getMatch(path) != null;
+      }
+    }
+  }
+}
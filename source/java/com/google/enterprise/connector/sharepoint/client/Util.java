@@ -31,10 +31,6 @@ import gnu.regexp.RE;
 import gnu.regexp.REException;
 import gnu.regexp.REMatch;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -50,7 +46,6 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -94,7 +89,7 @@ public final class Util {
    * @param strDate
    * @throws ParseException
    */
-  public static Calendar listItemsStringToCalendar(final String strDate)
+  public static synchronized Calendar listItemsStringToCalendar(final String strDate)
       throws ParseException {
     final Date dt = SIMPLE_DATE_FORMATTER1.parse(strDate);
     final Calendar c = Calendar.getInstance();
@@ -108,7 +103,7 @@ public final class Util {
    * @param strDate
    * @throws ParseException
    */
-  public static Calendar listItemChangesStringToCalendar(final String strDate)
+  public static synchronized Calendar listItemChangesStringToCalendar(final String strDate)
       throws ParseException {
     final Date dt = SIMPLE_DATE_FORMATTER3.parse(strDate);
     final Calendar c = Calendar.getInstance();
@@ -122,7 +117,7 @@ public final class Util {
    * @param strDate
    * @throws ParseException
    */
-  public static Calendar siteDataStringToCalendar(final String strDate)
+  public static synchronized Calendar siteDataStringToCalendar(final String strDate)
       throws ParseException {
     final Date dt = SIMPLE_DATE_FORMATTER2.parse(strDate);
     final Calendar c = Calendar.getInstance();
@@ -184,7 +179,7 @@ public final class Util {
    *           input
    * @throws NullPointerException In case any argument is null
    */
-  public static String formatDate(final Calendar cal, String format) {
+  public static synchronized String formatDate(final Calendar cal, String format) {
     if (cal == null || format == null) {
       throw new NullPointerException();
     }
@@ -1037,38 +1032,6 @@ public final class Util {
     return metaValNormalized;
   }
 
-  /**
-   * A file writter
-   *
-   * @param filePath absolute path of the file
-   * @param info message to be written
-   */
-  public static void logInfo(final String filePath, final String info) {
-    File file;
-    file = new File(filePath);
-    if (file == null) {
-      return;
-    }
-    try {
-      final FileWriter fw = new FileWriter(file, true);
-      final PrintWriter pw = new PrintWriter(fw);
-
-      final Calendar cal = Calendar.getInstance();
-      final SimpleDateFormat formater = new SimpleDateFormat(
-          "yyyy-MM-dd HH:mm:ss");
-
-      pw.println(formater.format(cal.getTime()) + " : " + info);
-      pw.flush();
-      pw.close();
-    } catch (final IOException e) {
-      LOGGER.log(Level.WARNING, "failed to log info [ " + info
-          + " ] at filePath [ " + filePath + " ]. ", e);
-    } catch (final Throwable e) {
-      LOGGER.log(Level.WARNING, "failed to log info [ " + info
-          + " ] at filePath [ " + filePath + " ]. ", e);
-    }
-  }
-
   /**
    * URL encoder.
    *
@@ -1230,132 +1193,11 @@ public final class Util {
    * @param fqdn If true, resulting URLs are converted into fqdn format. If
    *          false, URLs are returned just by applying the alias mapping rules.
    *          No further attempt will be made to re-write them.
+   * @see AliasMapper
    */
   public static String doAliasMapping(final String url,
       Map<String, String> aliasMap, boolean fqdn) throws MalformedURLException {
-    URL objURL = new URL(url);
-    String strUrl = "";
-
-    boolean matched = false;
-    // processing of alias values
-    if ((null != aliasMap) && (null != aliasMap.keySet())) {
-      for (final Iterator<String> aliasItr = aliasMap.keySet().iterator(); aliasItr.hasNext();) {
-
-        String aliasPattern = aliasItr.next();
-        String aliasValue = aliasMap.get(aliasPattern);
-
-        if ((aliasPattern == null) || (aliasValue == null)) {
-          continue;
-        }
-        aliasPattern = aliasPattern.trim();
-        aliasValue = aliasValue.trim();
-        if (aliasPattern.equalsIgnoreCase("")
-            || aliasValue.equalsIgnoreCase("")) {
-          continue;
-        }
-
-        URL patternURL = null;
-        String aliasPatternURL = aliasPattern;
-        if (aliasPattern.startsWith(SPConstants.GLOBAL_ALIAS_IDENTIFIER)) {
-          aliasPatternURL = aliasPattern.substring(1);
-        }
-
-        try {
-          patternURL = new URL(aliasPatternURL);
-        } catch (final MalformedURLException e) {
-          LOGGER.log(Level.WARNING, "Malformed alias pattern: "
-              + aliasPatternURL, e);
-        }
-        if (patternURL == null) {
-          continue;
-        }
-
-        if (!objURL.getProtocol().equalsIgnoreCase(patternURL.getProtocol())) {
-          continue;
-        }
-
-        if (!objURL.getHost().equalsIgnoreCase(patternURL.getHost())) {
-          continue;
-        }
-
-        if (aliasPattern.startsWith(SPConstants.GLOBAL_ALIAS_IDENTIFIER)) {
-          aliasPattern = aliasPattern.substring(1);
-          if (patternURL.getPort() == SPConstants.MINUS_ONE) {
-            aliasPattern = patternURL.getProtocol() + SPConstants.URL_SEP
-                + patternURL.getHost();
-            if (objURL.getPort() != SPConstants.MINUS_ONE) {
-              aliasPattern += SPConstants.COLON + objURL.getPort();
-            }
-            aliasPattern += patternURL.getFile();
-          }
-        } else if ((objURL.getPort() == SPConstants.MINUS_ONE)
-            && (patternURL.getPort() == patternURL.getDefaultPort())) {
-          aliasPattern = patternURL.getProtocol() + SPConstants.URL_SEP
-              + patternURL.getHost() + patternURL.getFile();
-        } else if ((objURL.getPort() == objURL.getDefaultPort())
-            && (patternURL.getPort() == SPConstants.MINUS_ONE)) {
-          aliasPattern = patternURL.getProtocol() + SPConstants.URL_SEP
-              + patternURL.getHost() + SPConstants.COLON
-              + patternURL.getDefaultPort() + patternURL.getFile();
-        } else if (objURL.getPort() != patternURL.getPort()) {
-          continue;
-        }
-
-        if (url.startsWith(aliasPattern)) {
-          LOGGER.config("document url[" + url
-              + "] has matched against alias source URL [ " + aliasPattern
-              + " ]");
-          strUrl = aliasValue;
-          final String restURL = url.substring(aliasPattern.length());
-          if (!strUrl.endsWith(SPConstants.SLASH)
-              && !restURL.startsWith(SPConstants.SLASH)) {
-            strUrl += SPConstants.SLASH;
-          }
-          strUrl += restURL;
-          matched = true;
-          LOGGER.config("document url[" + url + "] has been re-written to [ "
-              + strUrl + " ] in respect to the aliasing.");
-          break;
-        }
-      }
-    }
-
-    if (!matched) {
-      strUrl = objURL.getProtocol() + SPConstants.URL_SEP;
-      strUrl += getFQDNHostName(objURL.getHost(), fqdn) + SPConstants.COLON;
-      final int portNo = objURL.getPort();
-      if (portNo != SPConstants.MINUS_ONE) {
-        strUrl += portNo;
-      } else {
-        strUrl += objURL.getDefaultPort();
-      }
-      strUrl += objURL.getFile();
-    }
-
-    return strUrl;
-  }
-
-  /**
-   * Converts a host name to FQDN using Java's
-   * {@link InetAddress#getCanonicalHostName()}
-   *
-   * @param hostName
-   * @return the host name in FQDN format
-   */
-  private static String getFQDNHostName(final String hostName, boolean fqdn) {
-    if (fqdn) {
-      InetAddress ia = null;
-      try {
-        ia = InetAddress.getByName(hostName);
-      } catch (final UnknownHostException e) {
-        LOGGER.log(Level.WARNING, "Exception occurred while converting to FQDN, hostname [ "
-            + hostName + " ].", e);
-      }
-      if (ia != null) {
-        return ia.getCanonicalHostName();
-      }
-    }
-    return hostName;
+    return new AliasMapper(aliasMap, fqdn).map(url);
   }
 
   /**
@@ -0,0 +1,205 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-through cache of the user data store rows of a principal, i.e. a
+ * SharePoint user or an LDAP group, across all the namespaces. Principals
+ * without any row are cached as well, since most LDAP groups of a search user
+ * are not members of any SharePoint group.
+ * <p>
+ * Entries are invalidated by {@link UserDataStoreDAO} as it modifies the user
+ * data store: the principals being added, and the principals found in the
+ * cache as members of the groups, users or namespaces being removed. Each
+ * entry also expires after a while, in case the user data store is modified
+ * from elsewhere. Lookups record the generation of the cache before querying
+ * the database, and their results are dropped if any invalidation happened
+ * in the meantime.
+ * </p>
+ */
+class MembershipCache {
+  private static final Logger LOGGER = Logger.getLogger(MembershipCache.class.getName());
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final AtomicLong generation = new AtomicLong();
+  private final long ttl;
+  private final int maxSize;
+
+  private static final class Entry {
+    final List<UserGroupMembership> memberships;
+    final long expiry;
+
+    Entry(final List<UserGroupMembership> memberships, final long expiry) {
+      this.memberships = memberships;
+      this.expiry = expiry;
+    }
+  }
+
+  /**
+   * @param ttl time in milliseconds for which the rows of a principal are
+   *          cached
+   * @param maxSize maximum number of principals cached
+   */
+  MembershipCache(final long ttl, final int maxSize) {
+    this.ttl = ttl;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the current generation, to be passed to
+   *         {@link #put(String, List, long)} for the rows read afterwards
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param principal the user or group name
+   * @return the cached rows of the principal, possibly empty, or null if the
+   *         principal is not cached
+   */
+  List<UserGroupMembership> get(final String principal) {
+    final String key = principal.toLowerCase();
+    final Entry entry = entries.get(key);
+    if (null == entry) {
+      return null;
+    }
+    if (System.currentTimeMillis() > entry.expiry) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.memberships;
+  }
+
+  /**
+   * Caches the rows of a principal unless the cache has been invalidated since
+   * the given generation.
+   *
+   * @param principal the user or group name
+   * @param memberships all the rows of the principal
+   * @param readGeneration the generation read before querying the database
+   */
+  void put(final String principal, final List<UserGroupMembership> memberships,
+      final long readGeneration) {
+    if (readGeneration != generation.get()) {
+      return;
+    }
+    if (entries.size() >= maxSize) {
+      makeRoom();
+    }
+    entries.put(principal.toLowerCase(), new Entry(
+        Collections.unmodifiableList(memberships), System.currentTimeMillis()
+            + ttl));
+  }
+
+  /**
+   * Discards the cached rows of the given principals.
+   */
+  void invalidatePrincipals(final Collection<UserGroupMembership> memberships) {
+    generation.incrementAndGet();
+    for (UserGroupMembership membership : memberships) {
+      if (null != membership.getUserName()) {
+        entries.remove(membership.getUserName().toLowerCase());
+      }
+    }
+  }
+
+  /**
+   * Discards the cached rows of the principals which are members of any of the
+   * given groups of a namespace.
+   */
+  void invalidateGroups(final Set<Integer> groupIds, final String namespace) {
+    generation.incrementAndGet();
+    int count = 0;
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      for (UserGroupMembership membership : it.next().memberships) {
+        if (groupIds.contains(membership.getGroupId())
+            && namespace.equals(membership.getNamespace())) {
+          it.remove();
+          count++;
+          break;
+        }
+      }
+    }
+    LOGGER.log(Level.FINE, "Discarded cached memberships of " + count
+        + " principals for groups " + groupIds + " of [ " + namespace + " ]");
+  }
+
+  /**
+   * Discards the cached rows of any of the given users of a namespace.
+   */
+  void invalidateUsers(final Set<Integer> userIds, final String namespace) {
+    generation.incrementAndGet();
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      for (UserGroupMembership membership : it.next().memberships) {
+        if (userIds.contains(membership.getUserId())
+            && namespace.equals(membership.getNamespace())) {
+          it.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Discards the cached rows of the principals having memberships in any of
+   * the given namespaces.
+   */
+  void invalidateNamespaces(final Set<String> namespaces) {
+    generation.incrementAndGet();
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      for (UserGroupMembership membership : it.next().memberships) {
+        if (namespaces.contains(membership.getNamespace())) {
+          it.remove();
+          break;
+        }
+      }
+    }
+  }
+
+  void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void makeRoom() {
+    final long now = System.currentTimeMillis();
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      if (now > it.next().expiry) {
+        it.remove();
+      }
+    }
+    if (entries.size() >= maxSize) {
+      LOGGER.log(Level.INFO, "Membership cache is full. Discarding all the "
+          + entries.size() + " cached principals.");
+      entries.clear();
+    }
+  }
+}
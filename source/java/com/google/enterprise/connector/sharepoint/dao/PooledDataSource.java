@@ -0,0 +1,211 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A {@link DataSource} wrapper that keeps a bounded number of idle physical
+ * connections around instead of opening and closing one for every JDBC
+ * template call. Connections handed out are proxies whose {@code close()}
+ * returns the physical connection to the pool; it is closed for real when the
+ * pool is full, when it has been idle longer than the configured timeout or
+ * when it is handed back with a pending transaction state.
+ */
+// DelegatingDataSource implements the generic Wrapper.unwrap with a raw
+// signature, which cannot be overridden with the generic one
+@SuppressWarnings("unchecked")
+public class PooledDataSource extends DelegatingDataSource {
+  private static final Logger LOGGER = Logger.getLogger(PooledDataSource.class.getName());
+
+  private final BlockingQueue<IdleConnection> idleConnections;
+  private final long maxIdleTime;
+
+  /**
+   * @param targetDataSource the data source providing physical connections
+   * @param maxIdle maximum number of idle connections kept open
+   * @param maxIdleTime time in milliseconds after which an idle connection is
+   *          closed instead of being reused
+   */
+  public PooledDataSource(DataSource targetDataSource, int maxIdle,
+      long maxIdleTime) {
+    super(targetDataSource);
+    if (maxIdle <= 0) {
+      throw new IllegalArgumentException("maxIdle must be positive");
+    }
+    this.idleConnections = new LinkedBlockingQueue<IdleConnection>(maxIdle);
+    this.maxIdleTime = maxIdleTime;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    IdleConnection idle;
+    while ((idle = idleConnections.poll()) != null) {
+      if (System.currentTimeMillis() - idle.since > maxIdleTime) {
+        closeQuietly(idle.connection);
+        continue;
+      }
+      try {
+        if (!idle.connection.isClosed()) {
+          return wrap(idle.connection);
+        }
+      } catch (SQLException e) {
+        LOGGER.log(Level.FINE, "Discarding an unusable pooled connection", e);
+        closeQuietly(idle.connection);
+      }
+    }
+    return wrap(getTargetDataSource().getConnection());
+  }
+
+  @Override
+  public Connection getConnection(String username, String password)
+      throws SQLException {
+    // Connections for explicit credentials are never shared.
+    return getTargetDataSource().getConnection(username, password);
+  }
+
+  /**
+   * Closes all the idle connections. Connections currently in use are not
+   * affected.
+   */
+  public void close() {
+    IdleConnection idle;
+    while ((idle = idleConnections.poll()) != null) {
+      closeQuietly(idle.connection);
+    }
+  }
+
+  /**
+   * @return the number of idle connections currently pooled
+   */
+  public int getIdleCount() {
+    return idleConnections.size();
+  }
+
+  /**
+   * Closes the idle connections that have been idle longer than the
+   * configured timeout. The oldest connections are at the head of the queue.
+   */
+  private void expireIdleConnections() {
+    final long now = System.currentTimeMillis();
+    IdleConnection idle;
+    while ((idle = idleConnections.peek()) != null
+        && now - idle.since > maxIdleTime) {
+      if (idleConnections.remove(idle)) {
+        closeQuietly(idle.connection);
+      }
+    }
+  }
+
+  /**
+   * Returns a physical connection to the pool, or closes it if the pool is
+   * full or the connection was left in a non-default transaction state.
+   * Expired idle connections are closed first, so that connections are not
+   * left open when the pool stops being used.
+   */
+  private void release(Connection connection) {
+    expireIdleConnections();
+    try {
+      if (connection.isClosed()) {
+        return;
+      }
+      if (connection.getAutoCommit()
+          && idleConnections.offer(new IdleConnection(connection))) {
+        return;
+      }
+    } catch (SQLException e) {
+      LOGGER.log(Level.FINE, "Could not return the connection to the pool", e);
+    }
+    closeQuietly(connection);
+  }
+
+  private Connection wrap(Connection connection) {
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        new PooledConnectionHandler(connection));
+  }
+
+  private static void closeQuietly(Connection connection) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      LOGGER.log(Level.FINE, "Failed to close a pooled connection", e);
+    }
+  }
+
+  private static class IdleConnection {
+    final Connection connection;
+    final long since;
+
+    IdleConnection(Connection connection) {
+      this.connection = connection;
+      this.since = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Delegates everything to the physical connection except {@code close()},
+   * which hands it back to the pool. A proxy can only be closed once; any use
+   * after that fails as it would for a closed connection.
+   */
+  private class PooledConnectionHandler implements InvocationHandler {
+    private Connection connection;
+
+    PooledConnectionHandler(Connection connection) {
+      this.connection = connection;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+        throws Throwable {
+      String name = method.getName();
+      if (name.equals("equals")) {
+        return proxy == args[0];
+      } else if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (name.equals("close")) {
+        if (null != connection) {
+          release(connection);
+          connection = null;
+        }
+        return null;
+      } else if (name.equals("toString")) {
+        return "Pooled connection [ " + connection + " ]";
+      } else if (name.equals("isClosed")) {
+        return null == connection || connection.isClosed();
+      }
+      if (null == connection) {
+        throw new SQLException("Connection is closed");
+      }
+      try {
+        return method.invoke(connection, args);
+      } catch (InvocationTargetException e) {
+        throw e.getTargetException();
+      }
+    }
+  }
+}
@@ -100,6 +100,8 @@ enum Query {
   UDS_INSERT("user_id", "user_name", "group_id", "group_name", "namespace"), UDS_SELECT_FOR_USERNAME(
       "user_name"),
 
+  UDS_UPSERT("user_id", "user_name", "group_id", "group_name", "namespace"),
+
   UDS_SELECT_FOR_USERID_NAMESPACE("user_id", "namespace"), UDS_DELETE_FOR_USERID_NAMESPACE(
       "user_id", "namespace"),
 
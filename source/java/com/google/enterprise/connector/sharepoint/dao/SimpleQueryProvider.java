@@ -107,6 +107,7 @@ public class SimpleQueryProvider implements QueryProvider {
     case UDS_DROP_TABLE:
 
     case UDS_INSERT:
+    case UDS_UPSERT:
     case UDS_SELECT_FOR_USERNAME:
 
     case UDS_SELECT_FOR_USERID_NAMESPACE:
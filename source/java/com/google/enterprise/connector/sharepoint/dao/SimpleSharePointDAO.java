@@ -70,6 +70,7 @@ public class SimpleSharePointDAO extends SimpleJdbcDaoSupport implements
       throw new SharepointException(
           "Could not create the database conection for specified data source");
     }
+    releaseConnection(con);
   }
 
   /**
@@ -24,6 +24,7 @@ import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -52,6 +53,9 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
   private UserDataStoreCache<UserGroupMembership> udsCache;
   private DataSourceTransactionManager transactionManager;
   private ParameterizedRowMapper<UserGroupMembership> rowMapper;
+  private final MembershipCache membershipCache = new MembershipCache(
+      SPConstants.UDS_MEMBERSHIP_CACHE_TTL,
+      SPConstants.UDS_MEMBERSHIP_CACHE_MAX_SIZE);
 
   public UserDataStoreDAO(final DataSource dataSource,
       final QueryProvider queryProvider,
@@ -103,6 +107,10 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
   /**
    * Retrieves all the {@link UserGroupMembership} to which {@link Set} groups
    * belongs to including the search user.
+   * <p/>
+   * The rows are read through a cache of the rows of each principal. Only the
+   * principals which are not cached are looked up in the user data store, and
+   * their rows, if any, are cached for the subsequent authentications.
    *
    * @param groups set of AD groups whose SP groups are to be retrieved
    * @param searchUser the sear user name
@@ -110,33 +118,63 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
    */
   public List<UserGroupMembership> getAllMembershipsForSearchUserAndLdapGroups(
       Set<String> groups, String searchUser) throws SharepointException {
-    Set<String> ldapGroups = null;
+    Set<String> principals = new HashSet<String>();
+    if (null != groups) {
+      principals.addAll(groups);
+    }
+    principals.add(searchUser);
+
+    List<UserGroupMembership> memberships = new ArrayList<UserGroupMembership>();
+    Map<String, List<UserGroupMembership>> missed = new HashMap<String, List<UserGroupMembership>>();
+    for (String principal : principals) {
+      List<UserGroupMembership> cached = membershipCache.get(principal);
+      if (null == cached) {
+        missed.put(principal.toLowerCase(), new ArrayList<UserGroupMembership>());
+      } else {
+        memberships.addAll(cached);
+      }
+    }
+    int hits = principals.size() - missed.size();
+    if (missed.isEmpty()) {
+      LOGGER.log(Level.INFO, memberships.size()
+          + " Memberships identified for LDAP directory groups in the membership cache.");
+      return memberships;
+    }
+
+    Set<String> missedPrincipals = new HashSet<String>();
+    for (String principal : principals) {
+      if (missed.containsKey(principal.toLowerCase())) {
+        missedPrincipals.add(principal);
+      }
+    }
     Query query = Query.UDS_SELECT_FOR_ADGROUPS;
     Map<String, Object> groupsObject = new HashMap<String, Object>();
-    if (null == groups) {
-      ldapGroups = new HashSet<String>();
-      ldapGroups.add(searchUser);
-      groupsObject.put(SPConstants.GROUPS, ldapGroups);
-    } else {
-      groups.add(searchUser);
-      groupsObject.put(SPConstants.GROUPS, groups);
-    }
-    List<UserGroupMembership> memberships = null;
+    groupsObject.put(SPConstants.GROUPS, missedPrincipals);
+    long generation = membershipCache.getGeneration();
+    List<UserGroupMembership> results = null;
     try {
-      memberships = getSimpleJdbcTemplate().query(getSqlQuery(query), rowMapper, groupsObject);
+      results = getSimpleJdbcTemplate().query(getSqlQuery(query), rowMapper, groupsObject);
     } catch (Throwable t) {
       throw new SharepointException(
           "Query execution failed while getting the membership info of a given user and AD gruops.",
           t);
     }
-    LOGGER.log(Level.INFO, memberships.size()
-        + " Memberships identified for LDAP directory groups in User Data Store.");
-    if (null == groups) {
-      ldapGroups.remove(searchUser);
-      ldapGroups = null;
-    } else {
-      groups.remove(searchUser);
+    for (UserGroupMembership membership : results) {
+      if (null != membership.getUserName()) {
+        List<UserGroupMembership> principalMemberships = missed.get(membership.getUserName().toLowerCase());
+        if (null != principalMemberships) {
+          principalMemberships.add(membership);
+        }
+      }
+    }
+    for (Map.Entry<String, List<UserGroupMembership>> entry : missed.entrySet()) {
+      membershipCache.put(entry.getKey(), entry.getValue(), generation);
     }
+    memberships.addAll(results);
+    LOGGER.log(Level.INFO, memberships.size()
+        + " Memberships identified for LDAP directory groups in User Data Store. "
+        + hits + " of " + principals.size()
+        + " principals were found in the membership cache.");
     return memberships;
   }
 
@@ -150,11 +188,16 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
    * collection. After the method returns, the caller can ensure that the
    * collection contains only those memberships which the connector really
    * attempted insertion. But, it does not ensure if it was successful or not.
+   * <p/>
+   * The insertion uses the vendor specific {@link Query#UDS_UPSERT} so that
+   * memberships already in the user data store are skipped by the database
+   * itself. Hence, the whole set goes in a single batch and does not fall back
+   * to individual queries because of duplicate keys.
    *
    * @param memberships
    * @throws SharepointException
    */
-  public void addMemberships(Set<UserGroupMembership> memberships)
+  public synchronized void addMemberships(Set<UserGroupMembership> memberships)
       throws SharepointException {
     if (null == memberships || memberships.size() == 0) {
       return;
@@ -166,11 +209,15 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
     // There should be at least one entry in memberships before performing batch
     // update.
     if (memberships.size() > 0) {
-      Query query = Query.UDS_INSERT;
+      Query query = Query.UDS_UPSERT;
       SqlParameterSource[] params = createParameter(query, memberships);
       status = batchUpdate(query, params);
     }
 
+    if (memberships.size() > 0) {
+      membershipCache.invalidatePrincipals(memberships);
+    }
+
     if (null != udsCache && null != status) {
       addAllSucceeded(status, memberships);
     }
@@ -184,7 +231,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
    * @param namespace the namespace to which all the users belong
    * @throws SharepointException
    */
-  public void removeUserMembershipsFromNamespace(Set<Integer> userIds,
+  public synchronized void removeUserMembershipsFromNamespace(Set<Integer> userIds,
       String namespace) throws SharepointException {
     Set<UserGroupMembership> memberships = new HashSet<UserGroupMembership>();
     for (int userId : userIds) {
@@ -201,6 +248,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
     Query query = Query.UDS_DELETE_FOR_USERID_NAMESPACE;
     SqlParameterSource[] params = createParameter(query, memberships);
     batchUpdate(query, params);
+    membershipCache.invalidateUsers(userIds, namespace);
 
     for (UserGroupMembership membership : memberships) {
       udsCache.removeUsingNamespaceView(membership);
@@ -215,7 +263,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
    * @param namespace the namespace to which all the groups belong
    * @throws SharepointException
    */
-  public void removeGroupMembershipsFromNamespace(Set<Integer> groupIds,
+  public synchronized void removeGroupMembershipsFromNamespace(Set<Integer> groupIds,
       String namespace) throws SharepointException {
     Set<UserGroupMembership> memberships = new HashSet<UserGroupMembership>();
     for (int groupId : groupIds) {
@@ -232,6 +280,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
     Query query = Query.UDS_DELETE_FOR_GROUPID_NAMESPACE;
     SqlParameterSource[] params = createParameter(query, memberships);
     batchUpdate(query, params);
+    membershipCache.invalidateGroups(groupIds, namespace);
 
     for (UserGroupMembership membership : memberships) {
       udsCache.removeUsingGroupNamespaceView(membership);
@@ -245,7 +294,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
    * @param namespaces list of namespaces whose membeships are to be removed
    * @throws SharepointException
    */
-  public void removeAllMembershipsFromNamespace(Set<String> namespaces)
+  public synchronized void removeAllMembershipsFromNamespace(Set<String> namespaces)
       throws SharepointException {
 
     Set<UserGroupMembership> memberships = new HashSet<UserGroupMembership>();
@@ -262,6 +311,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
     Query query = Query.UDS_DELETE_FOR_NAMESPACE;
     SqlParameterSource[] params = createParameter(query, memberships);
     batchUpdate(query, params);
+    membershipCache.invalidateNamespaces(namespaces);
 
     for (UserGroupMembership membership : memberships) {
       udsCache.removeUsingNamespaceView(membership);
@@ -280,7 +330,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
    * @param namespace
    * @throws SharepointException
    */
-  public void syncGroupMemberships(
+  public synchronized void syncGroupMemberships(
       Map<Integer, Set<UserGroupMembership>> groupMembershipMap,
       String namespace) throws SharepointException {
 
@@ -316,6 +366,8 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
       LOGGER.log(Level.WARNING, "Exception occured in transaction processing. Rolling back... ");
     }
     transactionManager.commit(status);
+    membershipCache.invalidateGroups(groupMembershipMap.keySet(), namespace);
+    membershipCache.invalidatePrincipals(membershipsToInsert);
 
     if (batchStatus != null) {
       // Removal from cache is lenient because it does not harm any
@@ -335,17 +387,6 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
     }
   }
 
-  /**
-   * To cleanup the cache
-   */
-  public void cleanupCache() {
-    LOGGER.log(Level.INFO, "Current cache size , before cleanup "
-        + udsCache.size());
-    udsCache.clearCache();
-    LOGGER.log(Level.INFO, "Current cache size , after cleanup "
-        + udsCache.size());
-  }
-
   /**
    * cache can be disabled using this. By default, it's enabled.
    *
@@ -398,6 +439,7 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
       break;
 
     case UDS_INSERT:
+    case UDS_UPSERT:
       for (UserGroupMembership membership : memberships) {
         namedParams[count++] = query.createParameter(membership.getUserId(), membership.getUserName(), membership.getGroupId(), membership.getGroupName(), membership.getNamespace());
       }
@@ -442,13 +484,15 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
     String tablePattern;
     ResultSet rsTables = null;
     Statement statement = null;
+    Connection con = null;
     try {
-      dbm = getConnection().getMetaData();
+      con = getConnection();
+      dbm = con.getMetaData();
       tableName = getQueryProvider().getUdsTableName();
       // Specific to oracle data base to check required entities in user
       // data store data base.
       if (getQueryProvider().getDatabase().equalsIgnoreCase(SPConstants.SELECTED_DATABASE)) {
-        statement = getConnection().createStatement();
+        statement = con.createStatement();
         String query = getSqlQuery(Query.UDS_CHECK_TABLES);
         rsTables = statement.executeQuery(query);
         while (rsTables.next()) {
@@ -489,6 +533,8 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
       } catch (SQLException e) {
         LOGGER.log(Level.WARNING, "Exception occurred while closing data base resources.", e);
       }
+      releaseConnection(con);
+      con = null;
       if (!tableFound) {
         getSimpleJdbcTemplate().update(getSqlQuery(Query.UDS_CREATE_TABLE));
         LOGGER.config("Created user data store table with name : "
@@ -499,6 +545,10 @@ public class UserDataStoreDAO extends SimpleSharePointDAO {
       }
     } catch (Exception e) {
       LOGGER.log(Level.WARNING, "Exception occurred while getting the table information from the database metadata. ", e);
+    } finally {
+      if (null != con) {
+        releaseConnection(con);
+      }
     }
   }
 
@@ -25,6 +25,13 @@ public class LdapConstants {
   public static final Object PREFIX_FOR_PARENTS_GROUPS_FILTER = "(&(objectClass=group)(CN=";
   public static final Object PREFIX_FOR_DIRECT_GROUPS_FILTER = "(&(objectClass=user)(sAMAccountName=";
   public static final String RETURN_ATTRIBUTES_DIRECT_GROUPS_LIST = "memberOf";
+  public static final String RETURN_ATTRIBUTE_COMMON_NAME = "cn";
+  public static final String PREFIX_FOR_PARENTS_OF_GROUPS_FILTER = "(&(objectClass=group)(|";
+  public static final String PREFIX_FOR_GROUP_NAME_FILTER = "(CN=";
+  // Maximum number of groups whose parent groups are searched in one query
+  public static final int MAX_GROUPS_PER_SEARCH = 50;
+  // Enables the connection pooling of the JNDI LDAP provider
+  public static final String COM_SUN_JNDI_LDAP_CONNECT_POOL = "com.sun.jndi.ldap.connect.pool";
 
   public static final int DEFAULT_PORT = 389;
 
@@ -15,39 +15,88 @@
 
 package com.google.enterprise.connector.sharepoint.ldap;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class provides a simple cache implementation to store objects with
  * default and custom expire time along with initial custom capacity.
+ * <p>
+ * The entries are kept in a {@link ConcurrentHashMap}, so lookups do not take
+ * any lock. Each entry carries its own expiry time, which is checked when the
+ * entry is read, and the time it was last read. When the cache grows beyond
+ * its capacity, the least recently read entries are evicted in one pass by the
+ * thread which made it grow, while the other threads carry on. Expired entries
+ * which are never read again are removed by a sweeper thread shared by all the
+ * caches.
+ * </p>
  *
  * @author nageswara_sura
  */
 public class UserGroupsCache<K, V> implements IUserGroupsCache<K, V> {
 
   private static final Logger LOGGER = Logger.getLogger(UserGroupsCache.class.getName());
-  // To store LDAP user and its groups (direct , parent)
-  private final Map<K, V> cacheStore;
 
-  // To store cache key and it's expire time.
-  private final Map<K, Long> expire;
+  // Sweeps the expired entries of all the caches
+  private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "UserGroupsCacheSweeper");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  // Percentage of the capacity freed by one eviction pass, so that a full
+  // cache is not scanned again on every put.
+  private static final int EVICTION_PERCENTAGE = 10;
+
+  // To store LDAP user and its groups (direct , parent) along with the expire
+  // time.
+  private final ConcurrentMap<K, CacheEntry<V>> cacheStore;
 
   // Time limit in seconds to maintain entries in cache before the cache is
   // cleared.
   private final long refreshInterval;
 
-  // Used to constructs an LinkedHashMap instance.
-  private static final float hashTableLoadFactor = 0.75f;
+  // Maximum number of entries in the cache.
+  private final long cacheSize;
 
-  // Used to construct an LinkedHashMap instance.
-  private long cacheSize;
+  // Held by the thread evicting entries.
+  private final ReentrantLock evictionLock = new ReentrantLock();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * A cached object with its expire time and the time it was last read.
+   */
+  private static class CacheEntry<V> {
+    final V value;
+    final long expireTime;
+    volatile long accessTime;
+
+    CacheEntry(final V value, final long expireTime, final long accessTime) {
+      this.value = value;
+      this.expireTime = expireTime;
+      this.accessTime = accessTime;
+    }
+  }
 
   /**
    * Constructs the cache with a default refresh interval time for the directory
@@ -76,63 +125,95 @@ public class UserGroupsCache<K, V> implements IUserGroupsCache<K, V> {
       this.refreshInterval = refreshInterval;
     }
     this.cacheSize = cacheSize;
-    int hashTableCapacity = (int) Math.ceil(this.cacheSize
-        / hashTableLoadFactor) + 1;
-    this.cacheStore = Collections.synchronizedMap(new LinkedHashMap<K, V>(
-        hashTableCapacity, hashTableLoadFactor, true) {
-      private static final long serialVersionUID = 1;
-
-      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        if (size() > UserGroupsCache.this.cacheSize) {
-          LOGGER.info("Removing the cached entry for the search user ["
-              + eldest.getKey()
-              + "] from the user groups cache since the cache is full.");
-          UserGroupsCache.this.expire.remove(eldest.getKey());
-          return true;
-        } else {
-          return false;
-        }
-      }
-    });
+    this.cacheStore = new ConcurrentHashMap<K, CacheEntry<V>>(
+        Math.max(16, Math.min(cacheSize, 10000)));
+
+    // The sweeping task only holds a weak reference to the cache, so that a
+    // cache which is no longer used can be collected. The task cancels itself
+    // then.
+    Sweep<K, V> sweep = new Sweep<K, V>(this);
+    sweep.future = sweeper.scheduleWithFixedDelay(sweep, this.refreshInterval / 2, this.refreshInterval, TimeUnit.SECONDS);
+  }
 
-    this.expire = Collections.synchronizedMap(new HashMap<K, Long>());
+  /**
+   * Removes the expired objects from a cache store.
+   */
+  private static class Sweep<K, V> implements Runnable {
+    private final WeakReference<UserGroupsCache<K, V>> cache;
+    volatile ScheduledFuture<?> future;
 
-    // Creates a thread pool that can be scheduled to run removeExpiry()
-    // command with a fixed set of threads. If any
-    // thread terminates due to a failure during execution prior to
-    // shutdown, a new one will take its place if needed to execute
-    // subsequent tasks.
+    Sweep(final UserGroupsCache<K, V> cache) {
+      this.cache = new WeakReference<UserGroupsCache<K, V>>(cache);
+    }
 
-    Executors.newScheduledThreadPool(20).scheduleWithFixedDelay(this.removeExpired(), this.refreshInterval / 2, this.refreshInterval, TimeUnit.SECONDS);
+    public void run() {
+      UserGroupsCache<K, V> userGroupsCache = cache.get();
+      if (null == userGroupsCache) {
+        if (null != future) {
+          future.cancel(false);
+        }
+        return;
+      }
+      userGroupsCache.removeExpired();
+    }
   }
 
   /**
-   * This Runnable removes expired objects from cache store.
-   */
-  private final Runnable removeExpired() {
-    return new Runnable() {
-      public void run() {
-        for (final K name : expire.keySet()) {
-          synchronized (expire) {
-            if (System.currentTimeMillis() > expire.get(name)) {
-              removeExpiredObjectFromCache(name);
-              LOGGER.log(Level.CONFIG, "Invalidating cache entry for the search user [ "
-                  + name + " ] after " + refreshInterval + " seconds. ");
-            }
-          }
-        }
+   * Removes expired objects from cache store.
+   */
+  private void removeExpired() {
+    final long now = System.currentTimeMillis();
+    for (final Map.Entry<K, CacheEntry<V>> entry : cacheStore.entrySet()) {
+      if (now > entry.getValue().expireTime
+          && cacheStore.remove(entry.getKey(), entry.getValue())) {
+        LOGGER.log(Level.CONFIG, "Invalidating cache entry for the search user [ "
+            + entry.getKey() + " ] after " + refreshInterval + " seconds. ");
       }
-    };
+    }
+    LOGGER.log(Level.CONFIG, "User groups cache statistics: size [ "
+        + getSize() + " ], hits [ " + getHitCount() + " ], misses [ "
+        + getMissCount() + " ], evictions [ " + getEvictionCount() + " ]");
   }
 
   /**
-   * Removes a specific object from the cache.
-   *
-   * @param name the name of the object
+   * Evicts the least recently read entries if the cache holds more entries
+   * than its capacity. Only one thread evicts at a time; the others do not
+   * wait for it.
    */
-  private void removeExpiredObjectFromCache(final K name) {
-    cacheStore.remove(name);
-    expire.remove(name);
+  private void evictIfFull() {
+    if (cacheStore.size() <= cacheSize || !evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      final int size = cacheStore.size();
+      if (size <= cacheSize) {
+        return;
+      }
+      final long target = Math.max(0, cacheSize
+          - (cacheSize * EVICTION_PERCENTAGE / 100));
+      final List<Map.Entry<K, CacheEntry<V>>> entries = new ArrayList<Map.Entry<K, CacheEntry<V>>>(
+          cacheStore.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<K, CacheEntry<V>>>() {
+        public int compare(Map.Entry<K, CacheEntry<V>> e1,
+            Map.Entry<K, CacheEntry<V>> e2) {
+          long t1 = e1.getValue().accessTime;
+          long t2 = e2.getValue().accessTime;
+          return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+        }
+      });
+      int evicted = 0;
+      for (int i = 0; i < entries.size() && cacheStore.size() > target; i++) {
+        final Map.Entry<K, CacheEntry<V>> eldest = entries.get(i);
+        if (cacheStore.remove(eldest.getKey(), eldest.getValue())) {
+          evicted++;
+        }
+      }
+      evictionCount.addAndGet(evicted);
+      LOGGER.info("Removed " + evicted
+          + " least recently used entries from the user groups cache since the cache is full.");
+    } finally {
+      evictionLock.unlock();
+    }
   }
 
   /**
@@ -163,12 +244,13 @@ public class UserGroupsCache<K, V> implements IUserGroupsCache<K, V> {
    */
   private void put(K key, V obj, final long expireTime) {
     try {
-      this.cacheStore.put(key, obj);
-      long currentTime = System.currentTimeMillis() + expireTime * 1000;
-      this.expire.put(key, currentTime);
+      final long now = System.currentTimeMillis();
+      long currentTime = now + expireTime * 1000;
+      this.cacheStore.put(key, new CacheEntry<V>(obj, currentTime, now));
       LOGGER.log(Level.INFO, "Updated cache for the search user [" + key
           + "] with expiry time in seconds [" + currentTime
           + "] and now the cache size is : " + this.getSize());
+      evictIfFull();
     } catch (Throwable t) {
       LOGGER.log(Level.WARNING, "Exception is thrown while updating cache for the key : "
           + key, t);
@@ -177,23 +259,29 @@ public class UserGroupsCache<K, V> implements IUserGroupsCache<K, V> {
 
   /**
    * Returns an object from the cache if its expireTime is not null and less
-   * than current system time and if it's greater will make a call to a thread
-   * to remove its entry from cache store.
+   * than current system time and if it's greater will remove its entry from
+   * cache store.
    *
    * @param key the name of the object you'd like to get
    * @return the object for the given name
    */
   public V get(K key) {
-    final Long expireTime = this.expire.get(key);
-    if (expireTime == null)
+    final CacheEntry<V> entry = this.cacheStore.get(key);
+    if (entry == null) {
+      missCount.incrementAndGet();
       return null;
-    if (System.currentTimeMillis() > expireTime) {
+    }
+    final long now = System.currentTimeMillis();
+    if (now > entry.expireTime) {
       LOGGER.log(Level.CONFIG, "Removing cache entry for the user [ " + key
           + " ] since the key expired in cache");
-      this.removeExpiredObjectFromCache(key);
+      this.cacheStore.remove(key, entry);
+      missCount.incrementAndGet();
       return null;
     }
-    return this.cacheStore.get(key);
+    entry.accessTime = now;
+    hitCount.incrementAndGet();
+    return entry.value;
   }
 
   @SuppressWarnings("unchecked")
@@ -229,4 +317,26 @@ public class UserGroupsCache<K, V> implements IUserGroupsCache<K, V> {
   public boolean contains(K key) {
     return (null != get(key));
   }
+
+  /**
+   * @return the number of lookups which found an object
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of lookups which did not find an object, or found an
+   *         expired one
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of objects removed because the cache was full
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
 }
@@ -31,12 +31,21 @@ import com.google.enterprise.connector.sharepoint.ldap.UserGroupsService.LdapCon
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointAuthenticationManager;
 import com.google.enterprise.connector.sharepoint.spiimpl.SharepointException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -72,6 +81,20 @@ public class UserGroupsService implements LdapService {
 	private UserGroupsCache<Object, ConcurrentHashMap<String, Set<String>>> lugCacheStore = null;
 	private LdapConnection ldapConnection;
 	private SharepointClientContext sharepointClientContext;
+	// Parent groups of the groups resolved so far, shared by all the search
+	// users. Keyed by the lower case group name.
+	private UserGroupsCache<Object, Set<String>> parentGroupsCache = null;
+
+	// Number of threads searching the parent groups of the groups at the same
+	// level of nesting
+	private static final int PARENT_GROUPS_SEARCH_THREADS = 4;
+	private static final ExecutorService parentGroupsExecutor = Executors.newFixedThreadPool(PARENT_GROUPS_SEARCH_THREADS, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ParentGroupsSearch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 
 	public UserGroupsService() {
 
@@ -92,6 +115,8 @@ public class UserGroupsService implements LdapService {
 		if (enableLUGCache) {
 			this.lugCacheStore = new UserGroupsCache<Object, ConcurrentHashMap<String, Set<String>>>(
 					refreshInterval, cacheSize);
+			this.parentGroupsCache = new UserGroupsCache<Object, Set<String>>(
+					refreshInterval, cacheSize);
 			LOGGER.log(Level.CONFIG, "Configured user groups cache store with refresh interval [ "
 					+ refreshInterval + " ] and with capacity [ " + cacheSize + " ]");
 		} else {
@@ -115,6 +140,9 @@ public class UserGroupsService implements LdapService {
 			this.lugCacheStore = new UserGroupsCache<Object, ConcurrentHashMap<String, Set<String>>>(
 					sharepointClientContext.getCacheRefreshInterval(),
 					sharepointClientContext.getInitialCacheSize());
+			this.parentGroupsCache = new UserGroupsCache<Object, Set<String>>(
+					sharepointClientContext.getCacheRefreshInterval(),
+					sharepointClientContext.getInitialCacheSize());
 		} else {
 			LOGGER.log(Level.INFO, "No cache has been configured to keep user groups memberships.");
 		}
@@ -284,6 +312,11 @@ public class UserGroupsService implements LdapService {
 				env.put(Context.SECURITY_AUTHENTICATION, "none"); //$NON-NLS-1$
 			}
 			env.put(Context.PROVIDER_URL, makeLdapUrl());
+			// Contexts created with the same environment share the pooled
+			// connections. A connection goes back to the pool when the context
+			// using it is closed. LDAPS connections are pooled only if the
+			// com.sun.jndi.ldap.connect.pool.protocol system property allows it.
+			env.put(LdapConstants.COM_SUN_JNDI_LDAP_CONNECT_POOL, "true");
 			return env;
 		}
 	}
@@ -387,6 +420,11 @@ public class UserGroupsService implements LdapService {
 	 * @return a set of direct groups that the user belongs to in AD.
 	 */
 	Set<String> getDirectGroupsForTheSearchUser(String userName) {
+		return getDirectGroupsForTheSearchUser(this.context, userName);
+	}
+
+	private Set<String> getDirectGroupsForTheSearchUser(LdapContext ldapContext,
+			String userName) {
 		// Create the search controls.
 		SearchControls searchCtls = makeSearhCtls();
 		// Create the search filter.
@@ -397,7 +435,7 @@ public class UserGroupsService implements LdapService {
 		Set<String> directGroups = new HashSet<String>();
 		NamingEnumeration<SearchResult> ldapResults = null;
 		try {
-			ldapResults = this.context.search(searchBase, searchFilter, searchCtls);
+			ldapResults = ldapContext.search(searchBase, searchFilter, searchCtls);
 			// Loop through the search results
 			while (ldapResults.hasMoreElements()) {
 				SearchResult sr = ldapResults.next();
@@ -461,15 +499,217 @@ public class UserGroupsService implements LdapService {
 	public void getAllParentGroups(String groupName,
 			final Set<String> parentGroupsInfo) {
 		if (!Strings.isNullOrEmpty(groupName)) {
-			parentGroupsInfo.add(getGroupDNForTheGroup(groupName));
-			Set<String> parentGroups = getAllParentGroupsForTheGroup(groupName);
-			LOGGER.log(Level.INFO, "Parent groups for the group [" + groupName
-					+ "] : " + parentGroups);
+			parentGroupsInfo.addAll(getAllParentGroups(this.context, Collections.singleton(groupName)));
+		}
+	}
+
+	/**
+	 * Returns the given groups and all their parent groups. The groups are
+	 * resolved breadth first: the parent groups of all the groups at one level
+	 * of nesting are searched together, with one query for every
+	 * {@link LdapConstants#MAX_GROUPS_PER_SEARCH} groups, before moving on to
+	 * the next level. A group is resolved only once, even if it is reached
+	 * through several branches or through a cycle.
+	 * 
+	 * @param ldapContext the context used to search the directory
+	 * @param groups DNs of the groups
+	 * @return names of the groups and their parent groups
+	 */
+	Set<String> getAllParentGroups(LdapContext ldapContext, Set<String> groups) {
+		Set<String> allGroups = new HashSet<String>();
+		Set<String> level = groups;
+		while (!level.isEmpty()) {
+			List<String> groupNames = new ArrayList<String>();
+			for (String group : level) {
+				if (Strings.isNullOrEmpty(group)) {
+					continue;
+				}
+				String groupName = getGroupDNForTheGroup(group);
+				if (allGroups.add(groupName)) {
+					groupNames.add(groupName);
+				}
+			}
+			Map<String, Set<String>> parentGroups = getParentGroups(ldapContext, groupNames);
+			level = new HashSet<String>();
+			for (Map.Entry<String, Set<String>> entry : parentGroups.entrySet()) {
+				LOGGER.log(Level.INFO, "Parent groups for the group ["
+						+ entry.getKey() + "] : " + entry.getValue());
+				level.addAll(entry.getValue());
+			}
+		}
+		return allGroups;
+	}
+
+	/**
+	 * Returns the direct parent groups of the given groups, from the cache if
+	 * they have been resolved already. The groups which are not cached are
+	 * searched in batches, which are run concurrently.
+	 * 
+	 * @param ldapContext the context used to search the directory
+	 * @param groupNames names of the groups
+	 * @return names of the groups mapped to the DNs of their parent groups
+	 */
+	private Map<String, Set<String>> getParentGroups(LdapContext ldapContext,
+			List<String> groupNames) {
+		Map<String, Set<String>> parentGroups = new HashMap<String, Set<String>>();
+		List<List<String>> batches = new ArrayList<List<String>>();
+		List<String> batch = null;
+		for (String groupName : groupNames) {
+			Set<String> cachedParentGroups = null;
+			if (null != parentGroupsCache) {
+				cachedParentGroups = parentGroupsCache.get(groupName.toLowerCase());
+			}
+			if (null != cachedParentGroups) {
+				parentGroups.put(groupName, cachedParentGroups);
+				continue;
+			}
+			if (null == batch || batch.size() == LdapConstants.MAX_GROUPS_PER_SEARCH) {
+				batch = new ArrayList<String>();
+				batches.add(batch);
+			}
+			batch.add(groupName);
+		}
+		if (batches.isEmpty()) {
+			return parentGroups;
+		}
+
+		// The first batch is searched by this thread while the others are
+		// searched by the executor
+		List<Future<Map<String, Set<String>>>> futures = new ArrayList<Future<Map<String, Set<String>>>>();
+		for (int i = 1; i < batches.size(); i++) {
+			final List<String> otherBatch = batches.get(i);
+			futures.add(parentGroupsExecutor.submit(new Callable<Map<String, Set<String>>>() {
+				public Map<String, Set<String>> call() {
+					LdapContext batchContext = createLdapContext();
+					try {
+						return searchParentGroups(batchContext, otherBatch);
+					} finally {
+						closeLdapContext(batchContext);
+					}
+				}
+			}));
+		}
+		Map<String, Set<String>> searchedParentGroups = new HashMap<String, Set<String>>();
+		searchedParentGroups.putAll(searchParentGroups(ldapContext, batches.get(0)));
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				searchedParentGroups.putAll(futures.get(i).get());
+			} catch (InterruptedException e) {
+				LOGGER.log(Level.WARNING, "Interrupted while searching parent groups for the groups "
+						+ batches.get(i + 1), e);
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Failed to search parent groups for the groups "
+						+ batches.get(i + 1) + ". Searching them again.", e.getCause());
+				searchedParentGroups.putAll(searchParentGroups(ldapContext, batches.get(i + 1)));
+			}
+		}
+		if (null != parentGroupsCache) {
+			for (Map.Entry<String, Set<String>> entry : searchedParentGroups.entrySet()) {
+				parentGroupsCache.put(entry.getKey().toLowerCase(), entry.getValue());
+			}
+		}
+		parentGroups.putAll(searchedParentGroups);
+		return parentGroups;
+	}
+
+	/**
+	 * Searches the direct parent groups of a batch of groups with a single
+	 * query. Falls back to one query for every group if the batch query fails.
+	 * 
+	 * @param ldapContext the context used to search the directory
+	 * @param groupNames names of the groups
+	 * @return names of the groups mapped to the DNs of their parent groups
+	 */
+	private Map<String, Set<String>> searchParentGroups(LdapContext ldapContext,
+			List<String> groupNames) {
+		Map<String, Set<String>> parentGroups = new HashMap<String, Set<String>>();
+		if (groupNames.size() == 1) {
+			parentGroups.put(groupNames.get(0), getAllParentGroupsForTheGroup(ldapContext, groupNames.get(0)));
+			return parentGroups;
+		}
+		// Group names are not case sensitive in the directory
+		Map<String, String> requestedNames = new HashMap<String, String>();
+		StringBuffer filter = new StringBuffer(LdapConstants.PREFIX_FOR_PARENTS_OF_GROUPS_FILTER);
+		for (String groupName : groupNames) {
+			requestedNames.put(groupName.toLowerCase(), groupName);
+			parentGroups.put(groupName, new HashSet<String>());
+			filter.append(LdapConstants.PREFIX_FOR_GROUP_NAME_FILTER).append(escapeFilterValue(groupName)).append(')');
+		}
+		filter.append(SPConstants.DOUBLE_CLOSE_PARENTHESIS);
 
-			for (String group : parentGroups) {
-				getAllParentGroups(group, parentGroupsInfo);
+		SearchControls searchCtls = makeSearhCtls();
+		searchCtls.setReturningAttributes(new String[] {
+				LdapConstants.RETURN_ATTRIBUTES_DIRECT_GROUPS_LIST,
+				LdapConstants.RETURN_ATTRIBUTE_COMMON_NAME });
+		NamingEnumeration<SearchResult> ldapResults = null;
+		try {
+			ldapResults = ldapContext.search(ldapConnectionSettings.getBaseDN(), filter.toString(), searchCtls);
+			while (ldapResults.hasMoreElements()) {
+				Attributes attrs = ldapResults.next().getAttributes();
+				if (attrs == null) {
+					continue;
+				}
+				Attribute commonName = attrs.get(LdapConstants.RETURN_ATTRIBUTE_COMMON_NAME);
+				if (null == commonName || null == commonName.get()) {
+					continue;
+				}
+				String groupName = requestedNames.get(commonName.get().toString().toLowerCase());
+				Attribute memberOf = attrs.get(LdapConstants.RETURN_ATTRIBUTES_DIRECT_GROUPS_LIST);
+				if (null == groupName || null == memberOf) {
+					continue;
+				}
+				for (NamingEnumeration<?> e = memberOf.getAll(); e.hasMore();) {
+					parentGroups.get(groupName).add(e.next().toString());
+				}
+			}
+		} catch (NamingException ne) {
+			LOGGER.log(Level.WARNING, "Failed to retrieve parent groups for the groups "
+					+ groupNames + ". Searching them one by one.", ne);
+			for (String groupName : groupNames) {
+				parentGroups.put(groupName, getAllParentGroupsForTheGroup(ldapContext, groupName));
+			}
+		} finally {
+			try {
+				if (null != ldapResults) {
+					ldapResults.close();
+				}
+			} catch (NamingException e) {
+				LOGGER.log(Level.WARNING, "Exception during clean up of ldap results.", e);
 			}
 		}
+		return parentGroups;
+	}
+
+	/**
+	 * Escapes the characters which have a special meaning in an LDAP search
+	 * filter (RFC 4515).
+	 */
+	static String escapeFilterValue(String value) {
+		StringBuffer escaped = new StringBuffer(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\5c");
+				break;
+			case '*':
+				escaped.append("\\2a");
+				break;
+			case '(':
+				escaped.append("\\28");
+				break;
+			case ')':
+				escaped.append("\\29");
+				break;
+			case '\0':
+				escaped.append("\\00");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
 	}
 
 	/**
@@ -478,7 +718,8 @@ public class UserGroupsService implements LdapService {
 	 * @param groupName is the group, whose parent groups need to be retrieved.
 	 * @return a set of all parent groups
 	 */
-	private Set<String> getAllParentGroupsForTheGroup(String groupName) {
+	private Set<String> getAllParentGroupsForTheGroup(LdapContext ldapContext,
+			String groupName) {
 		Set<String> parentGroups = new HashSet<String>();
 		// Create the search controls
 		SearchControls searchCtls = makeSearhCtls();
@@ -488,7 +729,7 @@ public class UserGroupsService implements LdapService {
 		String searchBase = ldapConnectionSettings.getBaseDN();
 		NamingEnumeration<SearchResult> ldapResults = null;
 		try {
-			ldapResults = this.context.search(searchBase, searchFilter, searchCtls);
+			ldapResults = ldapContext.search(searchBase, searchFilter, searchCtls);
 			while (ldapResults.hasMoreElements()) {
 				SearchResult sr = ldapResults.next();
 				Attributes attrs = sr.getAttributes();
@@ -523,9 +764,8 @@ public class UserGroupsService implements LdapService {
 
 	private String createSearchFilterForParentGroups(String groupName) {
 		StringBuffer filter;
-		String groupDN = getGroupDNForTheGroup(groupName);
 		filter = new StringBuffer().append(LdapConstants.PREFIX_FOR_PARENTS_GROUPS_FILTER
-				+ groupDN + SPConstants.DOUBLE_CLOSE_PARENTHESIS);
+				+ groupName + SPConstants.DOUBLE_CLOSE_PARENTHESIS);
 		return filter.toString();
 	}
 
@@ -540,27 +780,46 @@ public class UserGroupsService implements LdapService {
 		if (Strings.isNullOrEmpty(userName)) {
 			return null;
 		}
-		Set<String> ldapGroups = new HashSet<String>();
-		Set<String> directGroups = new HashSet<String>();
+		Set<String> ldapGroups;
 		LOGGER.info("Quering LDAP directory server to fetch all direct groups for the search user: "
 				+ userName);
-		// fix me by creating a LDAP connection poll instead of creating context
-		// object on demand.
-		this.context = new LdapConnection(
-				sharepointClientContext.getLdapConnectionSettings()).createContext();
-		directGroups = getDirectGroupsForTheSearchUser(userName);
-		for (String groupName : directGroups) {
-			getAllParentGroups(groupName, ldapGroups);
+		// Every search user gets its own context, which uses a pooled connection
+		LdapContext ldapContext = createLdapContext();
+		try {
+			Set<String> directGroups = getDirectGroupsForTheSearchUser(ldapContext, userName);
+			ldapGroups = getAllParentGroups(ldapContext, directGroups);
+		} finally {
+			closeLdapContext(ldapContext);
 		}
 		LOGGER.info("[ " + userName + " ] is a direct or indirect member of "
 				+ ldapGroups.size() + " groups");
-		if (null != directGroups) {
-			directGroups = null;
-			this.context = null;
-		}
 		return ldapGroups;
 	}
 
+	/**
+	 * @return a new context, backed by a pooled connection. Must be closed with
+	 *         {@link #closeLdapContext(LdapContext)} to return the connection to
+	 *         the pool.
+	 */
+	private LdapContext createLdapContext() {
+		if (null == ldapConnection) {
+			ldapConnection = new LdapConnection(
+					sharepointClientContext.getLdapConnectionSettings());
+		}
+		return ldapConnection.createContext();
+	}
+
+	private void closeLdapContext(LdapContext ldapContext) {
+		if (null == ldapContext) {
+			return;
+		}
+		try {
+			ldapContext.close();
+		} catch (NamingException e) {
+			LOGGER.log(Level.WARNING, "Exception while closing the LDAP context.", e);
+		}
+	}
+
 	/**
 	 * Returns DN name for the given group while making LDAP search query to get
 	 * all parents groups for a given group we need to retrieve the DN name for a
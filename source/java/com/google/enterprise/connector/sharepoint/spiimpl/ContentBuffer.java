@@ -0,0 +1,133 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies a document's content out of the HTTP response so that the
+ * connection can be returned to the pool before the content is fed. Content
+ * up to a threshold is kept in memory; bigger content is spilled to a
+ * temporary file which is deleted when the returned stream is closed.
+ */
+final class ContentBuffer {
+  private static final Logger LOGGER = Logger.getLogger(ContentBuffer.class.getName());
+
+  private static final int BUFFER_SIZE = 32 * 1024;
+
+  private ContentBuffer() {
+  }
+
+  /**
+   * Reads the content completely. The source stream is always closed.
+   *
+   * @param in The content to be buffered
+   * @param method The method whose response is being read. Aborted when the
+   *          content exceeds maxSize, so that the rest of the content is not
+   *          read just to close the stream. Can be null.
+   * @param memoryThreshold Content bigger than this many bytes is written to a
+   *          temporary file
+   * @param maxSize Content bigger than this many bytes is not buffered at all.
+   *          0 or less implies no limit
+   * @return a stream over the buffered content, or null if the content
+   *         exceeds maxSize
+   * @throws IOException
+   */
+  static InputStream buffer(final InputStream in, final HttpMethod method,
+      final int memoryThreshold, final long maxSize) throws IOException {
+    final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    File file = null;
+    OutputStream out = memory;
+    boolean aborted = false;
+    try {
+      final byte[] buf = new byte[BUFFER_SIZE];
+      long size = 0;
+      int count;
+      while ((count = in.read(buf)) != -1) {
+        size += count;
+        if (maxSize > 0 && size > maxSize) {
+          out.close();
+          deleteFile(file);
+          if (null != method) {
+            method.abort();
+            aborted = true;
+          }
+          return null;
+        }
+        if (null == file && size > memoryThreshold) {
+          file = File.createTempFile("SPContent", null);
+          out = new FileOutputStream(file);
+          memory.writeTo(out);
+        }
+        out.write(buf, 0, count);
+      }
+      out.close();
+    } catch (final IOException e) {
+      out.close();
+      deleteFile(file);
+      throw e;
+    } finally {
+      if (aborted) {
+        // Closes the stream without reading it and releases the connection
+        method.releaseConnection();
+      } else {
+        in.close();
+      }
+    }
+    if (null == file) {
+      return new ByteArrayInputStream(memory.toByteArray());
+    }
+    return new TemporaryFileInputStream(file);
+  }
+
+  private static void deleteFile(final File file) {
+    if (null != file && file.exists() && !file.delete()) {
+      LOGGER.log(Level.WARNING, "Unable to delete the temporary content file "
+          + file);
+    }
+  }
+
+  /**
+   * Deletes the underlying file once the stream is closed
+   */
+  private static class TemporaryFileInputStream extends FileInputStream {
+    private final File file;
+
+    TemporaryFileInputStream(final File file) throws IOException {
+      super(file);
+      this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        deleteFile(file);
+      }
+    }
+  }
+}
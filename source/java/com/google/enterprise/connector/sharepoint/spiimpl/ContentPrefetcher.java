@@ -0,0 +1,144 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the contents of the documents that are about to be sent to CM
+ * while the current document is being fed. At most prefetchCount documents
+ * are downloaded ahead of the document being fed, each one by its own thread.
+ * A prefetched document keeps its content in a {@link ContentBuffer} so that
+ * its connection is released as soon as the download completes.
+ */
+class ContentPrefetcher {
+  private static final Logger LOGGER = Logger.getLogger(ContentPrefetcher.class.getName());
+
+  // Content bigger than this is spilled to the disk
+  static final int MEMORY_THRESHOLD = 1024 * 1024;
+
+  private final List<SPDocument> documents;
+  private final int prefetchCount;
+  private ExecutorService executor;
+
+  // Downloads that have been started, by the index of the document
+  private final Map<Integer, Future<?>> pending = new HashMap<Integer, Future<?>>();
+  // Index of the first document not yet scheduled for download
+  private int nextIndex = 0;
+
+  /**
+   * @param documents The documents in the order they are sent to CM
+   * @param prefetchCount Number of documents to be downloaded ahead of the
+   *          document being fed
+   */
+  ContentPrefetcher(final List<SPDocument> documents, final int prefetchCount) {
+    this.documents = documents;
+    this.prefetchCount = prefetchCount;
+  }
+
+  /**
+   * Makes sure that the content of the document at the given index is
+   * available, starting the downloads of the documents following it.
+   *
+   * @param index Index of the document to be fed next
+   */
+  void waitFor(final int index) {
+    schedule(index);
+    final Future<?> future = pending.remove(index);
+    if (null == future) {
+      return;
+    }
+    try {
+      future.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      LOGGER.log(Level.WARNING, "Interrupted while waiting for the contents of document [ "
+          + documents.get(index).getUrl() + " ]. ");
+    } catch (final ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Failed to prefetch the contents of document [ "
+          + documents.get(index).getUrl() + " ]. ", e.getCause());
+    }
+  }
+
+  /**
+   * Stops the downloads and discards the contents that have been downloaded
+   * for the documents that were not sent to CM.
+   */
+  void shutdown() {
+    if (null == executor) {
+      return;
+    }
+    // Downloads in progress are not waited for. The documents discard their
+    // contents as soon as the downloads complete, or skip the download if it
+    // has been picked up by a thread but not started yet. Downloads still
+    // queued are cancelled.
+    final Set<Runnable> notStarted = new HashSet<Runnable>(
+        executor.shutdownNow());
+    for (final Map.Entry<Integer, Future<?>> entry : pending.entrySet()) {
+      final SPDocument document = documents.get(entry.getKey());
+      entry.getValue().cancel(false);
+      if (notStarted.contains(entry.getValue())) {
+        document.prefetchCancelled();
+      }
+      document.discardContents();
+    }
+    pending.clear();
+    executor = null;
+  }
+
+  private void schedule(final int index) {
+    final int end = Math.min(documents.size(), index + prefetchCount + 1);
+    for (int i = Math.max(index, nextIndex); i < end; i++) {
+      final SPDocument document = documents.get(i);
+      if (null != document && document.isContentPrefetchable()) {
+        document.prefetchScheduled();
+        pending.put(i, getExecutor().submit(new Runnable() {
+          public void run() {
+            document.prefetchContents(MEMORY_THRESHOLD);
+          }
+        }));
+      }
+    }
+    nextIndex = Math.max(nextIndex, end);
+  }
+
+  private ExecutorService getExecutor() {
+    if (null == executor) {
+      executor = Executors.newFixedThreadPool(prefetchCount, new ThreadFactory() {
+        private int count = 0;
+
+        public synchronized Thread newThread(final Runnable r) {
+          final Thread thread = new Thread(r, "SharePoint content prefetch "
+              + (++count));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+}
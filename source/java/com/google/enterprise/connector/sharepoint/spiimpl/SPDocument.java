@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.sharepoint.spiimpl;
 
+import com.google.enterprise.connector.sharepoint.client.AclPool;
 import com.google.enterprise.connector.sharepoint.client.Attribute;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
@@ -42,16 +43,23 @@ import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.methods.GetMethod;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLDecoder;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -95,9 +103,19 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   // No assumptions should be made based on these attributes very early during
   // traversal.
   private InputStream content = null;
+  // The method which the content is read from
+  private HttpMethodBase contentMethod = null;
   private String content_type = null;
   private int fileSize = -1;
 
+  // Set when the contents were downloaded ahead of the findProperty calls
+  // and the download failed. Thrown from the findProperty call.
+  private RepositoryException prefetchFailure = null;
+  // Set from the time the prefetch is scheduled until it completes
+  private boolean prefetching = false;
+  // Set when the contents being prefetched are not going to be sent
+  private boolean contentsDiscarded = false;
+
   private final Logger LOGGER = Logger.getLogger(SPDocument.class.getName());
 
   /**
@@ -128,6 +146,79 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   private String displayUrl;
   private String title;
 
+  // Built when the properties are first asked for. Reset by the setters of
+  // everything the properties are built from.
+  private PropertyMap propertyMap = null;
+
+  // Property names are matched with the collator, as before
+  private static final Collator COLLATOR = Util.getCollator();
+  private static final CollationKey CONTENT_KEY = COLLATOR.getCollationKey(SpiConstants.PROPNAME_CONTENT);
+  private static final CollationKey MIMETYPE_KEY = COLLATOR.getCollationKey(SpiConstants.PROPNAME_MIMETYPE);
+
+  /**
+   * The value of a property and the name it is returned with
+   */
+  private static class PropertyValue {
+    final String name;
+    final Value value;
+    // Set instead of value for the properties returned as SimpleProperty
+    final List<Value> values;
+
+    PropertyValue(final String name, final Value value) {
+      this.name = name;
+      this.value = value;
+      this.values = null;
+    }
+
+    PropertyValue(final List<Value> values) {
+      this.name = null;
+      this.value = null;
+      this.values = values;
+    }
+
+    Property toProperty() {
+      if (null != values) {
+        return new SimpleProperty(values);
+      }
+      return new SPProperty(name, value);
+    }
+  }
+
+  /**
+   * All the properties of a document, except the contents which are
+   * downloaded only when they are asked for. Every property which is known by
+   * the connector is looked up with a single map lookup.
+   */
+  private static class PropertyMap {
+    // The well known properties matched with the collator. A name mapped to
+    // null is known but this document does not have it.
+    final Map<CollationKey, PropertyValue> wellKnown = new HashMap<CollationKey, PropertyValue>();
+    // The properties matched by their exact names
+    final Map<String, PropertyValue> exact = new HashMap<String, PropertyValue>();
+    // The attributes of the document, matched with the collator
+    final Map<CollationKey, Value> attributes = new HashMap<CollationKey, Value>();
+    Set<String> names = null;
+
+    void putWellKnown(final String name, final Value value) {
+      wellKnown.put(COLLATOR.getCollationKey(name), (null == value) ? null
+          : new PropertyValue(name, value));
+    }
+
+    void putAcl(final String name, final String rolesPrefix,
+        final Map<String, Set<RoleType>> aclMap) {
+      final List<Value> principals = new ArrayList<Value>(aclMap.size());
+      for (final Entry<String, Set<RoleType>> ace : aclMap.entrySet()) {
+        principals.add(Value.getStringValue(ace.getKey()));
+        final List<Value> roles = new ArrayList<Value>(ace.getValue().size());
+        for (final RoleType roleType : ace.getValue()) {
+          roles.add(Value.getStringValue(roleType.toString()));
+        }
+        exact.put(rolesPrefix + ace.getKey(), new PropertyValue(roles));
+      }
+      exact.put(name, new PropertyValue(principals));
+    }
+  }
+
   /**
    * @return the toBeFed
    */
@@ -148,6 +239,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
 
   public void setParentList(final ListState list) {
     parentList = list;
+    propertyMap = null;
   }
 
   public WebState getParentWeb() {
@@ -235,6 +327,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setUrl(final String strUrl) {
     if (url != null) {
       url = strUrl;
+      propertyMap = null;
     }
   }
 
@@ -266,6 +359,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setAttribute(final String key, final String value) {
     if (key != null) {
       attrs.add(new Attribute(key, value));
+      propertyMap = null;
       if (key.equalsIgnoreCase(SPConstants.TITLE)) {
         title = value;
       }
@@ -278,6 +372,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setAllAttributes(final List<Attribute> lstAttributes) {
     if (lstAttributes != null) {
       attrs.addAll(lstAttributes);
+      propertyMap = null;
     }
   }
 
@@ -301,6 +396,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setAuthor(final String inAuthor) {
     if (inAuthor != null) {
       author = inAuthor;
+      propertyMap = null;
     }
   }
 
@@ -310,6 +406,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setObjType(final String inObjType) {
     if (inObjType != null) {
       objType = inObjType;
+      propertyMap = null;
     }
   }
 
@@ -445,13 +542,11 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    */
   public Property findProperty(final String strPropertyName)
       throws RepositoryException {
-    final Collator collator = Util.getCollator();
-    if (collator.equals(strPropertyName, SpiConstants.PROPNAME_CONTENTURL)) {
-      return new SPProperty(SpiConstants.PROPNAME_CONTENTURL, new StringValue(
-          getUrl()));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_CONTENT)) {
+    final CollationKey key = COLLATOR.getCollationKey(strPropertyName);
+    if (CONTENT_KEY.equals(key)) {
       if (FeedType.CONTENT_FEED == getFeedType()
           && ActionType.ADD.equals(getAction())) {
+        throwPrefetchFailure();
         if (null == content && null == content_type) {
           String status = downloadContents();
           if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
@@ -462,9 +557,11 @@ public class SPDocument implements Document, Comparable<SPDocument> {
         return (null == content) ? null : new SPProperty(
             SpiConstants.PROPNAME_CONTENT, new BinaryValue(content));
       }
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_MIMETYPE)) {
+      return null;
+    } else if (MIMETYPE_KEY.equals(key)) {
       if (FeedType.CONTENT_FEED == getFeedType()
           && ActionType.ADD.equals(getAction())) {
+        throwPrefetchFailure();
         if (null == content && null == content_type) {
           String status = downloadContents();
           if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
@@ -475,84 +572,25 @@ public class SPDocument implements Document, Comparable<SPDocument> {
         return (null == content_type) ? null : new SPProperty(
             SpiConstants.PROPNAME_MIMETYPE, new StringValue(content_type));
       }
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_SEARCHURL)) {
-      if (FeedType.CONTENT_FEED != getFeedType()) {
-        return new SPProperty(SpiConstants.PROPNAME_SEARCHURL, new StringValue(
-            getUrl()));
-      }
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_DISPLAYURL)) {
-      return new SPProperty(SpiConstants.PROPNAME_DISPLAYURL, new StringValue(
-          displayUrl));
-    } else if (collator.equals(strPropertyName, SPConstants.PARENT_WEB_TITLE)) {
-      return new SPProperty(SPConstants.PARENT_WEB_TITLE, new StringValue(
-          getParentWebTitle()));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_DOCID)) {
-      return new SPProperty(SpiConstants.PROPNAME_DOCID, new StringValue(
-          getDocId()));
-    } else if (collator.equals(strPropertyName, SpiConstants.PROPNAME_LASTMODIFIED)) {
-      return new SPProperty(SpiConstants.PROPNAME_LASTMODIFIED, new DateValue(
-          getLastMod()));
-    } else if (collator.equals(strPropertyName, SPConstants.LIST_GUID)) {
-      if (null != getParentList()) {
-        return new SPProperty(SPConstants.LIST_GUID, new StringValue(
-            getParentList().getPrimaryKey()));
-      }
-    } else if (collator.equals(strPropertyName, SPConstants.SPAUTHOR)) {
-      return new SPProperty(SPConstants.SPAUTHOR, new StringValue(getAuthor()));
-    } else if (strPropertyName.equals(SPConstants.OBJECT_TYPE)) {
-      return new SPProperty(SPConstants.OBJECT_TYPE, new StringValue(
-          getObjType()));
-    } else if (strPropertyName.equals(SpiConstants.PROPNAME_ISPUBLIC)) {
-      return new SPProperty(SpiConstants.PROPNAME_ISPUBLIC,
-          BooleanValue.makeBooleanValue(false));
-    } else if (strPropertyName.equals(SpiConstants.PROPNAME_ACTION)) {
-      return new SPProperty(SpiConstants.PROPNAME_ISPUBLIC, new StringValue(
-          getAction().toString()));
-    } else if (strPropertyName.equals(SpiConstants.PROPNAME_ACLUSERS)) {
-      List<Value> values = new ArrayList<Value>(usersAclMap.size());
-      for (String user : usersAclMap.keySet()) {
-        values.add(Value.getStringValue(user));
-      }
-      return new SimpleProperty(values);
-    } else if (strPropertyName.equals(SpiConstants.PROPNAME_ACLGROUPS)) {
-      List<Value> values = new ArrayList<Value>(groupsAclMap.size());
-      for (String group : groupsAclMap.keySet()) {
-        values.add(Value.getStringValue(group));
-      }
-      return new SimpleProperty(values);
-    } else if (strPropertyName.startsWith(SpiConstants.USER_ROLES_PROPNAME_PREFIX)) {
-      String originalName = strPropertyName.substring(SpiConstants.USER_ROLES_PROPNAME_PREFIX.length());
-      Set<RoleType> roleTypes = usersAclMap.get(originalName);
-      List<Value> values = new ArrayList<Value>(roleTypes.size());
-      for (RoleType roleType : roleTypes) {
-        values.add(Value.getStringValue(roleType.toString()));
-      }
-      return new SimpleProperty(values);
-    } else if (strPropertyName.startsWith(SpiConstants.GROUP_ROLES_PROPNAME_PREFIX)) {
-      String originalName = strPropertyName.substring(SpiConstants.GROUP_ROLES_PROPNAME_PREFIX.length());
-      Set<RoleType> roleTypes = groupsAclMap.get(originalName);
-      List<Value> values = new ArrayList<Value>(roleTypes.size());
-      for (RoleType roleType : roleTypes) {
-        values.add(Value.getStringValue(roleType.toString()));
-      }
-      return new SimpleProperty(values);
-    } else if (strPropertyName.startsWith(SpiConstants.PROPNAME_TITLE)) {
+      return null;
+    }
+
+    final PropertyMap properties = getPropertyMap();
+    if (properties.wellKnown.containsKey(key)) {
+      // A well known property which this document may not have
+      final PropertyValue property = properties.wellKnown.get(key);
+      return (null == property) ? null : property.toProperty();
+    }
+    final PropertyValue property = properties.exact.get(strPropertyName);
+    if (null != property) {
+      return property.toProperty();
+    }
+    if (strPropertyName.startsWith(SpiConstants.PROPNAME_TITLE)) {
       return new SPProperty(SpiConstants.PROPNAME_TITLE, new StringValue(title));
     }
-    // FIXME: We can get rid of this if-else-if ladder here by setting all
-    // the relevant properties (in appropriate type) right at the time of
-    // document creation. After doing that, all that will be required is to
-    // maintain a map of all the properties with key as the prop name. This
-    // will also eliminate maintaining multiple member attributes in this
-    // class. All the attribute will be there in a common map.
-    else {
-      for (final Iterator<Attribute> iter = getAllAttrs().iterator(); iter.hasNext();) {
-        final Attribute attr = iter.next();
-        if (collator.equals(strPropertyName, attr.getName())) {
-          return new SPProperty(strPropertyName, new StringValue(
-              attr.getValue().toString()));
-        }
-      }
+    final Value value = properties.attributes.get(key);
+    if (null != value) {
+      return new SPProperty(strPropertyName, value);
     }
 
     LOGGER.finer("no matches found for[" + strPropertyName + "]");
@@ -565,6 +603,14 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    * the feed for this document.
    */
   public Set<String> getPropertyNames() throws RepositoryException {
+    final PropertyMap properties = getPropertyMap();
+    if (null == properties.names) {
+      properties.names = Collections.unmodifiableSet(buildPropertyNames());
+    }
+    return properties.names;
+  }
+
+  private Set<String> buildPropertyNames() {
     final Set<String> names = new HashSet<String>();
     ArrayList<String> candidates = new ArrayList<String>();
     candidates.add(SPConstants.OBJECT_TYPE);
@@ -610,6 +656,70 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     return names;
   }
 
+  /**
+   * @return the properties of the document, built from its current state if
+   *         they have not been built already
+   */
+  private PropertyMap getPropertyMap() {
+    PropertyMap properties = propertyMap;
+    if (null == properties) {
+      properties = new PropertyMap();
+      properties.putWellKnown(SpiConstants.PROPNAME_CONTENTURL, new StringValue(
+          getUrl()));
+      if (FeedType.CONTENT_FEED != getFeedType()) {
+        properties.putWellKnown(SpiConstants.PROPNAME_SEARCHURL, new StringValue(
+            getUrl()));
+      } else {
+        properties.putWellKnown(SpiConstants.PROPNAME_SEARCHURL, null);
+      }
+      properties.putWellKnown(SpiConstants.PROPNAME_DISPLAYURL, new StringValue(
+          displayUrl));
+      properties.putWellKnown(SPConstants.PARENT_WEB_TITLE, new StringValue(
+          getParentWebTitle()));
+      properties.putWellKnown(SpiConstants.PROPNAME_DOCID, new StringValue(
+          getDocId()));
+      properties.putWellKnown(SpiConstants.PROPNAME_LASTMODIFIED, new DateValue(
+          getLastMod()));
+      if (null != getParentList()) {
+        properties.putWellKnown(SPConstants.LIST_GUID, new StringValue(
+            getParentList().getPrimaryKey()));
+      } else {
+        properties.putWellKnown(SPConstants.LIST_GUID, null);
+      }
+      properties.putWellKnown(SPConstants.SPAUTHOR, new StringValue(
+          getAuthor()));
+
+      properties.exact.put(SPConstants.OBJECT_TYPE, new PropertyValue(
+          SPConstants.OBJECT_TYPE, new StringValue(getObjType())));
+      properties.exact.put(SpiConstants.PROPNAME_ISPUBLIC, new PropertyValue(
+          SpiConstants.PROPNAME_ISPUBLIC, BooleanValue.makeBooleanValue(false)));
+      if (null != getAction()) {
+        properties.exact.put(SpiConstants.PROPNAME_ACTION, new PropertyValue(
+            SpiConstants.PROPNAME_ISPUBLIC, new StringValue(
+                getAction().toString())));
+      }
+      if (null != usersAclMap) {
+        properties.putAcl(SpiConstants.PROPNAME_ACLUSERS,
+            SpiConstants.USER_ROLES_PROPNAME_PREFIX, usersAclMap);
+      }
+      if (null != groupsAclMap) {
+        properties.putAcl(SpiConstants.PROPNAME_ACLGROUPS,
+            SpiConstants.GROUP_ROLES_PROPNAME_PREFIX, groupsAclMap);
+      }
+
+      for (final Attribute attr : getAllAttrs()) {
+        final CollationKey key = COLLATOR.getCollationKey(attr.getName());
+        // The first attribute of a name is the one used
+        if (!properties.attributes.containsKey(key)) {
+          properties.attributes.put(key, (null == attr.getValue()) ? null
+              : new StringValue(attr.getValue().toString()));
+        }
+      }
+      propertyMap = properties;
+    }
+    return properties;
+  }
+
   public boolean matches(String metadataName,
       List<Pattern> excludedMetadataPatterns) {
     boolean flag = false;
@@ -635,6 +745,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setParentWebTitle(final String inParentWebTitle) {
     if (null != inParentWebTitle) {
       parentWebTitle = inParentWebTitle;
+      propertyMap = null;
     }
   }
 
@@ -643,6 +754,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    */
   public void setDocId(final String docId) {
     this.docId = docId;
+    propertyMap = null;
   }
 
   /**
@@ -664,6 +776,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
         + " is getting processed for contents");
     int responseCode = 0;
     boolean downloadContent = true;
+    HttpMethodBase method = null;
     if (getFileSize() > 0
         && sharepointClientContext.getTraversalContext() != null) {
       if (getFileSize() > sharepointClientContext.getTraversalContext().maxDocumentSize()) {
@@ -678,7 +791,6 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     }
     if (downloadContent) {
       final String docURL = Util.encodeURL(contentDwnldURL);
-      HttpMethodBase method = null;
       try {
         method = new GetMethod(docURL);
         responseCode = sharepointClientContext.checkConnectivity(docURL, method);
@@ -686,8 +798,12 @@ public class SPDocument implements Document, Comparable<SPDocument> {
           return SPConstants.CONNECTIVITY_FAIL;
         }
         content = method.getResponseBodyAsStream();
+        contentMethod = method;
 
       } catch (Throwable t) {
+        if (null != method) {
+          method.releaseConnection();
+        }
         String msg = new StringBuffer("Unable to fetch contents from URL: ").append(url).toString();
         LOGGER.log(Level.WARNING, "Unable to fetch contents from URL: " + url, t);
         throw new RepositoryDocumentException(msg, t);
@@ -709,6 +825,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
           int mimeTypeSupport = sharepointClientContext.getTraversalContext().mimeTypeSupportLevel(content_type);
           if (mimeTypeSupport == 0) {
             content = null;
+            method.releaseConnection();
             LOGGER.log(Level.WARNING, "Dropping content of document : "
                 + getUrl() + " with docId : " + docId + " as the mimetype : "
                 + content_type + " is not supported");
@@ -718,6 +835,8 @@ public class SPDocument implements Document, Comparable<SPDocument> {
             String msg = new StringBuffer("Skipping the document with docId : ").append(getDocId()).append(" doc URL: ").append(getUrl()).append(" as the mimetype is in the 'ignored' mimetypes list ").toString();
             // Log it to the excluded_url log
             sharepointClientContext.logExcludedURL(msg);
+            content = null;
+            method.releaseConnection();
             throw new SkippedDocumentException(msg);
           }
         }
@@ -727,10 +846,140 @@ public class SPDocument implements Document, Comparable<SPDocument> {
     if (responseCode == 200) {
       return SPConstants.CONNECTIVITY_SUCCESS;
     } else {
+      // The content is not used. Return the connection to the pool.
+      content = null;
+      if (null != method) {
+        method.releaseConnection();
+      }
       return "" + responseCode;
     }
   }
 
+  /**
+   * @return true if the contents of this document are to be downloaded and
+   *         have not been downloaded yet
+   */
+  boolean isContentPrefetchable() {
+    return FeedType.CONTENT_FEED == getFeedType()
+        && ActionType.ADD.equals(getAction()) && isToBeFed()
+        && null != sharepointClientContext && null != getParentList()
+        && null == content && null == content_type;
+  }
+
+  /**
+   * Downloads the contents ahead of the findProperty calls from CM. The
+   * contents are read completely into a {@link ContentBuffer} so that the
+   * connection is released before the document is fed. The limits on the
+   * document size and the mime type support levels are applied by
+   * {@link #downloadContents()} before the contents are read.
+   *
+   * @param memoryThreshold Contents bigger than this many bytes are spilled
+   *          to the disk
+   */
+  void prefetchContents(final int memoryThreshold) {
+    synchronized (this) {
+      if (contentsDiscarded) {
+        prefetching = false;
+        resetContents();
+        return;
+      }
+    }
+    try {
+      final String status = downloadContents();
+      if (!SPConstants.CONNECTIVITY_SUCCESS.equalsIgnoreCase(status)) {
+        LOGGER.log(Level.WARNING, "Following response received while prefetching contents: "
+            + status);
+      }
+      if (null != content) {
+        long maxSize = 0;
+        if (null != sharepointClientContext.getTraversalContext()) {
+          maxSize = sharepointClientContext.getTraversalContext().maxDocumentSize();
+        }
+        final InputStream buffered = ContentBuffer.buffer(content, contentMethod, memoryThreshold, maxSize);
+        if (null == buffered) {
+          LOGGER.log(Level.WARNING, "Dropping content of document : "
+              + getUrl() + " with docId : " + docId
+              + " as it exceeds the allowed max document size " + maxSize);
+        }
+        content = buffered;
+      }
+    } catch (final RepositoryException e) {
+      prefetchFailure = e;
+    } catch (final IOException e) {
+      // Let the contents be downloaded again when requested
+      LOGGER.log(Level.WARNING, "Failed to prefetch contents from URL: " + url, e);
+      content = null;
+      content_type = null;
+    } finally {
+      contentMethod = null;
+      synchronized (this) {
+        prefetching = false;
+        if (contentsDiscarded) {
+          resetContents();
+        }
+      }
+    }
+  }
+
+  /**
+   * Called when the prefetch of the contents is submitted, so that the
+   * contents are released by the prefetch if they are discarded before it
+   * starts.
+   */
+  synchronized void prefetchScheduled() {
+    prefetching = true;
+  }
+
+  /**
+   * Called when a scheduled prefetch is not going to run after all
+   */
+  synchronized void prefetchCancelled() {
+    prefetching = false;
+    contentsDiscarded = false;
+  }
+
+  /**
+   * Releases the contents that have been prefetched for a document which is
+   * not going to be sent to CM. Contents which are still being downloaded are
+   * released once the download completes. The document is left as if its
+   * contents had never been downloaded, so that they are downloaded again if
+   * the document is sent later.
+   */
+  synchronized void discardContents() {
+    if (prefetching) {
+      contentsDiscarded = true;
+    } else {
+      resetContents();
+    }
+  }
+
+  private void resetContents() {
+    closeContents();
+    content_type = null;
+    prefetchFailure = null;
+    contentsDiscarded = false;
+  }
+
+  private void closeContents() {
+    if (null != content) {
+      try {
+        content.close();
+      } catch (final IOException e) {
+        LOGGER.log(Level.FINE, "Failed to close the contents of document : "
+            + getUrl(), e);
+      }
+      content = null;
+    }
+  }
+
+  private void throwPrefetchFailure() throws RepositoryException {
+    if (null != prefetchFailure) {
+      final RepositoryException e = prefetchFailure;
+      prefetchFailure = null;
+      throw e;
+    }
+  }
+
   /**
    * @return the content_type
    */
@@ -778,6 +1027,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
    */
   public void setAction(final ActionType action) {
     this.action = action;
+    propertyMap = null;
   }
 
   /**
@@ -850,6 +1100,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
 
   public void setUsersAclMap(Map<String, Set<RoleType>> usersAclMap) {
     this.usersAclMap = usersAclMap;
+    propertyMap = null;
   }
 
   public Map<String, Set<RoleType>> getGroupsAclMap() {
@@ -858,6 +1109,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
 
   public void setGroupsAclMap(Map<String, Set<RoleType>> groupsAclMap) {
     this.groupsAclMap = groupsAclMap;
+    propertyMap = null;
   }
 
   public boolean isForAclChange() {
@@ -874,6 +1126,7 @@ public class SPDocument implements Document, Comparable<SPDocument> {
 
   public void setDisplayUrl(String displayUrl) {
     this.displayUrl = displayUrl;
+    propertyMap = null;
   }
 
   public Folder getRenamedFolder() {
@@ -883,4 +1136,167 @@ public class SPDocument implements Document, Comparable<SPDocument> {
   public void setRenamedFolder(Folder renamedFolder) {
     this.renamedFolder = renamedFolder;
   }
+
+  /**
+   * Writes everything known about the document at the time it is discovered,
+   * so that it can be kept on disk while it is waiting in a crawl queue. The
+   * parent list and web, the context and the contents are not written; they
+   * are set when the document is handed over to the connector manager.
+   *
+   * @param out
+   * @throws IOException
+   * @see #readFrom(DataInput)
+   */
+  public void writeTo(final DataOutput out) throws IOException {
+    writeString(out, docId);
+    writeString(out, url);
+    out.writeBoolean(null != lastMod);
+    if (null != lastMod) {
+      out.writeLong(lastMod.getTimeInMillis());
+      out.writeUTF(lastMod.getTimeZone().getID());
+    }
+    writeString(out, author);
+    writeString(out, objType);
+    writeString(out, parentWebTitle);
+    writeString(out, (null == feedType) ? null : feedType.name());
+    writeString(out, (null == spType) ? null : spType.name());
+    writeString(out, (null == action) ? null : action.name());
+    writeFolder(out, parentFolder);
+    writeFolder(out, renamedFolder);
+    writeString(out, fileref);
+    writeString(out, contentDwnldURL);
+    writeString(out, content_type);
+    out.writeInt(fileSize);
+    out.writeInt(attrs.size());
+    for (Attribute attr : attrs) {
+      writeString(out, attr.getName());
+      writeString(out, (null == attr.getValue()) ? null
+          : attr.getValue().toString());
+    }
+    out.writeBoolean(toBeFed);
+    writeAclMap(out, usersAclMap);
+    writeAclMap(out, groupsAclMap);
+    out.writeBoolean(forAclChange);
+    writeString(out, displayUrl);
+    writeString(out, title);
+  }
+
+  /**
+   * Reads a document written by {@link #writeTo(DataOutput)}.
+   *
+   * @param in
+   * @return the document
+   * @throws IOException
+   */
+  public static SPDocument readFrom(final DataInput in) throws IOException {
+    final String docId = readString(in);
+    final String url = readString(in);
+    Calendar lastMod = null;
+    if (in.readBoolean()) {
+      lastMod = Calendar.getInstance();
+      lastMod.setTimeInMillis(in.readLong());
+      lastMod.setTimeZone(TimeZone.getTimeZone(in.readUTF()));
+    }
+    final SPDocument doc = new SPDocument(docId, url, lastMod, null);
+    doc.author = readString(in);
+    doc.objType = readString(in);
+    doc.parentWebTitle = readString(in);
+    String name = readString(in);
+    doc.feedType = (null == name) ? null : FeedType.valueOf(name);
+    name = readString(in);
+    doc.spType = (null == name) ? null : SPType.valueOf(name);
+    name = readString(in);
+    doc.action = (null == name) ? null : ActionType.valueOf(name);
+    doc.parentFolder = readFolder(in);
+    doc.renamedFolder = readFolder(in);
+    doc.fileref = readString(in);
+    doc.contentDwnldURL = readString(in);
+    doc.content_type = readString(in);
+    doc.fileSize = in.readInt();
+    final int attrCount = in.readInt();
+    doc.attrs.ensureCapacity(attrCount);
+    for (int i = 0; i < attrCount; i++) {
+      doc.attrs.add(new Attribute(readString(in), readString(in)));
+    }
+    doc.toBeFed = in.readBoolean();
+    doc.usersAclMap = readAclMap(in);
+    doc.groupsAclMap = readAclMap(in);
+    doc.forAclChange = in.readBoolean();
+    doc.displayUrl = readString(in);
+    doc.title = readString(in);
+    return doc;
+  }
+
+  private static void writeString(final DataOutput out, final String str)
+      throws IOException {
+    if (null == str) {
+      out.writeInt(-1);
+    } else {
+      // writeUTF is limited to 64K, which long field values can exceed
+      final byte[] bytes = str.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(final DataInput in) throws IOException {
+    final int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void writeFolder(final DataOutput out, final Folder folder)
+      throws IOException {
+    out.writeBoolean(null != folder);
+    if (null != folder) {
+      writeString(out, folder.getPath());
+      writeString(out, folder.getId());
+    }
+  }
+
+  private static Folder readFolder(final DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    return new Folder(readString(in), readString(in));
+  }
+
+  private static void writeAclMap(final DataOutput out,
+      final Map<String, Set<RoleType>> aclMap) throws IOException {
+    if (null == aclMap) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(aclMap.size());
+    for (Entry<String, Set<RoleType>> entry : aclMap.entrySet()) {
+      writeString(out, entry.getKey());
+      out.writeInt(entry.getValue().size());
+      for (RoleType roleType : entry.getValue()) {
+        out.writeUTF(roleType.name());
+      }
+    }
+  }
+
+  private static Map<String, Set<RoleType>> readAclMap(final DataInput in)
+      throws IOException {
+    final int size = in.readInt();
+    if (size == -1) {
+      return null;
+    }
+    final Map<String, Set<RoleType>> aclMap = new HashMap<String, Set<RoleType>>();
+    for (int i = 0; i < size; i++) {
+      final String principal = readString(in);
+      final int roleCount = in.readInt();
+      final Set<RoleType> roleTypes = new HashSet<RoleType>();
+      for (int j = 0; j < roleCount; j++) {
+        roleTypes.add(RoleType.valueOf(in.readUTF()));
+      }
+      aclMap.put(principal, roleTypes);
+    }
+    return AclPool.intern(aclMap);
+  }
 }
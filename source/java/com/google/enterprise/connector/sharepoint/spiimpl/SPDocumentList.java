@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.sharepoint.spiimpl;
 
+import com.google.enterprise.connector.sharepoint.client.AliasMapper;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.Util;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
@@ -46,12 +47,19 @@ public class SPDocumentList implements DocumentList {
   private boolean bFQDNConversion = false;// FQDN conversion flag
 
   private Map<String, String> aliasMap = null;
+  // The alias mapping rules parsed once for all the documents of the list
+  private AliasMapper aliasMapper = null;
   // Holds the index position of the doc last sent to CM
   private int docsFedIndexPosition = 0;
 
   private boolean reWriteDisplayUrlUsingAliasMappingRules = true;
   private boolean reWriteRecordUrlUsingAliasMappingRules;
 
+  // Number of documents whose contents are downloaded ahead of the document
+  // being fed. 0 implies contents are downloaded only when requested by CM.
+  private int contentPrefetchCount = 0;
+  private ContentPrefetcher contentPrefetcher = null;
+
   /**
    * @param inDocuments List of {@link SPDocument} to be sent to GSA
    * @param inGlobalState The current snapshot of {@link GlobalState}
@@ -77,6 +85,7 @@ public class SPDocumentList implements DocumentList {
    */
   public void setFQDNConversion(final boolean conversion) {
     bFQDNConversion = conversion;
+    aliasMapper = null;
   }
 
   /**
@@ -125,6 +134,7 @@ public class SPDocumentList implements DocumentList {
       if (docsFedIndexPosition >= documents.size()) {
         LOGGER.log(Level.FINE, "docsFedIndexPosition reached beyond document list size [ "
             + documents.size() + " ] discontinuing loop");
+        stopContentPrefetch();
         return null;
       }
       spDocument = documents.get(docsFedIndexPosition);
@@ -160,6 +170,13 @@ public class SPDocumentList implements DocumentList {
             + " ] to CM for DELETE");
       }
     } else if (ActionType.ADD.equals(spDocument.getAction())) {
+      if (contentPrefetchCount > 0) {
+        if (null == contentPrefetcher) {
+          contentPrefetcher = new ContentPrefetcher(documents,
+              contentPrefetchCount);
+        }
+        contentPrefetcher.waitFor(docsFedIndexPosition - 1);
+      }
       // Do Alias mapping before sending the doc
       reWriteUrlsUsingAliasMappingRules(spDocument);
       LOGGER.log(Level.INFO, "Sending DocID [ " + spDocument.getDocId()
@@ -176,9 +193,12 @@ public class SPDocumentList implements DocumentList {
    * @param spDocument The {@link SPDocument} whose URLs are to be mapped
    */
   private void reWriteUrlsUsingAliasMappingRules(final SPDocument spDocument) {
+    if (null == aliasMapper) {
+      aliasMapper = new AliasMapper(aliasMap, bFQDNConversion);
+    }
     if (reWriteDisplayUrlUsingAliasMappingRules) {
       try {
-        spDocument.setDisplayUrl(Util.doAliasMapping(spDocument.getDisplayUrl(), aliasMap, bFQDNConversion));
+        spDocument.setDisplayUrl(aliasMapper.map(spDocument.getDisplayUrl()));
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Failed to rewrite document's display Url [ "
             + spDocument.getDisplayUrl() + " ] as per alias mapping rule. ", e);
@@ -187,7 +207,7 @@ public class SPDocumentList implements DocumentList {
 
     if (reWriteRecordUrlUsingAliasMappingRules) {
       try {
-        spDocument.setUrl(Util.doAliasMapping(spDocument.getUrl(), aliasMap, bFQDNConversion));
+        spDocument.setUrl(aliasMapper.map(spDocument.getUrl()));
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Failed to rewrite document's record Url [ "
             + spDocument.getUrl() + " ] as per alias mapping rule. ", e);
@@ -209,6 +229,8 @@ public class SPDocumentList implements DocumentList {
   public String checkpoint() throws RepositoryException {
     LOGGER.log(Level.INFO, "checkpoint called. docsFedIndexPosition [ "
         + docsFedIndexPosition + " ] ");
+    // The documents following the checkpoint are sent again in the next batch
+    stopContentPrefetch();
     for (int i = 0; i < docsFedIndexPosition; i++) {
       // Process the liststate and its crawl queue for the given doc which
       // has been sent to CM and fed to GSA successfully
@@ -239,6 +261,7 @@ public class SPDocumentList implements DocumentList {
   public void setAliasMap(final Map<String, String> inAliasMap) {
     if (inAliasMap != null) {
       aliasMap = inAliasMap;
+      aliasMapper = null;
     }
   }
 
@@ -277,6 +300,7 @@ public class SPDocumentList implements DocumentList {
   private void processListStateforCheckPoint(SPDocument spDocument) {
     final ListState listState = spDocument.getParentList();
     final String currentID = Util.getOriginalDocId(spDocument.getDocId(), spDocument.getFeedType());
+    globalState.markDirty(spDocument.getParentWeb());
 
     // for deleted documents, make sure to remove the extraid from list
     // state and add it to delete cache ids as long as the list itself has
@@ -402,6 +426,13 @@ public class SPDocumentList implements DocumentList {
     }
   }
 
+  private void stopContentPrefetch() {
+    if (null != contentPrefetcher) {
+      contentPrefetcher.shutdown();
+      contentPrefetcher = null;
+    }
+  }
+
   public List<SPDocument> getDocuments() {
     return documents;
   }
@@ -416,6 +447,15 @@ public class SPDocumentList implements DocumentList {
     this.reWriteRecordUrlUsingAliasMappingRules = reWriteRecordUrlUsingAliasMappingRules;
   }
 
+  /**
+   * @param contentPrefetchCount Number of documents whose contents are to be
+   *          downloaded ahead of the document being fed. 0 disables the
+   *          prefetching
+   */
+  public void setContentPrefetchCount(int contentPrefetchCount) {
+    this.contentPrefetchCount = contentPrefetchCount;
+  }
+
   @Override
   public String toString() {
     StringBuffer msg = new StringBuffer(" SPDocumentList for "
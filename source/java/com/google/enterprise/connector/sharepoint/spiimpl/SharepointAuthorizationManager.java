@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.sharepoint.spiimpl;
 
+import com.google.enterprise.connector.sharepoint.client.AuthorizationCache;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.Util;
@@ -36,9 +37,11 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +49,14 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -54,7 +65,8 @@ import java.util.regex.Pattern;
 /**
  * Authorizes items by making web service call to GsBulkAuthorization web
  * service. Documents are grouped per web application per site collection. One
- * web service call is made for each web application. In every call, an array of
+ * web service call is made for each web application, or more if it has too
+ * many documents, and the calls are made concurrently. In every call, an array of
  * {@link AuthDataPacket} is passed wherein one AuthDataPacket corresponds to
  * one site collection. Such groupings makes web service job easier and puts
  * less overhead on SharePoint content database. This is required because
@@ -67,6 +79,11 @@ import java.util.regex.Pattern;
  * the basic authorization unit and corresponds to an item to be authorized. For
  * detailed structuring of AuthData and AuthDataPacket, refer to the web service
  * documentation.
+ * <p/>
+ * The decisions are cached for a short time in the connector's
+ * {@link AuthorizationCache}, and only the documents which are not found there
+ * are sent to the web service. The cached decisions under a site collection
+ * are discarded when ACL changes are detected for it.
  *
  * @author nitendra_thakur
  */
@@ -74,6 +91,24 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
   private static Logger LOGGER = Logger.getLogger(SharepointAuthorizationManager.class.getName());
   SharepointClientContext sharepointClientContext;
 
+  /**
+   * Creates the executor making the web service calls of the authorization
+   * requests of one connector instance. Each connector has its own, so that
+   * an unresponsive SharePoint server only holds up the requests of the
+   * connectors crawling it.
+   *
+   * @return the new executor
+   */
+  public static ExecutorService newAuthZExecutor() {
+    return Executors.newFixedThreadPool(SPConstants.AUTHZ_THREAD_POOL_SIZE, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "GSBulkAuthorization");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
   /**
    * Web Application and all the site collection URL's path that are hosted
    * under it. These site collection URLs are used for grouping authZ urls as
@@ -87,6 +122,45 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
   // collection is deleted from SharePoint.
   final private Map<String, Set<String>> webappToSiteCollections = new HashMap<String, Set<String>>();
 
+  // Web Application mapped to the same site collection paths, arranged for
+  // finding the site collection of a URL.
+  final private Map<String, SiteCollectionTrie> webappToSiteCollectionTrie = new HashMap<String, SiteCollectionTrie>();
+
+  // Maximum number of parsed DocIDs kept in parsedDocIds
+  private static final int PARSED_DOCID_CACHE_SIZE = 10000;
+
+  // DocIDs parsed recently, prefixed with the feed type. The same documents
+  // are typically authorized again and again as users search.
+  private static final Map<String, ParsedDocId> parsedDocIds = Collections.synchronizedMap(new LinkedHashMap<String, ParsedDocId>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    protected boolean removeEldestEntry(Map.Entry<String, ParsedDocId> eldest) {
+      return size() > PARSED_DOCID_CACHE_SIZE;
+    }
+  });
+
+  /**
+   * What is needed to build the AuthData of a DocID
+   */
+  private static final class ParsedDocId {
+    final String url;
+    final String docId;
+    final ContainerType containerType;
+    final EntityType entityType;
+    final boolean isAttachment;
+
+    ParsedDocId(final String url, final String docId,
+        final ContainerType containerType, final EntityType entityType,
+        final boolean isAttachment) {
+      this.url = url;
+      this.docId = docId;
+      this.containerType = containerType;
+      this.entityType = entityType;
+      this.isAttachment = isAttachment;
+    }
+  }
+
   /**
    * Attachments are sent as independent documents to GSA. Their authorization
    * however is not any different from the item which contains the attachment.
@@ -130,9 +204,10 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
     }
   }
 
-  // Keeps track of authZ dependency of attachments where authZ status of an
-  // item can be safely replicated to many others
-  Map<AttachmentKey, List<String>> attachments = null;
+  private static final Pattern ATTACHMENTS_PATTERN = Pattern.compile(SPConstants.ATTACHMENTS);
+
+  // The decisions cached for the connector
+  private AuthorizationCache authorizationCache = null;
 
   /**
    * @param inSharepointClientContext Context Information is required to create
@@ -145,77 +220,94 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
       throw new SharepointException("SharePointClientContext can not be null");
     }
     sharepointClientContext = (SharepointClientContext) inSharepointClientContext.clone();
+    authorizationCache = sharepointClientContext.getAuthorizationCache();
 
-    // A comparator that sorts in non-increasing order of length
-    Comparator<String> nonIncreasingComparator = new Comparator<String>() {
-      public int compare(String str1, String str2) {
-        if (null == str1) {
-          if (null == str2) {
-            return 0;
-          } else {
-            return 1;
-          }
-        } else {
-          if (null == str2) {
-            return -1;
-          } else {
-            int comp = str2.length() - str1.length();
-            if (comp == 0) {
-              comp = str2.compareTo(str1);
-            }
-            return comp;
-          }
-        }
-      };
-    };
-
-    // Populate all site collection URLs using the above comparator
+    // Populate all site collection URLs
     try {
       for (String siteCollUrl : siteCollUrls) {
-        String webapp = Util.getWebApp(siteCollUrl);
-        Set<String> urlPaths = null;
-        if (webappToSiteCollections.containsKey(webapp)) {
-          urlPaths = webappToSiteCollections.get(webapp);
-        } else {
-          urlPaths = new TreeSet<String>(nonIncreasingComparator);
-          webappToSiteCollections.put(webapp, urlPaths);
-        }
-        urlPaths.add(new URL(siteCollUrl).getPath());
+        addSiteCollection(siteCollUrl);
       }
     } catch (Exception e) {
       LOGGER.log(Level.WARNING, "Prolem occured while registering site collection URLs ", e);
       // A partial fill can be buggy
       webappToSiteCollections.clear();
+      webappToSiteCollectionTrie.clear();
+    }
+  }
+
+  // A comparator that sorts in non-increasing order of length
+  private static final Comparator<String> nonIncreasingComparator = new Comparator<String>() {
+    public int compare(String str1, String str2) {
+      if (null == str1) {
+        if (null == str2) {
+          return 0;
+        } else {
+          return 1;
+        }
+      } else {
+        if (null == str2) {
+          return -1;
+        } else {
+          int comp = str2.length() - str1.length();
+          if (comp == 0) {
+            comp = str2.compareTo(str1);
+          }
+          return comp;
+        }
+      }
+    };
+  };
+
+  /**
+   * Registers a site collection URL, so that the documents under it are
+   * grouped together. Only called while the instance is constructed; a site
+   * collection created afterwards is picked up by the next authorization
+   * manager, as one is created for every session.
+   *
+   * @param siteCollUrl
+   * @throws MalformedURLException
+   */
+  private void addSiteCollection(String siteCollUrl)
+      throws MalformedURLException {
+    String webapp = Util.getWebApp(siteCollUrl);
+    Set<String> urlPaths = webappToSiteCollections.get(webapp);
+    SiteCollectionTrie trie = webappToSiteCollectionTrie.get(webapp);
+    if (null == urlPaths) {
+      urlPaths = new TreeSet<String>(nonIncreasingComparator);
+      webappToSiteCollections.put(webapp, urlPaths);
+      trie = new SiteCollectionTrie();
+      webappToSiteCollectionTrie.put(webapp, trie);
     }
+    String path = new URL(siteCollUrl).getPath();
+    urlPaths.add(path);
+    trie.add(path);
   }
 
   /**
    * Finds the site collection URL of a SharePoint URL by matching it with the
    * populated list of known site collection URLs.
    *
+   * @param webapp web application of the URL
    * @param strUrl
    * @return
    * @throws MalformedURLException
    */
-  private Container getSiteCollectionContainer(String strUrl)
+  private Container getSiteCollectionContainer(String webapp, String strUrl)
       throws MalformedURLException {
     Container container = new Container();
     container.setType(ContainerType.NA);
 
-    String webapp = Util.getWebApp(strUrl);
-    Set<String> siteCollUrlPaths = webappToSiteCollections.get(webapp);
+    SiteCollectionTrie siteCollUrlPaths = webappToSiteCollectionTrie.get(webapp);
     if (null != siteCollUrlPaths) {
-      String path = new URL(strUrl).getPath();
+      String path = getPath(strUrl);
       if (null == path || path.length() == 0) {
         container.setUrl(webapp);
         container.setType(ContainerType.SITE_COLLECTION);
       } else {
-        for (String siteCollUrlPath : siteCollUrlPaths) {
-          if (path.startsWith(siteCollUrlPath)) {
-            container.setUrl(webapp + siteCollUrlPath);
-            container.setType(ContainerType.SITE_COLLECTION);
-            break;
-          }
+        String siteCollUrlPath = siteCollUrlPaths.getSiteCollectionPath(path);
+        if (null != siteCollUrlPath) {
+          container.setUrl(webapp + siteCollUrlPath);
+          container.setType(ContainerType.SITE_COLLECTION);
         }
       }
     }
@@ -223,6 +315,35 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
     return container;
   }
 
+  /**
+   * Returns the same path as {@link URL#getPath()} without parsing the whole
+   * URL.
+   *
+   * @param strUrl
+   * @return
+   * @throws MalformedURLException
+   */
+  static String getPath(String strUrl) throws MalformedURLException {
+    int start = strUrl.indexOf(SPConstants.URL_SEP);
+    if (start == -1) {
+      throw new MalformedURLException("no protocol: " + strUrl);
+    }
+    start += SPConstants.URL_SEP.length();
+    int end = strUrl.length();
+    for (int i = start; i < end; i++) {
+      char c = strUrl.charAt(i);
+      if (c == '?' || c == '#') {
+        end = i;
+        break;
+      }
+    }
+    int pathStart = strUrl.indexOf('/', start);
+    if (pathStart == -1 || pathStart > end) {
+      return "";
+    }
+    return strUrl.substring(pathStart, end);
+  }
+
   /**
    * Authorizes a user represented by AuthenticationIdentity against all the
    * docIDs. All the docIDs are first converted into a format as expected by the
@@ -271,67 +392,108 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
     userName = Util.getUserNameWithDomain(userName, domain);
     LOGGER.log(Level.INFO, "Authorizing User " + userName);
 
-    attachments = new HashMap<AttachmentKey, List<String>>();
+    // Keeps track of authZ dependency of attachments where authZ status of an
+    // item can be safely replicated to many others. Kept per call, since
+    // calls for different users may run concurrently
+    final Map<AttachmentKey, List<String>> attachments = new HashMap<AttachmentKey, List<String>>();
 
     // authZ response are filled here
     final List<AuthorizationResponse> response = new ArrayList<AuthorizationResponse>(
         docIDs.size());
 
-    // documents are arranged per web application per site collection
-    final Map<String, Map<Container, Set<AuthData>>> groupedDocIds = groupDocIds(docIDs);
+    // Only the documents which are not cached are sent for authorization
+    final Collection<String> uncachedDocIDs = new ArrayList<String>();
+    for (String docId : docIDs) {
+      Boolean allowed = (null == authorizationCache) ? null
+          : authorizationCache.get(userName, docId);
+      if (null == allowed) {
+        uncachedDocIDs.add(docId);
+      } else {
+        addToResponse(response, docId, allowed.booleanValue());
+      }
+    }
+    LOGGER.log(Level.CONFIG, "AuthZ status of #" + response.size()
+        + " docs found in cache. ");
+    if (uncachedDocIDs.isEmpty()) {
+      LOGGER.log(Level.INFO, "This batch of request completed in "
+          + ((double) (System.currentTimeMillis() - startTime) / (double) 1000)
+          + " seconds. Total docs received was #" + docIDs.size()
+          + ". Total authorized #" + response.size());
+      return response;
+    }
 
-    LOGGER.log(Level.CONFIG, "A Total of #" + groupedDocIds.size()
-        + " WS calls will be made for authorization.");
+    // documents are arranged per web application per site collection
+    final Map<String, Map<Container, Set<AuthData>>> groupedDocIds = groupDocIds(uncachedDocIDs, attachments);
 
-    // For every entry in groupedDocIds, makes one WS call and send the AuthData
-    // as payload for authorization
+    final List<AuthDataPacket[]> calls = new ArrayList<AuthDataPacket[]>();
+    final List<String> callWebapps = new ArrayList<String>();
     for (Entry<String, Map<Container, Set<AuthData>>> webAppEntry : groupedDocIds.entrySet()) {
       final String webapp = webAppEntry.getKey();
       Map<Container, Set<AuthData>> siteCollSorted = webAppEntry.getValue();
       if (null == siteCollSorted) {
         continue;
       }
-
-      AuthDataPacket[] authDataPacketArray = new AuthDataPacket[siteCollSorted.size()];
-      int i = 0;
-      for (Entry<Container, Set<AuthData>> siteCollEntry : siteCollSorted.entrySet()) {
-        Set<AuthData> authDataSet = siteCollEntry.getValue();
-
-        AuthDataPacket authDataPacket = new AuthDataPacket();
-        authDataPacket.setContainer(siteCollEntry.getKey());
-
-        AuthData[] authDataArray = new AuthData[authDataSet.size()];
-        authDataArray = authDataSet.toArray(authDataArray);
-        authDataPacket.setAuthDataArray(authDataArray);
-
-        authDataPacketArray[i++] = authDataPacket;
+      for (AuthDataPacket[] authDataPacketArray : splitIntoCalls(siteCollSorted)) {
+        calls.add(authDataPacketArray);
+        callWebapps.add(webapp);
       }
+    }
 
-      if (null == authDataPacketArray || authDataPacketArray.length == 0) {
-        continue;
-      }
+    LOGGER.log(Level.CONFIG, "A Total of #" + calls.size()
+        + " WS calls will be made for authorization.");
 
-      GSBulkAuthorizationWS bulkAuthWS = null;
+    // The stubs are created here since the end point is taken from the
+    // context. Axis socket I/O can not be interrupted, so the time-out of
+    // every call is limited to the time left before the deadline. Otherwise,
+    // a call to an unresponsive server would keep its thread busy long after
+    // its result has been given up.
+    final long deadline = startTime + SPConstants.AUTHZ_DEADLINE;
+    final List<Callable<AuthDataPacket[]>> callables = new ArrayList<Callable<AuthDataPacket[]>>(
+        calls.size());
+    for (int i = 0; i < calls.size(); i++) {
+      final String webapp = callWebapps.get(i);
+      final AuthDataPacket[] authDataPacketArray = calls.get(i);
+      final String authZUserName = userName;
       try {
         sharepointClientContext.setSiteURL(webapp);
-        bulkAuthWS = new GSBulkAuthorizationWS(sharepointClientContext);
-        authDataPacketArray = bulkAuthWS.authorize(authDataPacketArray, userName);
+        final GSBulkAuthorizationWS bulkAuthWS = new GSBulkAuthorizationWS(
+            sharepointClientContext);
+        callables.add(new Callable<AuthDataPacket[]>() {
+          public AuthDataPacket[] call() throws Exception {
+            final long timeLeft = deadline - System.currentTimeMillis();
+            if (timeLeft <= 0) {
+              throw new TimeoutException("Deadline passed before the call");
+            }
+            bulkAuthWS.setTimeout((int) Math.min(timeLeft,
+                sharepointClientContext.getWebServiceTimeOut()));
+            return bulkAuthWS.authorize(authDataPacketArray, authZUserName);
+          }
+        });
       } catch (final Exception e) {
         LOGGER.log(Level.WARNING, "WS call failed for GSBulkAuthorization using webapp [ "
             + webapp + " ] ", e);
-        continue;
+        callables.add(null);
       }
+    }
 
+    // The documents of the calls which do not complete are left out of the
+    // response, which makes their status indeterminate.
+    final List<AuthDataPacket[]> results = invokeCalls(
+        sharepointClientContext.getAuthZExecutor(), callables, callWebapps,
+        deadline);
+    for (int i = 0; i < results.size(); i++) {
+      final AuthDataPacket[] authDataPacketArray = results.get(i);
       if (null == authDataPacketArray) {
-        LOGGER.log(Level.SEVERE, "WS call failed for GSBulkAuthorization using webapp [ "
-            + webapp
-            + " ] AuthDataPacketArray is null at the completion of call. ");
+        LOGGER.log(Level.WARNING, "AuthZ status: INDETERMINATE for #"
+            + countDocs(calls.get(i))
+            + " docs because WS call for GSBulkAuthorization using webapp [ "
+            + callWebapps.get(i) + " ] did not complete. ");
         continue;
       }
 
       // convert the document object back to complex_docid and create
       // response
-      response.addAll(getAuthResponse(authDataPacketArray));
+      response.addAll(getAuthResponse(authDataPacketArray, userName, attachments));
     }
 
     LOGGER.log(Level.INFO, "This batch of request completed in "
@@ -341,6 +503,132 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
     return response;
   }
 
+  /**
+   * Makes the WS calls concurrently and collects the results of those which
+   * complete before the deadline. The calls that are still running at the
+   * deadline are cancelled. Without an executor, the calls are made one after
+   * the other by the calling thread.
+   *
+   * @param executor makes the calls. Can be null.
+   * @param calls the WS calls. A null call is reported as failed.
+   * @param callWebapps the web application of every call, for logging
+   * @param deadline the time by which all the results are needed
+   * @return the result of every call, in the same order. null for the calls
+   *         which failed or did not complete before the deadline.
+   */
+  static List<AuthDataPacket[]> invokeCalls(final ExecutorService executor,
+      final List<Callable<AuthDataPacket[]>> calls,
+      final List<String> callWebapps, final long deadline) {
+    final List<AuthDataPacket[]> results = new ArrayList<AuthDataPacket[]>(
+        calls.size());
+    if (null == executor) {
+      for (int i = 0; i < calls.size(); i++) {
+        AuthDataPacket[] result = null;
+        if (null != calls.get(i)) {
+          try {
+            result = calls.get(i).call();
+          } catch (final Exception e) {
+            LOGGER.log(Level.WARNING, "WS call failed for GSBulkAuthorization using webapp [ "
+                + callWebapps.get(i) + " ] ", e);
+          }
+        }
+        results.add(result);
+      }
+      return results;
+    }
+
+    final List<Future<AuthDataPacket[]>> futures = new ArrayList<Future<AuthDataPacket[]>>(
+        calls.size());
+    for (Callable<AuthDataPacket[]> call : calls) {
+      futures.add((null == call) ? null : executor.submit(call));
+    }
+    boolean interrupted = false;
+    for (int i = 0; i < futures.size(); i++) {
+      final Future<AuthDataPacket[]> future = futures.get(i);
+      final String webapp = callWebapps.get(i);
+      AuthDataPacket[] result = null;
+      if (null != future && !interrupted) {
+        try {
+          result = future.get(Math.max(0, deadline
+              - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+          future.cancel(true);
+          LOGGER.log(Level.WARNING, "WS call for GSBulkAuthorization using webapp [ "
+              + webapp + " ] did not complete within "
+              + SPConstants.AUTHZ_DEADLINE + " milliseconds. ");
+        } catch (final ExecutionException e) {
+          LOGGER.log(Level.WARNING, "WS call failed for GSBulkAuthorization using webapp [ "
+              + webapp + " ] ", e.getCause());
+        } catch (final InterruptedException e) {
+          LOGGER.log(Level.WARNING, "Interrupted while waiting for GSBulkAuthorization using webapp [ "
+              + webapp + " ] ", e);
+          interrupted = true;
+        }
+      }
+      if (interrupted && null != future) {
+        future.cancel(true);
+      }
+      results.add(result);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return results;
+  }
+
+  /**
+   * Splits the documents of a web application into the payloads of one or
+   * more WS calls, each with at most {@link SPConstants#AUTHZ_MAX_DOCS_PER_CALL}
+   * documents. The documents of a large site collection are split into as
+   * many {@link AuthDataPacket}s as needed, which are sent in different calls.
+   *
+   * @param siteCollSorted site collections mapped to their documents
+   * @return the AuthDataPacket array of every call
+   */
+  static List<AuthDataPacket[]> splitIntoCalls(
+      final Map<Container, Set<AuthData>> siteCollSorted) {
+    final List<AuthDataPacket[]> calls = new ArrayList<AuthDataPacket[]>();
+    List<AuthDataPacket> call = new ArrayList<AuthDataPacket>();
+    int callSize = 0;
+    for (Entry<Container, Set<AuthData>> siteCollEntry : siteCollSorted.entrySet()) {
+      final List<AuthData> authDataList = new ArrayList<AuthData>(
+          siteCollEntry.getValue());
+      int start = 0;
+      while (start < authDataList.size()) {
+        if (callSize == SPConstants.AUTHZ_MAX_DOCS_PER_CALL) {
+          calls.add(call.toArray(new AuthDataPacket[call.size()]));
+          call = new ArrayList<AuthDataPacket>();
+          callSize = 0;
+        }
+        final int end = Math.min(authDataList.size(), start
+            + SPConstants.AUTHZ_MAX_DOCS_PER_CALL - callSize);
+        final List<AuthData> chunk = authDataList.subList(start, end);
+
+        AuthDataPacket authDataPacket = new AuthDataPacket();
+        authDataPacket.setContainer(siteCollEntry.getKey());
+        authDataPacket.setAuthDataArray(chunk.toArray(new AuthData[chunk.size()]));
+        call.add(authDataPacket);
+
+        callSize += chunk.size();
+        start = end;
+      }
+    }
+    if (!call.isEmpty()) {
+      calls.add(call.toArray(new AuthDataPacket[call.size()]));
+    }
+    return calls;
+  }
+
+  private static int countDocs(final AuthDataPacket[] authDataPacketArray) {
+    int count = 0;
+    for (AuthDataPacket authDataPacket : authDataPacketArray) {
+      if (null != authDataPacket.getAuthDataArray()) {
+        count += authDataPacket.getAuthDataArray().length;
+      }
+    }
+    return count;
+  }
+
   /**
    * Creates AuthData object every docID and group these objects as per the web
    * application and site collection. Outer map is for web application based
@@ -348,11 +636,13 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
    *
    * @param docIDs AuthData object is created for each document represented by
    *          the docID
+   * @param attachments tracks the attachments of the items being authorized
    * @return A map where the web application is mapped to a map which maps site
    *         collections to the documents
    */
   private Map<String, Map<Container, Set<AuthData>>> groupDocIds(
-      final Collection<String> docIDs) {
+      final Collection<String> docIDs,
+      final Map<AttachmentKey, List<String>> attachments) {
     final Map<String, Map<Container, Set<AuthData>>> sortedDocuments = new HashMap<String, Map<Container, Set<AuthData>>>();
     if ((docIDs == null) || (docIDs.size() == 0)) {
       return null;
@@ -362,7 +652,7 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
       final String complexDocId = (String) docId;
       AuthData authData = null;
       try {
-        authData = createAuthDataFromComplexDocId(complexDocId);
+        authData = createAuthDataFromComplexDocId(complexDocId, attachments);
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Parsing failure! Skipping DocId [ "
             + complexDocId + " ] ", e);
@@ -381,7 +671,7 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
 
       Container siteCollContainer = null;
       try {
-        siteCollContainer = getSiteCollectionContainer(authData.getContainer().getUrl());
+        siteCollContainer = getSiteCollectionContainer(webApp, authData.getContainer().getUrl());
       } catch (MalformedURLException e) {
         LOGGER.log(Level.WARNING, "Skipping DocId [ "
             + authData.getComplexDocId() + " ] ", e);
@@ -402,19 +692,61 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
    * Creates AuthData for DocId.
    *
    * @param complexDocId
+   * @param attachments tracks the attachments of the items being authorized
    * @return null if no AuthData is required for this DocID. This will happen
    *         when the DocId is an attachment and its authorization is
    *         functionally dependent on the authorization of the item which
    *         contains the attachment.
    */
-  private AuthData createAuthDataFromComplexDocId(String complexDocId) {
-    String originalComplexDocId = complexDocId;
+  private AuthData createAuthDataFromComplexDocId(String complexDocId,
+      Map<AttachmentKey, List<String>> attachments) {
+    FeedType feedType = sharepointClientContext.getFeedType();
+    String cacheKey = feedType + SPConstants.DOC_TOKEN + complexDocId;
+    ParsedDocId parsedDocId = parsedDocIds.get(cacheKey);
+    if (null == parsedDocId) {
+      parsedDocId = parseComplexDocId(complexDocId, feedType);
+      parsedDocIds.put(cacheKey, parsedDocId);
+    }
+
+    final Container container = new Container();
+    container.setType(parsedDocId.containerType);
+    container.setUrl(parsedDocId.url);
+    final AuthData authData = new AuthData();
+    authData.setContainer(container);
+    authData.setType(parsedDocId.entityType);
+
+    if (parsedDocId.isAttachment) {
+      AttachmentKey attachmentKey = new AttachmentKey(parsedDocId.url,
+          parsedDocId.docId);
+      if (attachments.containsKey(attachmentKey)) {
+        attachments.get(attachmentKey).add(complexDocId);
+        return null;
+      } else {
+        attachments.put(attachmentKey, new LinkedList<String>());
+      }
+    }
+
+    authData.setItemId(parsedDocId.docId);
+    authData.setComplexDocId(complexDocId);
+
+    return authData;
+  }
+
+  /**
+   * Parses a DocID into the URL and ID of the document and its container.
+   *
+   * @param complexDocId
+   * @param feedType
+   * @return
+   */
+  private ParsedDocId parseComplexDocId(String complexDocId, FeedType feedType) {
     try {
       complexDocId = URLDecoder.decode(complexDocId, "UTF-8");
     } catch (final UnsupportedEncodingException e1) {
       LOGGER.log(Level.WARNING, "Unable to Decode!", e1);
     }
-    final Container container = new Container();
+    ContainerType containerType;
+    EntityType entityType;
     StringTokenizer strTok = null;
     String URL = null;
     String DocID = null;
@@ -438,26 +770,24 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
 
     if (URL != null && URL.endsWith(SPConstants.DEFAULT_SITE_LANDING_PAGE)) {
       // If the URL ends with default.aspx, the container type should be SITE.
-      container.setType(ContainerType.SITE);
+      containerType = ContainerType.SITE;
     } else {
-      container.setType(ContainerType.LIST);
+      containerType = ContainerType.LIST;
     }
-    final AuthData authData = new AuthData();
-    authData.setContainer(container);
 
     boolean isAttachment = false;
 
     try {
       Integer.parseInt(DocID);
-      authData.setType(EntityType.LISTITEM);
+      entityType = EntityType.LISTITEM;
     } catch (final Exception e) {
       if (URL.endsWith(SPConstants.DEFAULT_SITE_LANDING_PAGE)) {
-        authData.setType(EntityType.SITE);
+        entityType = EntityType.SITE;
       } else {
         if (!URL.endsWith(SPConstants.ASPX)) {
-          authData.setType(EntityType.LISTITEM);
+          entityType = EntityType.LISTITEM;
         } else {
-          authData.setType(EntityType.LIST);
+          entityType = EntityType.LIST;
         }
       }
     }
@@ -466,7 +796,7 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
     // Meta and URL feed mode and find away to get required information
     // to authorize.
 
-    if (FeedType.CONTENT_FEED == sharepointClientContext.getFeedType()) {
+    if (FeedType.CONTENT_FEED == feedType) {
       final Matcher match = SPConstants.ATTACHMENT_SUFFIX_PATTERN.matcher(URL);
       if (match.find()) {
         final int index = match.end();
@@ -478,41 +808,26 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
           URL = URL.substring(0, URL.length()
               - (1 + SPConstants.ALERTS_TYPE.length()));
         }
-        container.setType(ContainerType.SITE);
-        authData.setType(EntityType.ALERT);
+        containerType = ContainerType.SITE;
+        entityType = EntityType.ALERT;
       }
     } else {
-      Pattern pattern = Pattern.compile(SPConstants.ATTACHMENTS);
-      Matcher match = pattern.matcher(URL);
+      Matcher match = ATTACHMENTS_PATTERN.matcher(URL);
       if (match.find()) {
         isAttachment = true;
         DocID = getDocIDFromAttachmentURLInMetaUrlFeedMode(URL);
         URL = getAttachmentUrlInMetaUrlFeedMode(URL);
-        container.setType(ContainerType.LIST);
-        authData.setType(EntityType.LISTITEM);
+        containerType = ContainerType.LIST;
+        entityType = EntityType.LISTITEM;
       } else if (complexDocId.contains(SPConstants.ALERTS_EQUALTO)) {
         DocID = DocID.substring(4, DocID.indexOf("}"));
         URL = URL.substring(0, URL.indexOf("_layouts"));
-        container.setType(ContainerType.SITE);
-        authData.setType(EntityType.ALERT);
+        containerType = ContainerType.SITE;
+        entityType = EntityType.ALERT;
       }
     }
-    container.setUrl(URL);
 
-    if (isAttachment) {
-      AttachmentKey attachmentKey = new AttachmentKey(URL, DocID);
-      if (attachments.containsKey(attachmentKey)) {
-        attachments.get(attachmentKey).add(originalComplexDocId);
-        return null;
-      } else {
-        attachments.put(attachmentKey, new LinkedList<String>());
-      }
-    }
-
-    authData.setItemId(DocID);
-    authData.setComplexDocId(originalComplexDocId);
-
-    return authData;
+    return new ParsedDocId(URL, DocID, containerType, entityType, isAttachment);
   }
 
   /**
@@ -541,23 +856,38 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
    *
    * @param authDataPacketArray List of all the authorized documents
    *          as returned by the Web Service.
+   * @param userName the user being authorized
+   * @param attachments tracks the attachments of the items being authorized
    * @return The AuthorizationResponse to be sent to CM
    */
   private List<AuthorizationResponse> getAuthResponse(
-      final AuthDataPacket[] authDataPacketArray) {
+      final AuthDataPacket[] authDataPacketArray, final String userName,
+      final Map<AttachmentKey, List<String>> attachments) {
     final List<AuthorizationResponse> response = new ArrayList<AuthorizationResponse>();
 
     for (AuthDataPacket authDataPacket : authDataPacketArray) {
-      if (!checkAuthDataPacketAfterAuthZ(authDataPacket)) {
+      if (!checkAuthDataPacketAfterAuthZ(authDataPacket, attachments)) {
         continue;
       }
       AuthData[] authdataArray = authDataPacket.getAuthDataArray();
+      Container siteCollContainer = authDataPacket.getContainer();
       for (AuthData authData : authdataArray) {
-        if (!checkAuthDataAfterAuthZ(authData)) {
+        if (!checkAuthDataAfterAuthZ(authData, attachments)) {
           continue;
         }
 
+        // Decisions are invalidated per site collection
+        String scope;
+        if (null != siteCollContainer
+            && ContainerType.SITE_COLLECTION == siteCollContainer.getType()
+            && null != siteCollContainer.getUrl()) {
+          scope = siteCollContainer.getUrl();
+        } else {
+          scope = Util.getWebApp(authData.getContainer().getUrl());
+        }
+
         addToResponse(response, authData.getComplexDocId(), authData.isIsAllowed());
+        cacheDecision(userName, authData.getComplexDocId(), scope, authData.isIsAllowed());
 
         if (authData.getComplexDocId().startsWith(SPConstants.ATTACHMENT_SUFFIX_IN_DOCID)) {
           AttachmentKey attachmentKey = new AttachmentKey(
@@ -566,6 +896,7 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
           if (null != dependentDocIds) {
             for (String complexDocId : dependentDocIds) {
               addToResponse(response, complexDocId, authData.isIsAllowed());
+              cacheDecision(userName, complexDocId, scope, authData.isIsAllowed());
             }
             attachments.remove(attachmentKey);
           }
@@ -580,11 +911,13 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
    * Checks if this packet was processed successfully and is good to proceed
    *
    * @param authDataPacket
+   * @param attachments tracks the attachments of the items being authorized
    * @return true if documents in this packet have been authorized and their
    *         status can be sent back to GSA
    */
   private boolean checkAuthDataPacketAfterAuthZ(
-      final AuthDataPacket authDataPacket) {
+      final AuthDataPacket authDataPacket,
+      final Map<AttachmentKey, List<String>> attachments) {
     if (null == authDataPacket) {
       LOGGER.log(Level.SEVERE, "One of the AuthDataPacket objects is null after authZ!");
       return false;
@@ -632,10 +965,12 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
    * Checks if this document was processed successfully
    *
    * @param authData
+   * @param attachments tracks the attachments of the items being authorized
    * @return true if this document has been authorized and the status can be
    *         sent back to GSA
    */
-  private boolean checkAuthDataAfterAuthZ(final AuthData authData) {
+  private boolean checkAuthDataAfterAuthZ(final AuthData authData,
+      final Map<AttachmentKey, List<String>> attachments) {
     if (null == authData) {
       LOGGER.log(Level.SEVERE, "One of the AuthData objects is null after authZ!");
       return false;
@@ -686,6 +1021,13 @@ public class SharepointAuthorizationManager implements AuthorizationManager {
     return response.add(new AuthorizationResponse(status, DocId));
   }
 
+  private void cacheDecision(String userName, String docId, String scope,
+      boolean status) {
+    if (null != authorizationCache) {
+      authorizationCache.put(userName, docId, scope, status);
+    }
+  }
+
   /*
    * For Testing purpose
    */
@@ -15,9 +15,11 @@
 package com.google.enterprise.connector.sharepoint.spiimpl;
 
 import com.google.common.base.Strings;
+import com.google.enterprise.connector.sharepoint.client.HttpConnectionPool;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.dao.PooledDataSource;
 import com.google.enterprise.connector.sharepoint.dao.QueryProvider;
 import com.google.enterprise.connector.sharepoint.dao.UserDataStoreDAO;
 import com.google.enterprise.connector.sharepoint.dao.UserGroupMembershipRowMapper;
@@ -25,15 +27,18 @@ import com.google.enterprise.connector.sharepoint.ldap.LdapConstants.AuthType;
 import com.google.enterprise.connector.sharepoint.ldap.LdapConstants.Method;
 import com.google.enterprise.connector.sharepoint.ldap.UserGroupsService.LdapConnectionSettings;
 import com.google.enterprise.connector.sharepoint.wsclient.GssAclWS;
+import com.google.enterprise.connector.sharepoint.wsclient.util.AxisEngineConfiguration;
 import com.google.enterprise.connector.spi.Connector;
 import com.google.enterprise.connector.spi.ConnectorPersistentStore;
 import com.google.enterprise.connector.spi.ConnectorPersistentStoreAware;
+import com.google.enterprise.connector.spi.ConnectorShutdownAware;
 import com.google.enterprise.connector.spi.LocalDatabase;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.Session;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,7 +50,7 @@ import java.util.logging.Logger;
  * @author nitendra_thakur
  */
 public class SharepointConnector implements Connector,
-    ConnectorPersistentStoreAware {
+    ConnectorPersistentStoreAware, ConnectorShutdownAware {
   private static final Logger LOGGER = Logger.getLogger(SharepointConnector.class.getName());
   private SharepointClientContext sharepointClientContext = null;
 
@@ -75,6 +80,7 @@ public class SharepointConnector implements Connector,
   private ConnectorPersistentStore connectorPersistnetStore;
   private boolean fetchACLInBatches = false;
   private int aclBatchSizeFactor = 2;
+  private int aclFetchQueueSize = 2;
   private int webServiceTimeOut = 300000;
   private String ldapServerHostAddress;
   private String portNumber;
@@ -86,6 +92,18 @@ public class SharepointConnector implements Connector,
   private String cacheRefreshInterval;
   private LdapConnectionSettings ldapConnectionSettings;
   private boolean feedUnPublishedDocuments;
+  private int webCrawlThreadPoolSize = 1;
+  private int webCrawlThreadsPerWebApp = 2;
+  private boolean pagedState;
+  private int maxConnectionsPerHost = AxisEngineConfiguration.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+  private int httpConnectTimeout = 60000;
+  private int httpSocketTimeout = 300000;
+  private HttpConnectionPool httpConnectionPool;
+  private AxisEngineConfiguration axisEngineConfiguration;
+  private PooledDataSource userDataStorePool;
+  private ExecutorService authZExecutor;
+  private int contentPrefetchCount = 0;
+  private boolean streamListItemChanges;
 
   public SharepointConnector() {
   }
@@ -123,6 +141,41 @@ public class SharepointConnector implements Connector,
     return new SharepointSession(this, sharepointClientContext);
   }
 
+  /**
+   * Releases the connections and threads held by this connector instance. The
+   * connector manager calls this when the connector is shut down or deleted;
+   * {@link #init()} has to be called again before the connector can be used.
+   */
+  public void shutdown() throws RepositoryException {
+    LOGGER.info("Connector shutdown()");
+    if (null != httpConnectionPool) {
+      httpConnectionPool.shutdown();
+      httpConnectionPool = null;
+    }
+    if (null != axisEngineConfiguration) {
+      axisEngineConfiguration.shutdown();
+      axisEngineConfiguration = null;
+    }
+    if (null != authZExecutor) {
+      authZExecutor.shutdownNow();
+      authZExecutor = null;
+    }
+    if (null != userDataStorePool) {
+      userDataStorePool.close();
+      userDataStorePool = null;
+    }
+  }
+
+  /**
+   * The connector does not keep any data of its own outside the connector
+   * manager's directories. Only releases the resources as in
+   * {@link #shutdown()}.
+   */
+  public void delete() throws RepositoryException {
+    LOGGER.info("Connector delete()");
+    shutdown();
+  }
+
   /**
    * Sets the metadata to be included
    *
@@ -321,9 +374,32 @@ public class SharepointConnector implements Connector,
     sharepointClientContext.setPushAcls(pushAcls);
     sharepointClientContext.setFetchACLInBatches(this.fetchACLInBatches);
     sharepointClientContext.setAclBatchSizeFactor(this.aclBatchSizeFactor);
+    sharepointClientContext.setAclFetchQueueSize(this.aclFetchQueueSize);
     sharepointClientContext.setWebServiceTimeOut(this.webServiceTimeOut);
     sharepointClientContext.setDomain(this.domain);
     sharepointClientContext.setFeedUnPublishedDocuments(this.feedUnPublishedDocuments);
+    sharepointClientContext.setWebCrawlThreadPoolSize(this.webCrawlThreadPoolSize);
+    sharepointClientContext.setWebCrawlThreadsPerWebApp(this.webCrawlThreadsPerWebApp);
+    sharepointClientContext.setPagedState(this.pagedState);
+    if (null != axisEngineConfiguration) {
+      axisEngineConfiguration.shutdown();
+    }
+    axisEngineConfiguration = new AxisEngineConfiguration(
+        this.maxConnectionsPerHost);
+    sharepointClientContext.setAxisEngineConfiguration(axisEngineConfiguration);
+    if (null != httpConnectionPool) {
+      httpConnectionPool.shutdown();
+    }
+    httpConnectionPool = new HttpConnectionPool(this.maxConnectionsPerHost,
+        this.httpConnectTimeout, this.httpSocketTimeout);
+    sharepointClientContext.setHttpConnectionPool(httpConnectionPool);
+    if (null != authZExecutor) {
+      authZExecutor.shutdownNow();
+    }
+    authZExecutor = SharepointAuthorizationManager.newAuthZExecutor();
+    sharepointClientContext.setAuthZExecutor(authZExecutor);
+    sharepointClientContext.setContentPrefetchCount(this.contentPrefetchCount);
+    sharepointClientContext.setStreamListItemChanges(this.streamListItemChanges);
     if (pushAcls) {
       sharepointClientContext.setLdapConnectionSettings(getLdapConnectionSettings());
       sharepointClientContext.setUseCacheToStoreLdapUserGroupsMembership(this.useCacheToStoreLdapUserGroupsMembership);
@@ -446,8 +522,15 @@ public class SharepointConnector implements Connector,
     queryProvider.setDatabase(locale);
     try {
       queryProvider.init(locale);
-      userDataStoreDAO = new UserDataStoreDAO(localDatabseImpl.getDataSource(),
-          queryProvider, userGroupMembershipRowMapper);
+      if (null != userDataStorePool) {
+        userDataStorePool.close();
+      }
+      userDataStorePool = new PooledDataSource(
+          localDatabseImpl.getDataSource(),
+          SPConstants.UDS_MAX_IDLE_CONNECTIONS,
+          SPConstants.UDS_CONNECTION_MAX_IDLE_TIME);
+      userDataStoreDAO = new UserDataStoreDAO(userDataStorePool, queryProvider,
+          userGroupMembershipRowMapper);
       LOGGER.config("DAO for UserDataStore created successfully");
     } catch (SharepointException se) {
       LOGGER.log(Level.WARNING, "Failed to create UserDataStoreDAO object. ", se);
@@ -487,6 +570,24 @@ public class SharepointConnector implements Connector,
     this.aclBatchSizeFactor = aclBatchSizeFactor;
   }
 
+  /**
+   * @return the aclFetchQueueSize
+   */
+  public int getAclFetchQueueSize() {
+    return aclFetchQueueSize;
+  }
+
+  /**
+   * @param aclFetchQueueSize the aclFetchQueueSize to set
+   */
+  public void setAclFetchQueueSize(int aclFetchQueueSize) {
+    if (aclFetchQueueSize < 0) {
+      throw new IllegalArgumentException(
+          "The aclFetchQueueSize should not be negative");
+    }
+    this.aclFetchQueueSize = aclFetchQueueSize;
+  }
+
   /**
    * @return the webServiceTimeOut
    */
@@ -675,4 +776,151 @@ public class SharepointConnector implements Connector,
   public void setFeedUnPublishedDocuments(boolean feedUnPublishedDocuments) {
     this.feedUnPublishedDocuments = feedUnPublishedDocuments;
   }
+
+  /**
+   * @return the maximum number of sites that are crawled concurrently
+   */
+  public int getWebCrawlThreadPoolSize() {
+    return webCrawlThreadPoolSize;
+  }
+
+  /**
+   * @param webCrawlThreadPoolSize the webCrawlThreadPoolSize to set. A value of
+   *          1 keeps the sites being crawled one after the other
+   */
+  public void setWebCrawlThreadPoolSize(int webCrawlThreadPoolSize) {
+    if (webCrawlThreadPoolSize <= 0) {
+      throw new IllegalArgumentException(
+          "The webCrawlThreadPoolSize should be greater than zero");
+    }
+    this.webCrawlThreadPoolSize = webCrawlThreadPoolSize;
+  }
+
+  /**
+   * @return the maximum number of sites of a single web application that are
+   *         crawled concurrently
+   */
+  public int getWebCrawlThreadsPerWebApp() {
+    return webCrawlThreadsPerWebApp;
+  }
+
+  /**
+   * @param webCrawlThreadsPerWebApp the webCrawlThreadsPerWebApp to set
+   */
+  public void setWebCrawlThreadsPerWebApp(int webCrawlThreadsPerWebApp) {
+    if (webCrawlThreadsPerWebApp <= 0) {
+      throw new IllegalArgumentException(
+          "The webCrawlThreadsPerWebApp should be greater than zero");
+    }
+    this.webCrawlThreadsPerWebApp = webCrawlThreadsPerWebApp;
+  }
+
+  /**
+   * @return true if the state information of the lists is kept on disk until
+   *         it is needed
+   */
+  public boolean isPagedState() {
+    return pagedState;
+  }
+
+  /**
+   * @param pagedState the pagedState to set
+   */
+  public void setPagedState(boolean pagedState) {
+    this.pagedState = pagedState;
+  }
+
+  /**
+   * @return the maximum number of connections opened to a single SharePoint
+   *         host for the web service calls
+   */
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  /**
+   * @param maxConnectionsPerHost the maxConnectionsPerHost to set
+   */
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+    if (maxConnectionsPerHost < 2) {
+      throw new IllegalArgumentException(
+          "The maxConnectionsPerHost should be at least 2");
+    }
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+  }
+
+  /**
+   * @return the time-out in milliseconds for establishing an HTTP connection
+   *         for downloading contents
+   */
+  public int getHttpConnectTimeout() {
+    return httpConnectTimeout;
+  }
+
+  /**
+   * @param httpConnectTimeout the httpConnectTimeout to set. 0 implies no
+   *          time-out
+   */
+  public void setHttpConnectTimeout(int httpConnectTimeout) {
+    if (httpConnectTimeout < 0) {
+      throw new IllegalArgumentException(
+          "The httpConnectTimeout should not be negative");
+    }
+    this.httpConnectTimeout = httpConnectTimeout;
+  }
+
+  /**
+   * @return the time-out in milliseconds for waiting for data while
+   *         downloading contents
+   */
+  public int getHttpSocketTimeout() {
+    return httpSocketTimeout;
+  }
+
+  /**
+   * @param httpSocketTimeout the httpSocketTimeout to set. 0 implies no
+   *          time-out
+   */
+  public void setHttpSocketTimeout(int httpSocketTimeout) {
+    if (httpSocketTimeout < 0) {
+      throw new IllegalArgumentException(
+          "The httpSocketTimeout should not be negative");
+    }
+    this.httpSocketTimeout = httpSocketTimeout;
+  }
+
+  /**
+   * @return the number of documents whose contents are downloaded ahead of
+   *         the document being fed
+   */
+  public int getContentPrefetchCount() {
+    return contentPrefetchCount;
+  }
+
+  /**
+   * @param contentPrefetchCount the contentPrefetchCount to set. 0 implies
+   *          the contents are downloaded only when requested
+   */
+  public void setContentPrefetchCount(int contentPrefetchCount) {
+    if (contentPrefetchCount < 0) {
+      throw new IllegalArgumentException(
+          "The contentPrefetchCount should not be negative");
+    }
+    this.contentPrefetchCount = contentPrefetchCount;
+  }
+
+  /**
+   * @return true if the responses of GetListItemChangesSinceToken are to be
+   *         parsed as they are received instead of through Axis
+   */
+  public boolean isStreamListItemChanges() {
+    return streamListItemChanges;
+  }
+
+  /**
+   * @param streamListItemChanges the streamListItemChanges to set
+   */
+  public void setStreamListItemChanges(boolean streamListItemChanges) {
+    this.streamListItemChanges = streamListItemChanges;
+  }
 }
@@ -0,0 +1,104 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The site collection paths of a web application, arranged by path segment.
+ * Finding the site collection of a URL walks down the segments of its path
+ * and takes the deepest site collection on the way, so the cost depends on
+ * the depth of the path and not on the number of site collections.
+ */
+final class SiteCollectionTrie {
+  private final Node root = new Node();
+
+  private static final class Node {
+    Map<String, Node> children = null;
+    // The site collection path as registered, if one ends here
+    String siteCollUrlPath = null;
+  }
+
+  /**
+   * Registers a site collection. Can be called at any time to add the site
+   * collections discovered later.
+   *
+   * @param siteCollUrlPath path of the site collection URL
+   */
+  synchronized void add(final String siteCollUrlPath) {
+    Node node = root;
+    int start = 0;
+    int end;
+    while ((end = nextSegment(siteCollUrlPath, start)) != -1) {
+      final String segment = siteCollUrlPath.substring(start, end);
+      if (segment.length() != 0) {
+        if (null == node.children) {
+          node.children = new HashMap<String, Node>();
+        }
+        Node child = node.children.get(segment);
+        if (null == child) {
+          child = new Node();
+          node.children.put(segment, child);
+        }
+        node = child;
+      }
+      start = end + 1;
+    }
+    if (null == node.siteCollUrlPath
+        || siteCollUrlPath.length() > node.siteCollUrlPath.length()) {
+      node.siteCollUrlPath = siteCollUrlPath;
+    }
+  }
+
+  /**
+   * @param path path of a URL in the web application
+   * @return the path of the deepest site collection containing the URL, or
+   *         null if there is none
+   */
+  synchronized String getSiteCollectionPath(final String path) {
+    Node node = root;
+    String siteCollUrlPath = root.siteCollUrlPath;
+    int start = 0;
+    int end;
+    while (null != node.children && (end = nextSegment(path, start)) != -1) {
+      final String segment = path.substring(start, end);
+      start = end + 1;
+      if (segment.length() == 0) {
+        continue;
+      }
+      node = node.children.get(segment);
+      if (null == node) {
+        break;
+      }
+      if (null != node.siteCollUrlPath) {
+        siteCollUrlPath = node.siteCollUrlPath;
+      }
+    }
+    return siteCollUrlPath;
+  }
+
+  /**
+   * @return the end of the segment starting at the given index, or -1 if
+   *         there are no more segments
+   */
+  private static int nextSegment(final String path, final int start) {
+    if (start > path.length()) {
+      return -1;
+    }
+    final int end = path.indexOf('/', start);
+    return (end == -1) ? path.length() : end;
+  }
+}
@@ -0,0 +1,181 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.spiimpl.SPDocument;
+import com.google.enterprise.connector.spi.SpiConstants.ActionType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The part of a crawl queue which does not fit in memory. The documents are
+ * written, in crawl queue order, to a segment file and read back a window at a
+ * time as the documents before them are sent. Each document is stored as its
+ * length followed by the bytes written by {@link SPDocument#writeTo}, so that
+ * reading can resume from where the previous window ended.
+ */
+final class CrawlQueueSpill {
+  private static final Logger LOGGER = Logger.getLogger(CrawlQueueSpill.class.getName());
+
+  // The directories cleaned up since the connector was started. The spill
+  // files do not outlive the connector as the crawl queues are not persisted.
+  private static final Set<String> cleanedDirs = new HashSet<String>();
+
+  private final File file;
+  // Number of documents not read yet and where they start in the file
+  private int remaining;
+  private long position = 0;
+  // The last spilled document of ActionType ADD. Used for the WS calls
+  // without reading the file.
+  private final SPDocument lastDocOfActionTypeADD;
+
+  /**
+   * Writes the documents to a new segment file in the directory.
+   *
+   * @param dir The directory of the segment files
+   * @param docs The documents to be written
+   * @throws IOException
+   */
+  CrawlQueueSpill(final File dir, final List<SPDocument> docs)
+      throws IOException {
+    synchronized (cleanedDirs) {
+      if (cleanedDirs.add(dir.getAbsolutePath())) {
+        deleteFiles(dir);
+      }
+    }
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    file = File.createTempFile("crawlqueue", ".dat", dir);
+    file.deleteOnExit();
+    SPDocument lastAddDoc = null;
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    try {
+      final ByteArrayOutputStream record = new ByteArrayOutputStream();
+      final DataOutputStream recordOut = new DataOutputStream(record);
+      for (SPDocument doc : docs) {
+        record.reset();
+        doc.writeTo(recordOut);
+        recordOut.flush();
+        out.writeInt(record.size());
+        record.writeTo(out);
+        if (ActionType.ADD.equals(doc.getAction())) {
+          lastAddDoc = doc;
+        }
+      }
+    } catch (IOException e) {
+      out.close();
+      file.delete();
+      throw e;
+    }
+    out.close();
+    remaining = docs.size();
+    lastDocOfActionTypeADD = lastAddDoc;
+    LOGGER.log(Level.CONFIG, "Spilled " + remaining + " documents to "
+        + file.getPath());
+  }
+
+  /**
+   * @return true if all the documents have been read
+   */
+  boolean isEmpty() {
+    return remaining == 0;
+  }
+
+  /**
+   * @return the number of documents not read yet
+   */
+  int size() {
+    return remaining;
+  }
+
+  /**
+   * @return the last document of ActionType ADD, or null if there is none or
+   *         it has been read already
+   */
+  SPDocument getLastDocOfActionTypeADD() {
+    return (remaining == 0) ? null : lastDocOfActionTypeADD;
+  }
+
+  /**
+   * Reads the next documents. The file is deleted once all the documents have
+   * been read.
+   *
+   * @param count The maximum number of documents to be read
+   * @return the documents read
+   * @throws IOException
+   */
+  List<SPDocument> read(final int count) throws IOException {
+    final int toRead = Math.min(count, remaining);
+    final List<SPDocument> docs = new ArrayList<SPDocument>(toRead);
+    final FileInputStream fis = new FileInputStream(file);
+    try {
+      fis.getChannel().position(position);
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          fis));
+      for (int i = 0; i < toRead; i++) {
+        final byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+        docs.add(SPDocument.readFrom(new DataInputStream(
+            new ByteArrayInputStream(record))));
+        position += 4 + record.length;
+      }
+    } finally {
+      fis.close();
+    }
+    remaining -= toRead;
+    if (remaining == 0) {
+      delete();
+    }
+    return docs;
+  }
+
+  /**
+   * Deletes the segment file
+   */
+  void delete() {
+    remaining = 0;
+    if (file.exists() && !file.delete()) {
+      LOGGER.log(Level.WARNING, "Unable to delete " + file.getPath());
+    }
+  }
+
+  private static void deleteFiles(final File dir) {
+    final File[] files = dir.listFiles();
+    if (null == files) {
+      return;
+    }
+    for (File leftOver : files) {
+      LOGGER.log(Level.INFO, "Deleting " + leftOver.getPath() + " ... status:"
+          + leftOver.delete());
+    }
+  }
+}
@@ -0,0 +1,480 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of the folders of a list and the items under them. Used by
+ * {@link ListState} to find all the items under a folder which can not be
+ * discovered by making any web service call, e.g. when the folder is deleted.
+ * <p>
+ * Every entry is looked up by its integer ID in constant time and keeps a
+ * reference to its parent folder and its children. Hence, getting all the items
+ * under a folder takes time proportional to the size of the folder's sub-tree.
+ * </p>
+ * <p>
+ * The tree is persisted in the state file as a flat list of entries in
+ * pre-order, separated by '|'. Each entry is <code>ID[:parentID][~title]</code>
+ * where the parent ID is omitted for top level folders and the title is
+ * present only for folders. For example, <code>1~F1|2:1|33:1~F2|4:33</code>.
+ * Folder names in SharePoint can not contain '|', ':' or '~'. The older format
+ * <code>#1~F1#2#33~F2#4/#33/#1</code> is recognized and converted on load.
+ * </p>
+ */
+class FolderTree {
+  private static final Logger LOGGER = Logger.getLogger(FolderTree.class.getName());
+
+  private static final char ENTRY_SEPARATOR = '|';
+  private static final char PARENT_SEPARATOR = ':';
+  private static final char TITLE_SEPARATOR = '~';
+
+  /**
+   * A folder or an item in the tree. Children are kept in a doubly linked list
+   * so that they can be removed in constant time.
+   */
+  private static final class Node {
+    private final int id;
+    // null for items
+    private String title;
+    private Node parent;
+    private Node firstChild;
+    private Node lastChild;
+    private Node prevSibling;
+    private Node nextSibling;
+    // Sub-folders by title. Created only when required.
+    private Map<String, Node> subFolders;
+
+    Node(final int id, final String title) {
+      this.id = id;
+      this.title = title;
+    }
+
+    boolean isFolder() {
+      return null != title;
+    }
+  }
+
+  private final IntNodeMap nodes = new IntNodeMap();
+  private final Map<String, Node> topLevelFolders = new LinkedHashMap<String, Node>();
+
+  /**
+   * @return true if the ID is known
+   */
+  boolean contains(final int id) {
+    return null != nodes.get(id);
+  }
+
+  /**
+   * @return true if the ID is known and it represents a folder
+   */
+  boolean isFolder(final int id) {
+    final Node node = nodes.get(id);
+    return null != node && node.isFolder();
+  }
+
+  /**
+   * @return the number of folders and items in the tree
+   */
+  int size() {
+    return nodes.size();
+  }
+
+  /**
+   * Renames a known folder
+   *
+   * @param id ID of the folder
+   * @param title new title of the folder
+   */
+  void renameFolder(final int id, final String title) {
+    final Node node = nodes.get(id);
+    if (null == node || !node.isFolder() || node.title.equals(title)) {
+      return;
+    }
+    final Map<String, Node> siblings = getSubFolders(node.parent, false);
+    if (null != siblings && siblings.get(node.title) == node) {
+      siblings.remove(node.title);
+    }
+    node.title = title;
+    getSubFolders(node.parent, true).put(title, node);
+  }
+
+  /**
+   * Looks up a folder using the path of folder titles starting from a top level
+   * folder.
+   *
+   * @param folderPath titles of the folders in the path
+   * @return ID of the folder or -1 if any of the folders is not known
+   */
+  int lookupFolder(final List<String> folderPath) {
+    Node folder = null;
+    for (final String title : folderPath) {
+      final Map<String, Node> subFolders = getSubFolders(folder, false);
+      folder = (null == subFolders) ? null : subFolders.get(title);
+      if (null == folder) {
+        return -1;
+      }
+    }
+    return (null == folder) ? -1 : folder.id;
+  }
+
+  /**
+   * Adds a new folder or item. Nothing is changed if the ID is already known.
+   *
+   * @param id ID of the folder/item
+   * @param parentId ID of the parent folder or -1 for top level entries
+   * @param title title in case of folder; null for items
+   * @return false if the parent folder is not known
+   */
+  boolean add(final int id, final int parentId, final String title) {
+    if (contains(id)) {
+      return true;
+    }
+    Node parent = null;
+    if (parentId != -1) {
+      parent = nodes.get(parentId);
+      if (null == parent || !parent.isFolder()) {
+        return false;
+      }
+    }
+    final Node node = new Node(id, title);
+    node.parent = parent;
+    if (null != parent) {
+      if (null == parent.lastChild) {
+        parent.firstChild = node;
+      } else {
+        parent.lastChild.nextSibling = node;
+        node.prevSibling = parent.lastChild;
+      }
+      parent.lastChild = node;
+    }
+    if (node.isFolder()) {
+      getSubFolders(parent, true).put(title, node);
+    }
+    nodes.put(id, node);
+    return true;
+  }
+
+  /**
+   * Removes an item. Folders are never removed as the items under them are
+   * needed to send delete feeds.
+   *
+   * @param id ID of the item
+   */
+  void removeItem(final int id) {
+    final Node node = nodes.get(id);
+    if (null == node || node.isFolder()) {
+      return;
+    }
+    final Node parent = node.parent;
+    if (null != parent) {
+      if (null == node.prevSibling) {
+        parent.firstChild = node.nextSibling;
+      } else {
+        node.prevSibling.nextSibling = node.nextSibling;
+      }
+      if (null == node.nextSibling) {
+        parent.lastChild = node.prevSibling;
+      } else {
+        node.nextSibling.prevSibling = node.prevSibling;
+      }
+    }
+    nodes.remove(id);
+  }
+
+  /**
+   * Returns the IDs of all the items under a folder including those in
+   * sub-folders. The folders themselves are not returned.
+   *
+   * @param id ID of the folder
+   * @return IDs of the items
+   */
+  List<Integer> getItemsUnder(final int id) {
+    final List<Integer> items = new ArrayList<Integer>();
+    final Node folder = nodes.get(id);
+    if (null == folder || null == folder.firstChild) {
+      return items;
+    }
+    // Iterative pre-order traversal of the sub-tree
+    Node node = folder.firstChild;
+    while (node != folder) {
+      if (!node.isFolder()) {
+        items.add(node.id);
+      }
+      if (null != node.firstChild) {
+        node = node.firstChild;
+        continue;
+      }
+      while (node != folder && null == node.nextSibling) {
+        node = node.parent;
+      }
+      if (node != folder) {
+        node = node.nextSibling;
+      }
+    }
+    return items;
+  }
+
+  private Map<String, Node> getSubFolders(final Node folder,
+      final boolean create) {
+    if (null == folder) {
+      return topLevelFolders;
+    }
+    if (null == folder.subFolders && create) {
+      folder.subFolders = new LinkedHashMap<String, Node>();
+    }
+    return folder.subFolders;
+  }
+
+  /**
+   * @return the tree in the compact format described above
+   */
+  @Override
+  public String toString() {
+    final StringBuilder buf = new StringBuilder();
+    for (final Node top : topLevelFolders.values()) {
+      Node node = top;
+      while (true) {
+        if (buf.length() > 0) {
+          buf.append(ENTRY_SEPARATOR);
+        }
+        buf.append(node.id);
+        if (null != node.parent) {
+          buf.append(PARENT_SEPARATOR).append(node.parent.id);
+        }
+        if (node.isFolder()) {
+          buf.append(TITLE_SEPARATOR).append(node.title);
+        }
+        if (null != node.firstChild) {
+          node = node.firstChild;
+          continue;
+        }
+        while (node != top && null == node.nextSibling) {
+          node = node.parent;
+        }
+        if (node == top) {
+          break;
+        }
+        node = node.nextSibling;
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Constructs the tree from its persisted form. Both the compact and the older
+   * format are accepted.
+   *
+   * @param ids the persisted form
+   * @return the tree
+   */
+  static FolderTree valueOf(final CharSequence ids) {
+    final FolderTree tree = new FolderTree();
+    if (null == ids || ids.length() == 0) {
+      return tree;
+    }
+    if (ids.charAt(0) == '#') {
+      tree.loadOldFormat(ids);
+    } else {
+      tree.loadCompactFormat(ids);
+    }
+    return tree;
+  }
+
+  private void loadCompactFormat(final CharSequence ids) {
+    final int length = ids.length();
+    int start = 0;
+    while (start < length) {
+      int end = start;
+      while (end < length && ids.charAt(end) != ENTRY_SEPARATOR) {
+        end++;
+      }
+      final String entry = ids.subSequence(start, end).toString();
+      start = end + 1;
+
+      String title = null;
+      final int titlePos = entry.indexOf(TITLE_SEPARATOR);
+      String idPart = entry;
+      if (titlePos != -1) {
+        title = entry.substring(titlePos + 1);
+        idPart = entry.substring(0, titlePos);
+      }
+      try {
+        final int parentPos = idPart.indexOf(PARENT_SEPARATOR);
+        int parentId = -1;
+        int id;
+        if (parentPos == -1) {
+          id = Integer.parseInt(idPart);
+        } else {
+          id = Integer.parseInt(idPart.substring(0, parentPos));
+          parentId = Integer.parseInt(idPart.substring(parentPos + 1));
+        }
+        if (!add(id, parentId, title)) {
+          LOGGER.log(Level.WARNING, "Parent folder of entry [ " + entry
+              + " ] is not known. Ignoring it.");
+        }
+      } catch (final NumberFormatException e) {
+        LOGGER.log(Level.WARNING, "Ignoring malformed folder entry [ "
+            + entry + " ]. ");
+      }
+    }
+  }
+
+  /**
+   * Loads the older format #foldID~foldName#id1#id2/#foldID
+   */
+  private void loadOldFormat(final CharSequence ids) {
+    LOGGER.log(Level.INFO, "Converting folder information stored in the older format. ");
+    final List<Integer> openFolders = new ArrayList<Integer>();
+    final int length = ids.length();
+    int pos = 0;
+    while (pos < length) {
+      final char chr = ids.charAt(pos);
+      final boolean closing = (chr == '/');
+      if (closing) {
+        pos++;
+      }
+      if (pos >= length || ids.charAt(pos) != '#') {
+        pos++;
+        continue;
+      }
+      int end = ++pos;
+      while (end < length && Character.isDigit(ids.charAt(end))) {
+        end++;
+      }
+      if (end == pos) {
+        continue;
+      }
+      final int id;
+      try {
+        id = Integer.parseInt(ids.subSequence(pos, end).toString());
+      } catch (final NumberFormatException e) {
+        pos = end;
+        continue;
+      }
+      pos = end;
+      if (closing) {
+        final int index = openFolders.lastIndexOf(id);
+        if (index != -1) {
+          openFolders.subList(index, openFolders.size()).clear();
+        }
+        continue;
+      }
+      final int parentId = openFolders.isEmpty() ? -1
+          : openFolders.get(openFolders.size() - 1);
+      if (pos < length && ids.charAt(pos) == TITLE_SEPARATOR) {
+        end = ++pos;
+        while (end < length && ids.charAt(end) != '#'
+            && ids.charAt(end) != '/') {
+          end++;
+        }
+        add(id, parentId, ids.subSequence(pos, end).toString());
+        openFolders.add(id);
+        pos = end;
+      } else if (parentId != -1) {
+        add(id, parentId, null);
+      }
+    }
+  }
+
+  /**
+   * Minimal open addressing hash map with primitive int keys. Avoids boxing the
+   * IDs of a large number of items.
+   */
+  private static final class IntNodeMap {
+    private int[] keys = new int[16];
+    private Node[] values = new Node[16];
+    private int size = 0;
+
+    private static int hash(final int key, final int mask) {
+      final int h = key * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    Node get(final int key) {
+      final int mask = keys.length - 1;
+      for (int i = hash(key, mask); values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return values[i];
+        }
+      }
+      return null;
+    }
+
+    void put(final int key, final Node value) {
+      if ((size + 1) * 4 > keys.length * 3) {
+        resize(keys.length * 2);
+      }
+      final int mask = keys.length - 1;
+      int i = hash(key, mask);
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          values[i] = value;
+          return;
+        }
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+    }
+
+    void remove(final int key) {
+      final int mask = keys.length - 1;
+      int i = hash(key, mask);
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          break;
+        }
+      }
+      if (values[i] == null) {
+        return;
+      }
+      values[i] = null;
+      size--;
+      // Shift back the entries that follow in the same cluster
+      for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+        final int home = hash(keys[j], mask);
+        if ((j > i && (home <= i || home > j)) || (j < i && home <= i && home > j)) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          values[j] = null;
+          i = j;
+        }
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    private void resize(final int capacity) {
+      final int[] oldKeys = keys;
+      final Node[] oldValues = values;
+      keys = new int[capacity];
+      values = new Node[capacity];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldValues[i] != null) {
+          put(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+  }
+}
@@ -35,15 +35,22 @@ import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
@@ -57,6 +64,29 @@ import java.util.logging.Logger;
  * interface. As of May 2007, there is only one StatefulObject -- ListState.
  * Classes: GlobalState. related classes: StatefulObject (interface) ListState
  * (implements StatefulObject)
+ * <p>
+ * The state is persisted as a snapshot of the complete state plus a journal of
+ * the WebStates that changed since the snapshot was saved. A checkpoint only
+ * appends the changed WebStates to the journal. The snapshot is re-written,
+ * and the journal discarded, once the journal grows beyond half the size of
+ * the snapshot or when a complete crawl cycle begins or ends, since that can
+ * change every WebState.
+ * </p>
+ * <p>
+ * In paged mode, only the WebStates themselves are kept in memory when the
+ * state is loaded. Their ListStates are handed over to a {@link StatePager}
+ * and read back when they are first accessed, which happens when the traversal
+ * reaches the web through {@link #getCircularIterator()}. WebStates that have
+ * not been changed since the previous checkpoint are paged out again after
+ * every checkpoint.
+ * </p>
+ * <p>
+ * Paged mode reduces the memory held by the state, not the startup time. The
+ * page file is not kept across restarts. Loading the state still parses the
+ * complete state file and the journal, and additionally copies the
+ * ListStates of every web to the page file. Hence, loading takes somewhat
+ * longer and needs as much free disk space as the state file.
+ * </p>
  */
 public class GlobalState {
   private static final Logger LOGGER = Logger.getLogger(GlobalState.class.getName());
@@ -85,6 +115,25 @@ public class GlobalState {
   private boolean bFullReCrawl = false;
   private String lastFullCrawlDateTime = null;
 
+  // The journal is compacted only when it is bigger than this
+  private static final long MIN_JOURNAL_SIZE_FOR_COMPACTION = 1024 * 1024;
+
+  /**
+   * True if the next save must write a complete snapshot, e.g. because no
+   * snapshot exists yet or WebStates have been removed
+   */
+  private boolean snapshotRequired = true;
+
+  /**
+   * Generation of the snapshot on disk. Journal records are tagged with it so
+   * that records left over from before a compaction are not replayed.
+   */
+  private int generation = 0;
+  private long snapshotSize = 0;
+
+  // Holds the paged out ListStates. null, unless in paged mode.
+  private StatePager pager = null;
+
   // This enum is a list of all such nodes whose values are stored as
   // inner test in the node.
   enum Nodes {
@@ -97,6 +146,12 @@ public class GlobalState {
   class StateHandler implements ContentHandler {
     WebState web;
     ListState list;
+    // The WebState whose ListStates are being read back from the pager
+    private final WebState target;
+    // In paged mode, the WebState node being copied to the pager
+    private ByteArrayOutputStream page = null;
+    private ContentHandler pageWriter = null;
+    private int pageDepth = 0;
     private String lastCrawledWebID;
     private String lastCrawledListID;
 
@@ -104,16 +159,35 @@ public class GlobalState {
     // inner-text and the containing node, we need to keep track of how the
     // current inner-text should be interpreted.
     Nodes currentNode = null;
+    // Folder hierarchy of the current list. Loaded into the list once the
+    // node has been read completely.
+    StringBuffer folderIDs = null;
+
+    StateHandler() {
+      this(null);
+    }
+
+    /**
+     * @param target The WebState into which the ListStates are to be loaded.
+     *          The attributes of the WebState node are ignored in this case.
+     */
+    StateHandler(final WebState target) {
+      this.target = target;
+    }
 
     public void setDocumentLocator(Locator locator) {
     }
 
     public void startDocument() throws SAXException {
-      LOGGER.log(Level.INFO, "Parsing Begins. ");
+      if (null == target) {
+        LOGGER.log(Level.INFO, "Parsing Begins. ");
+      }
     }
 
     public void endDocument() throws SAXException {
-      LOGGER.log(Level.INFO, "Parsing Ends.");
+      if (null == target) {
+        LOGGER.log(Level.INFO, "Parsing Ends.");
+      }
     }
 
     public void processingInstruction(String target, String data)
@@ -129,6 +203,11 @@ public class GlobalState {
     @SuppressWarnings("deprecation")
     public void startElement(String namespaceURI, final String localName,
         String rawName, Attributes atts) throws SAXException {
+      if (null != pageWriter) {
+        pageDepth++;
+        pageWriter.startElement(namespaceURI, localName, rawName, atts);
+        return;
+      }
 
       if (SPConstants.LIST_STATE.equals(localName)) {
         if (null != web) {
@@ -213,21 +292,49 @@ public class GlobalState {
         }
       } else if (SPConstants.STATE_EXTRAIDS_FOLDERS.equals(localName)) {
         currentNode = Nodes.FOLDERS_EXTRAID;
+        folderIDs = new StringBuffer();
       } else if (SPConstants.STATE_EXTRAIDS_ATTACHMENTS.equals(localName)) {
         currentNode = Nodes.ATTACHMENTS_EXTRAID;
       } else if (SPConstants.STATE_EXTRAIDS_ALERTS.equals(localName)) {
         currentNode = Nodes.ALERTS_EXTRAID;
       } else if (SPConstants.WEB_STATE.equals(localName)) {
+        if (null != target) {
+          web = target;
+          return;
+        }
         try {
           web = WebState.loadStateFromXML(atts);
           addOrUpdateWebStateInGlobalState(web);
         } catch (Exception e) {
           LOGGER.log(Level.SEVERE, "Problem while loading WebState node from state file. ");
         }
+        if (null != pager && null != web) {
+          // Copy the complete node to the pager instead of loading the
+          // ListStates
+          try {
+            page = new ByteArrayOutputStream();
+            pageWriter = StatePager.newSerializer(page);
+          } catch (IOException e) {
+            throw new SAXException(e);
+          }
+          pageWriter.startDocument();
+          pageWriter.startElement(namespaceURI, localName, rawName, atts);
+          pageDepth = 1;
+        }
       } else if (SPConstants.LAST_CRAWLED_WEB_ID.equals(localName)) {
         lastCrawledWebID = atts.getValue(SPConstants.STATE_ID);
       } else if (SPConstants.LAST_CRAWLED_LIST_ID.equals(localName)) {
         lastCrawledListID = atts.getValue(SPConstants.STATE_ID);
+      } else if (SPConstants.STATE.equals(localName)) {
+        final String gen = atts.getValue(SPConstants.STATE_GENERATION);
+        if (null != gen) {
+          try {
+            generation = Integer.parseInt(gen);
+          } catch (final NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid state generation [ " + gen
+                + " ]. ");
+          }
+        }
       } else if (SPConstants.FULL_RECRAWL_FLAG.equals(localName)) {
         bFullReCrawl = Boolean.valueOf(atts.getValue(SPConstants.STATE_ID));
         lastFullCrawlDateTime = atts.getValue(SPConstants.LAST_FULL_CRAWL_DATETIME);
@@ -238,7 +345,26 @@ public class GlobalState {
 
     public void endElement(String namespaceURI, String localName, String rawName)
         throws SAXException {
+      if (null != pageWriter) {
+        pageWriter.endElement(namespaceURI, localName, rawName);
+        if (--pageDepth == 0) {
+          pageWriter.endDocument();
+          try {
+            web.pagedOut(pager, pager.store(page.toByteArray()));
+          } catch (IOException e) {
+            throw new SAXException(e);
+          }
+          pageWriter = null;
+          page = null;
+          web = null;
+        }
+        return;
+      }
       if (SPConstants.STATE.equals(localName)) {
+        // Journal records are applied over the snapshot. Hence, the last
+        // crawled web/list must be reset if they are not specified.
+        lastCrawledWeb = null;
+        lastCrawledList = null;
         if (null != lastCrawledWebID) {
           lastCrawledWeb = currentWeb = keyMap.get(lastCrawledWebID);
         }
@@ -246,6 +372,11 @@ public class GlobalState {
           lastCrawledList = lookupList(lastCrawledWebID, lastCrawledListID);
           lastCrawledWeb.setLastCrawledList(lastCrawledWeb.lookupList(lastCrawledListID));
         }
+      } else if (SPConstants.STATE_EXTRAIDS_FOLDERS.equals(localName)) {
+        if (null != list && null != folderIDs) {
+          list.setIDs(folderIDs);
+        }
+        folderIDs = null;
       } else if (SPConstants.LIST_STATE.equals(localName)) {
         list = null;
       } else if (SPConstants.WEB_STATE.equals(localName)) {
@@ -254,6 +385,10 @@ public class GlobalState {
     }
 
     public void characters(char[] ch, int start, int end) throws SAXException {
+      if (null != pageWriter) {
+        pageWriter.characters(ch, start, end);
+        return;
+      }
       if (null == list || null == currentNode) {
         return;
       }
@@ -261,9 +396,12 @@ public class GlobalState {
       if (chrs.trim().length() == 0) {
         return;
       }
-      if (Nodes.ALERTS_EXTRAID.equals(currentNode)
-          || Nodes.FOLDERS_EXTRAID.equals(currentNode)) {
+      if (Nodes.ALERTS_EXTRAID.equals(currentNode)) {
         list.getIDs().append(ch, start, end);
+      } else if (Nodes.FOLDERS_EXTRAID.equals(currentNode)) {
+        if (null != folderIDs) {
+          folderIDs.append(ch, start, end);
+        }
       } else if (Nodes.ATTACHMENTS_EXTRAID.equals(currentNode)) {
         list.getAttchmnts().append(ch, start, end);
       }
@@ -298,6 +436,11 @@ public class GlobalState {
       final boolean isDeleted = f1.delete();
       LOGGER.info("deleted status :" + isDeleted);
     }
+    new StateJournal(getJournalFileLocation(f1)).delete();
+    final File pageFile = getPageFileLocation(f1);
+    if (pageFile.exists()) {
+      pageFile.delete();
+    }
   }
 
   /**
@@ -311,10 +454,27 @@ public class GlobalState {
    *          file.)
    */
   public GlobalState(final String inWorkDir, final FeedType inFeedType) {
+    this(inWorkDir, inFeedType, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param inWorkDir the googleConnectorWorkDir. See
+   *          {@link #GlobalState(String, FeedType)}
+   * @param inFeedType the feed type being used
+   * @param paged If true, the ListStates of the webs not being crawled are
+   *          paged out to the disk
+   */
+  public GlobalState(final String inWorkDir, final FeedType inFeedType,
+      final boolean paged) {
     if (inWorkDir != null) {
       workDir = inWorkDir;
     }
     feedType = inFeedType;
+    if (paged) {
+      pager = new StatePager(getPageFileLocation(getStateFileLocation()), this);
+    }
   }
 
   /**
@@ -349,6 +509,7 @@ public class GlobalState {
   public void startRecrawl() {
     recrawling = true;
     if (bFullReCrawl == true) {
+      snapshotRequired = true;
       LOGGER.config("Recrawling... setting all web states is isExist flag to false for clean up purpose");
       // mark all as non-existent
       final Iterator<WebState> it = dateMap.iterator();
@@ -372,12 +533,17 @@ public class GlobalState {
 
     boolean configLogging = LOGGER.isLoggable(Level.CONFIG);
     if (bFullReCrawl == true) {
+      snapshotRequired = true;
       LOGGER.config("ending recrawl ...bFullReCrawl true ... cleaning up WebStates");
       final Iterator<WebState> iter = getIterator();
       if (null != iter) {
         while (iter.hasNext()) {
           final WebState webs = iter.next();
+          final boolean pagedOut = webs.isPagedOut();
           webs.endRecrawl(spContext);
+          if (pagedOut && !webs.isPagedOut()) {
+            pageOut(webs);
+          }
           if (!webs.isExisting()) {
             // Case of web deletion. Delete this web State only if
             // does not contain any list State info and having a
@@ -403,6 +569,7 @@ public class GlobalState {
               }
               iter.remove();
               keyMap.remove(webs.getPrimaryKey());
+              webs.discardPage();
             }
           }
         }
@@ -416,6 +583,22 @@ public class GlobalState {
    */
   public void removeWebStateFromKeyMap(final WebState inWebs) {
     keyMap.remove(inWebs.getPrimaryKey());
+    inWebs.discardPage();
+    snapshotRequired = true;
+  }
+
+  /**
+   * Marks a WebState, including all its ListStates, as changed so that it is
+   * written to the state journal on the next {@link #saveState()}. The
+   * mutators of {@link WebState} and {@link ListState} already do this for
+   * the fields they change.
+   *
+   * @param web The changed WebState
+   */
+  public void markDirty(final WebState web) {
+    if (null != web) {
+      web.markChanged();
+    }
   }
 
   /**
@@ -514,9 +697,20 @@ public class GlobalState {
    */
   public void loadState() throws SharepointException {
     final File stateFile = getStateFileLocation();
+    final File tmpFile = getTempStateFileLocation(stateFile);
     XMLReader parser;
     InputSource inputSource = null;
     try {
+      if (!stateFile.exists() && tmpFile.exists()) {
+        // The connector stopped while the new snapshot was being moved in
+        // place of the old one
+        LOGGER.warning("Recovering state file from "
+            + tmpFile.getCanonicalPath());
+        if (!tmpFile.renameTo(stateFile)) {
+          throw new IOException("Unable to rename " + tmpFile + " to "
+              + stateFile);
+        }
+      }
       if (!stateFile.exists()) {
         LOGGER.warning("state file '" + stateFile.getCanonicalPath()
             + "' does not exist");
@@ -529,6 +723,27 @@ public class GlobalState {
       inputSource.setEncoding("UTF-8");
       parser.setContentHandler(new StateHandler());
       parser.parse(inputSource);
+      snapshotSize = stateFile.length();
+
+      // Apply the changes saved after the snapshot
+      final List<byte[]> records = getJournal().readRecords(generation);
+      if (records.size() > 0) {
+        LOGGER.info("applying " + records.size()
+            + " record(s) from the state journal");
+      }
+      for (final byte[] record : records) {
+        parser = new SAXParser();
+        inputSource = new InputSource(new InputStreamReader(
+            new ByteArrayInputStream(record), "UTF-8"));
+        inputSource.setEncoding("UTF-8");
+        parser.setContentHandler(new StateHandler());
+        parser.parse(inputSource);
+      }
+      // Loading the WebStates goes through their mutators
+      for (final WebState web : dateMap) {
+        web.clearChanged();
+      }
+      snapshotRequired = false;
     } catch (final Exception e) {
       LOGGER.log(Level.SEVERE, "Unable to load state XML file", e);
       throw new SharepointException(e);
@@ -568,7 +783,11 @@ public class GlobalState {
    */
   public void addOrUpdateWebStateInGlobalState(final WebState state) {
     if (state != null) {
-      keyMap.put(state.getPrimaryKey(), state);
+      final WebState old = keyMap.put(state.getPrimaryKey(), state);
+      if (null != old && old != state) {
+        old.discardPage();
+      }
+      markDirty(state);
       // Deletion is required to ensure that both datastructures are
       // keeping reference to the same stateful objects
       if (dateMap.contains(state)) {
@@ -597,6 +816,32 @@ public class GlobalState {
     return f;
   }
 
+  /**
+   * @return the file to which a new snapshot is written before it replaces the
+   *         state file
+   */
+  private static File getTempStateFileLocation(final File stateFile) {
+    return new File(stateFile.getPath() + SPConstants.STATE_TEMP_SUFFIX);
+  }
+
+  /**
+   * @return the journal file that goes with the given state file
+   */
+  private static File getJournalFileLocation(final File stateFile) {
+    return new File(stateFile.getPath() + SPConstants.STATE_JOURNAL_SUFFIX);
+  }
+
+  /**
+   * @return the file in which the paged out ListStates are kept
+   */
+  private static File getPageFileLocation(final File stateFile) {
+    return new File(stateFile.getPath() + SPConstants.STATE_PAGES_SUFFIX);
+  }
+
+  private StateJournal getJournal() {
+    return new StateJournal(getJournalFileLocation(getStateFileLocation()));
+  }
+
   /**
    * @return the list sorted list of web states
    */
@@ -661,28 +906,143 @@ public class GlobalState {
     return feedType;
   }
 
-  public void saveState() throws SharepointException {
+  /**
+   * Saves the changes made since the last save. Either appends the changed
+   * WebStates to the state journal or writes a complete snapshot.
+   *
+   * @throws SharepointException
+   */
+  public synchronized void saveState() throws SharepointException {
+    try {
+      // The flags are cleared before the webs are written, so that a change
+      // made meanwhile is written with the next save
+      final List<WebState> webs = new ArrayList<WebState>();
+      final Set<String> changedWebs = new HashSet<String>();
+      for (final WebState web : dateMap) {
+        if (web.isChanged()) {
+          web.clearChanged();
+          webs.add(web);
+          changedWebs.add(web.getPrimaryKey());
+        }
+      }
+      final StateJournal journal = getJournal();
+      if (snapshotRequired
+          || journal.length() > Math.max(MIN_JOURNAL_SIZE_FOR_COMPACTION, snapshotSize / 2)) {
+        saveSnapshot(journal);
+      } else {
+        LOGGER.log(Level.FINE, "Appending " + webs.size()
+            + " changed WebState(s) to the state journal");
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputFormat of = new OutputFormat("XML", "UTF-8", false);
+        XMLSerializer serializer = new XMLSerializer(bos, of);
+        dumpStateToXML(serializer.asContentHandler(), webs, generation);
+        journal.append(generation, bos.toByteArray());
+      }
+      if (null != pager) {
+        pageOutWebs(changedWebs);
+      }
+    } catch (final Exception e) {
+      snapshotRequired = true;
+      LOGGER.log(Level.WARNING, "Save State Failed", e);
+      throw new SharepointException("Save state failed", e);
+    } catch (final Throwable t) {
+      snapshotRequired = true;
+      LOGGER.log(Level.WARNING, "Save State Failed", t);
+      throw new SharepointException("Save state failed", t);
+    }
+  }
+
+  /**
+   * Writes the complete state to a temporary file, moves it in place of the
+   * state file and discards the journal.
+   */
+  private void saveSnapshot(final StateJournal journal) throws IOException,
+      SAXException {
+    final File stateFile = getStateFileLocation();
+    final File tmpFile = getTempStateFileLocation(stateFile);
+    final int nextGeneration = generation + 1;
+    FileOutputStream fos = new FileOutputStream(tmpFile);
     try {
-      FileOutputStream fos = new FileOutputStream(getStateFileLocation());
       OutputFormat of = new OutputFormat("XML", "UTF-8", true);
       of.setLineWidth(500);
       of.setIndent(2);
       XMLSerializer serializer = new XMLSerializer(fos, of);
       ContentHandler handler = serializer.asContentHandler();
-      dumpStateToXML(handler);
+      dumpStateToXML(handler, dateMap, nextGeneration);
+      fos.flush();
+      fos.getFD().sync();
+    } finally {
       fos.close();
+    }
+    if (!tmpFile.renameTo(stateFile)) {
+      // Rename does not replace an existing file on all platforms
+      if (stateFile.exists() && !stateFile.delete()) {
+        throw new IOException("Unable to delete the state file " + stateFile);
+      }
+      if (!tmpFile.renameTo(stateFile)) {
+        throw new IOException("Unable to rename " + tmpFile + " to "
+            + stateFile);
+      }
+    }
+    generation = nextGeneration;
+    snapshotSize = stateFile.length();
+    snapshotRequired = false;
+    journal.delete();
+  }
+
+  /**
+   * Pages out the WebStates which are not in use.
+   *
+   * @param recentlyChanged Keys of the WebStates changed since the last
+   *          checkpoint. These are likely to be crawled again and are kept in
+   *          memory.
+   */
+  private void pageOutWebs(final Set<String> recentlyChanged) {
+    int count = 0;
+    for (final WebState web : dateMap) {
+      if (web.isPagedOut() || web == currentWeb || web == lastCrawledWeb
+          || recentlyChanged.contains(web.getPrimaryKey())
+          || !web.canBePagedOut()) {
+        continue;
+      }
+      if (pageOut(web)) {
+        count++;
+      }
+    }
+    if (count > 0) {
+      LOGGER.log(Level.FINE, "Paged out the list states of " + count
+          + " web(s)");
+    }
+  }
+
+  private boolean pageOut(final WebState web) {
+    try {
+      pager.pageOut(web);
+      return true;
     } catch (final Exception e) {
-      LOGGER.log(Level.WARNING, "Save State Failed", e);
-      throw new SharepointException("Save state failed", e);
-    } catch (final Throwable t) {
-      LOGGER.log(Level.WARNING, "Save State Failed", t);
-      throw new SharepointException("Save state failed", t);
+      LOGGER.log(Level.WARNING, "Unable to page out the list states of web [ "
+          + web.getWebUrl() + " ]. ", e);
+      return false;
     }
   }
 
   public void dumpStateToXML(ContentHandler handler) throws SAXException {
+    dumpStateToXML(handler, dateMap, generation);
+  }
+
+  /**
+   * Dumps the global information and the given WebStates
+   *
+   * @param handler
+   * @param webs The WebStates to be dumped
+   * @param stateGeneration The generation of the snapshot
+   * @throws SAXException
+   */
+  private void dumpStateToXML(ContentHandler handler,
+      Collection<WebState> webs, int stateGeneration) throws SAXException {
     AttributesImpl atts = new AttributesImpl();
     handler.startDocument();
+    atts.addAttribute("", "", SPConstants.STATE_GENERATION, SPConstants.STATE_ATTR_CDATA, String.valueOf(stateGeneration));
     handler.startElement("", "", SPConstants.STATE, atts);
 
     // Feed Type used
@@ -716,10 +1076,10 @@ public class GlobalState {
     }
 
     // now dump the actual WebStates:
-    if (null == dateMap) {
+    if (null == webs) {
       LOGGER.log(Level.WARNING, "No WebStates found in the connector state.");
     } else {
-      for (WebState web : dateMap) {
+      for (WebState web : webs) {
         web.dumpStateToXML(handler, feedType);
       }
     }
@@ -28,6 +28,8 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -98,6 +100,9 @@ public class ListState implements StatefulObject {
    * an ordered list of SPDocuments due to be fed to the Connector Manager
    */
   private List<SPDocument> crawlQueue = null;
+  // The rest of the crawl queue, kept on disk when it does not fit in memory
+  private CrawlQueueSpill spilledCrawlQueue = null;
+  private int crawlQueueWindow = 0;
 
   private final Collator collator = Util.getCollator();
 
@@ -108,12 +113,16 @@ public class ListState implements StatefulObject {
   private String listConst = "/Lists";
   private boolean isSiteDefaultPage = false;
 
+  /**
+   * IDs of the alerts that have been sent
+   */
+  private StringBuffer extraIDs = new StringBuffer();
   /**
    * To keep track of those IDs which can not be discovered by making any web
    * service call. For Example, it is not possible to track the documents if
    * their parent folder is deleted.
    */
-  private StringBuffer extraIDs = new StringBuffer();
+  private FolderTree folderTree = new FolderTree();
   private StringBuffer attchmnts = new StringBuffer();
   /**
    * To keep track of the document with the biggest ID that has been discovered
@@ -252,6 +261,7 @@ public class ListState implements StatefulObject {
   public void setUrl(final String inUrl) {
     if (inUrl != null) {
       listURL = inUrl;
+      markChanged();
     }
   }
 
@@ -338,6 +348,7 @@ public class ListState implements StatefulObject {
    */
   public void setLastMod(final DateTime inLastMod) {
     lastMod = Util.jodaToCalendar(inLastMod);
+    markChanged();
   }
 
   /**
@@ -374,6 +385,7 @@ public class ListState implements StatefulObject {
     // primary key cannot be null
     if (newKey != null) {
       key = newKey;
+      markChanged();
     }
   }
 
@@ -494,6 +506,11 @@ public class ListState implements StatefulObject {
    * @return
    */
   private SPDocument getLastDocInCrawlQueueOfActionTypeADD() {
+    // The spilled documents come after the ones in memory
+    if (null != spilledCrawlQueue
+        && null != spilledCrawlQueue.getLastDocOfActionTypeADD()) {
+      return spilledCrawlQueue.getLastDocOfActionTypeADD();
+    }
     if (null == crawlQueue || crawlQueue.size() == 0) {
       return null;
     } else {
@@ -508,9 +525,13 @@ public class ListState implements StatefulObject {
   }
 
   /**
-   * @return the crawl queue containg the documents from this list
+   * @return the crawl queue containg the documents from this list. If a part
+   *         of the crawl queue has been spilled to disk, only the documents
+   *         in memory are returned; the next ones are read when these have
+   *         been removed.
    */
   public List<SPDocument> getCrawlQueue() {
+    loadSpilledCrawlQueue();
     return crawlQueue;
   }
 
@@ -526,6 +547,9 @@ public class ListState implements StatefulObject {
         LOGGER.config(doc.getLastMod().getTime() + ", " + doc.getUrl());
         doc.dumpAllAttrs();
       }
+      if (null != spilledCrawlQueue) {
+        LOGGER.config(spilledCrawlQueue.size() + " more documents on disk");
+      }
     } else {
       LOGGER.config("Empty crawl queue for " + getListURL());
     }
@@ -535,9 +559,78 @@ public class ListState implements StatefulObject {
    * @param inCrawlQueue
    */
   public void setCrawlQueue(final List<SPDocument> inCrawlQueue) {
+    if (null != spilledCrawlQueue) {
+      spilledCrawlQueue.delete();
+      spilledCrawlQueue = null;
+    }
     crawlQueue = inCrawlQueue;
   }
 
+  /**
+   * Sets the crawl queue, keeping at most the given number of documents in
+   * memory. The rest are written to a file in the given directory and read
+   * back, the same number at a time, as the documents in memory are removed
+   * from the crawl queue. If the file cannot be written, all the documents
+   * are kept in memory.
+   *
+   * @param inCrawlQueue
+   * @param spillDir The directory where the documents that do not fit in
+   *          memory are written
+   * @param window The maximum number of documents kept in memory
+   */
+  public void setCrawlQueue(final List<SPDocument> inCrawlQueue,
+      final File spillDir, final int window) {
+    setCrawlQueue(inCrawlQueue);
+    if (null == inCrawlQueue || null == spillDir || window <= 0
+        || inCrawlQueue.size() <= window) {
+      return;
+    }
+    try {
+      spilledCrawlQueue = new CrawlQueueSpill(spillDir, inCrawlQueue.subList(window, inCrawlQueue.size()));
+      crawlQueueWindow = window;
+      crawlQueue = new ArrayList<SPDocument>(inCrawlQueue.subList(0, window));
+      LOGGER.log(Level.INFO, "Keeping " + window + " of the "
+          + inCrawlQueue.size() + " documents of the crawl queue of list [ "
+          + getListURL() + " ] in memory. ");
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to spill the crawl queue of list [ "
+          + getListURL() + " ] to disk. Keeping all the documents in memory. ", e);
+      spilledCrawlQueue = null;
+    }
+  }
+
+  /**
+   * Reads the next documents of the crawl queue from disk, once all the
+   * documents in memory have been removed.
+   */
+  private void loadSpilledCrawlQueue() {
+    if (null == spilledCrawlQueue
+        || (null != crawlQueue && crawlQueue.size() > 0)) {
+      return;
+    }
+    try {
+      crawlQueue = spilledCrawlQueue.read(crawlQueueWindow);
+    } catch (IOException e) {
+      // The next change token would move the list past the discarded
+      // documents once the crawl queue is seen empty. It is dropped so that
+      // the changes are fetched again from the current change token. The
+      // last document is not past them either, since they follow the ones
+      // which have been fed.
+      LOGGER.log(Level.WARNING, "Unable to read the crawl queue of list [ "
+          + getListURL() + " ] from disk. Discarding "
+          + spilledCrawlQueue.size()
+          + " documents and the next change token [ " + nextChangeToken
+          + " ]. They will be crawled again from the current change token [ "
+          + currentChangeToken + " ]. ", e);
+      spilledCrawlQueue.delete();
+      nextChangeToken = null;
+      markChanged();
+    }
+    if (spilledCrawlQueue.isEmpty()) {
+      spilledCrawlQueue = null;
+    }
+  }
+
   /**
    * @param doc : to be removed from the crawl queue
    */
@@ -556,6 +649,7 @@ public class ListState implements StatefulObject {
         + doc.getDocId() + " ], docURL [ " + doc.getUrl() + " ], Action [ "
         + doc.getAction() + " ], deleteStatus [ " + status
         + " ], currentCrawlQueueSize [ " + crawlQueue.size() + " ]. ");
+    loadSpilledCrawlQueue();
   }
 
   /**
@@ -570,6 +664,7 @@ public class ListState implements StatefulObject {
    */
   public void setListURL(final String listURL) {
     this.listURL = listURL;
+    markChanged();
   }
 
   /**
@@ -586,6 +681,7 @@ public class ListState implements StatefulObject {
    */
   private void setChangeTokenForWSCall(String inChangeToken) {
     currentChangeToken = inChangeToken;
+    markChanged();
   }
 
   /**
@@ -631,6 +727,7 @@ public class ListState implements StatefulObject {
       return false;
     }
     nextChangeToken = inChangeToken;
+    markChanged();
     LOGGER.log(Level.CONFIG, "currentChangeToken [ " + currentChangeToken
         + " ], nextChangeToken [ " + nextChangeToken + " ]. ");
     return true;
@@ -653,26 +750,37 @@ public class ListState implements StatefulObject {
     currentChangeToken = nextChangeToken;
     nextChangeToken = null;
     this.changedFolders.clear();
+    markChanged();
     return true;
   }
 
   /**
-   * @return the extraIDs
+   * @return the extraIDs. For the lists that can contain folders, this is a
+   *         snapshot of the stored folder hierarchy.
    */
   public StringBuffer getIDs() {
+    if (canContainFolders()) {
+      return new StringBuffer(folderTree.toString());
+    }
     return extraIDs;
   }
 
   /**
-   * @param ds the extraIDs to set
+   * @param ds the extraIDs to set. For the lists that can contain folders, this
+   *          is the stored folder hierarchy in either the current or the older
+   *          #foldID~foldName#id1#id2/#foldID format.
    */
   public void setIDs(final StringBuffer ds) {
-    extraIDs = ds;
+    if (canContainFolders()) {
+      folderTree = FolderTree.valueOf(ds);
+    } else {
+      extraIDs = ds;
+    }
+    markChanged();
   }
 
   /**
-   * Used to store information about folders and items under them. This info is
-   * stored in the form of #foldID~foldName#id1#id2/#foldID
+   * Used to store information about folders and items under them.
    *
    * @param docPath the document path as returned by the web service in the
    *          value of relativeURL field
@@ -720,25 +828,11 @@ public class ListState implements StatefulObject {
       docTitle = parentPath.substring(index + 1);
     }
 
-    int idPos = -1;
-
-    final String idPattern = "\\#" + docID + "[\\#|\\~|/]";
-    final Pattern pat = Pattern.compile(idPattern);
-    final Matcher match = pat.matcher(extraIDs);
-    if (match.find()) {
-      idPos = match.start();
-    }
-
-    if (idPos != -1) {
+    final int id = Integer.parseInt(docID);
+    if (folderTree.contains(id)) {
       // We already know about this ID.
       if (isFolder) {
-        int startPos = idPos + 1 + docID.length() + 1;
-        int endPos = extraIDs.indexOf("#", startPos);
-        int tmp_endPos = extraIDs.indexOf("/", startPos);
-        if (tmp_endPos < endPos) {
-          endPos = tmp_endPos;
-        }
-        extraIDs.replace(startPos, endPos, docTitle);
+        folderTree.renameFolder(id, docTitle);
         LOGGER.log(Level.INFO, "ExtraIDs updated for the folder " + docTitle);
       }
       return true;
@@ -747,10 +841,11 @@ public class ListState implements StatefulObject {
     parentPath = parentPath.substring(0, index);
     if ((parentPath == null) || parentPath.equals("")) {
       // Case of an item which is not inside any folder. If it is a
-      // folder, update the complex string extraIDs. Otherwise, just
+      // folder, add it as a top level folder. Otherwise, just
       // return, we don't need to store the outer document extraIDs.
       if (isFolder) {
-        extraIDs.append("#" + docID + "~" + docTitle + "/#" + docID);
+        folderTree.add(id, -1, docTitle);
+        markChanged();
         LOGGER.log(Level.FINEST, "ExtraIDs updated for the folder " + docTitle);
       } else {
         LOGGER.log(Level.FINE, "A top level document is received with docPath [ "
@@ -759,35 +854,22 @@ public class ListState implements StatefulObject {
       return true;
     }
 
-    // Reach up to the place where the ID is should be inserted. This place
-    // will come after some folder entry e.g, #2~Folder__
+    final List<String> folderPath = new ArrayList<String>();
     final StringTokenizer strTok = new StringTokenizer(parentPath,
         SPConstants.SLASH);
-    if (strTok != null) {
-      index = 0;
-      while (strTok.hasMoreTokens()) {
-        final String folder = strTok.nextToken();
-        char chr = '#';
-        do {
-          index = extraIDs.indexOf("~" + folder, index);
-          if (index == -1) {
-            LOGGER.log(Level.FINE, "A docID [ "
-                + docID
-                + " ] has been found whose parent folder ID is not known. listURL [ "
-                + listURL + " ]. folder [ " + folder + " ]. extraIDs [ " + extraIDs + " ].");
-            return false;
-          }
-          index += 1 + folder.length();
-          chr = extraIDs.charAt(index);
-        } while (chr != '#' && chr != '/');
-      }
+    while (strTok.hasMoreTokens()) {
+      folderPath.add(strTok.nextToken());
+    }
+    final int parentId = folderTree.lookupFolder(folderPath);
+    if (parentId == -1) {
+      LOGGER.log(Level.FINE, "A docID [ " + docID
+          + " ] has been found whose parent folder ID is not known. listURL [ "
+          + listURL + " ]. folder path [ " + parentPath + " ].");
+      return false;
     }
 
-    extraIDs.insert(index, "#" + docID);
-    index += 1 + docID.length();
-    if (isFolder) {
-      extraIDs.insert(index, "~" + docTitle + "/#" + docID);
-    }
+    folderTree.add(id, parentId, isFolder ? docTitle : null);
+    markChanged();
     LOGGER.log(Level.FINEST, "ExtraIDs updated for the docID #" + docID
         + " List URL [ " + listURL + " ]. ");
     return true;
@@ -808,54 +890,20 @@ public class ListState implements StatefulObject {
       // here. We only need list items.
       return depIds;
     }
-    if (!canContainFolders() && Util.isNumeric(docID)) {
+    if (!canContainFolders()) {
       depIds.add(docID);
       return depIds;
     }
 
-    int startPos = -1;
-    int endPos = -1;
-
-    final String idPattern = "\\#" + docID + "[\\#|\\~|/]";
-    Pattern pat = Pattern.compile(idPattern);
-    Matcher match = pat.matcher(extraIDs);
-    if (match.find()) {
-      String idPart = match.group();
-      startPos = match.start();
-      if (idPart.endsWith("~")) {
-        // Case of folder
-        endPos = extraIDs.indexOf("/#" + docID);
-        endPos += 2 + docID.length();
-        idPart = extraIDs.substring(startPos, endPos);
-
-        pat = Pattern.compile("\\#\\d+");
-        match = pat.matcher(idPart);
-        while (match.find()) {
-          String id = match.group();
-          startPos = match.start();
-          endPos = match.end();
-          if (((startPos > 0) && (idPart.charAt(startPos - 1) == SPConstants.SLASH_CHAR))
-              || ((endPos < idPart.length()) && (idPart.charAt(endPos) == '~'))) {
-            continue;
-            // This is a folder ID and we do not need send any feed
-            // for folders.
-          }
-          id = id.substring(1);
-          if (Util.isNumeric(id)) {
-            depIds.add(id);
-          }
-        }
-      } else if (Util.isNumeric(docID)) {
-        // This is an item inside some folder.
-        // Here we are checking certain conditions before adding the
-        // original ID as to be sent as the delete feeds.
-        // Because, this ID could be of a folder also, and we do not
-        // send folder as docs.
-        depIds.add(docID);
+    final int id = Integer.parseInt(docID);
+    if (folderTree.isFolder(id)) {
+      // Folders are not sent as docs, only the items under them
+      for (final Integer itemId : folderTree.getItemsUnder(id)) {
+        depIds.add(itemId.toString());
       }
-    } else if (Util.isNumeric(docID)) {
-      // This would be a top level doc. We do not make entries in extraIDs
-      // for such docs.
+    } else {
+      // This is either an item inside some folder or a top level doc.
+      // We do not make entries for top level docs.
       depIds.add(docID);
     }
 
@@ -878,31 +926,10 @@ public class ListState implements StatefulObject {
     if (!canContainFolders()) {
       return;
     }
-    final String idPattern = "\\#" + docID + "[\\#|\\~|/]";
-    final Pattern pat = Pattern.compile(idPattern);
-    final Matcher match = pat.matcher(extraIDs);
-    if (match.find()) {
-      final String idPart = match.group();
-      final int startPos = match.start();
-      if (!idPart.endsWith("~")) {
-        extraIDs.delete(startPos, startPos + 1 + docID.length());
-      }
-    }
+    folderTree.removeItem(Integer.parseInt(docID));
+    markChanged();
   }
 
-  /**
-   * Returns all the stored extraIDs. Used for debugging purposes.
-   *
-   * @return
-   */
-  /*
-   * public Set getAllExtraIDs() { Set idSet = new HashSet(); String idPattern =
-   * "\\#\\d+[\\#|\\~|/]"; Pattern pat = Pattern.compile(idPattern); Matcher
-   * match = pat.matcher(extraIDs); while(match.find()) { String idPart =
-   * match.group(); Pattern pat2 = Pattern.compile("\\d+"); Matcher match2 =
-   * pat2.matcher(idPart); if(match2.find()) { String id = match2.group();
-   * if(Util.isNumeric(id)) { idSet.add(id); } } } return idSet; }
-   */
   /**
    * This keeps track of the attachment URLs that have been sent for a for a
    * particular item ID. this info is stored as
@@ -930,6 +957,7 @@ public class ListState implements StatefulObject {
     } else {
       attchmnts.append("#" + itemID + "|" + attachmentURL);
     }
+    markChanged();
   }
 
   /**
@@ -990,6 +1018,7 @@ public class ListState implements StatefulObject {
       final int endPos = match.end();
       final int startPos = endPos - attachmentURL.length();
       attchmnts.delete(startPos, endPos);
+      markChanged();
       return true;
     }
     return false;
@@ -1007,6 +1036,7 @@ public class ListState implements StatefulObject {
    */
   public void setBiggestID(final int biggestID) {
     this.biggestID = biggestID;
+    markChanged();
   }
 
   /**
@@ -1026,6 +1056,7 @@ public class ListState implements StatefulObject {
       sendListAsDocument = inList.isSendListAsDocument();
       inheritedSecurity = inList.isInheritedSecurity();
       noCrawl = inList.isNoCrawl();
+      markChanged();
     }
   }
 
@@ -1078,6 +1109,7 @@ public class ListState implements StatefulObject {
   public void addToDeleteCache(final String deleteID) {
     if ((cachedDeletedIDs != null) && Util.isNumeric(deleteID)) {
       cachedDeletedIDs.add(deleteID);
+      markChanged();
     }
   }
 
@@ -1089,6 +1121,7 @@ public class ListState implements StatefulObject {
   public void removeFromDeleteCache(final String deleteID) {
     if ((cachedDeletedIDs != null) && Util.isNumeric(deleteID)) {
       cachedDeletedIDs.remove(deleteID);
+      markChanged();
     }
   }
 
@@ -1097,6 +1130,7 @@ public class ListState implements StatefulObject {
    */
   public void clearDeleteCache() {
     cachedDeletedIDs = new HashSet<String>();
+    markChanged();
   }
 
   /**
@@ -1118,6 +1152,7 @@ public class ListState implements StatefulObject {
    */
   public void setType(final String type) {
     this.type = type;
+    markChanged();
   }
 
   /**
@@ -1132,6 +1167,7 @@ public class ListState implements StatefulObject {
    */
   public void setAttchmnts(StringBuffer attchmnts) {
     this.attchmnts = attchmnts;
+    markChanged();
   }
 
   /**
@@ -1160,6 +1196,7 @@ public class ListState implements StatefulObject {
    */
   public void setLastCrawledDateTime(String lastCrawledDateTime) {
     this.lastCrawledDateTime = lastCrawledDateTime;
+    markChanged();
   }
 
   /**
@@ -1167,6 +1204,7 @@ public class ListState implements StatefulObject {
    */
   public void setLastDocProcessed(SPDocument lastDocProcessed) {
     this.lastDocProcessed = lastDocProcessed;
+    markChanged();
   }
 
   public SPDocument getLastDocProcessed() {
@@ -1250,10 +1288,11 @@ public class ListState implements StatefulObject {
     } else {
       if (SPType.SP2007 == getParentWebState().getSharePointType()) {
         if (FeedType.CONTENT_FEED == feedType) {
-          if (canContainFolders() && getIDs() != null && getIDs().length() != 0) {
+          if (canContainFolders() && folderTree.size() != 0) {
+            final String folderIDs = folderTree.toString();
             atts.clear();
             handler.startElement("", "", SPConstants.STATE_EXTRAIDS_FOLDERS, atts);
-            handler.characters(getIDs().toString().toCharArray(), 0, getIDs().length());
+            handler.characters(folderIDs.toCharArray(), 0, folderIDs.length());
             handler.endElement("", "", SPConstants.STATE_EXTRAIDS_FOLDERS);
           }
 
@@ -1347,6 +1386,7 @@ public class ListState implements StatefulObject {
         atts.getValue(SPConstants.STATE_RENAMED_FOLDERPATH),
         atts.getValue(SPConstants.STATE_ID));
     changedFolders.add(renamedFolder);
+    markChanged();
   }
 
   /**
@@ -1410,6 +1450,7 @@ public class ListState implements StatefulObject {
   }
 
   public boolean isCrawlQueueEmpty() {
+    loadSpilledCrawlQueue();
     if (null == crawlQueue || crawlQueue.size() == 0) {
       return true;
     } else {
@@ -1422,6 +1463,7 @@ public class ListState implements StatefulObject {
    */
   public void resetState() {
     currentChangeToken = nextChangeToken = null;
+    markChanged();
     setLastDocProcessed(null);
     setCrawlQueue(null);
     endAclCrawl();
@@ -1453,6 +1495,7 @@ public class ListState implements StatefulObject {
     }
     aclChanged = tmp_aclChanged = true;
     lastDocIdCrawledForAcl = tmp_lastDocIdCrawledForAcl = 0;
+    markChanged();
   }
 
   /**
@@ -1467,6 +1510,7 @@ public class ListState implements StatefulObject {
     }
     aclChanged = tmp_aclChanged = false;
     lastDocIdCrawledForAcl = tmp_lastDocIdCrawledForAcl = 0;
+    markChanged();
   }
 
   public void updateAclCrawlStatus(boolean isMoreToCrawl, int lastDocIdCrawled) {
@@ -1489,8 +1533,13 @@ public class ListState implements StatefulObject {
    * you make any change here
    */
   public void commitAclCrawlStatus() {
+    if (aclChanged == tmp_aclChanged
+        && lastDocIdCrawledForAcl == tmp_lastDocIdCrawledForAcl) {
+      return;
+    }
     aclChanged = tmp_aclChanged;
     lastDocIdCrawledForAcl = tmp_lastDocIdCrawledForAcl;
+    markChanged();
   }
 
   /**
@@ -1542,6 +1591,7 @@ public class ListState implements StatefulObject {
 
   public void setNoCrawl(boolean noCrawl) {
     this.noCrawl = noCrawl;
+    markChanged();
   }
 
   public boolean isInfoPathLibrary() {
@@ -1554,5 +1604,17 @@ public class ListState implements StatefulObject {
 
   public void addToChangedFolders(Folder changedFolder) {
     this.changedFolders.add(changedFolder);
+    markChanged();
+  }
+
+  /**
+   * Marks the parent web as changed, so that it is written with the next save
+   * of the state. Every mutator of a field written by
+   * {@link #dumpStateToXML(ContentHandler, FeedType)} must call this.
+   */
+  private void markChanged() {
+    if (null != parentWeb) {
+      parentWeb.markChanged();
+    }
   }
 }
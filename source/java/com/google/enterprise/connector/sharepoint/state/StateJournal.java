@@ -0,0 +1,201 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the connector state since the last
+ * snapshot of the state was saved. Every record is framed by a header line
+ * <code>generation length checksum</code> followed by the record itself so
+ * that a record which was only partially written (e.g. because the connector
+ * was killed) is detected and discarded on recovery. The generation identifies
+ * the snapshot to which the record applies. Records of any other generation
+ * are left over from before the last compaction and are ignored.
+ */
+class StateJournal {
+  private static final Logger LOGGER = Logger.getLogger(StateJournal.class.getName());
+
+  // Upper limit on the length of a header line
+  private static final int MAX_HEADER_LENGTH = 64;
+
+  private final File file;
+
+  /**
+   * @param file the journal file
+   */
+  StateJournal(final File file) {
+    this.file = file;
+  }
+
+  /**
+   * @return the size of the journal in bytes
+   */
+  long length() {
+    return file.length();
+  }
+
+  /**
+   * Appends a record to the journal.
+   *
+   * @param generation the generation of the snapshot the record applies to
+   * @param record the record
+   * @throws IOException
+   */
+  void append(final int generation, final byte[] record) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(record);
+    final String header = generation + " " + record.length + " "
+        + crc.getValue() + "\n";
+    final FileOutputStream fos = new FileOutputStream(file, true);
+    try {
+      fos.write(header.getBytes("US-ASCII"));
+      fos.write(record);
+      fos.write('\n');
+      fos.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+  }
+
+  /**
+   * Reads all the complete records of the given generation in the order they
+   * were appended. If an incomplete or corrupt record is found, the journal is
+   * truncated to the end of the last good record.
+   *
+   * @param generation generation of the snapshot that has been loaded
+   * @return the records
+   * @throws IOException
+   */
+  List<byte[]> readRecords(final int generation) throws IOException {
+    final List<byte[]> records = new ArrayList<byte[]>();
+    if (!file.exists()) {
+      return records;
+    }
+    long validLength = 0;
+    int skipped = 0;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    try {
+      while (true) {
+        final String header = readHeader(in);
+        if (null == header) {
+          break;
+        }
+        final String[] parts = header.split(" ");
+        if (parts.length != 3) {
+          LOGGER.log(Level.WARNING, "Invalid record header [ " + header
+              + " ] found in the state journal " + file);
+          break;
+        }
+        final int recordGeneration;
+        final byte[] record;
+        final long checksum;
+        try {
+          recordGeneration = Integer.parseInt(parts[0]);
+          record = new byte[Integer.parseInt(parts[1])];
+          checksum = Long.parseLong(parts[2]);
+        } catch (final NumberFormatException e) {
+          LOGGER.log(Level.WARNING, "Invalid record header [ " + header
+              + " ] found in the state journal " + file);
+          break;
+        }
+        try {
+          in.readFully(record);
+          if (in.read() != '\n') {
+            break;
+          }
+        } catch (final EOFException e) {
+          LOGGER.log(Level.WARNING, "Discarding incomplete record at the end of the state journal "
+              + file);
+          break;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        if (crc.getValue() != checksum) {
+          LOGGER.log(Level.WARNING, "Discarding corrupt record in the state journal "
+              + file);
+          break;
+        }
+        validLength += header.length() + 1 + record.length + 1;
+        if (recordGeneration == generation) {
+          records.add(record);
+        } else {
+          skipped++;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (skipped > 0) {
+      LOGGER.log(Level.INFO, "Ignored " + skipped
+          + " stale record(s) in the state journal " + file);
+    }
+    if (validLength < file.length()) {
+      truncate(validLength);
+    }
+    return records;
+  }
+
+  /**
+   * Deletes the journal. Used once a new snapshot has been saved.
+   */
+  void delete() {
+    if (file.exists() && !file.delete()) {
+      LOGGER.log(Level.WARNING, "Unable to delete the state journal " + file);
+    }
+  }
+
+  private void truncate(final long length) throws IOException {
+    LOGGER.log(Level.INFO, "Truncating the state journal " + file + " to "
+        + length + " bytes");
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return the header line without the line feed or null at the end of the
+   *         journal or if the header is incomplete
+   */
+  private static String readHeader(final InputStream in) throws IOException {
+    final StringBuilder header = new StringBuilder();
+    int chr;
+    while ((chr = in.read()) != '\n') {
+      if (chr == -1 || header.length() > MAX_HEADER_LENGTH) {
+        return null;
+      }
+      header.append((char) chr);
+    }
+    return header.toString();
+  }
+}
@@ -0,0 +1,295 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import org.apache.xerces.parsers.SAXParser;
+import org.apache.xml.serialize.OutputFormat;
+import org.apache.xml.serialize.XMLSerializer;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the ListStates of WebStates which are not being crawled in a page file
+ * instead of the memory. Every paged out WebState keeps only its own
+ * attributes in memory along with a {@link Page} which locates the serialized
+ * WebState node in the page file. The ListStates are read back as soon as
+ * they are accessed.
+ * <p>
+ * The page file is not a part of the persisted state. It is re-created every
+ * time the state is loaded, by copying the ListStates of every web while the
+ * complete state file is parsed, and is compacted once more than half of it
+ * is occupied by pages that have been read back.
+ * </p>
+ */
+class StatePager {
+  private static final Logger LOGGER = Logger.getLogger(StatePager.class.getName());
+
+  // The page file is compacted only when it is bigger than this
+  private static final long MIN_SIZE_FOR_COMPACTION = 1024 * 1024;
+
+  /**
+   * Location of a paged out WebState node in the page file, along with the
+   * in-memory information of its ListStates which is not part of the state
+   * file.
+   */
+  static class Page {
+    private long offset;
+    private final int length;
+
+    // Keys of the lists which were marked as non-existing when paged out
+    final Set<String> missingLists = new HashSet<String>();
+    // Set if the web has been marked as non-existing since it was paged out
+    boolean allListsMissing = false;
+    String currentListKey;
+    String lastCrawledListKey;
+
+    private Page(final long offset, final int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final File file;
+  private final GlobalState globalState;
+  private RandomAccessFile pageFile;
+  private final Set<Page> livePages = new HashSet<Page>();
+  private long liveBytes = 0;
+
+  /**
+   * @param file the page file. Any existing file is discarded
+   * @param globalState the state to which the paged WebStates belong
+   */
+  StatePager(final File file, final GlobalState globalState) {
+    this.file = file;
+    this.globalState = globalState;
+    delete(file);
+  }
+
+  /**
+   * Writes the ListStates of the web to the page file and releases them from
+   * memory.
+   *
+   * @param web The WebState to be paged out
+   * @throws IOException
+   * @throws SAXException
+   */
+  void pageOut(final WebState web) throws IOException, SAXException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final ContentHandler handler = newSerializer(bos);
+    handler.startDocument();
+    web.dumpStateToXML(handler, globalState.getFeedType());
+    handler.endDocument();
+    web.pagedOut(this, store(bos.toByteArray()));
+  }
+
+  /**
+   * @return a handler which serializes the nodes it receives for
+   *         {@link #store(byte[])}
+   */
+  static ContentHandler newSerializer(final ByteArrayOutputStream bos)
+      throws IOException {
+    return new XMLSerializer(bos, new OutputFormat("XML", "UTF-8", false)).asContentHandler();
+  }
+
+  /**
+   * Appends a serialized WebState node to the page file.
+   *
+   * @param page the serialized WebState node
+   * @return the location of the node in the page file
+   * @throws IOException
+   */
+  synchronized Page store(final byte[] page) throws IOException {
+    final RandomAccessFile raf = getPageFile();
+    final Page location = new Page(raf.length(), page.length);
+    raf.seek(location.offset);
+    raf.write(page);
+    livePages.add(location);
+    liveBytes += page.length;
+    if (raf.length() > Math.max(MIN_SIZE_FOR_COMPACTION, 2 * liveBytes)) {
+      compact();
+    }
+    return location;
+  }
+
+  /**
+   * Reads the ListStates of the web back from the page file. The page is
+   * released once the ListStates have been read successfully; otherwise it is
+   * kept so that they can be read again.
+   *
+   * @param web The WebState whose ListStates are to be loaded
+   * @param page Location of the WebState in the page file
+   * @throws IOException
+   * @throws SAXException
+   */
+  void pageIn(final WebState web, final Page page) throws IOException,
+      SAXException {
+    final byte[] bytes = read(page);
+    parse(bytes, globalState.new StateHandler(web));
+    release(page);
+  }
+
+  /**
+   * Writes the ListState nodes of a paged out web to the handler without
+   * loading them into memory.
+   *
+   * @param page Location of the WebState in the page file
+   * @param handler Handler to which the ListState nodes are written
+   * @throws SAXException
+   */
+  void dumpListStates(final Page page, final ContentHandler handler)
+      throws SAXException {
+    final byte[] bytes;
+    try {
+      bytes = read(page);
+    } catch (final IOException e) {
+      throw new SAXException("Unable to read from the page file " + file, e);
+    }
+    try {
+      parse(bytes, new DefaultHandler() {
+        // Skip the WebState node itself and forward its children
+        private int depth = 0;
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+            Attributes attributes) throws SAXException {
+          if (depth++ > 0) {
+            handler.startElement(uri, localName, qName, attributes);
+          }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+          if (--depth > 0) {
+            handler.endElement(uri, localName, qName);
+          }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+            throws SAXException {
+          if (depth > 1) {
+            handler.characters(ch, start, length);
+          }
+        }
+      });
+    } catch (final IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * Releases a page which is no longer needed, e.g. because its WebState has
+   * been deleted.
+   */
+  synchronized void release(final Page page) {
+    if (livePages.remove(page)) {
+      liveBytes -= page.length;
+    }
+  }
+
+  /**
+   * Deletes the page file
+   */
+  synchronized void close() {
+    closePageFile();
+    livePages.clear();
+    liveBytes = 0;
+    delete(file);
+  }
+
+  private synchronized byte[] read(final Page page) throws IOException {
+    final byte[] bytes = new byte[page.length];
+    final RandomAccessFile raf = getPageFile();
+    raf.seek(page.offset);
+    raf.readFully(bytes);
+    return bytes;
+  }
+
+  private static void parse(final byte[] bytes, final ContentHandler handler)
+      throws IOException, SAXException {
+    final SAXParser parser = new SAXParser();
+    final InputSource inputSource = new InputSource(new InputStreamReader(
+        new ByteArrayInputStream(bytes), "UTF-8"));
+    inputSource.setEncoding("UTF-8");
+    parser.setContentHandler(handler);
+    parser.parse(inputSource);
+  }
+
+  /**
+   * Copies the live pages to a new page file
+   */
+  private void compact() throws IOException {
+    LOGGER.log(Level.FINE, "Compacting the page file " + file + " of size "
+        + pageFile.length() + " with " + liveBytes + " bytes in use");
+    final File newFile = new File(file.getPath() + ".new");
+    final RandomAccessFile newPageFile = new RandomAccessFile(newFile, "rw");
+    try {
+      newPageFile.setLength(0);
+      for (final Page page : livePages) {
+        final byte[] bytes = read(page);
+        page.offset = newPageFile.getFilePointer();
+        newPageFile.write(bytes);
+      }
+    } catch (final IOException e) {
+      newPageFile.close();
+      delete(newFile);
+      throw e;
+    }
+    newPageFile.close();
+    closePageFile();
+    if (!file.delete() || !newFile.renameTo(file)) {
+      throw new IOException("Unable to replace the page file " + file);
+    }
+  }
+
+  private RandomAccessFile getPageFile() throws IOException {
+    if (null == pageFile) {
+      pageFile = new RandomAccessFile(file, "rw");
+    }
+    return pageFile;
+  }
+
+  private void closePageFile() {
+    if (null != pageFile) {
+      try {
+        pageFile.close();
+      } catch (final IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to close the page file " + file, e);
+      }
+      pageFile = null;
+    }
+  }
+
+  private static void delete(final File file) {
+    if (file.exists() && !file.delete()) {
+      LOGGER.log(Level.WARNING, "Unable to delete the page file " + file);
+    }
+  }
+}
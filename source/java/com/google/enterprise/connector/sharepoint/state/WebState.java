@@ -98,6 +98,17 @@ public class WebState implements StatefulObject {
   // for determining the crawl behavior of the web
   private WebCrawlInfo webCrawlInfo;
 
+  // Set while the ListStates of this web are paged out. Any access to the
+  // ListStates reads them back from the pager.
+  private StatePager pager = null;
+  private StatePager.Page page = null;
+  // Set while the ListStates are being read back from the pager
+  private boolean pagingIn = false;
+
+  // Set by the mutators of any field that is written to the state file, so
+  // that only the changed webs are written with the next save of the state
+  private volatile boolean changed = false;
+
   /**
    * For the sole purpose of loading WebState nodes as WebState objects when
    * state file is loaded in-memory.
@@ -167,6 +178,7 @@ public class WebState implements StatefulObject {
   public void setPrimaryKey(final String newKey) {
     if (newKey != null) {
       webId = newKey;
+      markChanged();
     }
   }
 
@@ -182,7 +194,10 @@ public class WebState implements StatefulObject {
    */
   public void setExisting(final boolean existing) {
     exists = existing;
-    if (exists == false) {
+    if (exists == false && null != page) {
+      // Applied when the ListStates are read back
+      page.allListsMissing = true;
+    } else if (exists == false) {
       // for each ListState, set "not existing" as the Webstate is not
       // existing
       final Iterator<ListState> it = allListStateSet.iterator();
@@ -207,6 +222,7 @@ public class WebState implements StatefulObject {
    */
   public void AddOrUpdateListStateInWebState(final ListState state,
       final DateTime time) {
+    loadListStates();
     if (state != null) {
       final ListState stateOld = keyMap.get(state.getPrimaryKey());
       if (stateOld != null) {
@@ -220,6 +236,7 @@ public class WebState implements StatefulObject {
         keyMap.put(state.getPrimaryKey(), state);
       }
       allListStateSet.add(state);
+      markChanged();
     }
   }
 
@@ -278,12 +295,14 @@ public class WebState implements StatefulObject {
    */
   public void setWebUrl(final String inWebUrl) {
     webUrl = inWebUrl;
+    markChanged();
   }
 
   /**
    * @return set of all list statesin this web
    */
   public TreeSet<ListState> getAllListStateSet() {
+    loadListStates();
     return allListStateSet;
   }
 
@@ -291,7 +310,9 @@ public class WebState implements StatefulObject {
    * @param inAllListStateSet
    */
   public void setAllListStateSet(final TreeSet<ListState> inAllListStateSet) {
+    loadListStates();
     allListStateSet = inAllListStateSet;
+    markChanged();
   }
 
   /**
@@ -301,6 +322,10 @@ public class WebState implements StatefulObject {
    * @param spContext
    */
   public void endRecrawl(final SharepointClientContext spContext) {
+    if (null != page && !page.allListsMissing && page.missingLists.isEmpty()) {
+      // No list to be deleted. Avoid reading back the ListStates
+      return;
+    }
     final Iterator<ListState> iter = getIterator();
     if (null != iter) {
       while (iter.hasNext()) {
@@ -395,6 +420,7 @@ public class WebState implements StatefulObject {
                   + list.getListURL() + "]. ");
               iter.remove();
               keyMap.remove(list.getPrimaryKey());
+              markChanged();
             } else if (maxID >= biggestID) {
               String docID = null;
               if (!list.isSiteDefaultPage()) {
@@ -443,6 +469,7 @@ public class WebState implements StatefulObject {
                 + list.getListURL() + "]. ");
             iter.remove();
             keyMap.remove(list.getPrimaryKey());
+            markChanged();
           }
         }
       }
@@ -453,20 +480,25 @@ public class WebState implements StatefulObject {
    * @param inlist
    */
   public void removeListStateFromKeyMap(final ListState inlist) {
+    loadListStates();
     keyMap.remove(inlist.getPrimaryKey());
+    markChanged();
   }
 
   /**
    * @param inlist
    */
   public void removeListStateFromSet(final ListState inlist) {
+    loadListStates();
     allListStateSet.remove(inlist);
+    markChanged();
   }
 
   /**
    * @return the the iterator for the list contained in this web
    */
   public Iterator<ListState> getIterator() {
+    loadListStates();
     return allListStateSet.iterator();
   }
 
@@ -477,6 +509,7 @@ public class WebState implements StatefulObject {
    * @return object handle, or null if none found
    */
   public ListState lookupList(final String key) {
+    loadListStates();
     final ListState ls = keyMap.get(key);
     return ls;
   }
@@ -486,6 +519,7 @@ public class WebState implements StatefulObject {
    *         start iterating for the current web.
    */
   public Iterator<ListState> getCurrentListstateIterator() {
+    loadListStates();
     final ListState start = getCurrentList();
     if (start == null) {
       return getIterator();
@@ -509,6 +543,7 @@ public class WebState implements StatefulObject {
    * @param currentObj
    */
   public void setCurrentList(final ListState currentObj) {
+    loadListStates();
     currentList = currentObj;
   }
 
@@ -516,6 +551,7 @@ public class WebState implements StatefulObject {
    * @return the last crawled list reference
    */
   public ListState getLastCrawledList() {
+    loadListStates();
     return lastCrawledList;
   }
 
@@ -523,6 +559,7 @@ public class WebState implements StatefulObject {
    * @param inLastCrawledList
    */
   public void setLastCrawledList(final ListState inLastCrawledList) {
+    loadListStates();
     lastCrawledList = inLastCrawledList;
   }
 
@@ -539,6 +576,7 @@ public class WebState implements StatefulObject {
    */
   public void setInsertionTime(final DateTime inInsertionTime) {
     insertionTime = inInsertionTime;
+    markChanged();
   }
 
   /**
@@ -560,6 +598,7 @@ public class WebState implements StatefulObject {
    */
   public void setTitle(final String title) {
     this.title = title;
+    markChanged();
   }
 
   /**
@@ -571,6 +610,7 @@ public class WebState implements StatefulObject {
 
   public void setSharePointType(SPType spType) {
     this.spType = spType;
+    markChanged();
   }
 
   /**
@@ -585,6 +625,7 @@ public class WebState implements StatefulObject {
    */
   public void setLastCrawledDateTime(String lastCrawledDateTime) {
     this.lastCrawledDateTime = lastCrawledDateTime;
+    markChanged();
   }
 
   @Override
@@ -624,7 +665,9 @@ public class WebState implements StatefulObject {
     // the content to be re-crawled from start but from the point where it
     // had stopped. Having the liststates persisted to state file will
     // ensure the same
-    if (null != allListStateSet || !allListStateSet.isEmpty()) {
+    if (null != page) {
+      pager.dumpListStates(page, handler);
+    } else if (null != allListStateSet || !allListStateSet.isEmpty()) {
       for (ListState list : allListStateSet) {
         list.dumpStateToXML(handler, feedType);
       }
@@ -671,6 +714,7 @@ public class WebState implements StatefulObject {
 
   private void setCurretAclChangeToken(String aclChangeToken) {
     this.currentAclChangeToken = aclChangeToken;
+    markChanged();
   }
 
   public String getNextAclChangeToken() {
@@ -679,6 +723,7 @@ public class WebState implements StatefulObject {
 
   public void setNextAclChangeToken(String aclChangeToken) {
     this.nextAclChangeToken = aclChangeToken;
+    markChanged();
   }
 
   public String getAclChangeTokenForWsCall() {
@@ -695,12 +740,14 @@ public class WebState implements StatefulObject {
         + nextAclChangeToken + " ] ");
     this.currentAclChangeToken = nextAclChangeToken;
     nextAclChangeToken = null;
+    markChanged();
   }
 
   /**
    * Resets the state of all the children Lists to initiate a complete re-crawl
    */
   public void resetState() {
+    loadListStates();
     for (ListState liststate : allListStateSet) {
       liststate.resetState();
     }
@@ -747,5 +794,134 @@ public class WebState implements StatefulObject {
 
   public void setWebCrawlInfo(WebCrawlInfo webCrawlInfo) {
     this.webCrawlInfo = webCrawlInfo;
+    markChanged();
+  }
+
+  /**
+   * Marks this web as changed, so that it is written with the next save of
+   * the state.
+   */
+  public void markChanged() {
+    changed = true;
+  }
+
+  /**
+   * @return true if this web has changed since the last call to
+   *         {@link #clearChanged()}
+   */
+  boolean isChanged() {
+    return changed;
+  }
+
+  /**
+   * Clears the changed flag. Called once the web has been written to the
+   * state file.
+   */
+  void clearChanged() {
+    changed = false;
+  }
+
+  /**
+   * @return true if the ListStates of this web are currently paged out
+   */
+  boolean isPagedOut() {
+    return null != page;
+  }
+
+  /**
+   * @return true if the ListStates can be paged out without losing any
+   *         information that is not persisted in the state file, e.g. the
+   *         documents waiting to be fed
+   */
+  boolean canBePagedOut() {
+    if (null != page) {
+      return false;
+    }
+    for (ListState list : allListStateSet) {
+      if (!list.isCrawlQueueEmpty() || null != list.getNextPage()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Releases the ListStates once they have been written to the pager
+   *
+   * @param inPager The pager that holds the ListStates
+   * @param inPage Location of this web in the pager
+   */
+  synchronized void pagedOut(final StatePager inPager,
+      final StatePager.Page inPage) {
+    for (ListState list : allListStateSet) {
+      if (!list.isExisting()) {
+        inPage.missingLists.add(list.getPrimaryKey());
+      }
+    }
+    if (null != currentList) {
+      inPage.currentListKey = currentList.getPrimaryKey();
+    }
+    if (null != lastCrawledList) {
+      inPage.lastCrawledListKey = lastCrawledList.getPrimaryKey();
+    }
+    allListStateSet = new TreeSet<ListState>();
+    keyMap.clear();
+    currentList = null;
+    lastCrawledList = null;
+    pager = inPager;
+    page = inPage;
+  }
+
+  /**
+   * Releases the space held by the paged out ListStates, if any. Used when the
+   * web is removed from the state.
+   */
+  synchronized void discardPage() {
+    if (null != page) {
+      pager.release(page);
+      page = null;
+    }
+  }
+
+  /**
+   * Reads back the ListStates if they have been paged out. If they cannot be
+   * read, the web stays paged out so that the ListStates are neither lost nor
+   * checkpointed as empty, and the next access tries again.
+   *
+   * @throws IllegalStateException if the ListStates cannot be read back
+   */
+  private synchronized void loadListStates() {
+    // The ListStates being read back are added through the same methods
+    if (null == page || pagingIn) {
+      return;
+    }
+    pagingIn = true;
+    // Reading back the ListStates does not change the web
+    final boolean wasChanged = changed;
+    try {
+      pager.pageIn(this, page);
+    } catch (final Exception e) {
+      allListStateSet = new TreeSet<ListState>();
+      keyMap.clear();
+      throw new IllegalStateException(
+          "Failed to read back the list states of web [ " + webUrl + " ]. ", e);
+    } finally {
+      pagingIn = false;
+      changed = wasChanged;
+    }
+    final StatePager.Page inPage = page;
+    page = null;
+    for (ListState list : allListStateSet) {
+      if (inPage.allListsMissing
+          || inPage.missingLists.contains(list.getPrimaryKey())) {
+        list.setExisting(false);
+      }
+    }
+    if (null != inPage.currentListKey) {
+      currentList = keyMap.get(inPage.currentListKey);
+    }
+    if (null != inPage.lastCrawledListKey) {
+      lastCrawledList = keyMap.get(inPage.lastCrawledListKey);
+    }
   }
 }
@@ -72,7 +72,7 @@ public class AlertsWS {
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
       try {
-        final AlertsLocator loc = new AlertsLocator();
+        final AlertsLocator loc = new AlertsLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
         loc.setAlertsSoapEndpointAddress(endpoint);
         final Alerts alertsService = loc;
 
@@ -62,7 +62,7 @@ public class GSBulkAuthorizationWS {
           + SPConstants.GSPBULKAUTHORIZATION_ENDPOINT;
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
-      final BulkAuthorizationLocator bulkloc = new BulkAuthorizationLocator();
+      final BulkAuthorizationLocator bulkloc = new BulkAuthorizationLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
       bulkloc.setBulkAuthorizationSoapEndpointAddress(endpoint);
       final BulkAuthorization service = bulkloc;
 
@@ -87,6 +87,15 @@ public class GSBulkAuthorizationWS {
     }
   }
 
+  /**
+   * Sets the time-out of the web service calls made after this
+   *
+   * @param timeout time-out in milliseconds
+   */
+  public void setTimeout(final int timeout) {
+    stub.setTimeout(timeout);
+  }
+
   /**
    * To call the Authorize() Web Method of GSBulkAuthorization Web Service
    *
@@ -77,7 +77,7 @@ public class GSSiteDiscoveryWS {
           + SPConstants.GSPSITEDISCOVERYWS_END_POINT;
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
-      final SiteDiscoveryLocator loc = new SiteDiscoveryLocator();
+      final SiteDiscoveryLocator loc = new SiteDiscoveryLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
       loc.setSiteDiscoverySoapEndpointAddress(endpoint);
       final SiteDiscovery gspSiteDiscovery = loc;
       try {
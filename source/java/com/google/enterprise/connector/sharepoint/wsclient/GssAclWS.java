@@ -15,6 +15,7 @@
 
 package com.google.enterprise.connector.sharepoint.wsclient;
 
+import com.google.enterprise.connector.sharepoint.client.AclPool;
 import com.google.enterprise.connector.sharepoint.client.SPConstants;
 import com.google.enterprise.connector.sharepoint.client.SharepointClientContext;
 import com.google.enterprise.connector.sharepoint.client.Util;
@@ -26,12 +27,15 @@ import com.google.enterprise.connector.sharepoint.generated.gssacl.GssAclChangeC
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssAclMonitor;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssAclMonitorLocator;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssAclMonitorSoap_BindingStub;
+import com.google.enterprise.connector.sharepoint.generated.gssacl.GssAclScope;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssGetAclChangesSinceTokenResult;
+import com.google.enterprise.connector.sharepoint.generated.gssacl.GssGetAclForUrlsByScopeResult;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssGetAclForUrlsResult;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssGetListItemsWithInheritingRoleAssignments;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssPrincipal;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssResolveSPGroupResult;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.GssSharepointPermission;
+import com.google.enterprise.connector.sharepoint.generated.gssacl.GssUrlScope;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.ObjectType;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.PrincipalType;
 import com.google.enterprise.connector.sharepoint.generated.gssacl.SPChangeType;
@@ -45,6 +49,7 @@ import com.google.enterprise.connector.spi.SpiConstants.RoleType;
 import org.apache.axis.AxisFault;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -64,6 +69,12 @@ import javax.xml.rpc.ServiceException;
  * @author nitendra_thakur
  */
 public class GssAclWS {
+  /*
+   * Endpoints whose web service does not implement GetAclForUrlsByScope, i.e.
+   * which have been deployed with an older version of the connector
+   */
+  private static final Set<String> byScopeUnsupportedEndpoints = Collections.synchronizedSet(new HashSet<String>());
+
   private String endpoint;
   private GssAclMonitorSoap_BindingStub stub = null;
   private final Logger LOGGER = Logger.getLogger(GssAclWS.class.getName());
@@ -94,7 +105,7 @@ public class GssAclWS {
     endpoint = Util.encodeURL(siteurl) + SPConstants.GSACLENDPOINT;
     LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
-    final GssAclMonitorLocator loc = new GssAclMonitorLocator();
+    final GssAclMonitorLocator loc = new GssAclMonitorLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
     loc.setGssAclMonitorSoapEndpointAddress(endpoint);
     final GssAclMonitor service = loc;
 
@@ -156,6 +167,53 @@ public class GssAclWS {
     return result;
   }
 
+  /**
+   * Executes GetAclForUrlsByScope() web method of GssAcl web service. Works
+   * like {@link #getAclForUrls(String[])}, except that the ACL of a unique
+   * security scope is returned only once for all the entities inheriting it.
+   *
+   * @param urls Set of entity URLs whose ACLs are to be fetched
+   * @return web service response {@link GssGetAclForUrlsByScopeResult} as it
+   *         is. null if the call failed or if the web service does not
+   *         implement this web method
+   */
+  private GssGetAclForUrlsByScopeResult getAclForUrlsByScope(String[] urls) {
+    GssGetAclForUrlsByScopeResult result = null;
+    if (null == urls || urls.length == 0
+        || byScopeUnsupportedEndpoints.contains(endpoint)) {
+      return result;
+    }
+    try {
+      result = stub.getAclForUrlsByScope(urls);
+    } catch (final AxisFault af) {
+      if (null != af.getFaultString()
+          && af.getFaultString().indexOf(SPConstants.UNRECOGNIZED_SOAPACTION) != -1) {
+        LOGGER.log(Level.INFO, "Web service at endpoint [ " + endpoint
+            + " ] does not support getAclForUrlsByScope. getAclForUrls will be used instead.");
+        byScopeUnsupportedEndpoints.add(endpoint);
+      } else if ((SPConstants.UNAUTHORIZED.indexOf(af.getFaultString()) != -1)
+          && (sharepointClientContext.getDomain() != null)) {
+        final String username = Util.switchUserNameFormat(stub.getUsername());
+        LOGGER.log(Level.CONFIG, "Web Service call failed for username [ "
+            + stub.getUsername() + " ]. Trying with " + username);
+        stub.setUsername(username);
+        try {
+          result = stub.getAclForUrlsByScope(urls);
+        } catch (final Exception e) {
+          LOGGER.log(Level.WARNING, "Call to getAclForUrlsByScope failed. endpoint [ "
+              + endpoint + " ].", e);
+        }
+      } else {
+        LOGGER.log(Level.WARNING, "Call to getAclForUrlsByScope failed. endpoint [ "
+            + endpoint + " ].", af);
+      }
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Call to getAclForUrlsByScope failed. endpoint [ "
+          + endpoint + " ].", e);
+    }
+    return result;
+  }
+
   /**
    * Used to parse the response of {@link GssAclWS#getAclForUrls(String[])} and
    * update the ACLs into the {@link SPDocument} The set of document objects
@@ -184,7 +242,7 @@ public class GssAclWS {
     GssAcl[] allAcls = wsResult.getAllAcls();
     if (null != allAcls && allAcls.length != 0) {
       Set<UserGroupMembership> memberships = new TreeSet<UserGroupMembership>();
-      ACL: for (GssAcl acl : allAcls) {
+      for (GssAcl acl : allAcls) {
         String entityUrl = acl.getEntityUrl();
         GssAce[] allAces = acl.getAllAce();
         if (null == entityUrl || null == allAces) {
@@ -202,104 +260,217 @@ public class GssAclWS {
         LOGGER.log(Level.CONFIG, "WsLog [ " + acl.getLogMessage() + " ] ");
         Map<String, Set<RoleType>> userPermissionMap = new HashMap<String, Set<RoleType>>();
         Map<String, Set<RoleType>> groupPermissionMap = new HashMap<String, Set<RoleType>>();
-        for (GssAce ace : allAces) {
-          // Handle Principal
-          GssPrincipal principal = ace.getPrincipal();
-          if (null == principal) {
-            LOGGER.log(Level.WARNING, "No Principal found in ace.");
-            continue;
-          }
-          if (null == principal.getType() || null == principal.getName()) {
-            LOGGER.log(Level.WARNING, "Either Principal Name [ "
-                + principal.getName() + " ] or Principal Type [ "
-                + principal.getType() + " ]  is unavailable");
-            continue;
-          }
+        if (!buildAcl(allAces, getObjectType(document), entityUrl, wsResult.getSiteCollectionUrl(), userPermissionMap, groupPermissionMap, memberships)) {
+          continue;
+        }
+        // Documents inheriting the same permissions share one ACL
+        document.setUsersAclMap(AclPool.intern(userPermissionMap));
+        document.setGroupsAclMap(AclPool.intern(groupPermissionMap));
+      }
+      addMemberships(memberships);
+    }
+  }
 
-          // Handle Permissions
-          GssSharepointPermission permissions = ace.getPermission();
-          if (null == permissions) {
-            LOGGER.log(Level.WARNING, "No permissions found for Principal [ "
-                + principal.getName() + " ] ");
-            continue;
-          }
+  /**
+   * Used to parse the response of
+   * {@link GssAclWS#getAclForUrlsByScope(String[])} and update the ACLs into
+   * the {@link SPDocument}. Works like
+   * {@link #processWsResponse(GssGetAclForUrlsResult, Map)}, except that the
+   * ACL of a scope is built only once per object type and then shared by all
+   * the documents of the scope.
+   *
+   * @param wsResult Web Service response to be parsed
+   * @param urlToDocMap Documents whose ACLs are to be set. The keys in the map
+   *          represents the document URL
+   */
+  private void processWsResponse(GssGetAclForUrlsByScopeResult wsResult,
+      Map<String, SPDocument> urlToDocMap) {
+    if (null == wsResult || null == urlToDocMap) {
+      return;
+    }
+    LOGGER.log(Level.CONFIG, "Building ACLs from the WS response. WSLog [ "
+        + wsResult.getLogMessage() + " ]");
+    GssAclScope[] allScopes = wsResult.getAllScopes();
+    GssUrlScope[] allUrls = wsResult.getAllUrls();
+    if (null == allScopes || null == allUrls) {
+      return;
+    }
+    Map<String, GssAclScope> scopes = new HashMap<String, GssAclScope>();
+    for (GssAclScope scope : allScopes) {
+      if (null != scope.getScopeId()) {
+        scopes.put(scope.getScopeId(), scope);
+      }
+    }
+    LOGGER.log(Level.CONFIG, "Found #" + scopes.size()
+        + " unique scopes for #" + allUrls.length + " entities");
+
+    // ACLs built so far, keyed by object type and scope. The ACLs containing
+    // deny permissions are mapped to null
+    Map<String, Map<String, Set<RoleType>>> userAcls = new HashMap<String, Map<String, Set<RoleType>>>();
+    Map<String, Map<String, Set<RoleType>>> groupAcls = new HashMap<String, Map<String, Set<RoleType>>>();
+    Set<UserGroupMembership> memberships = new TreeSet<UserGroupMembership>();
+    for (GssUrlScope urlScope : allUrls) {
+      String entityUrl = urlScope.getEntityUrl();
+      String scopeId = urlScope.getScopeId();
+      GssAclScope scope = (null == scopeId) ? null : scopes.get(scopeId);
+      if (null == entityUrl || null == scope || null == scope.getAllAce()) {
+        LOGGER.log(Level.WARNING, "Either entityUrl [ " + entityUrl
+            + " ] is unavailable or No ACE found for its scope [ " + scopeId
+            + " ]. WSLog [ " + urlScope.getLogMessage() + " ] ");
+        continue;
+      }
+      SPDocument document = urlToDocMap.get(entityUrl);
+      if (null == document) {
+        LOGGER.log(Level.WARNING, "No document found in urlToDocMap map for the entityUrl [ "
+            + entityUrl + " ], WSLog [ " + urlScope.getLogMessage() + " ] ");
+        continue;
+      }
+      ObjectType objectType = getObjectType(document);
+      String key = objectType + "|" + scopeId;
+      if (!userAcls.containsKey(key)) {
+        LOGGER.log(Level.CONFIG, "WsLog [ " + scope.getLogMessage() + " ] ");
+        Map<String, Set<RoleType>> userPermissionMap = new HashMap<String, Set<RoleType>>();
+        Map<String, Set<RoleType>> groupPermissionMap = new HashMap<String, Set<RoleType>>();
+        if (buildAcl(scope.getAllAce(), objectType, entityUrl, wsResult.getSiteCollectionUrl(), userPermissionMap, groupPermissionMap, memberships)) {
+          userAcls.put(key, AclPool.intern(userPermissionMap));
+          groupAcls.put(key, AclPool.intern(groupPermissionMap));
+        } else {
+          userAcls.put(key, null);
+          groupAcls.put(key, null);
+        }
+      }
+      if (null == userAcls.get(key)) {
+        LOGGER.log(Level.WARNING, "Skipping the ACL for entity URL [ "
+            + entityUrl + " ] as its scope [ " + scopeId
+            + " ] contains some deny permissions");
+        continue;
+      }
+      document.setUsersAclMap(userAcls.get(key));
+      document.setGroupsAclMap(groupAcls.get(key));
+    }
+    addMemberships(memberships);
+  }
 
-          // Check to determine whether the object-type of the document is list
-          // list-item or site.
+  /**
+   * Check to determine whether the object-type of the document is list
+   * list-item or site.
+   */
+  private ObjectType getObjectType(SPDocument document) {
+    ObjectType objectType = ObjectType.ITEM;
+    if (document.getObjType().equals(SPConstants.SITE)) {
+      objectType = ObjectType.SITE_LANDING_PAGE;
+    } else if (null != document.getParentList()) {
+      if (document.getParentList().getPrimaryKey().equals(Util.getOriginalDocId(document.getDocId(), document.getFeedType()))) {
+        objectType = ObjectType.LIST;
+      }
+    }
+    return objectType;
+  }
 
-          ObjectType objectType = ObjectType.ITEM;
+  /**
+   * Builds the user and group ACLs of an entity from the ACEs returned by the
+   * web service. The memberships of the SharePoint groups found in the ACEs
+   * are collected for the User Data Store.
+   *
+   * @param allAces ACEs of the entity
+   * @param objectType the kind of entity
+   * @param entityUrl URL of the entity, for logging
+   * @param siteCollectionUrl site collection the ACEs belong to
+   * @param userPermissionMap the user ACL to be populated
+   * @param groupPermissionMap the group ACL to be populated
+   * @param memberships the collected memberships
+   * @return false if the ACL contains deny permissions and must be skipped
+   */
+  private boolean buildAcl(GssAce[] allAces, ObjectType objectType,
+      String entityUrl, String siteCollectionUrl,
+      Map<String, Set<RoleType>> userPermissionMap,
+      Map<String, Set<RoleType>> groupPermissionMap,
+      Set<UserGroupMembership> memberships) {
+    for (GssAce ace : allAces) {
+      // Handle Principal
+      GssPrincipal principal = ace.getPrincipal();
+      if (null == principal) {
+        LOGGER.log(Level.WARNING, "No Principal found in ace.");
+        continue;
+      }
+      if (null == principal.getType() || null == principal.getName()) {
+        LOGGER.log(Level.WARNING, "Either Principal Name [ "
+            + principal.getName() + " ] or Principal Type [ "
+            + principal.getType() + " ]  is unavailable");
+        continue;
+      }
 
-          if (document.getObjType().equals(SPConstants.SITE)) {
-            objectType = ObjectType.SITE_LANDING_PAGE;
-          } else if (null != document.getParentList()) {
-            if (document.getParentList().getPrimaryKey().equals(Util.getOriginalDocId(document.getDocId(), document.getFeedType()))) {
-              objectType = ObjectType.LIST;
-            }
-          }
-          String[] deniedPermissions = permissions.getDeniedPermission();
-          if (null != deniedPermissions) {
-            Set<RoleType> deniedRoleTypes = Util.getRoleTypesFor(deniedPermissions, objectType);
-            if (null != deniedRoleTypes && deniedRoleTypes.size() > 0) {
-              // GSA does not support DENY permissions in the ACL.
-              // And, sending a partial ACL (by dropping just the
-              // DENY ACEs) could be wrong because two ACEs,
-              // directly or indirectly, might be refering to the
-              // same single user. In such cases, dropping the
-              // DENY will be wrong because DENY has a
-              // preference over GRANT
-              LOGGER.log(Level.WARNING, "Skipping the ACL for entity URL [ "
-                  + entityUrl
-                  + " ] it contains some deny permissions for Principal [ "
-                  + principal.getName() + " ] ");
-              continue ACL;
-            }
-          }
+      // Handle Permissions
+      GssSharepointPermission permissions = ace.getPermission();
+      if (null == permissions) {
+        LOGGER.log(Level.WARNING, "No permissions found for Principal [ "
+            + principal.getName() + " ] ");
+        continue;
+      }
 
-          final String principalName = getPrincipalName(principal);
-          LOGGER.fine("Permission list "
-              + Arrays.asList(permissions.getAllowedPermissions())
-              + " for the User " + principalName);
-          Set<RoleType> allowedRoleTypes = Util.getRoleTypesFor(permissions.getAllowedPermissions(), objectType);
-          if (PrincipalType.USER.equals(principal.getType())) {
-            userPermissionMap.put(principalName, allowedRoleTypes);
-          } else if (PrincipalType.DOMAINGROUP.equals(principal.getType())
-              || PrincipalType.SPGROUP.equals(principal.getType())) {
-            // If it's a SharePoint group, add the membership info
-            // into the User Data Store
-            if (PrincipalType.SPGROUP.equals(principal.getType())
-                && null != sharepointClientContext.getUserDataStoreDAO()) {
-              GssPrincipal[] members = principal.getMembers();
-              for (GssPrincipal member : members) {
-                memberships.add(new UserGroupMembership(member.getID(),
-                    getPrincipalName(member), principal.getID(), principalName,
-                    wsResult.getSiteCollectionUrl()));
-              }
-            }
+      String[] deniedPermissions = permissions.getDeniedPermission();
+      if (null != deniedPermissions) {
+        Set<RoleType> deniedRoleTypes = AclPool.getRoleTypesFor(deniedPermissions, objectType);
+        if (null != deniedRoleTypes && deniedRoleTypes.size() > 0) {
+          // GSA does not support DENY permissions in the ACL.
+          // And, sending a partial ACL (by dropping just the
+          // DENY ACEs) could be wrong because two ACEs,
+          // directly or indirectly, might be refering to the
+          // same single user. In such cases, dropping the
+          // DENY will be wrong because DENY has a
+          // preference over GRANT
+          LOGGER.log(Level.WARNING, "Skipping the ACL for entity URL [ "
+              + entityUrl
+              + " ] it contains some deny permissions for Principal [ "
+              + principal.getName() + " ] ");
+          return false;
+        }
+      }
 
-            if (PrincipalType.SPGROUP.equals(principal.getType())) {
-              // FIXME This is temporary
-              groupPermissionMap.put(new StringBuffer().append("[").append(wsResult.getSiteCollectionUrl()).append("]").append(principalName).toString(), allowedRoleTypes);
-            } else {
-              groupPermissionMap.put(principalName, allowedRoleTypes);
-            }
-          } else {
-            LOGGER.log(Level.WARNING, "Skipping ACE for principal [ "
-                + principal.getName() + " ] because its type [ "
-                + principal.getType() + " ]  is unknown");
-            continue;
+      final String principalName = getPrincipalName(principal);
+      LOGGER.fine("Permission list "
+          + Arrays.asList(permissions.getAllowedPermissions())
+          + " for the User " + principalName);
+      Set<RoleType> allowedRoleTypes = AclPool.getRoleTypesFor(permissions.getAllowedPermissions(), objectType);
+      if (PrincipalType.USER.equals(principal.getType())) {
+        userPermissionMap.put(principalName, allowedRoleTypes);
+      } else if (PrincipalType.DOMAINGROUP.equals(principal.getType())
+          || PrincipalType.SPGROUP.equals(principal.getType())) {
+        // If it's a SharePoint group, add the membership info
+        // into the User Data Store
+        if (PrincipalType.SPGROUP.equals(principal.getType())
+            && null != sharepointClientContext.getUserDataStoreDAO()) {
+          GssPrincipal[] members = principal.getMembers();
+          for (GssPrincipal member : members) {
+            memberships.add(new UserGroupMembership(member.getID(),
+                getPrincipalName(member), principal.getID(), principalName,
+                siteCollectionUrl));
           }
         }
-        document.setUsersAclMap(userPermissionMap);
-        document.setGroupsAclMap(groupPermissionMap);
-      }
 
-      if (null != sharepointClientContext.getUserDataStoreDAO()) {
-        try {
-          sharepointClientContext.getUserDataStoreDAO().addMemberships(memberships);
-        } catch (Exception e) {
-          LOGGER.log(Level.WARNING, "Failed to add #" + memberships.size()
-              + " memberships in user data store. ", e);
+        if (PrincipalType.SPGROUP.equals(principal.getType())) {
+          // FIXME This is temporary
+          groupPermissionMap.put(new StringBuffer().append("[").append(siteCollectionUrl).append("]").append(principalName).toString(), allowedRoleTypes);
+        } else {
+          groupPermissionMap.put(principalName, allowedRoleTypes);
         }
+      } else {
+        LOGGER.log(Level.WARNING, "Skipping ACE for principal [ "
+            + principal.getName() + " ] because its type [ "
+            + principal.getType() + " ]  is unknown");
+        continue;
+      }
+    }
+    return true;
+  }
+
+  private void addMemberships(Set<UserGroupMembership> memberships) {
+    if (null != sharepointClientContext.getUserDataStoreDAO()) {
+      try {
+        sharepointClientContext.getUserDataStoreDAO().addMemberships(memberships);
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Failed to add #" + memberships.size()
+            + " memberships in user data store. ", e);
       }
     }
   }
@@ -374,8 +545,13 @@ public class GssAclWS {
         LOGGER.log(Level.CONFIG, "Getting ACL for #" + urlToDocMap.size()
             + " entities crawled from site [ " + webState.getWebUrl()
             + " ]. Document list : " + resultSet.toString());
-        GssGetAclForUrlsResult wsResult = getAclForUrls(allUrlsForAcl);
-        processWsResponse(wsResult, urlToDocMap);
+        GssGetAclForUrlsByScopeResult scopeResult = getAclForUrlsByScope(allUrlsForAcl);
+        if (null != scopeResult) {
+          processWsResponse(scopeResult, urlToDocMap);
+        } else {
+          GssGetAclForUrlsResult wsResult = getAclForUrls(allUrlsForAcl);
+          processWsResponse(wsResult, urlToDocMap);
+        }
       } catch (Exception e) {
         LOGGER.log(Level.WARNING, "Problem while getting ACL from site [ "
             + webState.getWebUrl() + " ]", e);
@@ -556,6 +732,9 @@ public class GssAclWS {
     Set<String> changedGroups = new TreeSet<String>();
     Set<Integer> deletedGroups = new TreeSet<Integer>();
     Set<Integer> deletedUsers = new TreeSet<Integer>();
+    // If any change affects the permissions under this web
+    boolean isAclChanged = false;
+    boolean isSecurityPolicyChanged = false;
     for (GssAclChange change : changes) {
       if (null == change) {
         continue;
@@ -573,12 +752,14 @@ public class GssAclWS {
       }
       LOGGER.log(Level.CONFIG, "Change detected changeType [ " + changeType
           + " ], objectType [ " + objType + " ]. ");
+      isAclChanged = true;
 
       if (objType == ObjectType.SECURITY_POLICY) {
         LOGGER.log(Level.INFO, "Resetting all list states under web [ "
             + webstate.getWebUrl() + " ] because of security policy change.");
         webstate.resetState();
         isWebReset = true;
+        isSecurityPolicyChanged = true;
       } else if (objType == ObjectType.WEB && !isWebChanged) {
         if (changeType == SPChangeType.AssignmentDelete) {
           // Typically, deletion of a role affects the ACL of only
@@ -695,6 +876,17 @@ public class GssAclWS {
     // Sync the membership of all changed groups
     syncGroupMembership(deletedUsers, deletedGroups, changedGroups, wsResult.getSiteCollectionUrl());
 
+    // The cached authorization decisions might not hold any more. A security
+    // policy applies to the whole web application.
+    if (isAclChanged) {
+      String changedScope = isSecurityPolicyChanged ? Util.getWebApp(webstate.getWebUrl())
+          : wsResult.getSiteCollectionUrl();
+      if (null == changedScope) {
+        changedScope = Util.getWebApp(webstate.getWebUrl());
+      }
+      sharepointClientContext.getAuthorizationCache().invalidate(changedScope);
+    }
+
     if (null == webstate.getNextAclChangeToken()
         || webstate.getNextAclChangeToken().trim().length() == 0) {
       webstate.setNextAclChangeToken(allChanges.getChangeToken());
@@ -0,0 +1,229 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+
+import org.apache.axis.message.MessageElement;
+import org.apache.xerces.parsers.SAXParser;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a GetListItemChangesSinceToken response that are used by the
+ * connector: the change token and the changes from the rs:Changes element and
+ * the paging information and the rows from the rs:data element. Every row is
+ * kept as its attribute names mapped to the attribute values, in document
+ * order.
+ * <p>
+ * Can be built either from the result element deserialized by Axis or
+ * directly from the SOAP response stream with {@link #parse(Reader)}. The
+ * latter avoids building the whole response as a tree of MessageElements,
+ * which takes several times the memory of the rows themselves for pages with
+ * many rows and metadata columns.
+ * </p>
+ */
+class ListItemChanges {
+  /**
+   * One child of the rs:Changes element
+   */
+  static class Change {
+    // Set for the List element which informs that the list has changed
+    final boolean listChanged;
+    final String changeType;
+    final String itemId;
+
+    Change(final boolean listChanged, final String changeType,
+        final String itemId) {
+      this.listChanged = listChanged;
+      this.changeType = changeType;
+      this.itemId = itemId;
+    }
+  }
+
+  private static final String ROW = "row";
+
+  private static final String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
+  private static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+  private static final String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+
+  boolean changesFound = false;
+  String lastChangeToken;
+  final List<Change> changes = new ArrayList<Change>();
+
+  boolean dataFound = false;
+  // Set if rs:data is found before rs:Changes
+  boolean outOfSequence = false;
+  String nextPage;
+  final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+
+  /**
+   * @param result The GetListItemChangesSinceTokenResult element as
+   *          deserialized by Axis
+   * @return the changes found in the result element
+   */
+  static ListItemChanges fromMessageElement(final MessageElement result) {
+    final ListItemChanges listItemChanges = new ListItemChanges();
+    for (final Iterator itChilds = result.getChildElements(); itChilds.hasNext();) {
+      final MessageElement child = (MessageElement) itChilds.next();
+      if (SPConstants.CHANGES.equalsIgnoreCase(child.getLocalName())) {
+        listItemChanges.changesFound = true;
+        listItemChanges.lastChangeToken = child.getAttributeValue(SPConstants.LASTCHANGETOKEN);
+        for (final Iterator itrchild = child.getChildElements(); itrchild.hasNext();) {
+          final MessageElement change = (MessageElement) itrchild.next();
+          if (null == change) {
+            continue;
+          }
+          if (SPConstants.LIST.equalsIgnoreCase(change.getLocalName())) {
+            listItemChanges.changes.add(new Change(true, null, null));
+          } else {
+            listItemChanges.changes.add(new Change(false,
+                change.getAttributeValue(SPConstants.CHANGETYPE),
+                change.getValue()));
+          }
+        }
+      } else if (SPConstants.DATA.equalsIgnoreCase(child.getLocalName())) {
+        listItemChanges.dataFound = true;
+        listItemChanges.outOfSequence = !listItemChanges.changesFound;
+        listItemChanges.nextPage = child.getAttribute(SPConstants.LIST_ITEM_COLLECTION_POSITION_NEXT);
+        for (final Iterator itrchild = child.getChildElements(); itrchild.hasNext();) {
+          listItemChanges.rows.add(getAttributes((MessageElement) itrchild.next()));
+        }
+      }
+    }
+    return listItemChanges;
+  }
+
+  /**
+   * @param element a row returned by a Lists web service call
+   * @return the attributes of the element, in document order
+   */
+  static Map<String, String> getAttributes(final MessageElement element) {
+    final Map<String, String> attributes = new LinkedHashMap<String, String>();
+    for (final Iterator itAttrs = element.getAllAttributes(); itAttrs.hasNext();) {
+      final Object oneAttr = itAttrs.next();
+      if (oneAttr != null) {
+        final String name = oneAttr.toString();
+        attributes.put(name, element.getAttribute(name));
+      }
+    }
+    return attributes;
+  }
+
+  /**
+   * Reads the changes directly from a SOAP response of
+   * GetListItemChangesSinceToken. Only the elements used by the connector are
+   * kept.
+   * <p>
+   * As with the responses deserialized by Axis, a response with a DOCTYPE is
+   * rejected and external entities are never resolved. The response is
+   * expected to be filtered for invalid XML characters already.
+   * </p>
+   *
+   * @param soapResponse The SOAP response
+   * @return the changes found in the response
+   * @throws IOException
+   * @throws SAXException if the response is not well formed or has a DOCTYPE
+   */
+  static ListItemChanges parse(final Reader soapResponse)
+      throws IOException, SAXException {
+    final ListItemChanges listItemChanges = new ListItemChanges();
+    final SAXParser parser = new SAXParser();
+    parser.setFeature(DISALLOW_DOCTYPE, true);
+    parser.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+    parser.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+    parser.setContentHandler(listItemChanges.new ResponseHandler());
+    parser.parse(new InputSource(soapResponse));
+    return listItemChanges;
+  }
+
+  /**
+   * Collects the changes and rows while the response is being parsed
+   */
+  private class ResponseHandler extends DefaultHandler {
+    private boolean inData = false;
+    // Depth of the current element below rs:Changes. 0 if outside of it.
+    private int changesDepth = 0;
+    // Child of rs:Changes whose text is being read
+    private String changeType = null;
+    private StringBuilder itemId = null;
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attributes) {
+      if (changesDepth > 0) {
+        // Only the direct children of rs:Changes are changes. The List
+        // element carries the whole list schema underneath.
+        if (changesDepth++ == 1) {
+          if (SPConstants.LIST.equalsIgnoreCase(localName)) {
+            changes.add(new Change(true, null, null));
+          } else {
+            changeType = attributes.getValue(SPConstants.CHANGETYPE);
+            itemId = new StringBuilder();
+          }
+        }
+      } else if (inData) {
+        if (ROW.equals(localName)) {
+          final Map<String, String> row = new LinkedHashMap<String, String>();
+          for (int i = 0; i < attributes.getLength(); i++) {
+            row.put(attributes.getQName(i), attributes.getValue(i));
+          }
+          rows.add(row);
+        }
+      } else if (SPConstants.CHANGES.equalsIgnoreCase(localName)) {
+        changesDepth = 1;
+        changesFound = true;
+        lastChangeToken = attributes.getValue(SPConstants.LASTCHANGETOKEN);
+      } else if (SPConstants.DATA.equalsIgnoreCase(localName)) {
+        inData = true;
+        dataFound = true;
+        outOfSequence = !changesFound;
+        nextPage = attributes.getValue(SPConstants.LIST_ITEM_COLLECTION_POSITION_NEXT);
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (null != itemId) {
+        itemId.append(ch, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if (changesDepth > 0) {
+        if (--changesDepth == 1 && null != itemId) {
+          final String value = itemId.toString().trim();
+          changes.add(new Change(false, changeType,
+              (value.length() == 0) ? null : value));
+          changeType = null;
+          itemId = null;
+        }
+      } else if (inData && SPConstants.DATA.equalsIgnoreCase(localName)) {
+        inData = false;
+      }
+    }
+  }
+}
@@ -40,13 +40,17 @@ import com.google.enterprise.connector.sharepoint.wsclient.util.DateUtil;
 import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 
 import org.apache.axis.AxisFault;
+import org.apache.axis.client.Service;
 import org.apache.axis.message.MessageElement;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.text.ParseException;
@@ -56,6 +60,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -83,6 +88,9 @@ public class ListsWS {
   private ListsSoap_BindingStub stub = null;
   private String rowLimit = SPConstants.DEFAULT_ROWLIMIT;
 
+  private static final String SOAP_NAMESPACE = "http://schemas.microsoft.com/sharepoint/soap/";
+  private static final String GET_LIST_ITEM_CHANGES_SINCE_TOKEN = "GetListItemChangesSinceToken";
+
   /**
    * @param inSharepointClientContext The Context is passed so that necessary
    *          information can be used to create the instance of current class
@@ -104,7 +112,7 @@ public class ListsWS {
           + SPConstants.LISTS_END_POINT;
       LOGGER.config("endpoint set to: " + endpoint);
 
-      final ListsLocator loc = new ListsLocator();
+      final ListsLocator loc = new ListsLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
       loc.setListsSoapEndpointAddress(endpoint);
 
       final Lists listsService = loc;
@@ -605,7 +613,7 @@ public class ListsWS {
           if ("data".equalsIgnoreCase(child.getLocalName())) {
             for (final Iterator itrchild = child.getChildElements(); itrchild.hasNext();) {
               final MessageElement row = (MessageElement) itrchild.next();
-              final SPDocument doc = processListItemElement(row, list, allWebs);
+              final SPDocument doc = processListItemElement(ListItemChanges.getAttributes(row), list, allWebs);
               if (doc != null) {
                 listItems.add(doc);
               }
@@ -840,7 +848,7 @@ public class ListsWS {
             SPDocument doc = null;
             for (final Iterator itrchild = child.getChildElements(); itrchild.hasNext();) {
               final MessageElement row = (MessageElement) itrchild.next();
-              doc = processListItemElement(row, list, null);
+              doc = processListItemElement(ListItemChanges.getAttributes(row), list, null);
               if (doc != null) {
                 doc.setRenamedFolder(renamedFolder);
                 doc.setParentFolder(currentFolder);
@@ -925,6 +933,7 @@ public class ListsWS {
 
     final GetListItemChangesSinceTokenContains contains = null;
     GetListItemChangesSinceTokenResponseGetListItemChangesSinceTokenResult res = null;
+    ListItemChanges listItemChanges = null;
     try {
       if (null == token) {
         String lastDocID = "0";
@@ -946,7 +955,12 @@ public class ListsWS {
           + queryOptions.get_any()[0]
           + " ], viewFields [ "
           + viewFields.get_any()[0] + "], token [ " + token + " ] ");
-      res = stub.getListItemChangesSinceToken(listName, viewName, query, viewFields, rowLimit, queryOptions, token, contains);
+      if (sharepointClientContext.isStreamListItemChanges()) {
+        listItemChanges = streamListItemChangesSinceToken(listName, viewName, query, viewFields, queryOptions, token);
+      }
+      if (null == listItemChanges) {
+        res = stub.getListItemChangesSinceToken(listName, viewName, query, viewFields, rowLimit, queryOptions, token, contains);
+      }
     } catch (final AxisFault af) { // Handling of username formats for
       // different authentication models.
       if ((SPConstants.UNAUTHORIZED.indexOf(af.getFaultString()) != -1)
@@ -977,24 +991,23 @@ public class ListsWS {
     final Set<String> deletedIDs = new HashSet<String>();
     final Set<String> restoredIDs = new HashSet<String>();
     final Set<String> renamedIDs = new HashSet<String>();
-    List<MessageElement> updatedListItems = null;
-    if (res != null) {
+    List<Map<String, String>> updatedListItems = null;
+    if (null == listItemChanges && res != null) {
       final MessageElement[] me = res.get_any();
       if ((me != null) && (me.length > 0)) {
-        // To ensure that Changes are accessed before documents
-        boolean inSequence = false;
-        for (final Iterator itChilds = me[0].getChildElements(); itChilds.hasNext();) {
-          final MessageElement child = (MessageElement) itChilds.next();
-          if (SPConstants.CHANGES.equalsIgnoreCase(child.getLocalName())) {
-            inSequence = true;
-            processListChangesElement(child, list, deletedIDs, restoredIDs, renamedIDs);
-          } else if (SPConstants.DATA.equalsIgnoreCase(child.getLocalName())) {
-            if (!inSequence) {
-              LOGGER.log(Level.SEVERE, "Bad Sequence.");
-            }
-            updatedListItems = processListDataElement(child, list, deletedIDs, restoredIDs, renamedIDs, allWebs);
-          }
+        listItemChanges = ListItemChanges.fromMessageElement(me[0]);
+      }
+    }
+    if (null != listItemChanges) {
+      // To ensure that Changes are accessed before documents
+      if (listItemChanges.changesFound) {
+        processListChanges(listItemChanges, list, deletedIDs, restoredIDs, renamedIDs);
+      }
+      if (listItemChanges.dataFound) {
+        if (listItemChanges.outOfSequence) {
+          LOGGER.log(Level.SEVERE, "Bad Sequence.");
         }
+        updatedListItems = processListDataElement(listItemChanges, list, deletedIDs, restoredIDs, renamedIDs, allWebs);
       }
     }
 
@@ -1005,8 +1018,7 @@ public class ListsWS {
 
     if (listItems.size() < sharepointClientContext.getBatchHint()
         && null != updatedListItems) {
-      for (Object element : updatedListItems) {
-        final MessageElement row = (MessageElement) element;
+      for (final Map<String, String> row : updatedListItems) {
         final SPDocument doc = processListItemElement(row, list, allWebs);
         if (doc != null) {
           listItems.add(doc);
@@ -1047,6 +1059,84 @@ public class ListsWS {
     return listItems;
   }
 
+  /**
+   * Makes the GetListItemChangesSinceToken call without Axis and reads the
+   * response as it is received. Only the changes and the rows are kept in
+   * memory; the response is never built as a tree of MessageElements.
+   * <p>
+   * Any failure, including a SOAP fault, is only logged. The caller is
+   * expected to make the call through the stub in such cases which takes care
+   * of the authentication fall-backs. Invalid XML characters and the custom
+   * filter patterns are filtered as they would be by Axis.
+   * </p>
+   *
+   * @return the changes read from the response or null if the call failed
+   */
+  private ListItemChanges streamListItemChangesSinceToken(
+      final String listName, final String viewName,
+      final GetListItemChangesSinceTokenQuery query,
+      final GetListItemChangesSinceTokenViewFields viewFields,
+      final GetListItemChangesSinceTokenQueryOptions queryOptions,
+      final String token) {
+    final PostMethod method = new PostMethod(endpoint);
+    try {
+      final StringBuilder request = new StringBuilder();
+      request.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+      request.append("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>");
+      request.append("<sp:").append(GET_LIST_ITEM_CHANGES_SINCE_TOKEN).append(" xmlns:sp=\"").append(SOAP_NAMESPACE).append("\">");
+      appendParameter(request, "listName", escapeXml(listName));
+      appendParameter(request, "viewName", escapeXml(viewName));
+      appendParameter(request, "query", query.get_any()[0].getAsString());
+      appendParameter(request, "viewFields", viewFields.get_any()[0].getAsString());
+      appendParameter(request, "rowLimit", escapeXml(rowLimit));
+      appendParameter(request, "queryOptions", queryOptions.get_any()[0].getAsString());
+      if (null != token) {
+        appendParameter(request, "changeToken", escapeXml(token));
+      }
+      request.append("</sp:").append(GET_LIST_ITEM_CHANGES_SINCE_TOKEN).append(">");
+      request.append("</soap:Body></soap:Envelope>");
+
+      method.setRequestHeader("SOAPAction", "\"" + SOAP_NAMESPACE
+          + GET_LIST_ITEM_CHANGES_SINCE_TOKEN + "\"");
+      method.getParams().setSoTimeout(sharepointClientContext.getWebServiceTimeOut());
+      method.setRequestEntity(new StringRequestEntity(request.toString(),
+          "text/xml", "utf-8"));
+      final int responseCode = sharepointClientContext.checkConnectivity(endpoint, method);
+      if (responseCode != 200) {
+        LOGGER.log(Level.WARNING, "Streamed GetListItemChangesSinceToken call failed for list [ "
+            + listName + " ] with response code [ " + responseCode + " ]. ");
+        return null;
+      }
+      // Filter the response as the InvalidXmlCharacterHandler does for the
+      // responses received through Axis
+      return ListItemChanges.parse(InvalidXmlCharacterHandler.newFilterReader(
+          new InputStreamReader(method.getResponseBodyAsStream(),
+              method.getResponseCharSet()), ((Service) stub._getService()).getEngine()));
+    } catch (final Exception e) {
+      LOGGER.log(Level.WARNING, "Streamed GetListItemChangesSinceToken call failed for list [ "
+          + listName + " ]. ", e);
+      return null;
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  private static void appendParameter(final StringBuilder request,
+      final String name, final String xml) {
+    request.append("<sp:").append(name).append(">");
+    if (null != xml) {
+      request.append(xml);
+    }
+    request.append("</sp:").append(name).append(">");
+  }
+
+  private static String escapeXml(final String value) {
+    if (null == value) {
+      return null;
+    }
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
   /**
    * Called when the connector is not able proceed after the current state of
    * list (lastDoc+changetoken) because the web service call has failed.
@@ -1176,7 +1266,7 @@ public class ListsWS {
   /**
    * Process the rs:changes element as returned by getListItemChangesSinceToken.
    *
-   * @param changeElement : The root child node that contains all the changes
+   * @param listItemChanges : The changes read from the rs:changes element
    * @param list : Base LIst
    * @param deletedIDs : Set of deleted IDs. Delete feed will be constructed for
    *          them.
@@ -1190,11 +1280,11 @@ public class ListsWS {
    *          are not consistent.
    * @return the change token being received as per the WS call
    */
-  private void processListChangesElement(final MessageElement changeElement,
+  private void processListChanges(final ListItemChanges listItemChanges,
       final ListState list, final Set<String> deletedIDs,
       final Set<String> restoredIDs, final Set<String> renamedIDs)
       throws SharepointException {
-    final String lastChangeToken = changeElement.getAttributeValue(SPConstants.LASTCHANGETOKEN);
+    final String lastChangeToken = listItemChanges.lastChangeToken;
     LOGGER.log(Level.FINE, "Change Token Received [ " + lastChangeToken
         + " ]. ");
     if (lastChangeToken == null) {
@@ -1202,18 +1292,13 @@ public class ListsWS {
           + "The current change token might have become invalid; please check the Event Cache table of SharePoint content database.");
     }
 
-    for (final Iterator itrchild = changeElement.getChildElements(); itrchild.hasNext();) {
-      final MessageElement change = (MessageElement) itrchild.next();
-      if (null == change) {
-        continue;
-      }
-
-      if (SPConstants.LIST.equalsIgnoreCase(change.getLocalName())) {
+    for (final ListItemChanges.Change change : listItemChanges.changes) {
+      if (change.listChanged) {
         list.setNewList(true);
         break;
       }
 
-      final String changeType = change.getAttributeValue(SPConstants.CHANGETYPE);
+      final String changeType = change.changeType;
       if (null == changeType) {
         LOGGER.log(Level.WARNING, "Unknown change type! Skipping... ");
         continue;
@@ -1228,7 +1313,7 @@ public class ListsWS {
                 + " ] has expired or is invalid. State of the list was reset to initiate a full crawl....");
       }
 
-      final String itemId = change.getValue();
+      final String itemId = change.itemId;
       if (null == itemId) {
         LOGGER.log(Level.WARNING, "Unknown ItemID for change type [ "
             + changeType + " ] Skipping... ");
@@ -1304,8 +1389,8 @@ public class ListsWS {
   /**
    * Processing of rs:data element as returned by getListItemChangesSinceToken.
    *
-   * @param dataElement : represents the parent node which contains all the list
-   *          items node.
+   * @param listItemChanges : The rows and the paging information read from the
+   *          rs:data element
    * @param list : Base lIst
    * @param deletedIDs : Set of deleted IDs. Delete feed will be constructed for
    *          them.
@@ -1320,13 +1405,13 @@ public class ListsWS {
    * @return the list items which WS returns as rs:rows. These do not include
    *         folders
    */
-  private List<MessageElement> processListDataElement(
-      final MessageElement dataElement, final ListState list,
+  private List<Map<String, String>> processListDataElement(
+      final ListItemChanges listItemChanges, final ListState list,
       final Set<String> deletedIDs, final Set<String> restoredIDs,
       final Set<String> renamedIDs, final Set<String> allWebs) {
 
-    final ArrayList<MessageElement> updatedListItems = new ArrayList<MessageElement>();
-    final String receivedNextPage = dataElement.getAttribute(SPConstants.LIST_ITEM_COLLECTION_POSITION_NEXT);
+    final ArrayList<Map<String, String>> updatedListItems = new ArrayList<Map<String, String>>();
+    final String receivedNextPage = listItemChanges.nextPage;
     LOGGER.log(Level.FINE, "Next Page Received [ " + receivedNextPage + " ]. ");
     list.setNextPage(receivedNextPage);
     /*
@@ -1343,21 +1428,20 @@ public class ListsWS {
      * ListItemCollectionPositionNext keeps recrawling the same set of document
      * again and again."
      */
-    for (final Iterator itrchild = dataElement.getChildElements(); itrchild.hasNext();) {
+    for (final Map<String, String> row : listItemChanges.rows) {
       try {
-        final MessageElement row = (MessageElement) itrchild.next();
-        final String docId = row.getAttribute(SPConstants.ID);
+        final String docId = row.get(SPConstants.ID);
         if (null == docId) {
           LOGGER.log(Level.WARNING, "Skipping current rs:data node as docID is not found. listURL [ "
               + list.getListURL() + " ]. ");
           continue;
         }
         if (list.canContainFolders()) {
-          String contentType = row.getAttribute(SPConstants.CONTENTTYPE);
+          String contentType = row.get(SPConstants.CONTENTTYPE);
           if (contentType == null) {
-            contentType = row.getAttribute(SPConstants.CONTENTTYPE_INMETA);
+            contentType = row.get(SPConstants.CONTENTTYPE_INMETA);
           }
-          String relativeURL = row.getAttribute(SPConstants.FILEREF);
+          String relativeURL = row.get(SPConstants.FILEREF);
 
           LOGGER.log(Level.CONFIG, "docID [ " + docId + " ], relativeURL [ "
               + relativeURL + " ], contentType [ " + contentType + " ]. ");
@@ -1428,8 +1512,8 @@ public class ListsWS {
          */
 
         if (!sharepointClientContext.isFeedUnPublishedDocuments()) {
-          if (null != row.getAttribute(SPConstants.MODERATION_STATUS)) {
-            String docVersion = row.getAttribute(SPConstants.MODERATION_STATUS);
+          if (null != row.get(SPConstants.MODERATION_STATUS)) {
+            String docVersion = row.get(SPConstants.MODERATION_STATUS);
             if (docVersion != SPConstants.DocVersion.APPROVED.toString()) {
               // Added unpublished documents to delete list if
               // FeedUnPublishedDocuments set to false, so
@@ -1437,7 +1521,7 @@ public class ListsWS {
               // content in SharePoint to GSA.
               if (!sharepointClientContext.isInitialTraversal()) {
                 LOGGER.warning("Adding the list item or document ["
-                    + row.getAttribute(SPConstants.FILEREF)
+                    + row.get(SPConstants.FILEREF)
                     + "] to the deleted ID's list to send delete feeds for unpublished content in the list URL :"
                     + list.getListURL());
                 deletedIDs.add(docId);
@@ -1478,6 +1562,7 @@ public class ListsWS {
       int index = list.getChangedFolders().indexOf(lastDocRenamedFolder);
       if (index > 0) {
         list.getChangedFolders().subList(0, index).clear();
+        list.getParentWebState().markChanged();
       }
     }
 
@@ -1543,12 +1628,13 @@ public class ListsWS {
    * @return the constructed {@link SPDocument} from the message element
    *         returned by the WS
    */
-  private SPDocument processListItemElement(final MessageElement listItem,
-      final ListState list, final Set<String> allWebs) {
+  private SPDocument processListItemElement(
+      final Map<String, String> listItem, final ListState list,
+      final Set<String> allWebs) {
     // Get all the required attributes.
     if (!sharepointClientContext.isFeedUnPublishedDocuments()) {
-      if (null != listItem.getAttribute(SPConstants.MODERATION_STATUS)) {
-        int docVersion = Integer.parseInt(listItem.getAttribute(SPConstants.MODERATION_STATUS));
+      if (null != listItem.get(SPConstants.MODERATION_STATUS)) {
+        int docVersion = Integer.parseInt(listItem.get(SPConstants.MODERATION_STATUS));
         if (docVersion != 0) {
           // ModerationStatus="0" for approved/ published list
           // list item or document status
@@ -1557,7 +1643,7 @@ public class ListsWS {
           // ModerationStatus="3" for draft list item or document status
 
           LOGGER.warning("List Item or Document is not yet published on SharePoint site, hence discarding the ID ["
-              + listItem.getAttribute(SPConstants.ID)
+              + listItem.get(SPConstants.ID)
               + "] under the List/Document Library URL "
               + list.getListURL()
               + " , and it's current version is " + docVersion);
@@ -1569,7 +1655,7 @@ public class ListsWS {
             + list.getListURL() + " ]. ");
       }
     }
-    String fileref = listItem.getAttribute(SPConstants.FILEREF);
+    String fileref = listItem.get(SPConstants.FILEREF);
     if (fileref == null) {
       LOGGER.log(Level.WARNING, SPConstants.FILEREF
           + " is not found for one of the items in list [ " + list.getListURL()
@@ -1578,27 +1664,26 @@ public class ListsWS {
       fileref = fileref.substring(fileref.indexOf(SPConstants.HASH) + 1);
     }
 
-    final String lastModified = listItem.getAttribute(SPConstants.MODIFIED);
-    String strObjectType = listItem.getAttribute(SPConstants.CONTENTTYPE);
-    String fileSize = listItem.getAttribute(SPConstants.FILE_SIZE_DISPLAY);
+    final String lastModified = listItem.get(SPConstants.MODIFIED);
+    String strObjectType = listItem.get(SPConstants.CONTENTTYPE);
+    String fileSize = listItem.get(SPConstants.FILE_SIZE_DISPLAY);
 
     if (fileSize == null) {
       // Check with the other file size attribute as back-up
-      fileSize = listItem.getAttribute(SPConstants.FILE_SIZE);
+      fileSize = listItem.get(SPConstants.FILE_SIZE);
     }
 
-    String author = listItem.getAttribute(SPConstants.EDITOR);
+    String author = listItem.get(SPConstants.EDITOR);
     if (author == null) {
-      author = listItem.getAttribute(SPConstants.AUTHOR);
+      author = listItem.get(SPConstants.AUTHOR);
     }
-    String docId = listItem.getAttribute(SPConstants.ID);
-    final Iterator itAttrs = listItem.getAllAttributes();
+    String docId = listItem.get(SPConstants.ID);
 
     // Start processing based on the above read attributes.
 
     // STEP1: Process link sites
     if (list.isLinkSite() && (allWebs != null)) {
-      String linkSiteURL = listItem.getAttribute(SPConstants.URL);// e.g.
+      String linkSiteURL = listItem.get(SPConstants.URL);// e.g.
       // http://www.abc.com,
       // abc
       // site"
@@ -1724,25 +1809,20 @@ public class ListsWS {
     }
 
     // iterate through all the attributes get the atribute name and value
-    if (itAttrs != null) {
-      while (itAttrs.hasNext()) {
-        final Object oneAttr = itAttrs.next();
-        if (oneAttr != null) {
-          String strAttrName = oneAttr.toString();
-          if ((strAttrName != null) && (!strAttrName.trim().equals(""))) {
-            String strAttrValue = listItem.getAttribute(strAttrName);
-            // Apply the well known rules of name resolution and
-            // normalizing the values
-            strAttrName = Util.normalizeMetadataName(strAttrName);
-            strAttrValue = Util.normalizeMetadataValue(strAttrValue);
-            if (sharepointClientContext.isIncludeMetadata(strAttrName)) {
-              doc.setAttribute(strAttrName, strAttrValue);
-            } else {
-              LOGGER.log(Level.FINE, "Excluding metadata name [ " + strAttrName
-                  + " ], value [ " + strAttrValue + " ] for doc URL [ " + url
-                  + " ]. ");
-            }
-          }
+    for (final Map.Entry<String, String> oneAttr : listItem.entrySet()) {
+      String strAttrName = oneAttr.getKey();
+      if ((strAttrName != null) && (!strAttrName.trim().equals(""))) {
+        String strAttrValue = oneAttr.getValue();
+        // Apply the well known rules of name resolution and
+        // normalizing the values
+        strAttrName = Util.normalizeMetadataName(strAttrName);
+        strAttrValue = Util.normalizeMetadataValue(strAttrValue);
+        if (sharepointClientContext.isIncludeMetadata(strAttrName)) {
+          doc.setAttribute(strAttrName, strAttrValue);
+        } else {
+          LOGGER.log(Level.FINE, "Excluding metadata name [ " + strAttrName
+              + " ], value [ " + strAttrValue + " ] for doc URL [ " + url
+              + " ]. ");
         }
       }
     }
@@ -1776,7 +1856,7 @@ public class ListsWS {
       }
       try {
         final MessageElement row = (MessageElement) obj;
-        final SPDocument doc = processListItemElement(row, list, null);
+        final SPDocument doc = processListItemElement(ListItemChanges.getAttributes(row), list, null);
         listItems.add(doc);
       } catch (final Exception e) {
         LOGGER.log(Level.WARNING, "Problem occured while parsing node", e);
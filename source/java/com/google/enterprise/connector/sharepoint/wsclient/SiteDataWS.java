@@ -75,7 +75,7 @@ public class SiteDataWS {
           + SPConstants.SITEDATAENDPOINT;
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
-      final SiteDataLocator loc = new SiteDataLocator();
+      final SiteDataLocator loc = new SiteDataLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
       loc.setSiteDataSoapEndpointAddress(endpoint);
       final SiteData servInterface = loc;
 
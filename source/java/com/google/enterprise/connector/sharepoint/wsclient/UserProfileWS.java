@@ -67,7 +67,7 @@ public class UserProfileWS {
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
       try {
-        final UserProfileServiceLocator loc = new UserProfileServiceLocator();
+        final UserProfileServiceLocator loc = new UserProfileServiceLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
         loc.setUserProfileServiceSoapEndpointAddress(endpoint);
 
         final UserProfileService service = loc;
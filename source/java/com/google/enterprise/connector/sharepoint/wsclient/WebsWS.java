@@ -64,7 +64,7 @@ public class WebsWS {
       endpoint = Util.encodeURL(sharepointClientContext.getSiteURL())
           + SPConstants.WEBSENDPOINT;
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
-      final WebsLocator loc = new WebsLocator();
+      final WebsLocator loc = new WebsLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
       loc.setWebsSoapEndpointAddress(endpoint);
       final Webs service = loc;
 
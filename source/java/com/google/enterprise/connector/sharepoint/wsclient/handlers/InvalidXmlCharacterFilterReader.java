@@ -0,0 +1,215 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.handlers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A reader which filters out the character references to invalid XML
+ * characters and the strings matching a custom pattern, in a single pass over
+ * its input. Only a window of the input is held in memory at any time.
+ * <p>
+ * A match has to be complete within {@link #MAX_MATCH_LENGTH} characters to be
+ * found across the boundary of two windows. This is always the case for
+ * character references; custom patterns which match longer strings may be
+ * missed at the window boundaries.
+ * </p>
+ */
+class InvalidXmlCharacterFilterReader extends Reader {
+  private static final Logger LOGGER = Logger.getLogger(InvalidXmlCharacterFilterReader.class.getName());
+
+  /**
+   * Identifies the character entity references in the input. Group 2 holds
+   * the decimal and group 4 the hexadecimal value of the reference.
+   */
+  static final String REFERENCE_PATTERN = "&#(([0-9]+)|([xX]([0-9A-Fa-f]+)));";
+
+  private static final Pattern REFERENCE_ONLY_PATTERN = Pattern.compile("("
+      + REFERENCE_PATTERN + ")");
+
+  // Combined patterns already compiled, by the custom pattern they contain.
+  // There is one custom pattern per connector instance, so this stays small.
+  private static final ConcurrentMap<String, Pattern> combinedPatterns = new ConcurrentHashMap<String, Pattern>();
+
+  // Number of characters read from the input at a time
+  private static final int WINDOW_SIZE = 32 * 1024;
+
+  // Characters at the end of a window which are held back until more input
+  // is read, so that a match is not broken by the window boundary
+  static final int MAX_MATCH_LENGTH = 1024;
+
+  private final Reader in;
+  private final Pattern pattern;
+  private final boolean filterReferences;
+  private final String replacementValue;
+
+  // Input read but not filtered yet
+  private final StringBuilder input = new StringBuilder();
+  // Filtered characters not yet returned
+  private final StringBuilder output = new StringBuilder();
+  private int outputPosition = 0;
+  private boolean endOfInput = false;
+  private final char[] buffer = new char[WINDOW_SIZE];
+
+  /**
+   * @param in The input to be filtered
+   * @param filterReferences If set, the references to invalid XML characters
+   *          are filtered
+   * @param customPattern Strings matching this are filtered. Can be null.
+   * @param replacementValue The value used in place of the filtered strings
+   */
+  InvalidXmlCharacterFilterReader(final Reader in,
+      final boolean filterReferences, final Pattern customPattern,
+      final String replacementValue) {
+    this.in = in;
+    this.filterReferences = filterReferences;
+    this.replacementValue = replacementValue;
+    this.pattern = compile(filterReferences, customPattern);
+  }
+
+  /**
+   * Combines the reference pattern and the custom pattern into a single
+   * pattern. The reference pattern is group 1 and the custom pattern the
+   * group following the reference groups. The combined patterns are compiled
+   * once and reused for all the following responses.
+   */
+  private static Pattern compile(final boolean filterReferences,
+      final Pattern customPattern) {
+    if (filterReferences && null != customPattern) {
+      final String key = customPattern.pattern();
+      Pattern combined = combinedPatterns.get(key);
+      if (null == combined) {
+        combined = Pattern.compile("(" + REFERENCE_PATTERN + ")|(" + key + ")");
+        final Pattern existing = combinedPatterns.putIfAbsent(key, combined);
+        if (null != existing) {
+          combined = existing;
+        }
+      }
+      return combined;
+    } else if (filterReferences) {
+      return REFERENCE_ONLY_PATTERN;
+    } else if (null != customPattern) {
+      return customPattern;
+    }
+    return null;
+  }
+
+  @Override
+  public int read(final char[] cbuf, final int off, final int len)
+      throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (outputPosition >= output.length()) {
+      if (endOfInput && input.length() == 0) {
+        return -1;
+      }
+      output.setLength(0);
+      outputPosition = 0;
+      fill();
+    }
+    final int count = Math.min(len, output.length() - outputPosition);
+    output.getChars(outputPosition, outputPosition + count, cbuf, off);
+    outputPosition += count;
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads the next window of the input and filters as much of it as can be
+   * filtered without knowing the following input.
+   */
+  private void fill() throws IOException {
+    final int count = in.read(buffer);
+    if (count == -1) {
+      endOfInput = true;
+    } else {
+      input.append(buffer, 0, count);
+    }
+
+    // Everything before this can be filtered now
+    final int boundary = endOfInput ? input.length() : Math.max(0,
+        input.length() - MAX_MATCH_LENGTH);
+    int position = 0;
+    int end = boundary;
+    if (null != pattern) {
+      final Matcher matcher = pattern.matcher(input);
+      int from = 0;
+      while (from < boundary && matcher.find(from)) {
+        if (matcher.start() >= boundary) {
+          break;
+        }
+        if (!endOfInput && matcher.hitEnd()
+            && input.length() - matcher.start() < MAX_MATCH_LENGTH) {
+          // The match may change with more input. Hold it back.
+          end = matcher.start();
+          break;
+        }
+        output.append(input, position, matcher.start());
+        output.append(replacement(matcher));
+        position = matcher.end();
+        // Do not find an empty match again at the same position
+        from = (matcher.end() == matcher.start()) ? position + 1 : position;
+      }
+    }
+    end = Math.max(position, end);
+    output.append(input, position, end);
+    input.delete(0, end);
+  }
+
+  /**
+   * @return the string to be used for the current match of the matcher
+   */
+  private String replacement(final Matcher matcher) {
+    if (filterReferences && null != matcher.group(1)) {
+      final String decimal = matcher.group(3);
+      final String hexaDecimal = matcher.group(5);
+      final int ref;
+      try {
+        if (null != decimal) {
+          ref = Integer.parseInt(decimal);
+        } else {
+          ref = Integer.parseInt(hexaDecimal, 16);
+        }
+      } catch (NumberFormatException e) {
+        LOGGER.log(Level.WARNING, matcher.group(2) + " of " + matcher.group()
+            + " is neinther a valid decimal or hexadecimal number! ", e);
+        return matcher.group();
+      }
+      if (!InvalidXmlCharacterHandler.isInavlidReference(ref)) {
+        return matcher.group();
+      }
+      LOGGER.info("replacing invalid reference " + matcher.group()
+          + " from WS response. replacement value [ " + replacementValue
+          + " ] ");
+    } else if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info("replacing " + matcher.group()
+          + " from WS response.  replacement value [ " + replacementValue
+          + " ] ");
+    }
+    return replacementValue;
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.sharepoint.wsclient.handlers;
 
+import org.apache.axis.AxisEngine;
 import org.apache.axis.AxisFault;
 import org.apache.axis.Message;
 import org.apache.axis.MessageContext;
@@ -21,14 +22,19 @@ import org.apache.axis.SOAPPart;
 import org.apache.axis.handlers.BasicHandler;
 import org.apache.axis.message.SOAPHeaderElement;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.xml.soap.SOAPHeader;
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
 /**
@@ -68,16 +74,20 @@ public class InvalidXmlCharacterHandler extends BasicHandler {
   private Pattern customFilterPattern = null;
 
   /**
-   * This is to identify any character entity references in the response. If the
-   * reference is to an invalid character, it will be filtered out.
+   * The last compiled user defined pattern along with its source. The handler
+   * is re-created whenever Axis is re-initialized; the pattern is compiled
+   * again only if the configuration has changed.
    */
-  private final static Pattern referencesFilterPattern = Pattern.compile("&#(([0-9]+)|([xX]([0-9A-Fa-f]+)));");
+  private static String cachedPatternSource = null;
+  private static Pattern cachedPattern = null;
 
   /**
    * All the replacements will be done using this value. Can be configured
    * through Axis configuration file .wsdd
    */
-  private String replacementValue = " ";
+  private String replacementValue = DEFAULT_REPLACEMENT_VALUE;
+
+  private static final String DEFAULT_REPLACEMENT_VALUE = " ";
 
   /**
    * The parameter name which contains the replacement value in Axis
@@ -98,40 +108,30 @@ public class InvalidXmlCharacterHandler extends BasicHandler {
     // wherein the Axis container is re-initialized during every WS call.
     initPatterns(messageContext);
 
-    // Get the payload
-    SOAPPart soapPart = null;
-    String messagePayload = null;
+    // Filter the payload as it is read by the deserializer instead of
+    // reading the whole payload into memory
     try {
       Message message = messageContext.getResponseMessage();
-      soapPart = (SOAPPart) message.getSOAPPart();
-      messagePayload = message.getSOAPPartAsString();
-    } catch (Throwable t) {
-      LOGGER.log(Level.WARNING, "Failed to get SOAPPart/messagePayload from the response. Returning...", t);
-      return;
-    }
-
-    // Filter invalid references
-    try {
-      messagePayload = filterInvalidReferences(messagePayload);
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING, "Problem occured while filtering invalid references from WS response. ", e);
-    }
-
-    // Filter user defined patterns
-    try {
-      messagePayload = filterCustomPatterns(messagePayload);
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING, "Problem occured while filtering custom patterns from WS response. ", e);
-    }
-
-    // Update payload
-    try {
-      StreamSource source = (StreamSource) soapPart.getContent();
-      source.setInputStream(new ByteArrayInputStream(
-          messagePayload.getBytes(soapPart.getEncoding())));
-      soapPart.setContent(source);
+      SOAPPart soapPart = (SOAPPart) message.getSOAPPart();
+      String encoding = soapPart.getEncoding();
+      Reader payload = null;
+      Source content = soapPart.getContent();
+      if (content instanceof StreamSource) {
+        StreamSource source = (StreamSource) content;
+        if (null != source.getInputStream()) {
+          payload = new InputStreamReader(source.getInputStream(), encoding);
+        } else {
+          payload = source.getReader();
+        }
+      }
+      if (null == payload) {
+        payload = new StringReader(message.getSOAPPartAsString());
+      }
+      soapPart.setContent(new StreamSource(new ReaderInputStream(
+          new InvalidXmlCharacterFilterReader(payload, true,
+              customFilterPattern, replacementValue), encoding)));
     } catch (Throwable t) {
-      LOGGER.log(Level.WARNING, "Failed to update payload after filteration. ", t);
+      LOGGER.log(Level.WARNING, "Failed to filter the WS response. ", t);
     }
   }
 
@@ -145,19 +145,64 @@ public class InvalidXmlCharacterHandler extends BasicHandler {
     if (null != customFilterPattern) {
       return;
     }
-    Object obj = null;
-    String strPattern = "";
-
+    Map<String, Object> properties = new TreeMap<String, Object>();
     Iterator props = messageContext.getAllPropertyNames();
     while (props.hasNext()) {
-      obj = props.next();
-      if (null == obj) {
-        continue;
+      Object obj = props.next();
+      if (null != obj) {
+        properties.put(obj.toString(), messageContext.getProperty(obj.toString()));
+      }
+    }
+    customFilterPattern = getCustomPattern(properties);
+
+    try {
+      replacementValue = messageContext.getProperty(REPLACEMENT_VALUE).toString();
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Could not load replacement value from configuration; using deafult...", e);
+    }
+  }
+
+  /**
+   * Wraps a WS response that is read without going through Axis, in the same
+   * filter that this handler applies to the Axis responses. The filter rules
+   * and the replacement value are read from the global configuration of the
+   * Axis engine.
+   *
+   * @param payload the WS response
+   * @param engine the Axis engine of the web service client. Can be null, in
+   *          which case only the invalid references are filtered.
+   * @return the filtered WS response
+   */
+  public static Reader newFilterReader(Reader payload, AxisEngine engine) {
+    Pattern customPattern = null;
+    String replacement = DEFAULT_REPLACEMENT_VALUE;
+    if (null != engine && null != engine.getOptions()) {
+      Map<String, Object> properties = new TreeMap<String, Object>();
+      for (Object entry : engine.getOptions().entrySet()) {
+        Map.Entry option = (Map.Entry) entry;
+        properties.put(option.getKey().toString(), option.getValue());
+      }
+      customPattern = getCustomPattern(properties);
+      if (null != properties.get(REPLACEMENT_VALUE)) {
+        replacement = properties.get(REPLACEMENT_VALUE).toString();
       }
-      String name = obj.toString();
+    }
+    return new InvalidXmlCharacterFilterReader(payload, true, customPattern,
+        replacement);
+  }
+
+  /**
+   * @param properties the Axis configuration
+   * @return the pattern combining all the filter rules of the configuration,
+   *         or null if there are none
+   */
+  private static Pattern getCustomPattern(Map<String, Object> properties) {
+    String strPattern = "";
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      String name = property.getKey();
       if (name.startsWith(rulesPrefix)) {
         try {
-          Object pattern = messageContext.getProperty(name);
+          Object pattern = property.getValue();
           if (null == pattern) {
             continue;
           }
@@ -172,16 +217,22 @@ public class InvalidXmlCharacterHandler extends BasicHandler {
       }
     }
 
-    if (null != strPattern && strPattern.trim().length() > 0) {
-      strPattern = "(" + strPattern + ")";
-      customFilterPattern = Pattern.compile(strPattern);
+    if (strPattern.trim().length() > 0) {
+      return getCompiledPattern("(" + strPattern + ")");
     }
+    return null;
+  }
 
-    try {
-      replacementValue = messageContext.getProperty(REPLACEMENT_VALUE).toString();
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING, "Could not load replacement value from configuration; using deafult...", e);
+  /**
+   * @return the compiled pattern, re-using the last compiled pattern if it is
+   *         for the same source
+   */
+  private static synchronized Pattern getCompiledPattern(String strPattern) {
+    if (!strPattern.equals(cachedPatternSource)) {
+      cachedPattern = Pattern.compile(strPattern);
+      cachedPatternSource = strPattern;
     }
+    return cachedPattern;
   }
 
   /**
@@ -191,41 +242,8 @@ public class InvalidXmlCharacterHandler extends BasicHandler {
    * @return resulting messagePayload after filtering out all invalid references
    */
   String filterInvalidReferences(String messagePayload) {
-    if (null == referencesFilterPattern) {
-      return messagePayload;
-    }
-    StringBuffer afterFilter = new StringBuffer();
-    Matcher matcher = referencesFilterPattern.matcher(messagePayload);
-    while (matcher.find()) {
-      String decimal = matcher.group(2);
-      String hexaDecimal = matcher.group(4);
-      Integer ref = null;
-      try {
-        if (null != decimal) {
-          ref = Integer.parseInt(decimal);
-        } else if (null != hexaDecimal) {
-          ref = Integer.parseInt(hexaDecimal, 16);
-        } else {
-          // This will never happen
-          LOGGER.log(Level.SEVERE, "Matcher found an unexpected value [ "
-              + matcher.group()
-              + " ] in the matched reference. The value is neither decimal nor hexadecimal. ");
-          continue;
-        }
-      } catch (Exception e) {
-        LOGGER.log(Level.WARNING, matcher.group(1) + " of " + matcher.group()
-            + " is neinther a valid decimal or hexadecimal number! ", e);
-        continue;
-      }
-      if (isInavlidReference(ref)) {
-        LOGGER.info("replacing invalid reference " + matcher.group()
-            + " from WS response. replacement value [ " + replacementValue
-            + " ] ");
-        matcher.appendReplacement(afterFilter, replacementValue);
-      }
-    }
-    matcher.appendTail(afterFilter);
-    return afterFilter.toString();
+    return filter(messagePayload, new InvalidXmlCharacterFilterReader(
+        new StringReader(messagePayload), true, null, replacementValue));
   }
 
   /**
@@ -239,15 +257,23 @@ public class InvalidXmlCharacterHandler extends BasicHandler {
     if (null == customFilterPattern) {
       return messagePayload;
     }
-    StringBuffer afterFilter = new StringBuffer();
-    Matcher matcher = customFilterPattern.matcher(messagePayload);
-    while (matcher.find()) {
-      LOGGER.info("replacing " + matcher.group()
-          + " from WS response.  replacement value [ " + replacementValue
-          + " ] ");
-      matcher.appendReplacement(afterFilter, replacementValue);
+    return filter(messagePayload, new InvalidXmlCharacterFilterReader(
+        new StringReader(messagePayload), false, customFilterPattern,
+        replacementValue));
+  }
+
+  private static String filter(String messagePayload, Reader reader) {
+    StringBuilder afterFilter = new StringBuilder();
+    char[] buffer = new char[4096];
+    int count;
+    try {
+      while ((count = reader.read(buffer)) != -1) {
+        afterFilter.append(buffer, 0, count);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Problem occured while filtering WS response. ", e);
+      return messagePayload;
     }
-    matcher.appendTail(afterFilter);
     return afterFilter.toString();
   }
 
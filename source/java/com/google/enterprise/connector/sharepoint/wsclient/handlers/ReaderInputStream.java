@@ -0,0 +1,104 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes the characters of a reader as they are read
+ */
+class ReaderInputStream extends InputStream {
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final Reader reader;
+  private final CharsetEncoder encoder;
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+  private boolean endOfInput = false;
+  private boolean flushed = false;
+
+  /**
+   * @param reader The characters to be encoded
+   * @param encoding The encoding to be used
+   */
+  ReaderInputStream(final Reader reader, final String encoding) {
+    this.reader = reader;
+    this.encoder = Charset.forName(encoding).newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    chars.flip();
+    bytes.flip();
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (!bytes.hasRemaining()) {
+      if (flushed) {
+        return -1;
+      }
+      encode();
+    }
+    final int count = Math.min(len, bytes.remaining());
+    bytes.get(b, off, count);
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /**
+   * Encodes the next characters into the byte buffer. Characters that can not
+   * be encoded yet, e.g. the first half of a surrogate pair, are kept for the
+   * next call.
+   */
+  private void encode() throws IOException {
+    if (!endOfInput) {
+      chars.compact();
+      final int count = reader.read(chars);
+      chars.flip();
+      if (count == -1) {
+        endOfInput = true;
+      }
+    }
+    bytes.clear();
+    final CoderResult result = encoder.encode(chars, bytes, endOfInput);
+    if (result.isError()) {
+      result.throwException();
+    }
+    if (endOfInput && !result.isOverflow() && !chars.hasRemaining()) {
+      encoder.flush(bytes);
+      flushed = true;
+    }
+    bytes.flip();
+  }
+}
@@ -64,7 +64,7 @@ public class UserProfileWS {
           + SPConstants.USERPROFILEENDPOINT;
       LOGGER.log(Level.CONFIG, "Endpoint set to: " + endpoint);
 
-      final UserProfileServiceLocator loc = new UserProfileServiceLocator();
+      final UserProfileServiceLocator loc = new UserProfileServiceLocator(sharepointClientContext.getAxisEngineConfiguration().getEngineConfiguration());
       loc.setUserProfileServiceSoapEndpointAddress(endpoint);
 
       final UserProfileService service = loc;
@@ -0,0 +1,108 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.util;
+
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.transport.http.CommonsHTTPSender;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides the Axis client configuration shared by the web service stubs of a
+ * connector instance.
+ * <p>
+ * Every Axis service locator created without a configuration loads its own
+ * copy of client-config.wsdd and, with it, its own HTTP transport and
+ * connection manager. Hence, no HTTP connection could be re-used across two
+ * web service client objects and every call to a new client paid for a new
+ * connection and NTLM handshake. Locators created with the configuration
+ * returned by {@link #getEngineConfiguration()} share a single transport whose
+ * pooled connections are kept alive and re-used by all the calls to the same
+ * host, up to the given number of connections at a time.
+ * </p>
+ * <p>
+ * NTLM authenticates a connection rather than a request. Hence, the pool must
+ * not be shared by connector instances which use different credentials, and
+ * every connector instance creates its own configuration.
+ * </p>
+ * <p>
+ * The stubs themselves are not shared since they carry per-client state, e.g.
+ * the user name format that worked and the SOAP headers.
+ * </p>
+ */
+public final class AxisEngineConfiguration {
+  private static final Logger LOGGER = Logger.getLogger(AxisEngineConfiguration.class.getName());
+
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+  // Lower limit on the total number of connections, irrespective of the
+  // connections allowed per host. Same as the Axis default.
+  private static final int MIN_TOTAL_CONNECTIONS = 20;
+
+  private final PooledHTTPSender sender;
+  private final EngineConfiguration configuration;
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of HTTP connections that
+   *          are opened to a single host
+   */
+  public AxisEngineConfiguration(final int maxConnectionsPerHost) {
+    sender = new PooledHTTPSender(maxConnectionsPerHost);
+    // Everything but the HTTP transport, e.g. the response handlers, is read
+    // from client-config.wsdd
+    final SimpleProvider provider = new SimpleProvider(
+        EngineConfigurationFactoryFinder.newFactory().getClientEngineConfig());
+    provider.deployTransport("http", new SimpleTargetedChain(sender));
+    configuration = provider;
+    LOGGER.log(Level.CONFIG, "Created the Axis client configuration with [ "
+        + maxConnectionsPerHost + " ] connections per host. ");
+  }
+
+  /**
+   * @return the configuration to be passed to the Axis service locators
+   */
+  public EngineConfiguration getEngineConfiguration() {
+    return configuration;
+  }
+
+  /**
+   * Closes the pooled connections. The web service clients created with this
+   * configuration must not be used afterwards.
+   */
+  public void shutdown() {
+    sender.shutdown();
+  }
+
+  /**
+   * The Axis HTTP transport with the connection limits of its own connection
+   * manager set directly, rather than read from the JVM-wide Axis properties.
+   */
+  private static class PooledHTTPSender extends CommonsHTTPSender {
+    PooledHTTPSender(final int maxConnectionsPerHost) {
+      final MultiThreadedHttpConnectionManager manager = (MultiThreadedHttpConnectionManager) connectionManager;
+      manager.getParams().setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+      manager.getParams().setMaxTotalConnections(Math.max(MIN_TOTAL_CONNECTIONS, maxConnectionsPerHost));
+    }
+
+    void shutdown() {
+      ((MultiThreadedHttpConnectionManager) connectionManager).shutdown();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants.SPBasePermissions;
+import com.google.enterprise.connector.sharepoint.generated.gssacl.ObjectType;
+import com.google.enterprise.connector.spi.SpiConstants.RoleType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class AclPoolTest extends TestCase {
+
+  public void testGetRoleTypesFor() {
+    String[] permissions = { SPBasePermissions.VIEWLISTITEMS,
+        SPBasePermissions.EDITLISTITEMS };
+    Set<RoleType> roleTypes = AclPool.getRoleTypesFor(permissions,
+        ObjectType.ITEM);
+    assertEquals(Util.getRoleTypesFor(permissions, ObjectType.ITEM), roleTypes);
+    assertSame(roleTypes, AclPool.getRoleTypesFor(new String[] {
+        SPBasePermissions.VIEWLISTITEMS, SPBasePermissions.EDITLISTITEMS },
+        ObjectType.ITEM));
+    try {
+      roleTypes.add(RoleType.OWNER);
+      fail("Shared role types must not be modifiable");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testIntern() {
+    Map<String, Set<RoleType>> first = createAcl();
+    Map<String, Set<RoleType>> second = createAcl();
+    assertNotSame(first, second);
+
+    Map<String, Set<RoleType>> canonical = AclPool.intern(first);
+    assertEquals(first, canonical);
+    assertSame(canonical, AclPool.intern(second));
+    assertSame(canonical.get("DOMAIN\\alice"),
+        AclPool.intern(createAcl()).get("DOMAIN\\alice"));
+
+    second.put("DOMAIN\\bob", new HashSet<RoleType>());
+    assertNotSame(canonical, AclPool.intern(second));
+    assertNull(AclPool.intern(null));
+    try {
+      canonical.remove("DOMAIN\\alice");
+      fail("Shared ACLs must not be modifiable");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  private static Map<String, Set<RoleType>> createAcl() {
+    Map<String, Set<RoleType>> acl = new HashMap<String, Set<RoleType>>();
+    Set<RoleType> roleTypes = new HashSet<RoleType>();
+    roleTypes.add(RoleType.READER);
+    roleTypes.add(RoleType.WRITER);
+    acl.put("DOMAIN\\alice", roleTypes);
+    return acl;
+  }
+}
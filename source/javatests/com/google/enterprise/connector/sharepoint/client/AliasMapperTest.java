@@ -0,0 +1,70 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class AliasMapperTest extends TestCase {
+  private Map<String, String> aliasMap;
+
+  protected void setUp() throws Exception {
+    aliasMap = new LinkedHashMap<String, String>();
+    aliasMap.put("http://mycomp.com/sites/hr", "http://hr.mycomp.com");
+    aliasMap.put("http://mycomp.com/", "http://www.mycomp.com/");
+    aliasMap.put("^http://global.mycomp.com/", "http://alias.mycomp.com/");
+    aliasMap.put("http://ported.mycomp.com:8080/", "http://alias.mycomp.com/");
+    aliasMap.put("not a url", "http://alias.mycomp.com/");
+  }
+
+  private String map(String url) throws Exception {
+    return new AliasMapper(aliasMap, false).map(url);
+  }
+
+  public void testFirstMatchingRule() throws Exception {
+    assertEquals("http://hr.mycomp.com/Docs/a.doc",
+        map("http://mycomp.com/sites/hr/Docs/a.doc"));
+    assertEquals("http://www.mycomp.com/sites/it/a.doc",
+        map("http://mycomp.com/sites/it/a.doc"));
+    assertEquals("http://www.mycomp.com/a.doc",
+        map("http://mycomp.com:80/a.doc"));
+    assertEquals("http://MYCOMP.COM:8080/a.doc",
+        map("http://MYCOMP.COM:8080/a.doc"));
+  }
+
+  public void testPorts() throws Exception {
+    assertEquals("http://alias.mycomp.com/a.doc",
+        map("http://global.mycomp.com:1234/a.doc"));
+    assertEquals("http://alias.mycomp.com/a.doc",
+        map("http://global.mycomp.com/a.doc"));
+    assertEquals("http://alias.mycomp.com/a.doc",
+        map("http://ported.mycomp.com:8080/a.doc"));
+    assertEquals("http://ported.mycomp.com:80/a.doc",
+        map("http://ported.mycomp.com/a.doc"));
+  }
+
+  public void testRuleMatchingWholePath() throws Exception {
+    assertEquals("http://hr.mycomp.com/", map("http://mycomp.com/sites/hr/"));
+  }
+
+  public void testUnmatchedUrlsGetDefaultPort() throws Exception {
+    assertEquals("https://mycomp.com:443/", map("https://mycomp.com/"));
+    assertEquals("http://other.com:80/x", map("http://other.com/x"));
+    assertEquals("http://other.com:80/x", new AliasMapper(null, false).map(
+        "http://other.com/x"));
+  }
+}
@@ -0,0 +1,64 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import junit.framework.TestCase;
+
+public class AuthorizationCacheTest extends TestCase {
+  private static final String USER = "domain\\user";
+  private static final String SITE = "http://host.mycomp.com:80/sites/hr";
+  private static final String OTHER_SITE = "http://host.mycomp.com:80/sites/it";
+
+  public void testPutAndGet() {
+    AuthorizationCache cache = new AuthorizationCache();
+    cache.put(USER, "doc1", SITE, true);
+    cache.put(USER, "doc2", SITE, false);
+    assertEquals(Boolean.TRUE, cache.get(USER, "doc1"));
+    assertEquals(Boolean.FALSE, cache.get(USER, "doc2"));
+    assertNull(cache.get(USER, "doc3"));
+    assertNull(cache.get("domain\\other", "doc1"));
+  }
+
+  public void testExpiry() throws Exception {
+    AuthorizationCache cache = new AuthorizationCache(1, 100);
+    cache.put(USER, "doc1", SITE, true);
+    Thread.sleep(10);
+    assertNull(cache.get(USER, "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidate() {
+    AuthorizationCache cache = new AuthorizationCache();
+    cache.put(USER, "doc1", SITE, true);
+    cache.put(USER, "doc2", OTHER_SITE, true);
+    cache.put(USER, "doc3", "http://host.mycomp.com:80", true);
+    cache.invalidate(SITE);
+    assertNull(cache.get(USER, "doc1"));
+    assertEquals(Boolean.TRUE, cache.get(USER, "doc2"));
+    // Decisions made for the web application may be under the site collection
+    assertNull(cache.get(USER, "doc3"));
+    cache.invalidate("http://host.mycomp.com:80");
+    assertEquals(0, cache.size());
+  }
+
+  public void testMaxSize() {
+    AuthorizationCache cache = new AuthorizationCache(60000, 10);
+    for (int i = 0; i < 25; i++) {
+      cache.put(USER, "doc" + i, SITE, true);
+    }
+    assertTrue(cache.size() <= 10);
+    assertEquals(Boolean.TRUE, cache.get(USER, "doc24"));
+  }
+}
@@ -0,0 +1,81 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ExcludedURLLogTest extends TestCase {
+  private File dir;
+
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("excluded", "");
+    dir.delete();
+  }
+
+  protected void tearDown() throws Exception {
+    new ExcludedURLLog(dir.getPath(), 0).clear();
+  }
+
+  private File getFile(int index) {
+    return new File(dir, SPConstants.EXCLUDED_URL_LOG + index + ".txt");
+  }
+
+  private static int countLines(File file) throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    int count = 0;
+    try {
+      while (reader.readLine() != null) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    return count;
+  }
+
+  public void testLog() throws Exception {
+    ExcludedURLLog log = new ExcludedURLLog(dir.getPath(), 1000000);
+    for (int i = 0; i < 100; i++) {
+      log.log("[ http://host/" + i + " ] excluded");
+    }
+    log.flush();
+    assertEquals(100, countLines(getFile(0)));
+    assertFalse(getFile(1).exists());
+  }
+
+  public void testRotate() throws Exception {
+    ExcludedURLLog log = new ExcludedURLLog(dir.getPath(), 1000);
+    for (int i = 0; i < 100; i++) {
+      log.log("[ http://host/" + i + " ] excluded");
+    }
+    log.flush();
+    assertTrue(getFile(1).exists());
+    assertFalse(getFile(SPConstants.EXCLUDED_URL_MAX_COUNT + 1).exists());
+  }
+
+  public void testClear() throws Exception {
+    ExcludedURLLog log = new ExcludedURLLog(dir.getPath(), 1000000);
+    log.log("[ http://host/ ] excluded");
+    log.flush();
+    assertTrue(getFile(0).exists());
+    log.clear();
+    assertFalse(dir.exists());
+  }
+}
@@ -0,0 +1,45 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import org.apache.commons.httpclient.HttpClient;
+
+import junit.framework.TestCase;
+
+public class HttpConnectionPoolTest extends TestCase {
+
+  public void testNoSocketTimeoutStillLimitsConnectionWait() {
+    HttpConnectionPool pool = new HttpConnectionPool(4, 0, 0);
+    try {
+      HttpClient httpClient = pool.newHttpClient();
+      long wait = httpClient.getParams().getConnectionManagerTimeout();
+      assertTrue("wait = " + wait, wait > 0);
+      assertEquals(0, httpClient.getHttpConnectionManager().getParams().getSoTimeout());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testClientsShareTheConnectionManager() {
+    HttpConnectionPool pool = new HttpConnectionPool(4, 1000, 1000);
+    try {
+      assertNotSame(pool.newHttpClient(), pool.newHttpClient());
+      assertSame(pool.newHttpClient().getHttpConnectionManager(),
+          pool.newHttpClient().getHttpConnectionManager());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.client;
+
+import junit.framework.TestCase;
+
+public class UrlPatternMatcherTest extends TestCase {
+  private static final String[] PATTERNS = { "", "#http://host/",
+      "-http://host/", "contains:Shared Documents", "regexp:\\.aspx$",
+      "regexpCase:/Lists/", "regexpIgnoreCase:/forms/",
+      "^http://host.mycomp.com/sites/", "^http://host:*/private",
+      "/archive$", "http://host.mycomp.com:8080/sites/hr/",
+      "https://secure.mycomp.com/", "http://*/team/", "host.mycomp.com/docs/",
+      "other.mycomp.com:81/a", "http://host.mycomp.com/sites/a%20b/",
+      "sp.intranet.teldta.com/", "regexp:[unclosed", "nopath" };
+
+  private static final String[] URLS = { "http://host.mycomp.com/sites/x",
+      "http://HOST.mycomp.com:80/sites/x", "http://host.mycomp.com:8080/sites/hr/a.doc",
+      "http://host.mycomp.com:8081/sites/hr/a.doc",
+      "https://secure.mycomp.com/a", "https://secure.mycomp.com:8443/a",
+      "http://any/team/list", "http://any:81/team/list",
+      "http://host.mycomp.com/docs/Shared Documents/a.doc",
+      "http://host.mycomp.com/Docs/x", "http://x.com/default.aspx",
+      "http://x.com/Lists/Tasks", "http://x.com/Forms/AllItems",
+      "http://other.mycomp.com:81/a/b", "http://other.mycomp.com/a/b",
+      "http://host:1/private/x", "http://x.com/archive",
+      "http://host.mycomp.com/sites/a b/c",
+      "http://host.mycomp.com/sites/a%20b/c", "https://sp.intranet.teldta.com",
+      "not a url", "http://x.com/bad%zzencoding" };
+
+  public void testSameAsUtilMatch() {
+    for (int i = 0; i < PATTERNS.length; i++) {
+      String[] single = new String[] { PATTERNS[i] };
+      UrlPatternMatcher matcher = new UrlPatternMatcher(single);
+      for (int j = 0; j < URLS.length; j++) {
+        assertEquals(PATTERNS[i] + " " + URLS[j], Util.match(single, URLS[j],
+            null), matcher.matches(URLS[j]));
+      }
+    }
+  }
+
+  public void testFirstMatchingPattern() {
+    UrlPatternMatcher matcher = new UrlPatternMatcher(PATTERNS);
+    for (int j = 0; j < URLS.length; j++) {
+      StringBuffer matchedPattern = new StringBuffer();
+      if (Util.match(PATTERNS, URLS[j], matchedPattern)) {
+        assertEquals(matchedPattern.toString(),
+            matcher.getMatchingPattern(URLS[j]));
+      } else {
+        assertNull(matcher.getMatchingPattern(URLS[j]));
+      }
+      // Again from the cache
+      assertEquals(Util.match(PATTERNS, URLS[j], null),
+          matcher.matches(URLS[j]));
+    }
+  }
+
+  public void testNull() {
+    assertFalse(new UrlPatternMatcher(PATTERNS).matches(null));
+    assertFalse(new UrlPatternMatcher(new String[0]).matches("http://x.com/"));
+  }
+}
@@ -0,0 +1,98 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class MembershipCacheTest extends TestCase {
+  private static final String NAMESPACE = "http://sp.example.com/sites/hr";
+
+  private MembershipCache cache;
+  private UserGroupMembership userInGroup;
+  private UserGroupMembership adGroupInGroup;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = new MembershipCache(60000, 100);
+    userInGroup = new UserGroupMembership(1, "DOMAIN\\alice", 10, "Owners",
+        NAMESPACE);
+    adGroupInGroup = new UserGroupMembership(2, "DOMAIN\\hr", 20, "Members",
+        NAMESPACE);
+    cache.put("DOMAIN\\alice", list(userInGroup), cache.getGeneration());
+    cache.put("DOMAIN\\hr", list(adGroupInGroup), cache.getGeneration());
+    cache.put("DOMAIN\\sales", new ArrayList<UserGroupMembership>(),
+        cache.getGeneration());
+  }
+
+  public void testGet() {
+    assertEquals(list(userInGroup), cache.get("domain\\ALICE"));
+    assertTrue(cache.get("DOMAIN\\sales").isEmpty());
+    assertNull(cache.get("DOMAIN\\bob"));
+  }
+
+  public void testInvalidateGroups() {
+    Set<Integer> groupIds = new HashSet<Integer>();
+    groupIds.add(10);
+    cache.invalidateGroups(groupIds, "http://sp.example.com/sites/other");
+    assertNotNull(cache.get("DOMAIN\\alice"));
+
+    cache.invalidateGroups(groupIds, NAMESPACE);
+    assertNull(cache.get("DOMAIN\\alice"));
+    assertNotNull(cache.get("DOMAIN\\hr"));
+    assertNotNull(cache.get("DOMAIN\\sales"));
+  }
+
+  public void testInvalidateUsersAndNamespaces() {
+    cache.invalidateUsers(Collections.singleton(2), NAMESPACE);
+    assertNull(cache.get("DOMAIN\\hr"));
+    assertNotNull(cache.get("DOMAIN\\alice"));
+
+    cache.invalidateNamespaces(Collections.singleton(NAMESPACE));
+    assertNull(cache.get("DOMAIN\\alice"));
+    assertEquals(1, cache.size());
+  }
+
+  public void testInvalidatePrincipalsDropsNegativeEntry() {
+    UserGroupMembership added = new UserGroupMembership(3, "domain\\SALES",
+        30, "Visitors", NAMESPACE);
+    cache.invalidatePrincipals(list(added));
+    assertNull(cache.get("DOMAIN\\sales"));
+  }
+
+  public void testStaleReadIsNotCached() {
+    long generation = cache.getGeneration();
+    cache.invalidatePrincipals(list(userInGroup));
+    cache.put("DOMAIN\\bob", new ArrayList<UserGroupMembership>(), generation);
+    assertNull(cache.get("DOMAIN\\bob"));
+  }
+
+  public void testExpiry() {
+    cache = new MembershipCache(-1, 100);
+    cache.put("DOMAIN\\alice", list(userInGroup), cache.getGeneration());
+    assertNull(cache.get("DOMAIN\\alice"));
+  }
+
+  private static List<UserGroupMembership> list(UserGroupMembership membership) {
+    List<UserGroupMembership> memberships = new ArrayList<UserGroupMembership>();
+    memberships.add(membership);
+    return memberships;
+  }
+}
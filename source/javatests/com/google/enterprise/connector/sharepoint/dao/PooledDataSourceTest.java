@@ -0,0 +1,135 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+public class PooledDataSourceTest extends TestCase {
+  private List<FakeConnection> opened;
+  private DataSource target;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    opened = new ArrayList<FakeConnection>();
+    target = (DataSource) Proxy.newProxyInstance(
+        DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getConnection")) {
+              FakeConnection connection = new FakeConnection();
+              opened.add(connection);
+              return connection.proxy;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  public void testReusesReleasedConnection() throws SQLException {
+    PooledDataSource dataSource = new PooledDataSource(target, 2, 60000);
+    Connection first = dataSource.getConnection();
+    first.close();
+    assertTrue(first.isClosed());
+    assertEquals(1, dataSource.getIdleCount());
+
+    Connection second = dataSource.getConnection();
+    assertFalse(second.isClosed());
+    assertEquals(1, opened.size());
+    assertFalse(opened.get(0).closed);
+    second.close();
+
+    dataSource.close();
+    assertTrue(opened.get(0).closed);
+    assertEquals(0, dataSource.getIdleCount());
+  }
+
+  public void testClosesConnectionsBeyondMaxIdle() throws SQLException {
+    PooledDataSource dataSource = new PooledDataSource(target, 1, 60000);
+    Connection first = dataSource.getConnection();
+    Connection second = dataSource.getConnection();
+    first.close();
+    second.close();
+    assertEquals(2, opened.size());
+    assertFalse(opened.get(0).closed);
+    assertTrue(opened.get(1).closed);
+  }
+
+  public void testDoesNotPoolConnectionInTransaction() throws SQLException {
+    PooledDataSource dataSource = new PooledDataSource(target, 2, 60000);
+    Connection connection = dataSource.getConnection();
+    connection.setAutoCommit(false);
+    connection.close();
+    assertTrue(opened.get(0).closed);
+    assertEquals(0, dataSource.getIdleCount());
+  }
+
+  public void testDiscardsExpiredConnection() throws SQLException {
+    PooledDataSource dataSource = new PooledDataSource(target, 2, -1);
+    dataSource.getConnection().close();
+    dataSource.getConnection().close();
+    assertEquals(2, opened.size());
+    assertTrue(opened.get(0).closed);
+  }
+
+  public void testExpiresIdleConnectionOnRelease() throws SQLException {
+    PooledDataSource dataSource = new PooledDataSource(target, 2, -1);
+    Connection first = dataSource.getConnection();
+    Connection second = dataSource.getConnection();
+    first.close();
+    assertFalse(opened.get(0).closed);
+    second.close();
+    assertTrue(opened.get(0).closed);
+    assertFalse(opened.get(1).closed);
+    assertEquals(1, dataSource.getIdleCount());
+  }
+
+  private static class FakeConnection implements InvocationHandler {
+    final Connection proxy;
+    boolean closed;
+    boolean autoCommit = true;
+
+    FakeConnection() {
+      proxy = (Connection) Proxy.newProxyInstance(
+          Connection.class.getClassLoader(),
+          new Class<?>[] { Connection.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("close")) {
+        closed = true;
+        return null;
+      } else if (name.equals("isClosed")) {
+        return closed;
+      } else if (name.equals("getAutoCommit")) {
+        return autoCommit;
+      } else if (name.equals("setAutoCommit")) {
+        autoCommit = (Boolean) args[0];
+        return null;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+  }
+}
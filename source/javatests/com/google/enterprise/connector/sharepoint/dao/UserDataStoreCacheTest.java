@@ -125,28 +125,45 @@ public class UserDataStoreCacheTest extends TestCase {
     }
   }
 
-  public void testGC() {
-    int trial = 100000;
-    // try adding memberships till the time memory gets low. Ensure that no
-    // strong reference is kept for the memberships
-    int i = 1;
-    try {
-      do {
-        UserGroupMembership membership = new UserGroupMembership(1, "user" + i,
-            i, "group" + i, "namespace" + (i % 50));
-        testCache.add(membership);
-        assertTrue(testCache.size() <= i);
-        if (i % 2000 == 0) {
-          testCache.clearCache();
-        }
-        ++i;
-      } while (trial-- != 0);
-      // after handleEnqued, the elements in cache will go down and the
-      // loop will exit
-      assertTrue(true);
-    } catch (Throwable e) {
-      // probably OutOfMemory error
-      fail(e.getMessage());
+  public void testEviction() {
+    testCache = new UserDataStoreCache<UserGroupMembership>(1000);
+    for (int i = 1; i <= 100000; ++i) {
+      UserGroupMembership membership = new UserGroupMembership(1, "user" + i,
+          i, "group" + i, "namespace" + (i % 50));
+      testCache.add(membership);
+      assertTrue(testCache.size() <= 1000);
     }
+    assertEquals(1000, testCache.size());
+    assertTrue(testCache.contains(new UserGroupMembership(1, "user100000",
+        100000, "group100000", "namespace0")));
+    assertFalse(testCache.contains(new UserGroupMembership(1, "user1", 1,
+        "group1", "namespace1")));
+  }
+
+  public void testEvictsLeastRecentlyUsedAndUpdatesViews() {
+    testCache = new UserDataStoreCache<UserGroupMembership>(2);
+    UserGroupMembership first = new UserGroupMembership(1, "user1", 1,
+        "group1", "namespace");
+    UserGroupMembership second = new UserGroupMembership(2, "user2", 1,
+        "group1", "namespace");
+    UserGroupMembership third = new UserGroupMembership(3, "user3", 2,
+        "group2", "namespace");
+    testCache.add(first);
+    testCache.add(second);
+    assertTrue(testCache.contains(first));
+    testCache.add(third);
+    assertTrue(testCache.contains(first));
+    assertFalse(testCache.contains(second));
+
+    // The views must have forgotten the evicted element
+    UserGroupMembership group = new UserGroupMembership();
+    group.setGroupId(1);
+    group.setNamespace("namespace");
+    testCache.removeUsingGroupNamespaceView(group);
+    assertFalse(testCache.contains(first));
+    assertTrue(testCache.contains(third));
+    assertEquals(1, testCache.size());
+    testCache.add(second);
+    assertEquals(2, testCache.size());
   }
 }
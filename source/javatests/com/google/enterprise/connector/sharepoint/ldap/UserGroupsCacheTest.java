@@ -238,4 +238,31 @@ public class UserGroupsCacheTest {
     this.lugCacheStore.clearCache();
     assertNull(this.lugCacheStore.get("searchuser1", ConcurrentHashMap.class));
   }
+
+  @Test
+  public final void testEvictsLeastRecentlyUsed() {
+    UserGroupsCache<Object, String> cache = new UserGroupsCache<Object, String>(
+        TestConfiguration.refreshInterval, 10);
+    for (int i = 1; i <= 10; i++) {
+      cache.put("searchuser" + i, "groups" + i);
+    }
+    assertEquals("groups1", cache.get("searchuser1"));
+    cache.put("searchuser11", "groups11");
+    assertTrue(cache.getSize() <= 10);
+    assertTrue(cache.getEvictionCount() > 0);
+    assertTrue(cache.contains("searchuser1"));
+    assertTrue(cache.contains("searchuser11"));
+  }
+
+  @Test
+  public final void testStatistics() {
+    UserGroupsCache<Object, String> cache = new UserGroupsCache<Object, String>(
+        TestConfiguration.refreshInterval, 10);
+    cache.put("searchuser1", "groups1");
+    assertEquals("groups1", cache.get("searchuser1"));
+    assertNull(cache.get("searchuser2"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
 }
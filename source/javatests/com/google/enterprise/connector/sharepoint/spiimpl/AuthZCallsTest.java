@@ -0,0 +1,161 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.generated.gsbulkauthorization.AuthData;
+import com.google.enterprise.connector.sharepoint.generated.gsbulkauthorization.AuthDataPacket;
+import com.google.enterprise.connector.sharepoint.generated.gsbulkauthorization.Container;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how {@link SharepointAuthorizationManager} splits the documents into
+ * web service calls and waits for the calls.
+ */
+public class AuthZCallsTest extends TestCase {
+  private static final int MAX = SPConstants.AUTHZ_MAX_DOCS_PER_CALL;
+
+  private ExecutorService executor;
+
+  protected void setUp() throws Exception {
+    executor = SharepointAuthorizationManager.newAuthZExecutor();
+  }
+
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  private static Container container(String url) {
+    Container container = new Container();
+    container.setUrl(url);
+    return container;
+  }
+
+  private static Set<AuthData> docs(String prefix, int count) {
+    Set<AuthData> docs = new LinkedHashSet<AuthData>();
+    for (int i = 0; i < count; i++) {
+      AuthData authData = new AuthData();
+      authData.setComplexDocId(prefix + i);
+      docs.add(authData);
+    }
+    return docs;
+  }
+
+  public void testExactlyMaxDocsMakeOneCall() {
+    Map<Container, Set<AuthData>> siteColls = new LinkedHashMap<Container, Set<AuthData>>();
+    siteColls.put(container("http://host/sites/a"), docs("a", MAX));
+
+    List<AuthDataPacket[]> calls = SharepointAuthorizationManager.splitIntoCalls(siteColls);
+    assertEquals(1, calls.size());
+    assertEquals(1, calls.get(0).length);
+    assertEquals(MAX, calls.get(0)[0].getAuthDataArray().length);
+  }
+
+  public void testOneDocOverMaxMakesTwoCalls() {
+    Map<Container, Set<AuthData>> siteColls = new LinkedHashMap<Container, Set<AuthData>>();
+    siteColls.put(container("http://host/sites/a"), docs("a", MAX + 1));
+
+    List<AuthDataPacket[]> calls = SharepointAuthorizationManager.splitIntoCalls(siteColls);
+    assertEquals(2, calls.size());
+    assertEquals(MAX, calls.get(0)[0].getAuthDataArray().length);
+    assertEquals(1, calls.get(1)[0].getAuthDataArray().length);
+    assertEquals("a" + MAX, calls.get(1)[0].getAuthDataArray()[0].getComplexDocId());
+  }
+
+  public void testSiteCollectionSplitAcrossCalls() {
+    Map<Container, Set<AuthData>> siteColls = new LinkedHashMap<Container, Set<AuthData>>();
+    siteColls.put(container("http://host/sites/a"), docs("a", 300));
+    siteColls.put(container("http://host/sites/b"), docs("b", 300));
+
+    List<AuthDataPacket[]> calls = SharepointAuthorizationManager.splitIntoCalls(siteColls);
+    assertEquals(2, calls.size());
+    assertEquals(2, calls.get(0).length);
+    assertEquals("http://host/sites/a", calls.get(0)[0].getContainer().getUrl());
+    assertEquals(300, calls.get(0)[0].getAuthDataArray().length);
+    assertEquals("http://host/sites/b", calls.get(0)[1].getContainer().getUrl());
+    assertEquals(MAX - 300, calls.get(0)[1].getAuthDataArray().length);
+    assertEquals(1, calls.get(1).length);
+    assertEquals("http://host/sites/b", calls.get(1)[0].getContainer().getUrl());
+    assertEquals(600 - MAX, calls.get(1)[0].getAuthDataArray().length);
+  }
+
+  public void testTimedOutCallIsCancelled() throws Exception {
+    final AuthDataPacket[] quickResult = new AuthDataPacket[0];
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    List<Callable<AuthDataPacket[]>> calls = new ArrayList<Callable<AuthDataPacket[]>>();
+    calls.add(new Callable<AuthDataPacket[]>() {
+      public AuthDataPacket[] call() {
+        return quickResult;
+      }
+    });
+    calls.add(new Callable<AuthDataPacket[]>() {
+      public AuthDataPacket[] call() {
+        try {
+          Thread.sleep(60000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+        return new AuthDataPacket[0];
+      }
+    });
+    calls.add(null);
+
+    long start = System.currentTimeMillis();
+    List<AuthDataPacket[]> results = SharepointAuthorizationManager.invokeCalls(
+        executor, calls, Arrays.asList("http://a", "http://b", "http://c"),
+        start + 200);
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertEquals(3, results.size());
+    assertSame(quickResult, results.get(0));
+    assertNull(results.get(1));
+    assertNull(results.get(2));
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testCallsWithoutExecutor() {
+    final AuthDataPacket[] result = new AuthDataPacket[0];
+    List<Callable<AuthDataPacket[]>> calls = new ArrayList<Callable<AuthDataPacket[]>>();
+    calls.add(new Callable<AuthDataPacket[]>() {
+      public AuthDataPacket[] call() throws Exception {
+        throw new Exception("WS call failed");
+      }
+    });
+    calls.add(new Callable<AuthDataPacket[]>() {
+      public AuthDataPacket[] call() {
+        return result;
+      }
+    });
+
+    List<AuthDataPacket[]> results = SharepointAuthorizationManager.invokeCalls(
+        null, calls, Arrays.asList("http://a", "http://b"),
+        System.currentTimeMillis() + 1000);
+    assertEquals(2, results.size());
+    assertNull(results.get(0));
+    assertSame(result, results.get(1));
+  }
+}
@@ -0,0 +1,97 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ContentBufferTest extends TestCase {
+
+  private static byte[] content(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) i;
+    }
+    return bytes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    int count;
+    while ((count = in.read(buf)) != -1) {
+      out.write(buf, 0, count);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  public void testInMemory() throws Exception {
+    byte[] bytes = content(1000);
+    InputStream in = ContentBuffer.buffer(new ByteArrayInputStream(bytes),
+        null, 2000, 0);
+    assertTrue(in instanceof ByteArrayInputStream);
+    assertTrue(Arrays.equals(bytes, readFully(in)));
+  }
+
+  public void testSpilledToDisk() throws Exception {
+    byte[] bytes = content(100000);
+    InputStream in = ContentBuffer.buffer(new ByteArrayInputStream(bytes),
+        null, 2000, 0);
+    assertFalse(in instanceof ByteArrayInputStream);
+    assertTrue(Arrays.equals(bytes, readFully(in)));
+  }
+
+  public void testMaxSize() throws Exception {
+    assertNull(ContentBuffer.buffer(new ByteArrayInputStream(content(100000)),
+        null, 2000, 50000));
+    assertNotNull(ContentBuffer.buffer(new ByteArrayInputStream(content(50000)),
+        null, 2000, 50000));
+  }
+
+  public void testMaxSizeAbortsMethod() throws Exception {
+    final boolean[] closed = new boolean[1];
+    InputStream content = new ByteArrayInputStream(content(100000)) {
+      @Override
+      public void close() {
+        closed[0] = true;
+      }
+    };
+    final int[] calls = new int[2];
+    GetMethod method = new GetMethod() {
+      @Override
+      public void abort() {
+        calls[0]++;
+      }
+
+      @Override
+      public void releaseConnection() {
+        calls[1]++;
+      }
+    };
+    assertNull(ContentBuffer.buffer(content, method, 2000, 50000));
+    assertEquals(1, calls[0]);
+    assertEquals(1, calls[1]);
+    assertFalse(closed[0]);
+    assertTrue(content.available() > 0);
+  }
+}
@@ -0,0 +1,137 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
+import com.google.enterprise.connector.sharepoint.state.ListState;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives the {@link ContentPrefetcher} through {@link SPDocumentList} the way
+ * CM does, with documents whose downloads are only counted.
+ */
+public class ContentPrefetcherTest extends TestCase {
+  private ListState listState;
+
+  protected void setUp() throws Exception {
+    listState = new ListState("{guid}", "No Title", SPConstants.DOC_LIB,
+        Calendar.getInstance(), SPConstants.NO_TEMPLATE,
+        "http://host/Docs/AllItems.aspx", null);
+  }
+
+  /**
+   * Document whose prefetch can be held back after it has been started by the
+   * prefetch thread
+   */
+  private class TestDocument extends SPDocument {
+    final AtomicInteger downloads = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release;
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    TestDocument(String id, boolean toBeFed, CountDownLatch release) {
+      super(id, "http://host/Docs/" + id + ".doc", Calendar.getInstance(),
+          "author", SPConstants.OBJTYPE_LIST_ITEM, "Web",
+          FeedType.CONTENT_FEED, SPType.SP2007);
+      setParentList(listState);
+      setToBeFed(toBeFed);
+      this.release = release;
+    }
+
+    @Override
+    boolean isContentPrefetchable() {
+      return true;
+    }
+
+    @Override
+    public String downloadContents() {
+      downloads.incrementAndGet();
+      return SPConstants.CONNECTIVITY_SUCCESS;
+    }
+
+    @Override
+    void prefetchContents(int memoryThreshold) {
+      started.countDown();
+      if (null != release) {
+        // The prefetcher interrupts its threads when it is shut down
+        boolean released = false;
+        while (!released) {
+          try {
+            released = release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            // Keep waiting for the test
+          }
+        }
+      }
+      super.prefetchContents(memoryThreshold);
+      finished.countDown();
+    }
+  }
+
+  private SPDocumentList createDocumentList(List<SPDocument> documents) {
+    SPDocumentList documentList = new SPDocumentList(documents, null);
+    documentList.setAliasMap(new HashMap<String, String>());
+    documentList.setContentPrefetchCount(1);
+    return documentList;
+  }
+
+  public void testNextDocumentPrefetchesFollowingDocument() throws Exception {
+    TestDocument first = new TestDocument("1", true, null);
+    TestDocument second = new TestDocument("2", true, null);
+    List<SPDocument> documents = new ArrayList<SPDocument>();
+    documents.add(first);
+    documents.add(second);
+    SPDocumentList documentList = createDocumentList(documents);
+
+    assertSame(first, documentList.nextDocument());
+    assertEquals(1, first.downloads.get());
+    assertTrue(second.finished.await(10, TimeUnit.SECONDS));
+    assertEquals(1, second.downloads.get());
+    assertSame(second, documentList.nextDocument());
+    assertNull(documentList.nextDocument());
+  }
+
+  public void testDiscardBeforePrefetchRunsSkipsDownload() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    TestDocument first = new TestDocument("1", true, null);
+    TestDocument skipped = new TestDocument("2", false, release);
+    List<SPDocument> documents = new ArrayList<SPDocument>();
+    documents.add(first);
+    documents.add(skipped);
+    SPDocumentList documentList = createDocumentList(documents);
+
+    assertSame(first, documentList.nextDocument());
+    // The prefetch of the skipped document has been picked up by the prefetch
+    // thread but has not got to the download yet
+    assertTrue(skipped.started.await(10, TimeUnit.SECONDS));
+    // Reaching the end of the list shuts the prefetcher down and discards
+    // the contents of the documents that were not sent
+    assertNull(documentList.nextDocument());
+    release.countDown();
+    assertTrue(skipped.finished.await(10, TimeUnit.SECONDS));
+    assertEquals(0, skipped.downloads.get());
+  }
+}
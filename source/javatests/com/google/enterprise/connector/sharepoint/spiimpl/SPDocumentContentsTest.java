@@ -0,0 +1,83 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+
+import java.util.Calendar;
+
+import junit.framework.TestCase;
+
+public class SPDocumentContentsTest extends TestCase {
+
+  /**
+   * Fakes the downloads, recording how many were made
+   */
+  private static class FakeDocument extends SPDocument {
+    int downloads = 0;
+    RepositoryException failure = null;
+
+    FakeDocument() {
+      super("1", "http://sp.example.com/Shared Documents/a.txt",
+          Calendar.getInstance(), SPConstants.NO_AUTHOR,
+          SPConstants.NO_OBJTYPE, SPConstants.PARENT_WEB_TITLE,
+          FeedType.CONTENT_FEED, SPType.SP2007);
+    }
+
+    public String downloadContents() throws RepositoryException {
+      downloads++;
+      if (null != failure) {
+        throw failure;
+      }
+      setContent_type("text/plain");
+      return SPConstants.CONNECTIVITY_SUCCESS;
+    }
+  }
+
+  public void testDiscardedContentsAreDownloadedAgain()
+      throws RepositoryException {
+    FakeDocument document = new FakeDocument();
+    document.prefetchContents(1024);
+    assertEquals(1, document.downloads);
+    assertMimeType(document);
+    assertEquals(1, document.downloads);
+
+    document.discardContents();
+    assertNull(document.getContent_type());
+    assertMimeType(document);
+    assertEquals(2, document.downloads);
+  }
+
+  public void testDiscardClearsPrefetchFailure() throws RepositoryException {
+    FakeDocument document = new FakeDocument();
+    document.failure = new RepositoryException("Connection refused");
+    document.prefetchContents(1024);
+    document.discardContents();
+
+    document.failure = null;
+    assertMimeType(document);
+    assertEquals(2, document.downloads);
+  }
+
+  private static void assertMimeType(SPDocument document)
+      throws RepositoryException {
+    assertNotNull(document.findProperty(SpiConstants.PROPNAME_MIMETYPE));
+    assertEquals("text/plain", document.getContent_type());
+  }
+}
@@ -0,0 +1,54 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.spiimpl;
+
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+public class SiteCollectionTrieTest extends TestCase {
+  public void testDeepestSiteCollection() {
+    SiteCollectionTrie trie = new SiteCollectionTrie();
+    trie.add("/sites/hr");
+    trie.add("/sites/hr/team");
+    trie.add("/sites/it/");
+    assertEquals("/sites/hr", trie.getSiteCollectionPath("/sites/hr/Lists/a.doc"));
+    assertEquals("/sites/hr/team", trie.getSiteCollectionPath("/sites/hr/team/default.aspx"));
+    assertEquals("/sites/it/", trie.getSiteCollectionPath("/sites/it/Docs/a.doc"));
+    assertEquals("/sites/hr", trie.getSiteCollectionPath("/sites/hr"));
+    assertNull(trie.getSiteCollectionPath("/sites/hrx/a.doc"));
+    assertNull(trie.getSiteCollectionPath("/other/a.doc"));
+  }
+
+  public void testRootSiteCollection() {
+    SiteCollectionTrie trie = new SiteCollectionTrie();
+    trie.add("/");
+    trie.add("/site1");
+    assertEquals("/", trie.getSiteCollectionPath("/Docs/a.doc"));
+    assertEquals("/site1", trie.getSiteCollectionPath("/site1/Docs/a.doc"));
+    trie.add("");
+    assertEquals("/", trie.getSiteCollectionPath("/Docs/a.doc"));
+  }
+
+  public void testGetPath() throws Exception {
+    String[] urls = { "http://host:80/sites/hr/Lists/AllItems.aspx",
+        "http://host", "http://host:80", "http://host/a b/c?x=/y",
+        "http://host/a#frag", "http://host?x=/y" };
+    for (String url : urls) {
+      assertEquals(url, new URL(url).getPath(),
+          SharepointAuthorizationManager.getPath(url));
+    }
+  }
+}
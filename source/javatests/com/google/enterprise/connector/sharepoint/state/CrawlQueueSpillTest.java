@@ -0,0 +1,128 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.SPType;
+import com.google.enterprise.connector.sharepoint.spiimpl.SPDocument;
+import com.google.enterprise.connector.spi.SpiConstants.ActionType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CrawlQueueSpillTest extends TestCase {
+  private File dir;
+  private ListState listState;
+
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("crawlqueue", "");
+    dir.delete();
+    listState = new ListState("{guid}", "No Title", SPConstants.DOC_LIB,
+        Calendar.getInstance(), SPConstants.NO_TEMPLATE,
+        "http://host/Docs/AllItems.aspx", null);
+    Calendar lastMod = Calendar.getInstance();
+    lastMod.add(Calendar.YEAR, -1);
+    listState.setLastDocProcessed(new SPDocument("100",
+        "http://host/Docs/100.doc", lastMod, ActionType.ADD));
+  }
+
+  protected void tearDown() throws Exception {
+    listState.setCrawlQueue(null);
+    dir.delete();
+  }
+
+  private static List<SPDocument> createDocs(int count) {
+    List<SPDocument> docs = new ArrayList<SPDocument>();
+    for (int i = 0; i < count; i++) {
+      Calendar lastMod = Calendar.getInstance();
+      lastMod.add(Calendar.MINUTE, i);
+      SPDocument doc = new SPDocument(Integer.toString(i), "http://host/Docs/"
+          + i + ".doc", lastMod, "author", SPConstants.OBJTYPE_LIST_ITEM,
+          "Web", FeedType.CONTENT_FEED, SPType.SP2003);
+      doc.setAttribute("Title", "Document " + i);
+      doc.setParentFolder(new Folder("/Docs/Folder", "7"));
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  public void testWindows() throws Exception {
+    List<SPDocument> docs = createDocs(25);
+    listState.setCrawlQueue(docs, dir, 10);
+    assertEquals(10, listState.getCrawlQueue().size());
+    assertEquals(docs.get(24), listState.getLastDocForWSRefresh());
+
+    for (int window = 0; window < 3; window++) {
+      List<SPDocument> crawlQueue = new ArrayList<SPDocument>(
+          listState.getCrawlQueue());
+      assertEquals(docs.get(window * 10), crawlQueue.get(0));
+      assertFalse(listState.isCrawlQueueEmpty());
+      for (SPDocument doc : crawlQueue) {
+        listState.removeDocFromCrawlQueue(doc);
+      }
+    }
+    assertTrue(listState.isCrawlQueueEmpty());
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  public void testReadBack() throws Exception {
+    List<SPDocument> docs = createDocs(2);
+    docs.get(1).setAction(ActionType.DELETE);
+    listState.setCrawlQueue(docs, dir, 1);
+    // The last document of ActionType ADD is in memory
+    assertEquals(docs.get(0), listState.getLastDocForWSRefresh());
+    listState.removeDocFromCrawlQueue(docs.get(0));
+
+    SPDocument original = docs.get(1);
+    SPDocument read = listState.getCrawlQueue().get(0);
+    assertEquals(original, read);
+    assertEquals(original.getLastMod(), read.getLastMod());
+    assertEquals(ActionType.DELETE, read.getAction());
+    assertEquals(original.getFeedType(), read.getFeedType());
+    assertEquals(original.getSPType(), read.getSPType());
+    assertEquals(original.getAuthor(), read.getAuthor());
+    assertEquals(original.getAllAttrs(), read.getAllAttrs());
+    assertEquals(original.getDisplayUrl(), read.getDisplayUrl());
+    assertEquals(original.getParentFolder(), read.getParentFolder());
+  }
+
+  public void testReset() throws Exception {
+    listState.setCrawlQueue(createDocs(5), dir, 2);
+    assertEquals(1, dir.listFiles().length);
+    listState.resetState();
+    assertTrue(listState.isCrawlQueueEmpty());
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  public void testUnreadableSpillKeepsChangeToken() throws Exception {
+    listState.saveNextChangeTokenForWSCall("token1");
+    listState.commitChangeTokenForWSCall();
+    List<SPDocument> docs = createDocs(5);
+    listState.setCrawlQueue(docs, dir, 2);
+    listState.saveNextChangeTokenForWSCall("token2");
+    assertTrue(dir.listFiles()[0].delete());
+
+    listState.removeDocFromCrawlQueue(docs.get(0));
+    listState.removeDocFromCrawlQueue(docs.get(1));
+    assertTrue(listState.isCrawlQueueEmpty());
+    assertFalse(listState.commitChangeTokenForWSCall());
+    assertEquals("token1", listState.getChangeTokenForWSCall());
+  }
+}
@@ -0,0 +1,81 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FolderTreeTest extends TestCase {
+
+  public void testOldFormatMigration() {
+    FolderTree tree = FolderTree.valueOf("#1~Forms1#2#33~Forms2#4#5~Forms3#3/#5/#33/#1");
+    assertEquals(6, tree.size());
+    assertTrue(tree.isFolder(1));
+    assertTrue(tree.isFolder(33));
+    assertFalse(tree.isFolder(2));
+    assertEquals("1~Forms1|2:1|33:1~Forms2|4:33|5:33~Forms3|3:5", tree.toString());
+  }
+
+  public void testCompactFormatRoundTrip() {
+    String ids = "1~Forms1|2:1|33:1~Forms2|4:33|5:33~Forms3|3:5|7~Other|8:7";
+    FolderTree tree = FolderTree.valueOf(ids);
+    assertEquals(ids, tree.toString());
+    assertEquals(ids, FolderTree.valueOf(tree.toString()).toString());
+  }
+
+  public void testGetItemsUnder() {
+    FolderTree tree = FolderTree.valueOf("1~Forms1|2:1|33:1~Forms2|4:33|5:33~Forms3|3:5");
+    List<Integer> items = tree.getItemsUnder(1);
+    assertEquals(3, items.size());
+    assertTrue(items.containsAll(Arrays.asList(2, 4, 3)));
+    assertEquals(Arrays.asList(4, 3), tree.getItemsUnder(33));
+    assertEquals(0, tree.getItemsUnder(2).size());
+
+    tree.removeItem(4);
+    tree.removeItem(5);
+    assertEquals(Arrays.asList(3), tree.getItemsUnder(33));
+    assertTrue(tree.contains(5));
+  }
+
+  public void testLookupAndRename() {
+    FolderTree tree = new FolderTree();
+    assertTrue(tree.add(1, -1, "A"));
+    assertTrue(tree.add(2, 1, "B"));
+    assertFalse(tree.add(3, 10, null));
+    assertEquals(2, tree.lookupFolder(Arrays.asList("A", "B")));
+    assertEquals(-1, tree.lookupFolder(Arrays.asList("A", "C")));
+
+    tree.renameFolder(2, "C");
+    assertEquals(2, tree.lookupFolder(Arrays.asList("A", "C")));
+    assertEquals(-1, tree.lookupFolder(Arrays.asList("A", "B")));
+  }
+
+  public void testManyItems() {
+    FolderTree tree = new FolderTree();
+    tree.add(1, -1, "Root");
+    for (int i = 2; i <= 10000; i++) {
+      tree.add(i, 1, null);
+    }
+    for (int i = 2; i <= 10000; i += 2) {
+      tree.removeItem(i);
+    }
+    assertEquals(4999, tree.getItemsUnder(1).size());
+    for (int i = 3; i <= 10000; i += 2) {
+      assertTrue(tree.contains(i));
+    }
+  }
+}
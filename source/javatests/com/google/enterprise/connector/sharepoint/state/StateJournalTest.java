@@ -0,0 +1,71 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StateJournalTest extends TestCase {
+  private File file;
+  private StateJournal journal;
+
+  protected void setUp() throws Exception {
+    file = File.createTempFile("Sharepoint_state", ".journal");
+    file.delete();
+    journal = new StateJournal(file);
+  }
+
+  protected void tearDown() throws Exception {
+    journal.delete();
+  }
+
+  public void testReadRecordsOfGeneration() throws Exception {
+    assertEquals(0, journal.readRecords(1).size());
+    journal.append(1, "<State/>".getBytes("UTF-8"));
+    journal.append(2, "<State a='1'/>".getBytes("UTF-8"));
+    journal.append(2, "<State a='2'/>".getBytes("UTF-8"));
+
+    List<byte[]> records = journal.readRecords(2);
+    assertEquals(2, records.size());
+    assertEquals("<State a='1'/>", new String(records.get(0), "UTF-8"));
+    assertEquals("<State a='2'/>", new String(records.get(1), "UTF-8"));
+    assertEquals(1, journal.readRecords(1).size());
+  }
+
+  public void testIncompleteRecordIsTruncated() throws Exception {
+    journal.append(1, "<State a='1'/>".getBytes("UTF-8"));
+    long validLength = journal.length();
+    FileOutputStream fos = new FileOutputStream(file, true);
+    fos.write("1 100 12345\n<State".getBytes("UTF-8"));
+    fos.close();
+
+    assertEquals(1, journal.readRecords(1).size());
+    assertEquals(validLength, journal.length());
+    journal.append(1, "<State a='2'/>".getBytes("UTF-8"));
+    assertEquals(2, journal.readRecords(1).size());
+  }
+
+  public void testCorruptRecordIsDiscarded() throws Exception {
+    journal.append(1, "<State a='1'/>".getBytes("UTF-8"));
+    FileOutputStream fos = new FileOutputStream(file, true);
+    fos.write("1 8 12345\n<State/>\n".getBytes("UTF-8"));
+    fos.close();
+
+    assertEquals(1, journal.readRecords(1).size());
+  }
+}
@@ -0,0 +1,184 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.state;
+
+import com.google.enterprise.connector.sharepoint.client.SPConstants;
+import com.google.enterprise.connector.sharepoint.client.SPConstants.FeedType;
+
+import org.apache.xml.serialize.OutputFormat;
+import org.apache.xml.serialize.XMLSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+public class StatePagerTest extends TestCase {
+  private static final String WEB1 = "http://host/site1";
+  private static final String WEB2 = "http://host/site2";
+
+  private File workDir;
+
+  protected void setUp() throws Exception {
+    workDir = File.createTempFile("StatePagerTest", "");
+    workDir.delete();
+    workDir.mkdir();
+    Writer out = new OutputStreamWriter(new FileOutputStream(new File(
+        workDir, SPConstants.CONNECTOR_NAME + SPConstants.CONNECTOR_PREFIX)),
+        "UTF-8");
+    out.write("<State><FeedType Type=\"metadata-and-URL\"/>"
+        + "<LastCrawledWebStateID ID=\"" + WEB1 + "\"/>"
+        + webNode(WEB1, "20110102T000000.000Z")
+        + webNode(WEB2, "20110101T000000.000Z") + "</State>");
+    out.close();
+  }
+
+  protected void tearDown() throws Exception {
+    GlobalState.forgetState(workDir.getPath());
+    workDir.delete();
+  }
+
+  private static String webNode(String url, String insertionTime) {
+    return "<WebState ID=\"" + url + "\" URL=\"" + url
+        + "\" SPType=\"SP2007\" InsertionTime=\"" + insertionTime + "\">"
+        + listNode(url, "{LIST-1}") + listNode(url, "{LIST-2}")
+        + "</WebState>";
+  }
+
+  private static String listNode(String webUrl, String id) {
+    return "<ListState ID=\"" + id + "\" URL=\"" + webUrl + "/" + id
+        + "\" LastModified=\"20110101T000000.000Z\" Type=\"DocumentLibrary\""
+        + " ChangeToken=\"token" + id + "\"/>";
+  }
+
+  private static String dump(GlobalState state) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    XMLSerializer serializer = new XMLSerializer(bos, new OutputFormat("XML",
+        "UTF-8", false));
+    state.dumpStateToXML(serializer.asContentHandler());
+    return bos.toString("UTF-8");
+  }
+
+  public void testListStatesArePagedOnLoad() throws Exception {
+    GlobalState state = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED, true);
+    state.loadState();
+
+    Iterator<WebState> webs = state.getIterator();
+    WebState web1 = webs.next();
+    WebState web2 = webs.next();
+    assertEquals(WEB1, web1.getPrimaryKey());
+    assertEquals(WEB2, web2.getPrimaryKey());
+    assertTrue(web1.isPagedOut());
+    assertTrue(web2.isPagedOut());
+
+    ListState list = state.lookupList(WEB2, "{LIST-2}");
+    assertNotNull(list);
+    assertFalse(web2.isPagedOut());
+    assertEquals(2, web2.getAllListStateSet().size());
+    assertEquals("token{LIST-2}", list.getChangeTokenForWSCall());
+  }
+
+  public void testSnapshotMatchesUnpagedState() throws Exception {
+    GlobalState unpaged = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED);
+    unpaged.loadState();
+    String expected = dump(unpaged);
+
+    // Snapshot written while all the webs are paged out
+    GlobalState paged = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED, true);
+    paged.loadState();
+    paged.saveState();
+    GlobalState reloaded = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED);
+    reloaded.loadState();
+    assertEquals(expected, dump(reloaded));
+
+    for (Iterator<WebState> webs = paged.getIterator(); webs.hasNext();) {
+      webs.next().getAllListStateSet();
+    }
+    assertEquals(expected, dump(paged));
+  }
+
+  public void testPageOutAfterCheckpoint() throws Exception {
+    GlobalState state = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED, true);
+    state.loadState();
+    WebState web2 = state.lookupWeb(WEB2, null);
+    web2.lookupList("{LIST-1}").setExisting(false);
+    assertFalse(web2.isPagedOut());
+
+    // Changed webs are kept in memory for one more checkpoint
+    state.markDirty(web2);
+    state.saveState();
+    assertFalse(web2.isPagedOut());
+    state.saveState();
+    assertTrue(web2.isPagedOut());
+
+    assertFalse(web2.lookupList("{LIST-1}").isExisting());
+    assertTrue(web2.lookupList("{LIST-2}").isExisting());
+  }
+
+  public void testUnreadablePageIsKept() throws Exception {
+    GlobalState state = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED, true);
+    state.loadState();
+    WebState web1 = state.getIterator().next();
+    assertTrue(web1.isPagedOut());
+
+    RandomAccessFile pageFile = new RandomAccessFile(new File(workDir,
+        SPConstants.CONNECTOR_NAME + SPConstants.CONNECTOR_PREFIX
+            + SPConstants.STATE_PAGES_SUFFIX), "rw");
+    byte[] original = new byte[(int) pageFile.length()];
+    pageFile.readFully(original);
+    pageFile.seek(0);
+    pageFile.write(new byte[original.length]);
+    try {
+      web1.getAllListStateSet();
+      fail("Unreadable list states must not be taken as empty");
+    } catch (IllegalStateException expected) {
+    }
+    assertTrue(web1.isPagedOut());
+
+    pageFile.seek(0);
+    pageFile.write(original);
+    pageFile.close();
+    assertEquals(2, web1.getAllListStateSet().size());
+    assertFalse(web1.isPagedOut());
+  }
+
+  public void testOnlyMutatorsMarkWebChanged() throws Exception {
+    GlobalState state = new GlobalState(workDir.getPath(),
+        FeedType.METADATA_URL_FEED, true);
+    state.loadState();
+    WebState web1 = state.getIterator().next();
+    assertFalse(web1.isChanged());
+
+    web1.getAllListStateSet().first().setBiggestID(42);
+    assertTrue(web1.isChanged());
+    state.saveState();
+    assertFalse(web1.isChanged());
+
+    // Reading back paged out ListStates does not change the web
+    web1.getAllListStateSet();
+    assertFalse(web1.isChanged());
+  }
+}
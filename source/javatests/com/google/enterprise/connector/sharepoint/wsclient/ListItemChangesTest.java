@@ -0,0 +1,154 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient;
+
+import com.google.enterprise.connector.sharepoint.wsclient.handlers.InvalidXmlCharacterHandler;
+
+import org.apache.axis.AxisEngine;
+import org.apache.axis.client.AxisClient;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.message.MessageElement;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.StringReader;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+public class ListItemChangesTest extends TestCase {
+  private static final String RESULT = "<GetListItemChangesSinceTokenResult>"
+      + "<listitems xmlns:s=\"uuid:BDC6E3F0-6DA3-11d1-A2A3-00AA00C14882\""
+      + " xmlns:rs=\"urn:schemas-microsoft-com:rowset\""
+      + " xmlns:z=\"#RowsetSchema\">"
+      + "<Changes LastChangeToken=\"1;3;{GUID};634;1234\">"
+      + "<Id ChangeType=\"Delete\">7</Id>"
+      + "<Id ChangeType=\"Rename\">3</Id>"
+      + "</Changes>"
+      + "<rs:data ItemCount=\"2\" ListItemCollectionPositionNext=\"Paged=TRUE&amp;p_ID=5\">"
+      + "<z:row ows_ID=\"4\" ows_FileRef=\"4;#site/Docs/a.doc\" ows_Title=\"A &amp; B\"/>"
+      + "<z:row ows_ID=\"5\" ows_FileRef=\"5;#site/Docs/b.doc\"/>"
+      + "</rs:data></listitems></GetListItemChangesSinceTokenResult>";
+
+  private static final String LIST_CHANGED = "<listitems xmlns:rs=\"urn:schemas-microsoft-com:rowset\">"
+      + "<Changes LastChangeToken=\"token\">"
+      + "<List ID=\"{GUID}\"><Fields><Field Name=\"Title\"/></Fields></List>"
+      + "<Id ChangeType=\"Delete\">7</Id>"
+      + "</Changes><rs:data ItemCount=\"0\"/></listitems>";
+
+  private static String soapResponse(String result) {
+    return "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+        + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<soap:Body><GetListItemChangesSinceTokenResponse"
+        + " xmlns=\"http://schemas.microsoft.com/sharepoint/soap/\">"
+        + result
+        + "</GetListItemChangesSinceTokenResponse></soap:Body></soap:Envelope>";
+  }
+
+  private static ListItemChanges parse(String result) throws Exception {
+    return ListItemChanges.parse(new StringReader(soapResponse(result)));
+  }
+
+  private static ListItemChanges parseFiltered(String result,
+      AxisEngine engine) throws Exception {
+    return ListItemChanges.parse(InvalidXmlCharacterHandler.newFilterReader(
+        new StringReader(soapResponse(result)), engine));
+  }
+
+  public void testParse() throws Exception {
+    ListItemChanges changes = parse(RESULT);
+    assertTrue(changes.changesFound);
+    assertEquals("1;3;{GUID};634;1234", changes.lastChangeToken);
+    assertEquals(2, changes.changes.size());
+    assertEquals("Delete", changes.changes.get(0).changeType);
+    assertEquals("7", changes.changes.get(0).itemId);
+    assertEquals("Rename", changes.changes.get(1).changeType);
+    assertEquals("3", changes.changes.get(1).itemId);
+
+    assertTrue(changes.dataFound);
+    assertFalse(changes.outOfSequence);
+    assertEquals("Paged=TRUE&p_ID=5", changes.nextPage);
+    assertEquals(2, changes.rows.size());
+    Map<String, String> row = changes.rows.get(0);
+    assertEquals("4", row.get("ows_ID"));
+    assertEquals("4;#site/Docs/a.doc", row.get("ows_FileRef"));
+    assertEquals("A & B", row.get("ows_Title"));
+  }
+
+  public void testListSchemaIsNotReadAsChanges() throws Exception {
+    ListItemChanges changes = parse(LIST_CHANGED);
+    assertEquals(2, changes.changes.size());
+    assertTrue(changes.changes.get(0).listChanged);
+    assertFalse(changes.changes.get(1).listChanged);
+    assertEquals("7", changes.changes.get(1).itemId);
+    assertTrue(changes.dataFound);
+    assertEquals(0, changes.rows.size());
+  }
+
+  public void testSameAsMessageElement() throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    MessageElement result = new MessageElement(factory.newDocumentBuilder().parse(
+        new InputSource(new StringReader(RESULT))).getDocumentElement());
+    ListItemChanges fromElement = ListItemChanges.fromMessageElement(
+        (MessageElement) result.getChildElements().next());
+    ListItemChanges streamed = parse(RESULT);
+
+    assertEquals(streamed.lastChangeToken, fromElement.lastChangeToken);
+    assertEquals(streamed.changes.size(), fromElement.changes.size());
+    for (int i = 0; i < streamed.changes.size(); i++) {
+      assertEquals(streamed.changes.get(i).changeType,
+          fromElement.changes.get(i).changeType);
+      assertEquals(streamed.changes.get(i).itemId,
+          fromElement.changes.get(i).itemId);
+    }
+    assertEquals(streamed.nextPage, fromElement.nextPage);
+    assertEquals(streamed.rows, fromElement.rows);
+  }
+
+  public void testDoctypeIsRejected() throws Exception {
+    String response = soapResponse(RESULT.replace("A &amp; B", "&xxe;"))
+        .replace("?>", "?><!DOCTYPE soap:Envelope"
+            + " [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>");
+    try {
+      ListItemChanges.parse(new StringReader(response));
+      fail("A response with a DOCTYPE must be rejected");
+    } catch (SAXException expected) {
+    }
+  }
+
+  public void testInvalidCharacterReferenceIsFiltered() throws Exception {
+    String result = RESULT.replace("A &amp; B", "A&#1;B");
+    try {
+      parse(result);
+      fail("The unfiltered response should not be parsed");
+    } catch (SAXException expected) {
+    }
+    ListItemChanges changes = parseFiltered(result, null);
+    assertEquals("A B", changes.rows.get(0).get("ows_Title"));
+    assertEquals(2, changes.rows.size());
+  }
+
+  public void testCustomFilterPatternIsApplied() throws Exception {
+    AxisEngine engine = new AxisClient(new SimpleProvider());
+    engine.setOption("FilterPattern_1", "secret");
+    engine.setOption("ReplacementValue", "_");
+    ListItemChanges changes = parseFiltered(RESULT.replace("A &amp; B",
+        "A secret&#1;"), engine);
+    assertEquals("A __", changes.rows.get(0).get("ows_Title"));
+  }
+}
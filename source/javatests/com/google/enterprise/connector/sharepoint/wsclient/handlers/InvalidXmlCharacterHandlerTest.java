@@ -16,6 +16,11 @@ package com.google.enterprise.connector.sharepoint.wsclient.handlers;
 
 import org.apache.axis.MessageContext;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.regex.Pattern;
+
 import junit.framework.TestCase;
 
 public class InvalidXmlCharacterHandlerTest extends TestCase {
@@ -72,4 +77,46 @@ public class InvalidXmlCharacterHandlerTest extends TestCase {
     assertFalse(msgPayload.contains("ows_"));
     assertFalse(msgPayload.contains("_x20_"));
   }
+
+  /**
+   * Test for matches spanning the windows in which the input is filtered
+   */
+  public void testFilterAcrossWindows() throws Exception {
+    StringBuilder payload = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      payload.append("ab&#11;c&#65;XYZ");
+      expected.append("ab_c&#65;_");
+    }
+
+    InvalidXmlCharacterFilterReader reader = new InvalidXmlCharacterFilterReader(
+        new StringReader(payload.toString()), true, Pattern.compile("XYZ"),
+        "_");
+    StringBuilder filtered = new StringBuilder();
+    char[] buffer = new char[777];
+    int count;
+    while ((count = reader.read(buffer)) != -1) {
+      filtered.append(buffer, 0, count);
+    }
+    assertEquals(expected.toString(), filtered.toString());
+  }
+
+  /**
+   * Test for encoding the filtered characters
+   */
+  public void testReaderInputStream() throws Exception {
+    StringBuilder payload = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      payload.append("\u00e9t\u00e9 \ud834\udd1e ");
+    }
+    InputStream in = new ReaderInputStream(new StringReader(
+        payload.toString()), "UTF-8");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[333];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    assertEquals(payload.toString(), out.toString("UTF-8"));
+  }
 }
@@ -0,0 +1,53 @@
+//Copyright 2011 Google Inc.
+//
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//
+//http://www.apache.org/licenses/LICENSE-2.0
+//
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+
+package com.google.enterprise.connector.sharepoint.wsclient.util;
+
+import org.apache.axis.Handler;
+import org.apache.axis.client.AxisClient;
+
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+
+public class AxisEngineConfigurationTest extends TestCase {
+  private static final QName HTTP = new QName("http");
+
+  public void testConnectorsDoNotShareTheHttpTransport() throws Exception {
+    AxisEngineConfiguration first = new AxisEngineConfiguration(2);
+    AxisEngineConfiguration second = new AxisEngineConfiguration(2);
+    try {
+      Handler firstTransport = new AxisClient(first.getEngineConfiguration()).getTransport("http");
+      Handler secondTransport = new AxisClient(second.getEngineConfiguration()).getTransport("http");
+      assertNotNull(firstTransport);
+      assertNotNull(secondTransport);
+      assertNotSame(firstTransport, secondTransport);
+      assertSame(firstTransport,
+          first.getEngineConfiguration().getTransport(HTTP));
+    } finally {
+      first.shutdown();
+      second.shutdown();
+    }
+  }
+
+  public void testOtherTransportsAreReadFromClientConfig() throws Exception {
+    AxisEngineConfiguration configuration = new AxisEngineConfiguration(2);
+    try {
+      AxisClient engine = new AxisClient(configuration.getEngineConfiguration());
+      assertNotNull(engine.getTransport("local"));
+    } finally {
+      configuration.shutdown();
+    }
+  }
+}